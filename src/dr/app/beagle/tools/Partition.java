@@ -153,7 +153,8 @@ public class Partition {
 
 		compactPartialsCount = tipCount;
 		stateCount = dataType.getStateCount();
-		patternCount = partitionSiteCount;
+		// only the transition matrices are used so the partials needn't be the length of the partition
+		patternCount = 1;
 		siteRateCategoryCount = siteRateModel.getCategoryCount();
 
 		int[] resourceList = new int[] { 0 };
@@ -212,22 +213,7 @@ public class Partition {
 			// set ancestral sequence for partition if it exists
 			if (hasRootSequence) {
 
-				if (rootSequence.getLength() == partitionSiteCount) {
-
-					parentSequence = sequence2intArray(rootSequence);
-
-				} else if (dataType instanceof Codons && rootSequence.getLength() == 3 * partitionSiteCount) {	
-					
-					parentSequence = sequence2intArray(rootSequence);
-					
-				} else {
-
-					throw new RuntimeException("Ancestral sequence length of "
-							+ rootSequence.getLength()
-							+ " does not match partition site count of "
-							+ partitionSiteCount + ".");
-
-				}
+				parentSequence = getRootSequenceStates();
 
 			} else {
 
@@ -361,6 +347,51 @@ public class Partition {
 
 	}// END: traverse
 
+	/**
+	 * Computes the transition probabilities of every branch for each site rate category
+	 * as cumulative probabilities (indexed by node number and null for the root) so that
+	 * blocks of sites can be simulated without the BEAGLE instance. Like simulatePartition
+	 * this finalizes the BEAGLE instance.
+	 * 
+	 * @return the cumulative probabilities [node][category][parent state * stateCount + state]
+	 */
+	public double[][][] getCumulativeTransitionProbabilities() {
+
+		double[][][] cumulativeProbabilities = new double[nodeCount][][];
+
+		try {
+
+			beagle.setCategoryRates(siteRateModel.getCategoryRates());
+			substitutionModelDelegate.updateSubstitutionModels(beagle);
+
+			for (int i = 0; i < nodeCount; i++) {
+
+				NodeRef node = treeModel.getNode(i);
+				if (!treeModel.isRoot(node)) {
+
+					double[][] probabilities = getTransitionProbabilities(node);
+					for (double[] matrix : probabilities) {
+						for (int j = 0; j < matrix.length; j += stateCount) {
+							for (int k = 1; k < stateCount; k++) {
+								matrix[j + k] += matrix[j + k - 1];
+							}
+						}// END: rows loop
+					}// END: categories loop
+
+					cumulativeProbabilities[i] = probabilities;
+				}
+
+			}// END: nodes loop
+
+			beagle.finalize();
+
+		} catch (Throwable e) {
+			throw new RuntimeException("BeagleException: " + e.getMessage());
+		}
+
+		return cumulativeProbabilities;
+	}// END: getCumulativeTransitionProbabilities
+
 	private double[][] getTransitionProbabilities(NodeRef node //
 	) {
 
@@ -467,6 +498,30 @@ public class Partition {
 	// ---END: EXPERIMENTAL---//
 	// /////////////////////////
 	
+	/**
+	 * @return the states of the root sequence for the partition sites or null if there isn't one
+	 */
+	public int[] getRootSequenceStates() {
+
+		if (!hasRootSequence) {
+			return null;
+		}
+
+		if (rootSequence.getLength() == partitionSiteCount
+				|| (dataType instanceof Codons && rootSequence.getLength() == 3 * partitionSiteCount)) {
+
+			return sequence2intArray(rootSequence);
+
+		} else {
+
+			throw new RuntimeException("Ancestral sequence length of "
+					+ rootSequence.getLength()
+					+ " does not match partition site count of "
+					+ partitionSiteCount + ".");
+
+		}
+	}// END: getRootSequenceStates
+
 	private int[] sequence2intArray(Sequence sequence) {
 
 		int array[] = new int[partitionSiteCount];
@@ -559,6 +614,10 @@ public class Partition {
 		return dataType;
 	}// END: getDataType
 
+	public GammaSiteRateModel getSiteRateModel() {
+		return siteRateModel;
+	}// END: getSiteRateModel
+
 	public Map<Taxon, int[]> getTaxonSequencesMap() {
 		return alignmentMap;
 	}// END: getSequenceList
@@ -0,0 +1,392 @@
+/*
+ * StreamingSequenceSimulator.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beagle.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import dr.evolution.datatype.Codons;
+import dr.evolution.datatype.DataType;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.math.MathUtils;
+import dr.util.BoundedOrderedExecutor;
+
+/**
+ * Simulates the partitions in blocks of sites on several threads and writes each block
+ * straight into a FASTA file so that the whole alignment is never held in memory. The file
+ * is laid out with a row of gaps for every taxon first and each block then fills in its
+ * columns. Each block draws from its own random stream derived from the seed, the partition
+ * and the block so the sequences do not depend on the number of threads.
+ *
+ * @version $Id$
+ */
+public class StreamingSequenceSimulator {
+
+	public static final String THREADS = "bss.threads";
+
+	// the approximate size of the tip sequences simulated by each block
+	public static final int DEFAULT_BLOCK_BYTES = 1 << 24;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	private static final int NAME_WIDTH = 10;
+
+	private final List<Partition> partitions;
+	private final DataType dataType;
+	private final int siteCount;
+	private final int stateWidth;
+	private final byte[][] stateCodes;
+	private final byte[] gapCode;
+	private final int threadCount;
+	private final int blockBytes;
+
+	// the position in the file of the first site of each taxon
+	private final Map<String, Long> rowStarts = new LinkedHashMap<String, Long>();
+
+	public StreamingSequenceSimulator(List<Partition> partitions) {
+		this(partitions, Integer.getInteger(THREADS, Runtime.getRuntime().availableProcessors()));
+	}// END: Constructor
+
+	/**
+	 * @param threadCount the number of threads simulating blocks; 1 simulates them on the calling thread
+	 */
+	public StreamingSequenceSimulator(List<Partition> partitions, int threadCount) {
+		this(partitions, threadCount, DEFAULT_BLOCK_BYTES);
+	}// END: Constructor
+
+	/**
+	 * @param threadCount the number of threads simulating blocks; 1 simulates them on the calling thread
+	 * @param blockBytes  the approximate size of the tip sequences simulated by each block (the
+	 *                    sequences depend on it as each block has its own random stream)
+	 */
+	public StreamingSequenceSimulator(List<Partition> partitions, int threadCount, int blockBytes) {
+
+		this.partitions = partitions;
+		this.threadCount = threadCount;
+		this.blockBytes = blockBytes;
+
+		DataType dataType = null;
+		int siteCount = 0;
+		for (Partition partition : partitions) {
+
+			if (dataType == null) {
+				dataType = partition.getDataType();
+			} else if (dataType.getType() != partition.getDataType().getType()) {
+				throw new RuntimeException("Partitions must have the same data type.");
+			}
+
+			siteCount = Math.max(siteCount, partition.to + 1);
+
+		}// END: partitions loop
+
+		this.dataType = dataType;
+		this.siteCount = siteCount;
+
+		stateWidth = (dataType instanceof Codons ? 3 : 1);
+		stateCodes = new byte[dataType.getStateCount()][];
+		for (int i = 0; i < stateCodes.length; i++) {
+			stateCodes[i] = getCode(i);
+		}
+		gapCode = getCode(dataType.getGapState());
+	}// END: Constructor
+
+	/**
+	 * Simulates all the partitions into a FASTA file laid out like SimpleAlignment's.
+	 */
+	public void simulate(File file) throws IOException {
+
+		layoutFile(file);
+
+		BoundedOrderedExecutor<byte[]> executor = new BoundedOrderedExecutor<byte[]>("sequence-simulator", threadCount);
+
+		RandomAccessFile output = new RandomAccessFile(file, "rw");
+		try {
+
+			for (Partition partition : partitions) {
+				simulatePartition(partition, output.getChannel(), executor);
+			}
+
+		} finally {
+			output.close();
+			executor.shutdown();
+		}
+	}// END: simulate
+
+	/**
+	 * Writes a header and a row of gaps for each taxon in the order they first appear in
+	 * the partitions' trees.
+	 */
+	private void layoutFile(File file) throws IOException {
+
+		for (Partition partition : partitions) {
+			TreeModel tree = partition.getTreeModel();
+			for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+				rowStarts.put(tree.getNodeTaxon(tree.getExternalNode(i)).getId(), null);
+			}
+		}
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		try {
+
+			long position = 0;
+			for (String taxonId : new ArrayList<String>(rowStarts.keySet())) {
+
+				StringBuilder name = new StringBuilder(">").append(taxonId);
+				while (name.length() < NAME_WIDTH + 1) {
+					name.append(' ');
+				}
+				byte[] header = name.append('\n').toString().getBytes(CHARSET);
+				out.write(header);
+				position += header.length;
+
+				rowStarts.put(taxonId, position);
+
+				for (int i = 0; i < siteCount; i++) {
+					out.write(gapCode);
+				}
+				out.write('\n');
+				position += (long) siteCount * stateWidth + 1;
+
+			}// END: taxa loop
+
+			out.write('\n');
+
+		} finally {
+			out.close();
+		}
+	}// END: layoutFile
+
+	private void simulatePartition(final Partition partition, FileChannel channel, BoundedOrderedExecutor<byte[]> executor)
+			throws IOException {
+
+		final TreeModel tree = partition.getTreeModel();
+		final int partitionSiteCount = partition.getPartitionSiteCount();
+		final int tipCount = tree.getExternalNodeCount();
+
+		final double[][][] probabilities = partition.getCumulativeTransitionProbabilities();
+		final double[] categoryProbabilities = cumulate(partition.getSiteRateModel().getCategoryProportions());
+		final double[] frequencies = cumulate(partition.getFreqModel().getFrequencies());
+		final int[] rootStates = partition.getRootSequenceStates();
+
+		// the seed is drawn before any block is simulated so it only depends on the partition order
+		final long seed = MathUtils.nextLong();
+
+		final int blockSize = (int) Math.max(1, Math.min(partitionSiteCount,
+				blockBytes / ((long) tipCount * stateWidth)));
+		final int blockCount = (partitionSiteCount + blockSize - 1) / blockSize;
+
+		long[] tipStarts = new long[tipCount];
+		for (int i = 0; i < tipCount; i++) {
+			tipStarts[i] = rowStarts.get(tree.getNodeTaxon(tree.getExternalNode(i)).getId())
+					+ (long) partition.from * stateWidth;
+		}
+
+		int nextBlock = 0;
+		for (int block = 0; block < blockCount; block++) {
+
+			while (nextBlock < blockCount && !executor.isFull()) {
+
+				final int firstSite = nextBlock * blockSize;
+				final int blockSiteCount = Math.min(blockSize, partitionSiteCount - firstSite);
+				final long streamIndex = nextBlock;
+
+				executor.submit(new Callable<byte[]>() {
+					public byte[] call() {
+						MathUtils.RandomStream previous = MathUtils.bindRandomStream(
+								MathUtils.createRandomStream(seed, streamIndex));
+						try {
+							return simulateBlock(tree, probabilities, categoryProbabilities, frequencies,
+									rootStates, firstSite, blockSiteCount);
+						} finally {
+							MathUtils.bindRandomStream(previous);
+						}
+					}
+				});
+				nextBlock++;
+
+			}// END: submit loop
+
+			byte[] tipSequences = executor.take();
+
+			int firstSite = block * blockSize;
+			int blockSiteCount = Math.min(blockSize, partitionSiteCount - firstSite);
+			writeBlock(channel, tipSequences, tipStarts, firstSite, blockSiteCount, partition.every);
+
+		}// END: blocks loop
+	}// END: simulatePartition
+
+	/**
+	 * Simulates a block of sites down the tree.
+	 *
+	 * @return the tip sequences for the block encoded as in the file, one after another in
+	 *         the order of the tips
+	 */
+	private byte[] simulateBlock(TreeModel tree, double[][][] probabilities,
+			double[] categoryProbabilities, double[] frequencies, int[] rootStates,
+			int firstSite, int blockSiteCount) {
+
+		int stateCount = dataType.getStateCount();
+		int tipLength = blockSiteCount * stateWidth;
+		byte[] tipSequences = new byte[tree.getExternalNodeCount() * tipLength];
+
+		int[] category = new int[blockSiteCount];
+		for (int i = 0; i < blockSiteCount; i++) {
+			category[i] = sample(categoryProbabilities, 0, categoryProbabilities.length);
+		}
+
+		int[] rootSequence = new int[blockSiteCount];
+		for (int i = 0; i < blockSiteCount; i++) {
+			rootSequence[i] = (rootStates != null ? rootStates[firstSite + i] : sample(frequencies, 0, stateCount));
+		}
+
+		// depth first with a stack rather than recursion so deep trees don't overflow
+		Deque<NodeRef> nodes = new ArrayDeque<NodeRef>();
+		Deque<int[]> sequences = new ArrayDeque<int[]>();
+		nodes.push(tree.getRoot());
+		sequences.push(rootSequence);
+
+		while (!nodes.isEmpty()) {
+
+			NodeRef node = nodes.pop();
+			int[] parentSequence = sequences.pop();
+
+			for (int iChild = 0; iChild < tree.getChildCount(node); iChild++) {
+
+				NodeRef child = tree.getChild(node, iChild);
+				double[][] childProbabilities = probabilities[child.getNumber()];
+
+				int[] sequence = new int[blockSiteCount];
+				for (int i = 0; i < blockSiteCount; i++) {
+					sequence[i] = sample(childProbabilities[category[i]], parentSequence[i] * stateCount, stateCount);
+				}
+
+				if (tree.isExternal(child)) {
+					int offset = child.getNumber() * tipLength;
+					for (int i = 0; i < blockSiteCount; i++) {
+						System.arraycopy(stateCodes[sequence[i]], 0, tipSequences, offset + i * stateWidth, stateWidth);
+					}
+				} else {
+					nodes.push(child);
+					sequences.push(sequence);
+				}
+
+			}// END: child nodes loop
+
+		}// END: traversal loop
+
+		return tipSequences;
+	}// END: simulateBlock
+
+	/**
+	 * Writes the tips' columns for a block into their rows, filling in between the sites of
+	 * other partitions if the sites are not consecutive.
+	 */
+	private void writeBlock(FileChannel channel, byte[] tipSequences, long[] tipStarts,
+			int firstSite, int blockSiteCount, int every) throws IOException {
+
+		int tipLength = blockSiteCount * stateWidth;
+
+		if (every == 1) {
+
+			for (int i = 0; i < tipStarts.length; i++) {
+				writeFully(channel, ByteBuffer.wrap(tipSequences, i * tipLength, tipLength),
+						tipStarts[i] + (long) firstSite * stateWidth);
+			}
+
+		} else {
+
+			byte[] span = new byte[((blockSiteCount - 1) * every + 1) * stateWidth];
+			for (int i = 0; i < tipStarts.length; i++) {
+
+				long position = tipStarts[i] + (long) firstSite * every * stateWidth;
+				ByteBuffer buffer = ByteBuffer.wrap(span);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						throw new IOException("Unexpected end of sequence file");
+					}
+				}
+
+				for (int j = 0; j < blockSiteCount; j++) {
+					System.arraycopy(tipSequences, i * tipLength + j * stateWidth, span, j * every * stateWidth, stateWidth);
+				}
+
+				writeFully(channel, ByteBuffer.wrap(span), position);
+
+			}// END: tips loop
+
+		}// END: every check
+	}// END: writeBlock
+
+	private void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long start = position - buffer.position();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, start + buffer.position());
+		}
+	}// END: writeFully
+
+	private byte[] getCode(int state) {
+		String code = (dataType instanceof Codons ? dataType.getTriplet(state) : String.valueOf(dataType.getCode(state)));
+		return code.getBytes(CHARSET);
+	}// END: getCode
+
+	private static double[] cumulate(double[] probabilities) {
+		double[] cumulative = new double[probabilities.length];
+		double total = 0.0;
+		for (int i = 0; i < probabilities.length; i++) {
+			total += probabilities[i];
+			cumulative[i] = total;
+		}
+		return cumulative;
+	}// END: cumulate
+
+	/**
+	 * Draws a state from cumulative probabilities using the random stream bound to this thread.
+	 */
+	private static int sample(double[] cumulative, int offset, int count) {
+		double u = MathUtils.nextDouble();
+		for (int i = 0; i < count - 1; i++) {
+			if (u < cumulative[offset + i]) {
+				return i;
+			}
+		}
+		return count - 1;
+	}// END: sample
+
+}// END: class
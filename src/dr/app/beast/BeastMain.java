@@ -32,18 +32,29 @@ import dr.app.plugin.Plugin;
 import dr.app.plugin.PluginLoader;
 import dr.app.util.Arguments;
 import dr.app.util.Utils;
+import dr.inference.loggers.MCLogger;
 import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MarginalLikelihoodEstimator;
+import dr.inference.mcmcmc.ColdChainLogMerger;
 import dr.inference.mcmcmc.MCMCMC;
 import dr.inference.mcmcmc.MCMCMCOptions;
+import dr.inference.mcmcmc.MCMCMCServer;
+import dr.inference.mcmcmc.MCMCMCWorker;
+import dr.inference.trace.ReplicateLogCombiner;
 import dr.math.MathUtils;
 import dr.util.ErrorLogHandler;
+import dr.util.FileHelpers;
 import dr.util.MessageLogHandler;
 import dr.util.Version;
 import dr.xml.XMLObjectParser;
 import dr.xml.XMLParser;
 import jam.util.IconUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 import javax.swing.*;
+import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
@@ -58,6 +69,8 @@ public class BeastMain {
     public static final double DEFAULT_DELTA = 1.0;
     public static final int DEFAULT_SWAP_CHAIN_EVERY = 100;
 
+    private static final long REPLICATE_POLL_INTERVAL = 10000; // milliseconds
+
     static class BeastConsoleApp extends jam.console.ConsoleApplication {
         XMLParser parser = null;
 
@@ -82,6 +95,19 @@ public class BeastMain {
     public BeastMain(File inputFile, BeastConsoleApp consoleApp, int maxErrorCount, final boolean verbose,
                      boolean parserWarning, boolean strictXML, List<String> additionalParsers,
                      boolean useMC3, double[] chainTemperatures, int swapChainsEvery) {
+        this(inputFile, consoleApp, maxErrorCount, verbose, parserWarning, strictXML, additionalParsers,
+                useMC3 ? new MCMCMCOptions(chainTemperatures, swapChainsEvery) : null, -1, -1);
+    }
+
+    /**
+     * @param mc3Options   the options for an MCMCMC analysis (or null)
+     * @param mc3Port      if not negative, run a single chain of an MCMCMC analysis coordinated by
+     *                     a server on this port
+     * @param mc3Rank      the index of the chain if mc3Port is given
+     */
+    public BeastMain(File inputFile, BeastConsoleApp consoleApp, int maxErrorCount, final boolean verbose,
+                     boolean parserWarning, boolean strictXML, List<String> additionalParsers,
+                     MCMCMCOptions mc3Options, int mc3Port, int mc3Rank) {
 
         if (inputFile == null) {
             throw new RuntimeException("Error: no input file specified");
@@ -94,7 +120,18 @@ public class BeastMain {
 
             FileReader fileReader = new FileReader(inputFile);
 
-            XMLParser parser = new BeastParser(new String[]{fileName}, additionalParsers, verbose, parserWarning, strictXML);
+            // marginal likelihood estimators may need copies of the model to run in parallel
+            final MarginalLikelihoodEstimator.ReplicaFactory replicaFactory =
+                    createReplicaFactory(inputFile, additionalParsers, verbose, parserWarning, strictXML);
+
+            XMLParser parser = new BeastParser(new String[]{fileName}, additionalParsers, verbose, parserWarning, strictXML) {
+                protected void executingRunnable(Object runnable) {
+                    super.executingRunnable(runnable);
+                    if (runnable instanceof MarginalLikelihoodEstimator) {
+                        ((MarginalLikelihoodEstimator) runnable).setReplicaFactory(replicaFactory);
+                    }
+                }
+            };
 
             if (consoleApp != null) {
                 consoleApp.parser = parser;
@@ -159,15 +196,26 @@ public class BeastMain {
             // appropriate savers and loaders according to the user's options.
             new BeastCheckpointer();
 
-            if (!useMC3) {
+            if (mc3Port >= 0) {
+                // run one chain of an MCMCMC analysis in this process
+                MCMC mcmc = (MCMC) parser.parse(fileReader, MCMC.class);
+                if (mcmc == null) {
+                    throw new dr.xml.XMLParseException("BEAST XML file is missing an MCMC element");
+                }
+                fileReader.close();
+
+                new MCMCMCWorker(mcmc, mc3Port, mc3Rank, mc3Options.getSwapChainsEvery()).run();
+
+            } else if (mc3Options == null) {
                 // just parse the file running all threads...
 
                 parser.parse(fileReader, true);
 
             } else {
+                double[] chainTemperatures = mc3Options.getChainTemperatures();
                 int chainCount = chainTemperatures.length;
                 MCMC[] chains = new MCMC[chainCount];
-                MCMCMCOptions options = new MCMCMCOptions(chainTemperatures, swapChainsEvery);
+                MCMCMCOptions options = mc3Options;
 
                 Logger.getLogger("dr.apps.beast").info("Starting cold chain plus hot chains with temperatures: ");
                 for (int i = 1; i < chainTemperatures.length; i++) {
@@ -204,9 +252,9 @@ public class BeastMain {
                 // restart messages
                 messageHandler.setLevel(Level.ALL);
 
+                // run in this thread as main() exits when the constructor returns
                 MCMCMC mc3 = new MCMCMC(chains, options);
-                Thread thread = new Thread(mc3);
-                thread.start();
+                mc3.run();
             }
 
         } catch (java.io.IOException ioe) {
@@ -309,6 +357,386 @@ public class BeastMain {
         System.out.println();
     }
 
+    /**
+     * Allows a marginal likelihood estimator to get independent copies of itself (with its own
+     * model) by parsing the file again. Any log files the copies open are put in a temporary
+     * directory so the real ones aren't touched.
+     */
+    private static MarginalLikelihoodEstimator.ReplicaFactory createReplicaFactory(
+            final File inputFile, final List<String> additionalParsers, final boolean verbose,
+            final boolean parserWarning, final boolean strictXML) {
+        return new MarginalLikelihoodEstimator.ReplicaFactory() {
+            public MarginalLikelihoodEstimator createReplica() throws Exception {
+                Logger logger = Logger.getLogger("dr");
+                Level level = logger.getLevel();
+
+                File replicaDir = File.createTempFile("beast", "replica");
+                if (!replicaDir.delete() || !replicaDir.mkdir()) {
+                    throw new IOException("Unable to create a temporary directory");
+                }
+                replicaDir.deleteOnExit();
+
+                FileReader fileReader = new FileReader(inputFile);
+                try {
+                    // turn off all messages (they will be the same as the first time)
+                    logger.setLevel(Level.OFF);
+
+                    XMLParser parser = new BeastParser(new String[]{inputFile.getName()}, additionalParsers,
+                            verbose, parserWarning, strictXML);
+                    parser.setLogDirectory(replicaDir);
+                    return (MarginalLikelihoodEstimator) parser.parse(fileReader, MarginalLikelihoodEstimator.class);
+                } finally {
+                    fileReader.close();
+                    logger.setLevel(level);
+                    File[] files = replicaDir.listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            file.deleteOnExit();
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs each chain of an MCMCMC analysis in a separate copy of BEAST started with the same
+     * arguments. This process only coordinates the exchange of temperatures.
+     *
+     * @param seed a seed to give the chains (which derive their own from it) or -1 if one is in the arguments
+     */
+    private static void runChainProcesses(String[] args, File inputFile, MCMCMCOptions mc3Options, long seed) {
+        final Logger infoLogger = Logger.getLogger("dr.app.beast");
+        try {
+            String fileNamePrefix = System.getProperty("file.name.prefix");
+            boolean allowOverwrite = Boolean.parseBoolean(System.getProperty("log.allow.overwrite", "false"));
+
+            // each chain only logs the states in which it is cold, to files labelled with its rank,
+            // and these are merged into the files named in the input file when the chains finish
+            List<Element> logElements = getRankedLogElements(inputFile);
+            for (Element element : logElements) {
+                File mergedFile = FileHelpers.getFile(element.getAttribute(FileHelpers.FILE_NAME), fileNamePrefix);
+                if (mergedFile.exists() && !allowOverwrite) {
+                    throw new RuntimeException("The log file " + mergedFile.getName() + " already exists in the working directory." +
+                            "\nTo allow it to be overwritten, use the '-overwrite' command line option.");
+                }
+            }
+
+            MCMCMCServer server = new MCMCMCServer(mc3Options);
+            Thread serverThread = new Thread(server, "mc3 server");
+            serverThread.start();
+
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(java.lang.management.ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(BeastMain.class.getName());
+
+            int chainCount = mc3Options.getChainTemperatures().length;
+            Process[] processes = new Process[chainCount];
+            File[] chainOutputFiles = new File[chainCount];
+            for (int rank = 0; rank < chainCount; rank++) {
+                List<String> chainCommand = new ArrayList<String>(command);
+                chainCommand.add("-mc3_worker");
+                chainCommand.add(server.getPort() + ":" + rank);
+                if (seed > 0) {
+                    chainCommand.add("-seed");
+                    chainCommand.add(Long.toString(seed));
+                }
+                for (String arg : args) {
+                    if (!arg.equals("-mc3_processes")) {
+                        chainCommand.add(arg);
+                    }
+                }
+                // the screen output of each chain goes to its own file rather than being interleaved
+                chainOutputFiles[rank] = FileHelpers.getFile("chain" + rank + ".out", fileNamePrefix);
+                processes[rank] = new ProcessBuilder(chainCommand)
+                        .redirectErrorStream(true)
+                        .redirectOutput(chainOutputFiles[rank])
+                        .redirectInput(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                infoLogger.info("Chain " + rank + " is writing its output to: " + chainOutputFiles[rank].getName());
+            }
+
+            for (int rank = 0; rank < chainCount; rank++) {
+                if (processes[rank].waitFor() != 0) {
+                    throw new RuntimeException("Chain process " + rank + " terminated with an error (see " +
+                            chainOutputFiles[rank].getName() + ")");
+                }
+            }
+            serverThread.join();
+
+            for (Element element : logElements) {
+                String fileName = element.getAttribute(FileHelpers.FILE_NAME);
+                boolean isTreeFile = element.getTagName().equals("logTree");
+                String extension = (isTreeFile ? ".trees" : ".log");
+                String stem = fileName.substring(0, fileName.length() - extension.length());
+
+                File[] chainFiles = new File[chainCount];
+                for (int rank = 0; rank < chainCount; rank++) {
+                    chainFiles[rank] = FileHelpers.getFile(stem + rank + extension, fileNamePrefix);
+                }
+                File mergedFile = FileHelpers.getFile(fileName, fileNamePrefix);
+                long sampleCount = ColdChainLogMerger.merge(chainFiles, mergedFile, isTreeFile);
+                infoLogger.info("Merged " + sampleCount + " samples of the cold chain into: " + mergedFile.getName());
+            }
+
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to run chain processes: " + ioe.getMessage());
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while waiting for chain processes");
+        }
+    }
+
+    /**
+     * @return the log and logTree elements of the input file whose files are labelled with the rank
+     * of the process that writes them (see XMLParser)
+     */
+    private static List<Element> getRankedLogElements(File inputFile) throws IOException {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputFile);
+        } catch (org.xml.sax.SAXException se) {
+            throw new RuntimeException("Unable to read the log file names from the input file: " + se.getMessage());
+        } catch (javax.xml.parsers.ParserConfigurationException pce) {
+            throw new RuntimeException("Unable to read the log file names from the input file: " + pce.getMessage());
+        }
+
+        List<Element> logElements = new ArrayList<Element>();
+        for (String elementName : new String[]{"log", "logTree"}) {
+            NodeList elements = document.getElementsByTagName(elementName);
+            for (int i = 0; i < elements.getLength(); i++) {
+                Element element = (Element) elements.item(i);
+                String fileName = element.getAttribute(FileHelpers.FILE_NAME);
+                if (fileName.endsWith(elementName.equals("log") ? ".log" : ".trees")) {
+                    logElements.add(element);
+                }
+            }
+        }
+        return logElements;
+    }
+
+    /**
+     * Runs independently seeded replicates of the same analysis, each in a separate copy of BEAST
+     * started with the same arguments, and combines their log and tree files, after removing the
+     * burnin from each, as they are written. The convergence of the replicates is reported as they
+     * run and when they have finished.
+     *
+     * @param seed a seed to give the replicates (which derive their own from it) or -1 if one is in the arguments
+     */
+    private static void runReplicateProcesses(String[] args, File inputFile, int replicateCount, long burnin, long seed) {
+        final Logger infoLogger = Logger.getLogger("dr.app.beast");
+        try {
+            List<ReplicateLogCombiner> combiners = new ArrayList<ReplicateLogCombiner>();
+            ReplicateLogCombiner diagnostics = null;
+
+            String fileNamePrefix = System.getProperty("file.name.prefix");
+            boolean allowOverwrite = Boolean.parseBoolean(System.getProperty("log.allow.overwrite", "false"));
+
+            for (Element element : getRankedLogElements(inputFile)) {
+                String elementName = element.getTagName();
+                String fileName = element.getAttribute(FileHelpers.FILE_NAME);
+                String extension = (elementName.equals("log") ? ".log" : ".trees");
+                String stem = fileName.substring(0, fileName.length() - extension.length());
+
+                File[] chainFiles = new File[replicateCount];
+                for (int rank = 0; rank < replicateCount; rank++) {
+                    chainFiles[rank] = FileHelpers.getFile(stem + rank + extension, fileNamePrefix);
+                }
+                File combinedFile = FileHelpers.getFile(stem + ".combined" + extension, fileNamePrefix);
+                if (combinedFile.exists() && !allowOverwrite) {
+                    throw new RuntimeException("The log file " + combinedFile.getName() + " already exists in the working directory." +
+                            "\nTo allow it to be overwritten, use the '-overwrite' command line option.");
+                }
+
+                long logEvery = 1;
+                if (element.hasAttribute("logEvery")) {
+                    logEvery = (long) Double.parseDouble(element.getAttribute("logEvery"));
+                }
+
+                ReplicateLogCombiner combiner = new ReplicateLogCombiner(chainFiles, combinedFile,
+                        elementName.equals("logTree"), burnin, logEvery);
+                combiners.add(combiner);
+                if (diagnostics == null && elementName.equals("log")) {
+                    diagnostics = combiner;
+                }
+                infoLogger.info("Combining replicate " + elementName + " files into: " + combinedFile.getName());
+            }
+
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(java.lang.management.ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(BeastMain.class.getName());
+
+            final Process[] processes = new Process[replicateCount];
+            File[] outputFiles = new File[replicateCount];
+
+            // if BEAST is stopped the replicates shouldn't carry on running without it
+            Thread shutdownHook = new Thread() {
+                public void run() {
+                    destroyProcesses(processes);
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+            try {
+                for (int rank = 0; rank < replicateCount; rank++) {
+                    List<String> replicateCommand = new ArrayList<String>(command);
+                    replicateCommand.add("-replicate_worker");
+                    replicateCommand.add(Integer.toString(rank));
+                    if (seed > 0) {
+                        replicateCommand.add("-seed");
+                        replicateCommand.add(Long.toString(seed));
+                    }
+                    for (int i = 0; i < args.length; i++) {
+                        if (args[i].equals("-replicates") || args[i].equals("-replicate_burnin")) {
+                            i++; // and skip its value
+                        } else {
+                            replicateCommand.add(args[i]);
+                        }
+                    }
+
+                    // the screen output of each replicate goes to its own file
+                    outputFiles[rank] = FileHelpers.getFile(inputFile.getName().replaceAll("\\.xml$", "") +
+                            ".replicate" + rank + ".out", fileNamePrefix);
+                    processes[rank] = new ProcessBuilder(replicateCommand)
+                            .redirectErrorStream(true).redirectOutput(outputFiles[rank]).start();
+                }
+                infoLogger.info("Started " + replicateCount + " replicates");
+
+                int failedRank = -1;
+                boolean running = true;
+                while (running && failedRank < 0) {
+                    Thread.sleep(REPLICATE_POLL_INTERVAL);
+
+                    running = false;
+                    for (int rank = 0; rank < replicateCount; rank++) {
+                        try {
+                            if (processes[rank].exitValue() != 0) {
+                                failedRank = rank;
+                            }
+                        } catch (IllegalThreadStateException itse) {
+                            running = true;
+                        }
+                    }
+
+                    if (running && failedRank < 0) {
+                        for (ReplicateLogCombiner combiner : combiners) {
+                            combiner.update();
+                        }
+                        if (diagnostics != null) {
+                            printReplicateProgress(diagnostics);
+                        }
+                    }
+                }
+
+                if (failedRank >= 0) {
+                    // the combined run would be missing a replicate so stop the others now
+                    destroyProcesses(processes);
+                }
+
+                for (ReplicateLogCombiner combiner : combiners) {
+                    combiner.finish();
+                }
+
+                if (failedRank >= 0) {
+                    throw new RuntimeException("Replicate " + failedRank + " terminated with an error (see " +
+                            outputFiles[failedRank].getName() + ")");
+                }
+            } finally {
+                destroyProcesses(processes);
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException ise) {
+                    // already shutting down so the hook is running
+                }
+            }
+
+            if (diagnostics != null) {
+                printReplicateDiagnostics(diagnostics);
+            }
+
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to run replicates: " + ioe.getMessage());
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while waiting for replicates");
+        }
+    }
+
+    /**
+     * Stops any of the replicate processes that are still running and waits for them to exit.
+     */
+    private static void destroyProcesses(Process[] processes) {
+        for (Process process : processes) {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+        for (Process process : processes) {
+            if (process != null) {
+                try {
+                    process.waitFor();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void printReplicateProgress(ReplicateLogCombiner combiner) {
+        if (combiner.getColumnCount() == 0 || combiner.getSampleCount() == 0) {
+            return;
+        }
+
+        int worstRHat = -1;
+        int worstESS = -1;
+        double maxRHat = 0.0;
+        double minESS = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < combiner.getColumnCount(); j++) {
+            if (!combiner.isVarying(j)) {
+                continue;
+            }
+            double rHat = combiner.getRHat(j, true);
+            if (rHat > maxRHat) {
+                maxRHat = rHat;
+                worstRHat = j;
+            }
+            double ess = combiner.getESS(j, true);
+            if (ess < minESS) {
+                minESS = ess;
+                worstESS = j;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("Replicates: ");
+        sb.append(combiner.getSampleCount()).append(" samples after burnin");
+        if (worstRHat >= 0) {
+            sb.append(", max R-hat ").append(String.format("%.3f", maxRHat))
+                    .append(" (").append(combiner.getColumnName(worstRHat)).append(")");
+        }
+        if (worstESS >= 0) {
+            sb.append(", min ESS ").append(String.format("%.0f", minESS))
+                    .append(" (").append(combiner.getColumnName(worstESS)).append(")");
+        }
+        System.out.println(sb.toString());
+    }
+
+    private static void printReplicateDiagnostics(ReplicateLogCombiner combiner) {
+        System.out.println();
+        System.out.println("Combined " + combiner.getChainCount() + " replicates, " +
+                combiner.getSampleCount() + " samples after burnin");
+        System.out.println(String.format("%-30s %15s %10s %10s", "statistic", "mean", "ESS", "R-hat"));
+        for (int j = 0; j < combiner.getColumnCount(); j++) {
+            System.out.println(String.format("%-30s %15.6g %10.1f %10.4f", combiner.getColumnName(j),
+                    combiner.getMean(j), combiner.getESS(j, false), combiner.getRHat(j, false)));
+        }
+        System.out.println();
+    }
+
     private static long updateSeedByRank(long seed, int rank) {
         return seed + 1000 * 1000 * rank;
     }
@@ -332,6 +760,7 @@ public class BeastMain {
                         new Arguments.LongOption("seed", "Specify a random number generator seed"),
                         new Arguments.StringOption("prefix", "PREFIX", "Specify a prefix for all output log filenames"),
                         new Arguments.Option("overwrite", "Allow overwriting of log files"),
+                        new Arguments.Option("async_log", "Format and write log files on a background thread"),
                         new Arguments.IntegerOption("errors", "Specify maximum number of numerical errors before stopping"),
                         new Arguments.IntegerOption("threads", "The number of computational threads to use (default auto)"),
                         new Arguments.Option("java", "Use Java only, no native implementations"),
@@ -352,6 +781,7 @@ public class BeastMain {
                         new Arguments.Option("beagle_single", "BEAGLE: use single precision if available"),
                         new Arguments.Option("beagle_double", "BEAGLE: use double precision if available"),
                         new Arguments.Option("beagle_async", "BEAGLE: use asynchronous kernels if available"),
+                        new Arguments.IntegerOption("beagle_threads", "BEAGLE: number of threads for the Java implementation (default auto)"),
                         new Arguments.StringOption("beagle_scaling", new String[]{"default", "dynamic", "delayed", "always", "none"},
                                 false, "BEAGLE: specify scaling scheme to use"),
                         new Arguments.Option("beagle_delay_scaling_off", "BEAGLE: don't wait until underflow for scaling option"),
@@ -362,11 +792,24 @@ public class BeastMain {
                         new Arguments.RealOption("mc3_delta", 0.0, Double.MAX_VALUE, "temperature increment parameter"),
                         new Arguments.RealArrayOption("mc3_temperatures", -1, "a comma-separated list of the hot chain temperatures"),
                         new Arguments.LongOption("mc3_swap", 1, Integer.MAX_VALUE, "frequency at which chains temperatures will be swapped"),
+                        new Arguments.StringOption("mc3_scheme", new String[]{"random", "evenodd"}, false,
+                                "which chains attempt to swap temperatures (default random)"),
+                        new Arguments.RealOption("mc3_target", 0.0, 1.0, "adapt the chain temperatures to give this swap rate between neighbouring chains"),
+                        new Arguments.LongOption("mc3_burnin", 0, Long.MAX_VALUE, "the number of states over which the chain temperatures are adapted (default: the preBurnin of the MCMC)"),
+                        new Arguments.Option("mc3_processes", "run each chain in a separate process"),
+                        new Arguments.StringOption("mc3_worker", "PORT:RANK", "run a single chain of an MCMCMC analysis (used by -mc3_processes)"),
+
+                        new Arguments.IntegerOption("replicates", 2, Integer.MAX_VALUE, "run this number of independently seeded replicates in separate processes and combine their logs"),
+                        new Arguments.LongOption("replicate_burnin", 0, Long.MAX_VALUE, "the number of states to discard from each replicate when combining (default 0)"),
+                        new Arguments.IntegerOption("replicate_worker", 0, Integer.MAX_VALUE, "run a single replicate (used by -replicates)"),
+
+                        new Arguments.IntegerOption("mle_threads", 1, Integer.MAX_VALUE, "number of segments of the marginal likelihood path to run in parallel"),
 
                         new Arguments.StringOption("load_dump", "FILENAME", "Specify a filename to load a dumped state from"),
                         new Arguments.LongOption("dump_state", "Specify a state at which to write a dump file"),
                         new Arguments.LongOption("dump_every", "Specify a frequency to write a dump file"),
                         new Arguments.StringOption("save_dump", "FILENAME", "Specify a filename to save a dumped state to"),
+                        new Arguments.Option("dump_binary", "Write dump files in the compact, incremental binary format (to beast_state.bin unless -save_dump is given)"),
 
                         new Arguments.StringOption("citations_file", "FILENAME", "Specify a filename to write a citation list to"),
 
@@ -485,11 +928,61 @@ public class BeastMain {
 
         int swapChainsEvery = DEFAULT_SWAP_CHAIN_EVERY;
         if (arguments.hasOption("mc3_swap")) {
-            swapChainsEvery = arguments.getIntegerOption("mc3_swap");
+            swapChainsEvery = (int) arguments.getLongOption("mc3_swap");
         }
 
         boolean useMC3 = chainCount > 1;
 
+        MCMCMCOptions.SwapScheme swapScheme = MCMCMCOptions.SwapScheme.RANDOM;
+        if (arguments.hasOption("mc3_scheme")) {
+            swapScheme = MCMCMCOptions.SwapScheme.parse(arguments.getStringOption("mc3_scheme"));
+        }
+
+        double targetSwapRate = 0.0;
+        if (arguments.hasOption("mc3_target")) {
+            targetSwapRate = arguments.getRealOption("mc3_target");
+        }
+
+        long temperatureAdaptationLength = -1;
+        if (arguments.hasOption("mc3_burnin")) {
+            temperatureAdaptationLength = arguments.getLongOption("mc3_burnin");
+        }
+
+        MCMCMCOptions mc3Options = useMC3 ?
+                new MCMCMCOptions(chainTemperatures, swapChainsEvery, swapScheme, targetSwapRate,
+                        temperatureAdaptationLength) : null;
+
+        int mc3Port = -1;
+        int mc3Rank = -1;
+        if (arguments.hasOption("mc3_worker")) {
+            String[] parts = arguments.getStringOption("mc3_worker").split(":");
+            mc3Port = Integer.parseInt(parts[0]);
+            mc3Rank = Integer.parseInt(parts[1]);
+            // label the output files of this chain and give it its own seed
+            System.setProperty("mpi.rank.postfix", parts[1]);
+        }
+
+        int replicateCount = 1;
+        if (arguments.hasOption("replicates")) {
+            if (useMC3) {
+                System.err.println("The -replicates option can't be used with MCMCMC");
+                System.err.println();
+                printUsage(arguments);
+                System.exit(1);
+            }
+            replicateCount = arguments.getIntegerOption("replicates");
+        }
+
+        long replicateBurnin = 0;
+        if (arguments.hasOption("replicate_burnin")) {
+            replicateBurnin = arguments.getLongOption("replicate_burnin");
+        }
+
+        if (arguments.hasOption("replicate_worker")) {
+            // label the output files of this replicate and give it its own seed
+            System.setProperty("mpi.rank.postfix", Integer.toString(arguments.getIntegerOption("replicate_worker")));
+        }
+
         // ============= BEAGLE settings =============
         long beagleFlags = 0;
 
@@ -545,6 +1038,10 @@ public class BeastMain {
             System.setProperty("beagle.rescale", Long.toString(arguments.getLongOption("beagle_rescale")));
         }
 
+        if (arguments.hasOption("beagle_threads")) {
+            System.setProperty("beagle.java.thread.count", Integer.toString(arguments.getIntegerOption("beagle_threads")));
+        }
+
         // ============= Other settings =============
         if (arguments.hasOption("threads")) {
             // threadCount defaults to -1 unless the user specifies an option
@@ -585,6 +1082,10 @@ public class BeastMain {
             System.setProperty(BeastCheckpointer.SAVE_STATE_FILE, debugStateFile);
         }
 
+        if (arguments.hasOption("dump_binary")) {
+            System.setProperty(BeastCheckpointer.SAVE_STATE_BINARY, "true");
+        }
+
         if (arguments.hasOption("citations_file")) {
             String debugStateFile = arguments.getStringOption("citations_file");
             System.setProperty("citations.filename", debugStateFile);
@@ -783,6 +1284,14 @@ public class BeastMain {
             System.setProperty("log.allow.overwrite", "true");
         }
 
+        if (arguments.hasOption("async_log")) {
+            System.setProperty(MCLogger.ASYNCHRONOUS_LOGGING, "true");
+        }
+
+        if (arguments.hasOption("mle_threads")) {
+            System.setProperty(MarginalLikelihoodEstimator.THREADS_PROPERTY, Integer.toString(arguments.getIntegerOption("mle_threads")));
+        }
+
         if (useBeagle) {
             additionalParsers.add("beagle");
         }
@@ -801,7 +1310,15 @@ public class BeastMain {
         System.out.println("Random number seed: " + seed);
 
         try {
-            new BeastMain(inputFile, consoleApp, maxErrorCount, verbose, warnings, strictXML, additionalParsers, useMC3, chainTemperatures, swapChainsEvery);
+            if (useMC3 && arguments.hasOption("mc3_processes") && mc3Port < 0) {
+                runChainProcesses(args, inputFile, mc3Options, arguments.hasOption("seed") ? -1 : seed);
+            } else if (replicateCount > 1 && !arguments.hasOption("replicate_worker")) {
+                runReplicateProcesses(args, inputFile, replicateCount, replicateBurnin,
+                        arguments.hasOption("seed") ? -1 : seed);
+            } else {
+                new BeastMain(inputFile, consoleApp, maxErrorCount, verbose, warnings, strictXML, additionalParsers,
+                        mc3Options, mc3Port, mc3Rank);
+            }
         } catch (RuntimeException rte) {
             rte.printStackTrace(System.err);
             if (window) {
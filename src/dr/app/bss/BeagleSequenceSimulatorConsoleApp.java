@@ -27,6 +27,7 @@ package dr.app.bss;
 
 import dr.app.beagle.tools.BeagleSequenceSimulator;
 import dr.app.beagle.tools.Partition;
+import dr.app.beagle.tools.StreamingSequenceSimulator;
 import dr.app.util.Arguments;
 import dr.app.util.Arguments.ArgumentException;
 import dr.evolution.alignment.SimpleAlignment;
@@ -242,6 +243,17 @@ public class BeagleSequenceSimulatorConsoleApp {
                 gracefullyExit("Unrecognized option " + leftoverArguments[2]);
             }
 
+            // the seed must be set before the partitions are created as they draw random numbers (so a
+            // given seed now reproduces the whole run, but not the sequences of versions that set it later)
+            if (leftoverArguments.length > 1) {
+                dataList.startingSeed = Long.parseLong(leftoverArguments[1]);
+                dataList.setSeed = true;
+            }
+
+            if (dataList.setSeed) {
+                MathUtils.setSeed(dataList.startingSeed);
+            }
+
             ArrayList<Partition> partitionsList = new ArrayList<Partition>();
             for (String partitionArgs[] : argsList) {
 
@@ -627,15 +639,6 @@ public class BeagleSequenceSimulatorConsoleApp {
 
 			}// END: leftoverArguments check
 
-            if (leftoverArguments.length > 1) {
-                dataList.startingSeed = Long.parseLong(leftoverArguments[1]);
-                dataList.setSeed = true;
-            }
-
-            if (dataList.setSeed) {
-                MathUtils.setSeed(dataList.startingSeed);
-            }
-
             if (leftoverArguments.length > 2) {
                 dataList.outputAncestralSequences = Boolean.parseBoolean(leftoverArguments[2]);
             }
@@ -644,14 +647,26 @@ public class BeagleSequenceSimulatorConsoleApp {
                 dataList.useParallel = Boolean.parseBoolean(leftoverArguments[3]);
             }
 
-            BeagleSequenceSimulator beagleSequenceSimulator = new BeagleSequenceSimulator(
-                    partitionsList);
-            alignment = beagleSequenceSimulator.simulate(dataList.useParallel, dataList.outputAncestralSequences);
-            alignment.setOutputType(dataList.outputFormat);
+            if (dataList.outputFormat == SimpleAlignment.OutputType.FASTA && !dataList.outputAncestralSequences) {
+
+                // simulate blocks of sites straight into the file, in parallel if asked to
+                StreamingSequenceSimulator streamingSequenceSimulator = dataList.useParallel ?
+                        new StreamingSequenceSimulator(partitionsList) :
+                        new StreamingSequenceSimulator(partitionsList, 1);
+                streamingSequenceSimulator.simulate(new File(outputFile));
+
+            } else {
 
-            PrintWriter writer = new PrintWriter(new FileWriter(outputFile));
-            writer.println(alignment.toString());
-            writer.close();
+                BeagleSequenceSimulator beagleSequenceSimulator = new BeagleSequenceSimulator(
+                        partitionsList);
+                alignment = beagleSequenceSimulator.simulate(dataList.useParallel, dataList.outputAncestralSequences);
+                alignment.setOutputType(dataList.outputFormat);
+
+                PrintWriter writer = new PrintWriter(new FileWriter(outputFile));
+                writer.println(alignment.toString());
+                writer.close();
+
+            }// END: streaming check
 
 		} catch (ArgumentException e) {
 
@@ -765,6 +780,13 @@ public class BeagleSequenceSimulatorConsoleApp {
                         + " " + SPLIT_PARTITION + " " + "sequences.fasta");
 
         System.out.println();
+
+        System.out
+                .println("  The same seed gives the same sequences. FASTA output without ancestral sequences is simulated"
+                        + " in blocks of sites, each with its own random numbers derived from the seed, so the sequences"
+                        + " don't depend on the number of threads but differ from those of the other formats.");
+
+        System.out.println();
     }// END: printUsage
 
 }// END: class
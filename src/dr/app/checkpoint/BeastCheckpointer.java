@@ -41,6 +41,7 @@ import dr.inference.operators.CoercableMCMCOperator;
 import dr.inference.operators.MCMCOperator;
 import dr.inference.operators.OperatorSchedule;
 import dr.math.MathUtils;
+import dr.util.FileHelpers;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
@@ -62,14 +63,32 @@ public class BeastCheckpointer implements StateLoader, StateSaver {
     public final static String SAVE_STATE_FILE = "save.state.file";
     public final static String SAVE_STATE_AT = "save.state.at";
     public final static String SAVE_STATE_EVERY = "save.state.every";
+    public final static String SAVE_STATE_BINARY = "save.state.binary";
+    public final static String SAVE_STATE_FULL_EVERY = "save.state.full.every";
+
+    // the number of incremental binary dumps between full snapshots
+    private static final int DEFAULT_FULL_SNAPSHOT_EVERY = 20;
+
+    // binary dumps append deltas to a single file so they are not given a time stamp
+    public final static String DEFAULT_BINARY_STATE_FILE = "beast_state.bin";
 
     private final String loadStateFileName;
     private final String saveStateFileName;
 
+    private final BinaryCheckpointFile binaryCheckpointFile;
+
     public BeastCheckpointer() {
         loadStateFileName = System.getProperty(LOAD_STATE_FILE, null);
         saveStateFileName = System.getProperty(SAVE_STATE_FILE, null);
 
+        if (Boolean.parseBoolean(System.getProperty(SAVE_STATE_BINARY, "false"))) {
+            int fullSnapshotEvery = Integer.parseInt(System.getProperty(SAVE_STATE_FULL_EVERY,
+                    Integer.toString(DEFAULT_FULL_SNAPSHOT_EVERY)));
+            binaryCheckpointFile = new BinaryCheckpointFile(fullSnapshotEvery);
+        } else {
+            binaryCheckpointFile = null;
+        }
+
         final List<MarkovChainListener> listeners = new ArrayList<MarkovChainListener>();
 
         if (System.getProperty(SAVE_STATE_AT) != null) {
@@ -105,6 +124,18 @@ public class BeastCheckpointer implements StateLoader, StateSaver {
 
     @Override
     public boolean saveState(MarkovChain markovChain, long state, double lnL) {
+        if (binaryCheckpointFile != null) {
+            File file = (this.saveStateFileName != null ? new File(this.saveStateFileName) :
+                    FileHelpers.getFile(DEFAULT_BINARY_STATE_FILE, System.getProperty("file.name.prefix")));
+            try {
+                binaryCheckpointFile.write(file, state, lnL, markovChain);
+                return true;
+            } catch (IOException ioe) {
+                System.err.println("Unable to write file: " + ioe.getMessage());
+                return false;
+            }
+        }
+
         String timeStamp = new SimpleDateFormat("yyyy.MM.dd.HH.mm.ss").format(Calendar.getInstance().getTime());
         String fileName = (this.saveStateFileName != null ? this.saveStateFileName : "beast_state_" + timeStamp);
 
@@ -113,7 +144,15 @@ public class BeastCheckpointer implements StateLoader, StateSaver {
 
     @Override
     public long loadState(MarkovChain markovChain, double[] savedLnL) {
-        return readStateFromFile(new File(loadStateFileName), markovChain, savedLnL);
+        File file = new File(loadStateFileName);
+        if (BinaryCheckpointFile.isBinaryCheckpoint(file)) {
+            try {
+                return new BinaryCheckpointFile(DEFAULT_FULL_SNAPSHOT_EVERY).read(file, markovChain, savedLnL);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to read file: " + ioe.getMessage());
+            }
+        }
+        return readStateFromFile(file, markovChain, savedLnL);
     }
 
     @Override
@@ -0,0 +1,593 @@
+/*
+ * BinaryCheckpointFile.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.checkpoint;
+
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.operators.CoercableMCMCOperator;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.math.MathUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary checkpoint file. The file starts with a full snapshot of the state which is
+ * followed by zero or more delta records that only hold the parameter values that have changed
+ * since the previous record (operators, trees and the random number generator are always written
+ * in full as they are small). A new full snapshot is written to a temporary file and renamed over
+ * the old one; deltas are appended in place. Every record carries a checksum so a delta that was
+ * only partly written (e.g., the node was preempted) is ignored on loading and the previous
+ * record is used instead.
+ */
+class BinaryCheckpointFile {
+
+    static final int MAGIC = 0x42535446; // "BSTF"
+    static final int VERSION = 1;
+
+    private static final byte FULL_RECORD = 0;
+    private static final byte DELTA_RECORD = 1;
+
+    // record header: length of the record (type byte and payload); followed by its CRC32 checksum
+    private static final int RECORD_HEADER_SIZE = 4;
+    private static final int RECORD_FOOTER_SIZE = 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String ROOT_NODE_NUMBER_PARAMETER = "branchRates.categories.rootNodeNumber";
+
+    private final int fullSnapshotEvery;
+
+    // the file and parameter values as of the last record written
+    private File lastFile = null;
+    private List<Parameter> lastParameters = null;
+    private double[][] lastValues = null;
+    private int deltaCount = 0;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+    BinaryCheckpointFile(int fullSnapshotEvery) {
+        this.fullSnapshotEvery = fullSnapshotEvery;
+    }
+
+    /**
+     * @return true if the file starts with the binary checkpoint magic number
+     */
+    static boolean isBinaryCheckpoint(File file) {
+        if (!file.isFile() || file.length() < 8) {
+            return false;
+        }
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                return in.readInt() == MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    // **************************************************************
+    // Writing
+    // **************************************************************
+
+    void write(File file, long state, double lnL, MarkovChain markovChain) throws IOException {
+        List<Parameter> parameters = new ArrayList<Parameter>(Parameter.CONNECTED_PARAMETER_SET);
+
+        boolean full = lastFile == null || !lastFile.equals(file) || !file.isFile() ||
+                deltaCount >= fullSnapshotEvery || !parameters.equals(lastParameters);
+
+        buffer.clear();
+        buffer.put(full ? FULL_RECORD : DELTA_RECORD);
+        writeHeader(state, lnL);
+        if (full) {
+            writeAllParameters(parameters);
+        } else {
+            writeChangedParameters(parameters);
+        }
+        writeOperators(markovChain.getSchedule());
+        writeTrees();
+        buffer.flip();
+
+        // if the write fails part way the next one must start a new snapshot
+        lastFile = null;
+        if (full) {
+            writeFullSnapshot(file, buffer);
+            deltaCount = 0;
+        } else {
+            appendDelta(file, buffer);
+            deltaCount++;
+        }
+
+        lastFile = file;
+        lastParameters = parameters;
+    }
+
+    private void writeFullSnapshot(File file, ByteBuffer payload) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(file.getName(), ".tmp", parent);
+
+        RandomAccessFile out = new RandomAccessFile(tmpFile, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(channel, header);
+            writeRecord(channel, payload);
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+
+        // the rename is atomic on POSIX file systems so a reader sees either the old or the new snapshot
+        if (!tmpFile.renameTo(file)) {
+            // Windows will not rename over an existing file
+            if (!file.delete() || !tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("unable to rename " + tmpFile + " to " + file);
+            }
+        }
+    }
+
+    private void appendDelta(File file, ByteBuffer payload) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.position(channel.size());
+            writeRecord(channel, payload);
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeRecord(FileChannel channel, ByteBuffer record) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(record.remaining()).flip();
+        ByteBuffer footer = ByteBuffer.allocate(RECORD_FOOTER_SIZE);
+        footer.putLong(checksum(record.duplicate())).flip();
+
+        writeFully(channel, header);
+        writeFully(channel, record);
+        writeFully(channel, footer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void writeHeader(long state, double lnL) {
+        ensureCapacity(16);
+        buffer.putLong(state);
+        buffer.putDouble(lnL);
+
+        int[] rngState = MathUtils.getRandomState();
+        ensureCapacity(4 + 4 * rngState.length);
+        buffer.putInt(rngState.length);
+        for (int value : rngState) {
+            buffer.putInt(value);
+        }
+    }
+
+    private void writeAllParameters(List<Parameter> parameters) {
+        lastValues = new double[parameters.size()][];
+
+        ensureCapacity(4);
+        buffer.putInt(parameters.size());
+        for (int i = 0; i < parameters.size(); i++) {
+            Parameter parameter = parameters.get(i);
+            int dimension = parameter.getDimension();
+            double[] values = new double[dimension];
+
+            putString(parameter.getParameterName());
+            ensureCapacity(4 + 8 * dimension);
+            buffer.putInt(dimension);
+            for (int dim = 0; dim < dimension; dim++) {
+                values[dim] = parameter.getParameterValue(dim);
+                buffer.putDouble(values[dim]);
+            }
+            lastValues[i] = values;
+        }
+    }
+
+    private void writeChangedParameters(List<Parameter> parameters) {
+        int countPosition = buffer.position();
+        ensureCapacity(4);
+        buffer.putInt(0);
+
+        int changedParameterCount = 0;
+        for (int i = 0; i < parameters.size(); i++) {
+            Parameter parameter = parameters.get(i);
+            double[] values = lastValues[i];
+
+            if (parameter.getDimension() != values.length) {
+                // a change of dimension is recorded by writing all of the values
+                values = new double[parameter.getDimension()];
+                Arrays.fill(values, Double.NaN);
+                lastValues[i] = values;
+            }
+
+            int changedCount = 0;
+            for (int dim = 0; dim < values.length; dim++) {
+                if (Double.doubleToLongBits(parameter.getParameterValue(dim)) != Double.doubleToLongBits(values[dim])) {
+                    changedCount++;
+                }
+            }
+            if (changedCount == 0) {
+                continue;
+            }
+
+            ensureCapacity(12 + 12 * changedCount);
+            buffer.putInt(i);
+            buffer.putInt(values.length);
+            buffer.putInt(changedCount);
+            for (int dim = 0; dim < values.length; dim++) {
+                double value = parameter.getParameterValue(dim);
+                if (Double.doubleToLongBits(value) != Double.doubleToLongBits(values[dim])) {
+                    buffer.putInt(dim);
+                    buffer.putDouble(value);
+                    values[dim] = value;
+                }
+            }
+            changedParameterCount++;
+        }
+        buffer.putInt(countPosition, changedParameterCount);
+    }
+
+    private void writeOperators(OperatorSchedule operatorSchedule) {
+        ensureCapacity(4);
+        buffer.putInt(operatorSchedule.getOperatorCount());
+        for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            putString(operator.getOperatorName());
+            ensureCapacity(25);
+            buffer.putLong(operator.getAcceptCount());
+            buffer.putLong(operator.getRejectCount());
+            if (operator instanceof CoercableMCMCOperator) {
+                buffer.put((byte) 1);
+                buffer.putDouble(((CoercableMCMCOperator) operator).getCoercableParameter());
+            } else {
+                buffer.put((byte) 0);
+            }
+        }
+    }
+
+    private void writeTrees() {
+        List<TreeModel> treeModels = new ArrayList<TreeModel>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeModel) {
+                treeModels.add((TreeModel) model);
+            }
+        }
+
+        ensureCapacity(4);
+        buffer.putInt(treeModels.size());
+        for (TreeModel tree : treeModels) {
+            putString(tree.getModelName());
+
+            int nodeCount = tree.getNodeCount();
+            ensureCapacity(4 + 16 * nodeCount);
+            buffer.putInt(nodeCount);
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = tree.getNode(i);
+                NodeRef parent = tree.getParent(node);
+
+                buffer.putDouble(tree.getNodeHeight(node));
+                if (parent == null) {
+                    buffer.putInt(-1);
+                    buffer.putInt(-1);
+                } else {
+                    buffer.putInt(parent.getNumber());
+                    if (tree.getChild(parent, 0) == node) {
+                        buffer.putInt(0);
+                    } else if (tree.getChild(parent, 1) == node) {
+                        buffer.putInt(1);
+                    } else {
+                        throw new RuntimeException("Operation currently only supported for nodes with 2 children.");
+                    }
+                }
+            }
+        }
+    }
+
+    private void putString(String string) {
+        byte[] bytes = string.getBytes(UTF8);
+        ensureCapacity(4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void ensureCapacity(int size) {
+        if (buffer.remaining() < size) {
+            int capacity = buffer.capacity();
+            while (capacity - buffer.position() < size) {
+                capacity *= 2;
+            }
+            ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+
+    // **************************************************************
+    // Reading
+    // **************************************************************
+
+    /**
+     * Loads the state from the last complete record in the file.
+     * @return the state number
+     */
+    long read(File file, MarkovChain markovChain, double[] lnL) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(mapped, markovChain, lnL);
+        } finally {
+            in.close();
+        }
+    }
+
+    private long read(ByteBuffer in, MarkovChain markovChain, double[] lnL) {
+        if (in.remaining() < 8 || in.getInt() != MAGIC) {
+            throw new RuntimeException("Not a binary state file");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new RuntimeException("Unsupported binary state file version: " + version);
+        }
+
+        List<Parameter> parameters = new ArrayList<Parameter>(Parameter.CONNECTED_PARAMETER_SET);
+
+        double[][] values = null;
+        ByteBuffer lastRecord = null;
+        int recordCount = 0;
+
+        // the parameter values accumulate over the records, everything else is taken from the last one
+        while (true) {
+            ByteBuffer record = nextRecord(in);
+            if (record == null) {
+                break;
+            }
+            byte type = record.get();
+            if (recordCount == 0 && type != FULL_RECORD) {
+                throw new RuntimeException("Binary state file does not start with a full snapshot");
+            }
+
+            // skip state, lnL and rng which are read from the last record
+            record.position(record.position() + 16);
+            int rngLength = record.getInt();
+            record.position(record.position() + 4 * rngLength);
+
+            if (type == FULL_RECORD) {
+                values = readAllParameters(record, parameters);
+            } else {
+                readChangedParameters(record, values);
+            }
+            lastRecord = record;
+            recordCount++;
+        }
+
+        if (lastRecord == null) {
+            throw new RuntimeException("Binary state file contains no complete snapshot");
+        }
+
+        for (int i = 0; i < parameters.size(); i++) {
+            Parameter parameter = parameters.get(i);
+            if (parameter.getParameterName().equals(ROOT_NODE_NUMBER_PARAMETER)) {
+                parameter.setParameterValue(0, values[i][0]);
+            } else {
+                for (int dim = 0; dim < parameter.getDimension() && dim < values[i].length; dim++) {
+                    parameter.setParameterValue(dim, values[i][dim]);
+                }
+            }
+        }
+
+        readOperators(lastRecord, markovChain.getSchedule());
+        readTrees(lastRecord);
+
+        // go back and get the state, lnL and rng from the last record
+        lastRecord.position(1);
+        long state = lastRecord.getLong();
+        double savedLnL = lastRecord.getDouble();
+        if (lnL != null) {
+            lnL[0] = savedLnL;
+        }
+        int[] rngState = new int[lastRecord.getInt()];
+        for (int i = 0; i < rngState.length; i++) {
+            rngState[i] = lastRecord.getInt();
+        }
+        MathUtils.setRandomState(rngState);
+
+        return state;
+    }
+
+    /**
+     * @return the next record (the type byte followed by the payload) or null if there are no more
+     * complete records with valid checksums.
+     */
+    private ByteBuffer nextRecord(ByteBuffer in) {
+        if (in.remaining() < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        int length = in.getInt();
+        if (length < 1 || in.remaining() < length + RECORD_FOOTER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer record = in.slice();
+        record.limit(length);
+        in.position(in.position() + length);
+        long checksum = in.getLong();
+
+        if (checksum(record.duplicate()) != checksum) {
+            return null;
+        }
+        return record;
+    }
+
+    private static long checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        if (data.hasArray()) {
+            crc.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] chunk = new byte[Math.min(data.remaining(), 1 << 16)];
+            while (data.hasRemaining()) {
+                int n = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private double[][] readAllParameters(ByteBuffer record, List<Parameter> parameters) {
+        int parameterCount = record.getInt();
+        if (parameterCount != parameters.size()) {
+            throw new RuntimeException("Number of parameters in the state file (" + parameterCount +
+                    ") does not match the model (" + parameters.size() + ")");
+        }
+        double[][] values = new double[parameterCount][];
+        for (int i = 0; i < parameterCount; i++) {
+            String name = getString(record);
+            int dimension = record.getInt();
+            if (dimension != parameters.get(i).getDimension()) {
+                System.err.println("Unable to match state parameter dimension: " + dimension + ", expecting " +
+                        parameters.get(i).getDimension() + " for parameter: " + name);
+            }
+            values[i] = new double[dimension];
+            for (int dim = 0; dim < dimension; dim++) {
+                values[i][dim] = record.getDouble();
+            }
+        }
+        return values;
+    }
+
+    private void readChangedParameters(ByteBuffer record, double[][] values) {
+        int changedParameterCount = record.getInt();
+        for (int k = 0; k < changedParameterCount; k++) {
+            int i = record.getInt();
+            int dimension = record.getInt();
+            if (dimension != values[i].length) {
+                values[i] = Arrays.copyOf(values[i], dimension);
+            }
+            int changedCount = record.getInt();
+            for (int j = 0; j < changedCount; j++) {
+                int dim = record.getInt();
+                values[i][dim] = record.getDouble();
+            }
+        }
+    }
+
+    private void readOperators(ByteBuffer record, OperatorSchedule operatorSchedule) {
+        int operatorCount = record.getInt();
+        if (operatorCount != operatorSchedule.getOperatorCount()) {
+            throw new RuntimeException("Number of operators in the state file (" + operatorCount +
+                    ") does not match the schedule (" + operatorSchedule.getOperatorCount() + ")");
+        }
+        for (int i = 0; i < operatorCount; i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            String name = getString(record);
+            if (!name.equals(operator.getOperatorName())) {
+                throw new RuntimeException("Unable to match operator: " + name);
+            }
+            operator.setAcceptCount(record.getLong());
+            operator.setRejectCount(record.getLong());
+            boolean hasCoercableParameter = record.get() != 0;
+            if (operator instanceof CoercableMCMCOperator) {
+                if (!hasCoercableParameter) {
+                    throw new RuntimeException("Coercable operator missing parameter: " + name);
+                }
+                ((CoercableMCMCOperator) operator).setCoercableParameter(record.getDouble());
+            } else if (hasCoercableParameter) {
+                record.getDouble();
+            }
+        }
+    }
+
+    private void readTrees(ByteBuffer record) {
+        Map<String, TreeModel> treeModels = new HashMap<String, TreeModel>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeModel) {
+                treeModels.put(model.getModelName(), (TreeModel) model);
+            }
+        }
+        Set<String> expectedTreeModelNames = new HashSet<String>(treeModels.keySet());
+
+        int treeCount = record.getInt();
+        for (int k = 0; k < treeCount; k++) {
+            String name = getString(record);
+            int nodeCount = record.getInt();
+
+            double[] nodeHeights = new double[nodeCount];
+            int[] parents = new int[nodeCount];
+            int[] childOrder = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                nodeHeights[i] = record.getDouble();
+                parents[i] = record.getInt();
+                childOrder[i] = record.getInt();
+            }
+
+            TreeModel tree = treeModels.get(name);
+            if (tree != null) {
+                tree.beginTreeEdit();
+                tree.adoptTreeStructure(parents, nodeHeights, childOrder);
+                tree.endTreeEdit();
+                expectedTreeModelNames.remove(name);
+            }
+        }
+
+        if (expectedTreeModelNames.size() > 0) {
+            StringBuilder sb = new StringBuilder();
+            for (String notFoundName : expectedTreeModelNames) {
+                sb.append("Expecting, but unable to match state parameter:" + notFoundName + "\n");
+            }
+            throw new RuntimeException(sb.toString());
+        }
+    }
+
+    private static String getString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
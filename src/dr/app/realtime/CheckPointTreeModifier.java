@@ -30,6 +30,7 @@ import dr.evolution.alignment.Patterns;
 import dr.evolution.tree.BranchRates;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
 import dr.evolution.util.Taxon;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodel.tree.TreeParameterModel;
@@ -41,6 +42,7 @@ import dr.inference.model.Likelihood;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * @author Guy Baele
@@ -443,10 +445,35 @@ public class CheckPointTreeModifier {
             System.out.println(closestRef + " with height " + treeModel.getNodeHeight(closestRef));
             //System.out.println("trying to set node height: " + closestRef + " from " + treeModel.getNodeHeight(closestRef) + " to " + closest.getHeight());
             //treeModel.setNodeHeight(closestRef, closest.getHeight());
-            double timeForDistance = distance/rateModel.getBranchRate(treeModel, closestRef);
+            //the branch to split is above the closest taxon unless the choice prefers another one (e.g. by parsimony)
+            NodeRef insertionRef = choice.getInsertionNode(treeModel, treeModel.getNodeTaxon(newTaxon), closestRef);
+            if (insertionRef != closestRef) {
+                System.out.println("inserting above node " + insertionRef + " instead");
+                if (treeModel.isExternal(insertionRef)) {
+                    closest = treeModel.getNodeTaxon(insertionRef);
+                } else {
+                    //the height is based on the closest taxon below the new branch
+                    Set<String> descendants = TreeUtils.getDescendantLeaves(treeModel, insertionRef);
+                    ArrayList<Taxon> below = new ArrayList<Taxon>();
+                    for (Taxon taxon : currentTaxa) {
+                        if (descendants.contains(taxon.getId())) {
+                            below.add(taxon);
+                        }
+                    }
+                    closest = choice.getClosestTaxon(treeModel.getNodeTaxon(newTaxon), below);
+                }
+                distance = choice.getDistance(treeModel.getNodeTaxon(newTaxon), closest);
+                for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
+                    if (treeModel.getNodeTaxon(treeModel.getExternalNode(i)) == closest) {
+                        closestRef = treeModel.getExternalNode(i);
+                    }
+                }
+                System.out.println("closest Taxon below: " + closest + " at distance: " + distance);
+            }
+            double timeForDistance = distance/rateModel.getBranchRate(treeModel, insertionRef);
             System.out.println("timeForDistance = " + timeForDistance);
             //get parent node of branch that will be split
-            NodeRef parent = treeModel.getParent(closestRef);
+            NodeRef parent = treeModel.getParent(insertionRef);
 
             //determine height of new node
             double insertHeight;
@@ -471,9 +498,17 @@ public class CheckPointTreeModifier {
                 }
             }
 
+            if (insertionRef != closestRef) {
+                //the new node has to lie along the branch above the (internal) insertion node
+                double lower = Math.max(treeModel.getNodeHeight(insertionRef), treeModel.getNodeHeight(newTaxon));
+                if (insertHeight <= lower || insertHeight >= treeModel.getNodeHeight(parent)) {
+                    insertHeight = lower + EPSILON*(treeModel.getNodeHeight(parent) - lower);
+                }
+            }
+
             System.out.println("insert at height: " + insertHeight);
             //pass on all the necessary variables to a method that adds the new taxon to the tree
-            addTaxonAlongBranch(newTaxon, parent, closestRef, insertHeight);
+            addTaxonAlongBranch(newTaxon, parent, insertionRef, insertHeight);
             //option to print tree after each taxon addition
             System.out.println("\nTree after adding taxon " + newTaxon + ":\n" + treeModel.toString());
             //add newly added Taxon to list of current taxa
@@ -32,12 +32,17 @@ import dr.evolution.alignment.PatternList;
 import dr.evolution.distance.DistanceMatrix;
 import dr.evolution.distance.F84DistanceMatrix;
 import dr.evolution.distance.JukesCantorDistanceMatrix;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
 import dr.evolution.util.Taxon;
 import dr.inference.loggers.Logger;
 import dr.inference.loggers.MCLogger;
 import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
 import dr.inference.mcmc.MCMC;
 import dr.inference.model.Likelihood;
+import dr.inference.state.Factory;
+import dr.inference.state.StateLoader;
 import dr.xml.XMLParseException;
 import dr.xml.XMLParser;
 import org.xml.sax.SAXException;
@@ -48,10 +53,25 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Set;
 
 /**
+ * Adds new taxa to the tree of a checkpoint and writes a new checkpoint from which the chain can be
+ * resumed. Only the distances from each new taxon are calculated (see DistanceMatrix.getRow) and each
+ * taxon is added above its closest taxon or, with the Parsimony choice, along the branch that least
+ * increases the parsimony score (see ParsimonyPlacement).
+ *
+ * With -resume the chain then carries on from the updated state in the same run (as it would with
+ * beast -load_dump), rather than the XML being parsed and the checkpoint loaded a second time, and with
+ * -dump_every it saves its state to the output file so that the next update can start from there.
+ *
+ * The tree, parameters and likelihood buffers are not extended in place: the number of nodes of a
+ * TreeModel, the node parameters and the partials and matrix buffers of a BEAGLE instance are all fixed
+ * when they are created. The XML with all the taxa is parsed instead and the saved tree grown into it,
+ * so each update still parses the XML and calculates the likelihood once over the whole tree.
+ *
  * @author Guy Baele
  */
 public class CheckPointUpdaterApp {
@@ -63,18 +83,44 @@ public class CheckPointUpdaterApp {
     private final boolean STRICT_XML = false;
 
     public enum UpdateChoice {
-        JC69DISTANCE("JC69Distance", new JukesCantorDistanceMatrix()), F84DISTANCE("F84Distance", new F84DistanceMatrix()), SIMPLE("Simple", new SimpleDistanceMatrix());
+        JC69DISTANCE("JC69Distance", new JukesCantorDistanceMatrix()), F84DISTANCE("F84Distance", new F84DistanceMatrix()), SIMPLE("Simple", new SimpleDistanceMatrix()),
+        //the branch is chosen by parsimony and the height from the JC69 distance to the closest taxon below it
+        PARSIMONY("Parsimony", new JukesCantorDistanceMatrix(), true);
 
         private String name;
         private DistanceMatrix matrix;
+        private boolean parsimonyGuided;
+        private ParsimonyPlacement placement;
 
         UpdateChoice(String name, DistanceMatrix matrix) {
+            this(name, matrix, false);
+        }
+
+        UpdateChoice(String name, DistanceMatrix matrix, boolean parsimonyGuided) {
             this.name = name;
             this.matrix = matrix;
+            this.parsimonyGuided = parsimonyGuided;
         }
 
         public void setPatterns(PatternList patterns) {
             this.matrix.setPatterns(patterns);
+            if (parsimonyGuided) {
+                this.placement = new ParsimonyPlacement(patterns);
+            }
+        }
+
+        /**
+         * Get the node above which to add a taxon: the closest taxon, unless the placement is guided by
+         * parsimony, in which case a branch that gives a lower parsimony score is preferred.
+         */
+        public NodeRef getInsertionNode(Tree tree, Taxon taxon, NodeRef closestNode) {
+            if (!parsimonyGuided) {
+                return closestNode;
+            }
+            if (placement == null) {
+                throw new RuntimeException("Patterns need to be set first.");
+            }
+            return placement.findBestBranch(tree, taxon, closestNode);
         }
 
         public Taxon getClosestTaxon(Taxon taxon) {
@@ -82,12 +128,14 @@ public class CheckPointUpdaterApp {
                 throw new RuntimeException("Patterns need to be set first.");
             }
             int taxonIndex = matrix.getTaxonIndex(taxon);
+            //only the row of the new taxon is computed, not the full distance matrix
+            double[] row = matrix.getRow(taxonIndex);
             int closestIndex = 0;
             double minimumDistance = Double.MAX_VALUE;
-            for (int i = 0; i < matrix.getColumnCount(); i++) {
+            for (int i = 0; i < row.length; i++) {
                 if (i != taxonIndex) {
-                    if (matrix.getElement(taxonIndex, i) < minimumDistance) {
-                        minimumDistance = matrix.getElement(taxonIndex, i);
+                    if (row[i] < minimumDistance) {
+                        minimumDistance = row[i];
                         closestIndex = i;
                     }
                 }
@@ -100,12 +148,14 @@ public class CheckPointUpdaterApp {
                 throw new RuntimeException("Patterns need to be set first.");
             }
             int taxonIndex = matrix.getTaxonIndex(taxon);
+            double[] row = matrix.getRow(taxonIndex);
+            Set<Taxon> candidates = new HashSet<Taxon>(taxa);
             int closestIndex = 0;
             double minimumDistance = Double.MAX_VALUE;
-            for (int i = 0; i < matrix.getColumnCount(); i++) {
+            for (int i = 0; i < row.length; i++) {
                 if (i != taxonIndex) {
-                    if ((matrix.getElement(taxonIndex, i) < minimumDistance) && (taxa.contains(matrix.getTaxon(i)))) {
-                        minimumDistance = matrix.getElement(taxonIndex, i);
+                    if ((row[i] < minimumDistance) && (candidates.contains(matrix.getTaxon(i)))) {
+                        minimumDistance = row[i];
                         closestIndex = i;
                     }
                 }
@@ -116,7 +166,7 @@ public class CheckPointUpdaterApp {
         public double getDistance(Taxon taxonOne, Taxon taxonTwo) {
             System.out.println("taxon 1: " + taxonOne + " (" + matrix.getTaxonIndex(taxonOne) + ")");
             System.out.println("taxon 2: " + taxonTwo + " (" + matrix.getTaxonIndex(taxonTwo) + ")");
-            return matrix.getElement(matrix.getTaxonIndex(taxonOne), matrix.getTaxonIndex(taxonTwo));
+            return matrix.getRow(matrix.getTaxonIndex(taxonOne))[matrix.getTaxonIndex(taxonTwo)];
         }
 
         public String getName() {
@@ -138,6 +188,18 @@ public class CheckPointUpdaterApp {
      * @param beastXMLFileName
      */
     public CheckPointUpdaterApp(String beastXMLFileName, String debugStateFile, UpdateChoice choice) {
+        this(beastXMLFileName, debugStateFile, choice, false);
+    }
+
+    /**
+     * @param resume whether to continue the chain from the updated state once the new checkpoint is written
+     */
+    public CheckPointUpdaterApp(String beastXMLFileName, String debugStateFile, UpdateChoice choice, boolean resume) {
+        if (resume) {
+            // installed before parsing so that the chain is given the state savers (see -dump_every)
+            new BeastCheckpointer();
+        }
+
         //no additional parsers, we don't need BEAGLE at the moment just yet
         XMLParser parser = new BeastParser(new String[]{beastXMLFileName}, null, VERBOSE, PARSER_WARNINGS, STRICT_XML);
         try {
@@ -150,10 +212,12 @@ public class CheckPointUpdaterApp {
             MCMC mcmc = (MCMC) parser.parse(fileReader, MCMC.class);
             MarkovChain mc = mcmc.getMarkovChain();
 
-            //make sure that no output files (i.e. logs) are being created
-            Logger[] loggers = mcmc.getLoggers();
-            for (int j = 0; j < loggers.length; j++) {
-                ((MCLogger) loggers[j]).setFormatters(Collections.EMPTY_LIST);
+            if (!resume) {
+                //make sure that no output files (i.e. logs) are being created
+                Logger[] loggers = mcmc.getLoggers();
+                for (int j = 0; j < loggers.length; j++) {
+                    ((MCLogger) loggers[j]).setFormatters(Collections.EMPTY_LIST);
+                }
             }
 
             // Install the checkpointer. This creates a factory that returns
@@ -182,9 +246,7 @@ public class CheckPointUpdaterApp {
 
                 checkpoint.extendLoadState(choice);
 
-                mc.getLikelihood().makeDirty();
-                logL = mc.evaluate();
-                System.out.println("likelihood = " + logL);
+                //the likelihoods have not been calculated since parsing so this is over the whole tree
                 mc.getLikelihood().makeDirty();
                 logL = mc.evaluate();
                 System.out.println("likelihood = " + logL);
@@ -199,10 +261,12 @@ public class CheckPointUpdaterApp {
 
             checkpoint.saveState(mc, state, logL);
 
-            //TODO .log and .trees files are being created; not necessary here as we're not running an analysis
-
             fileReader.close();
 
+            if (resume) {
+                resumeChain(mcmc, state, logL);
+            }
+
         } catch (FileNotFoundException fnf) {
             System.out.println(fnf);
         } catch (IOException io) {
@@ -217,6 +281,43 @@ public class CheckPointUpdaterApp {
         }
     }
 
+    /**
+     * Runs the chain on from the state that has been set up in the models. The chain is started through
+     * the same initial state loader as beast -load_dump, but as the state has already been loaded (and
+     * extended) the loader only reports it.
+     */
+    private static void resumeChain(MCMC mcmc, final long state, final double logL) {
+        final MarkovChainListener[] stateSavers = (Factory.INSTANCE != null ?
+                Factory.INSTANCE.getStateSaverChainListeners() : new MarkovChainListener[0]);
+
+        Factory.INSTANCE = new Factory() {
+            @Override
+            public StateLoader getInitialStateLoader() {
+                return new StateLoader() {
+                    public long loadState(MarkovChain markovChain, double[] savedLnL) {
+                        savedLnL[0] = logL;
+                        return state;
+                    }
+
+                    public void checkLoadState(double savedLnL, double lnL) {
+                        if (Math.abs(savedLnL - lnL) > 1E-8 * Math.abs(savedLnL)) {
+                            throw new RuntimeException("Likelihood of the updated state changed from " + savedLnL +
+                                    " to " + lnL + " when resuming the chain");
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public MarkovChainListener[] getStateSaverChainListeners() {
+                return stateSavers;
+            }
+        };
+
+        System.out.println("Resuming the chain from state " + state);
+        mcmc.run();
+    }
+
     public static void main(String[] args) throws java.io.IOException {
 
         // There is a major issue with languages that use the comma as a decimal separator.
@@ -229,6 +330,8 @@ public class CheckPointUpdaterApp {
                         new Arguments.StringOption("load_dump", "FILENAME", "Specify a filename to load a dumped state from"),
                         new Arguments.StringOption("output_file", "FILENAME", "Specify a filename for the output file"),
                         new Arguments.StringOption("update_choice", "UPDATECHOICE", "Specify a function by which to update the tree"),
+                        new Arguments.Option("resume", "Continue the chain from the updated state once the output file is written"),
+                        new Arguments.LongOption("dump_every", "With -resume, specify a frequency to write the state to the output file"),
                         new Arguments.Option("help", "Print this information and stop")
                 });
 
@@ -284,7 +387,15 @@ public class CheckPointUpdaterApp {
             throw new RuntimeException("No output file specified.");
         }
 
-        new CheckPointUpdaterApp(inputFile, debugStateFile, chosen);
+        boolean resume = arguments.hasOption("resume");
+        if (arguments.hasOption("dump_every")) {
+            if (!resume) {
+                throw new RuntimeException("The state can only be dumped when the chain is resumed (-resume).");
+            }
+            System.setProperty(BeastCheckpointer.SAVE_STATE_EVERY, Long.toString(arguments.getLongOption("dump_every")));
+        }
+
+        new CheckPointUpdaterApp(inputFile, debugStateFile, chosen, resume);
 
         System.exit(0);
 
@@ -0,0 +1,174 @@
+/*
+ * ParsimonyPlacement.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.realtime;
+
+import dr.evolution.alignment.PatternList;
+import dr.evolution.datatype.DataType;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+
+/**
+ * Chooses the branch of a tree along which to add a new taxon by the increase in the Fitch
+ * parsimony score. The Fitch state sets below each node (the down pass) and above it (the up pass)
+ * are combined into a state set for each branch and joining the new taxon to a branch costs the
+ * weight of each pattern whose state for the taxon is not in that set.
+ *
+ * Scoring a taxon costs time proportional to the number of nodes times the number of patterns, as
+ * the state sets are calculated again for the tree it is added to. Only the nodes connected to the
+ * root are scored so taxa that have not been added yet are ignored.
+ */
+public class ParsimonyPlacement {
+
+    public ParsimonyPlacement(PatternList patterns) {
+        this.patterns = patterns;
+        this.dataType = patterns.getDataType();
+        if (dataType.getStateCount() > 63) {
+            throw new IllegalArgumentException("Parsimony placement supports at most 63 states");
+        }
+        patternCount = patterns.getPatternCount();
+    }
+
+    /**
+     * Finds the branch along which adding the taxon least increases the parsimony score. The branch
+     * above the start node is kept unless another branch is strictly better.
+     *
+     * @param tree  the tree the taxon is to be added to
+     * @param taxon the taxon to add
+     * @param start the node above which the taxon would otherwise be added (e.g., its closest taxon)
+     * @return the node whose branch (to its parent) the taxon should be added along
+     */
+    public NodeRef findBestBranch(Tree tree, Taxon taxon, NodeRef start) {
+        long[] taxonStates = getTipStates(taxon);
+
+        final int nodeCount = tree.getNodeCount();
+        long[][] down = new long[nodeCount][];
+        long[][] up = new long[nodeCount][];
+        calculateDown(tree, tree.getRoot(), down);
+        calculateUp(tree, tree.getRoot(), down, up);
+
+        NodeRef best = start;
+        double bestCost = getCost(down[start.getNumber()], up[start.getNumber()], taxonStates);
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef node = tree.getNode(i);
+            if (up[i] != null && node != start) {
+                double cost = getCost(down[i], up[i], taxonStates);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = node;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the parsimony cost of joining a taxon to the branch with the given state sets
+     */
+    private double getCost(long[] down, long[] up, long[] taxonStates) {
+        double cost = 0.0;
+        for (int i = 0; i < patternCount; i++) {
+            if ((fitch(down[i], up[i]) & taxonStates[i]) == 0) {
+                cost += patterns.getPatternWeight(i);
+            }
+        }
+        return cost;
+    }
+
+    private void calculateDown(Tree tree, NodeRef node, long[][] down) {
+        final int childCount = tree.getChildCount(node);
+        if (childCount == 0) {
+            down[node.getNumber()] = getTipStates(tree.getNodeTaxon(node));
+            return;
+        }
+
+        long[] states = null;
+        for (int j = 0; j < childCount; j++) {
+            NodeRef child = tree.getChild(node, j);
+            calculateDown(tree, child, down);
+            long[] childStates = down[child.getNumber()];
+            if (states == null) {
+                states = childStates.clone();
+            } else {
+                for (int i = 0; i < patternCount; i++) {
+                    states[i] = fitch(states[i], childStates[i]);
+                }
+            }
+        }
+        down[node.getNumber()] = states;
+    }
+
+    /**
+     * Sets the state set of the rest of the tree, as seen from the branch above each node below this one.
+     */
+    private void calculateUp(Tree tree, NodeRef node, long[][] down, long[][] up) {
+        final int childCount = tree.getChildCount(node);
+        for (int j = 0; j < childCount; j++) {
+            NodeRef child = tree.getChild(node, j);
+            long[] states = (up[node.getNumber()] != null ? up[node.getNumber()].clone() : null);
+            for (int k = 0; k < childCount; k++) {
+                if (k != j) {
+                    long[] siblingStates = down[tree.getChild(node, k).getNumber()];
+                    if (states == null) {
+                        states = siblingStates.clone();
+                    } else {
+                        for (int i = 0; i < patternCount; i++) {
+                            states[i] = fitch(states[i], siblingStates[i]);
+                        }
+                    }
+                }
+            }
+            up[child.getNumber()] = states;
+            calculateUp(tree, child, down, up);
+        }
+    }
+
+    private long[] getTipStates(Taxon taxon) {
+        int taxonIndex = patterns.getTaxonIndex(taxon.getId());
+        if (taxonIndex < 0) {
+            throw new IllegalArgumentException("Taxon " + taxon.getId() + " is not in the patterns");
+        }
+        long[] states = new long[patternCount];
+        for (int i = 0; i < patternCount; i++) {
+            boolean[] stateSet = dataType.getStateSet(patterns.getPatternState(taxonIndex, i));
+            for (int k = 0; k < stateSet.length; k++) {
+                if (stateSet[k]) {
+                    states[i] |= 1L << k;
+                }
+            }
+        }
+        return states;
+    }
+
+    private static long fitch(long states1, long states2) {
+        long intersection = states1 & states2;
+        return (intersection != 0 ? intersection : states1 | states2);
+    }
+
+    private final PatternList patterns;
+    private final DataType dataType;
+    private final int patternCount;
+}
@@ -28,6 +28,7 @@ package dr.app.tools;
 import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
 import dr.app.util.Utils;
+import dr.inference.trace.LogFileTraces;
 import dr.inference.trace.TraceAnalysis;
 import dr.inference.trace.TraceException;
 import dr.util.Version;
@@ -197,6 +198,8 @@ public class LogAnalyser {
                         new Arguments.Option("ess", "use this option to produce ESSs for each trace"),
                         new Arguments.Option("stdErr", "use this option to produce standard Error"),
                         new Arguments.StringOption("marginal", "trace_name", "specify the trace to use to calculate the marginal likelihood"),
+                        new Arguments.Option("cache", "keep a binary copy of the log file and memory map it on later runs"),
+                        new Arguments.IntegerOption("threads", "the number of threads used to read the log file"),
 //				new Arguments.Option("html", "format output as html"),
 //				new Arguments.Option("svg", "generate svg graphics"),
                         new Arguments.Option("help", "option to print this message")
@@ -225,6 +228,13 @@ public class LogAnalyser {
         boolean stdErr = arguments.hasOption("stdErr");
         boolean shortReport = arguments.hasOption("short");
 
+        if (arguments.hasOption("cache")) {
+            System.setProperty(LogFileTraces.BINARY_CACHE, "true");
+        }
+        if (arguments.hasOption("threads")) {
+            System.setProperty(LogFileTraces.THREADS, Integer.toString(arguments.getIntegerOption("threads")));
+        }
+
         String marginalLikelihood = null;
         if (arguments.hasOption("marginal")) {
             marginalLikelihood = arguments.getStringOption("marginal");
@@ -28,8 +28,7 @@ package dr.app.tools;
 import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
 import dr.evolution.io.Importer;
-import dr.evolution.io.NexusImporter;
-import dr.evolution.io.TreeImporter;
+import dr.evolution.io.ParallelTreeImporter;
 import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
@@ -126,7 +125,7 @@ public class LogCombiner {
 
             if (treeFiles) {
 
-                TreeImporter importer = new NexusImporter(new FileReader(inputFile), stripAnnotations);
+                ParallelTreeImporter importer = new ParallelTreeImporter(inputFile, stripAnnotations);
                 try {
                     while (importer.hasTree()) {
                         Tree tree = importer.importNextTree();
@@ -192,6 +191,8 @@ public class LogCombiner {
                 } catch (Importer.ImportException e) {
                     System.err.println("Error Parsing Input Tree: " + e.getMessage());
                     return;
+                } finally {
+                    importer.close();
                 }
 
             } else {
@@ -0,0 +1,943 @@
+/*
+ * StreamingTreeAnnotator.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.tools;
+
+import dr.evolution.io.Importer;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.io.ParallelTreeImporter;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+import dr.geo.contouring.ContourMaker;
+import dr.geo.contouring.ContourPath;
+import dr.geo.contouring.ContourWithSynder;
+import dr.util.BoundedOrderedExecutor;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * A version of TreeAnnotator for very large sets of trees that reads the tree file once. The trees
+ * are parsed by ParallelTreeImporter on a pool of worker threads and added to the clade system in
+ * the order they appear in the file (so the results don't depend on the number of threads).
+ *
+ * Clades are keyed by a 128 bit hash of their taxa (each taxon is given a pair of pseudo-random
+ * codes and a clade's key is the sum of the codes of its taxa) so a key costs two longs and is
+ * built from the keys of the children. The attributes of each clade are summarised as they arrive:
+ * the mean, minimum and maximum are exact and the median and HPD intervals are taken from a sample
+ * of bounded size (DEFAULT_SAMPLE_SIZE values) which is thinned systematically (every second value
+ * is dropped when it fills). Below this number of trees the medians and HPD intervals are the same
+ * as TreeAnnotator's.
+ *
+ * The maximum clade credibility tree is found without reading the trees again: the clades of each
+ * tree are written as integer indices to a temporary file along with the position of the tree in
+ * the input file. Once the clade frequencies are known the trees are scored from this file and the
+ * best one is read back from its position. Common ancestor heights need a second pass over the
+ * trees, which is spread over the threads as well.
+ */
+public class StreamingTreeAnnotator {
+
+    public static final int DEFAULT_SAMPLE_SIZE = 1000;
+
+    private static final int TREES_PER_BATCH = 32;
+
+    private static final long HASH_SEED1 = 0xcbf29ce484222325L;
+    private static final long HASH_SEED2 = 0x9e3779b97f4a7c15L;
+
+    private static PrintStream progressStream = System.err;
+
+    public StreamingTreeAnnotator(final int burninTrees,
+                                  final int burninStates,
+                                  TreeAnnotator.HeightsSummary heightsOption,
+                                  double posteriorLimit,
+                                  double[] hpd2D,
+                                  boolean forceIntegerToDiscrete,
+                                  TreeAnnotator.Target targetOption,
+                                  String targetTreeFileName,
+                                  String inputFileName,
+                                  String outputFileName,
+                                  int threadCount,
+                                  int sampleSize) throws IOException {
+
+        this.posteriorLimit = posteriorLimit;
+        this.hpd2D = hpd2D;
+        this.forceIntegerToDiscrete = forceIntegerToDiscrete;
+        this.sampleSize = sampleSize;
+
+        MutableTree targetTree = null;
+        boolean findTarget = (targetOption == TreeAnnotator.Target.MAX_CLADE_CREDIBILITY);
+
+        if (!findTarget) {
+            if (targetTreeFileName == null) {
+                System.err.println("No user target tree specified.");
+                return;
+            }
+            progressStream.println("Reading user specified target tree, " + targetTreeFileName);
+            try {
+                targetTree = readTargetTree(targetTreeFileName);
+            } catch (Importer.ImportException e) {
+                System.err.println("Error Parsing Target Tree: " + e.getMessage());
+                return;
+            }
+            if (targetTree == null) {
+                System.err.println("No tree in target nexus or newick file " + targetTreeFileName);
+                return;
+            }
+
+            // only the clades in the target tree are of interest so create them up front and
+            // ignore the rest
+            long[] hash1 = new long[targetTree.getNodeCount()];
+            long[] hash2 = new long[targetTree.getNodeCount()];
+            hashClades(targetTree, targetTree.getRoot(), hash1, hash2);
+            for (int i = 0; i < targetTree.getNodeCount(); i++) {
+                getClade(new CladeKey(hash1[i], hash2[i]), true);
+            }
+        }
+
+        File cladeFile = null;
+        DataOutputStream cladeStream = null;
+        if (findTarget) {
+            cladeFile = File.createTempFile("treeannotator", ".clades");
+            cladeFile.deleteOnExit();
+            cladeStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cladeFile)));
+        }
+
+        progressStream.println("Reading trees using " + threadCount + " thread" + (threadCount > 1 ? "s" : "") +
+                " (bar assumes 10,000 trees)...");
+        progressStream.println("0              25             50             75            100");
+        progressStream.println("|--------------|--------------|--------------|--------------|");
+
+        final int stepSize = Math.max(10000 / 60, 1);
+
+        int burnin = -1;
+        int totalTrees = 0;
+        int totalTreesUsed = 0;
+
+        ParallelTreeImporter importer = new ParallelTreeImporter(new File(inputFileName), false, threadCount);
+        try {
+            while (importer.hasTree()) {
+                Tree tree = importer.importNextTree();
+                long state = Long.MAX_VALUE;
+
+                if (burninStates > 0) {
+                    // if burnin has been specified in states, try to parse it out...
+                    String name = tree.getId().trim();
+
+                    if (name.length() > 0 && name.startsWith("STATE_")) {
+                        state = Long.parseLong(name.split("_")[1]);
+                    }
+                }
+
+                if (totalTrees >= burninTrees && state >= burninStates) {
+                    // if either of the two burnin thresholds have been reached...
+
+                    if (burnin < 0) {
+                        burnin = totalTrees;
+                        setupAttributes(tree);
+                    }
+
+                    long[] hash1 = new long[tree.getNodeCount()];
+                    long[] hash2 = new long[tree.getNodeCount()];
+                    hashClades(tree, tree.getRoot(), hash1, hash2);
+                    addTree(tree, importer.getTreePosition(), hash1, hash2, findTarget, cladeStream);
+                    totalTreesUsed += 1;
+                }
+
+                if (totalTrees > 0 && totalTrees % stepSize == 0) {
+                    progressStream.print("*");
+                    progressStream.flush();
+                }
+                totalTrees++;
+            }
+        } catch (Importer.ImportException e) {
+            System.err.println("Error Parsing Input Tree: " + e.getMessage());
+            return;
+        } finally {
+            importer.close();
+            if (cladeStream != null) {
+                cladeStream.close();
+            }
+        }
+        progressStream.println();
+        progressStream.println();
+
+        if (totalTrees < 1) {
+            System.err.println("No trees");
+            return;
+        }
+        if (totalTreesUsed < 1) {
+            System.err.println("No trees to use: burnin too high");
+            return;
+        }
+
+        progressStream.println("Total trees read: " + totalTrees);
+        if (burninTrees > 0) {
+            progressStream.println("Ignoring first " + burninTrees + " trees" +
+                    (burninStates > 0 ? " (" + burninStates + " states)." : "."));
+        } else if (burninStates > 0) {
+            progressStream.println("Ignoring first " + burninStates + " states (" + burnin + " trees).");
+        }
+        if (findTarget) {
+            progressStream.println("Total unique clades: " + clades.size());
+        }
+        progressStream.println();
+
+        if (findTarget) {
+            progressStream.println("Finding maximum credibility tree...");
+            try {
+                targetTree = findMaximumCladeCredibilityTree(cladeFile, inputFileName, burnin, totalTreesUsed);
+            } catch (Importer.ImportException e) {
+                System.err.println("Error Parsing Input Tree: " + e.getMessage());
+                return;
+            }
+            cladeFile.delete();
+        }
+
+        progressStream.println("Annotating target tree...");
+
+        try {
+            long[] hash1 = new long[targetTree.getNodeCount()];
+            long[] hash2 = new long[targetTree.getNodeCount()];
+            hashClades(targetTree, targetTree.getRoot(), hash1, hash2);
+            annotateTree(targetTree, targetTree.getRoot(), hash1, hash2, heightsOption, totalTreesUsed);
+
+            if (heightsOption == TreeAnnotator.HeightsSummary.CA_HEIGHTS) {
+                setTreeHeightsByCA(targetTree, inputFileName, burnin, totalTrees, threadCount);
+            }
+        } catch (Exception e) {
+            System.err.println("Error annotating tree: " + e.getMessage() + "\nPlease check the tree log file format.");
+            return;
+        }
+
+        progressStream.println("Writing annotated tree....");
+
+        try {
+            final PrintStream stream = outputFileName != null ?
+                    new PrintStream(new FileOutputStream(outputFileName)) :
+                    System.out;
+
+            new NexusExporter(stream).exportTree(targetTree);
+        } catch (Exception e) {
+            System.err.println("Error to write annotated tree file: " + e.getMessage());
+        }
+    }
+
+    private MutableTree readTargetTree(String targetTreeFileName) throws IOException, Importer.ImportException {
+        NexusImporter importer = new NexusImporter(new FileReader(targetTreeFileName));
+        Tree tree = importer.importNextTree();
+        if (tree == null) {
+            NewickImporter x = new NewickImporter(new FileReader(targetTreeFileName));
+            tree = x.importNextTree();
+        }
+        return tree == null ? null : new FlexibleTree(tree);
+    }
+
+    /**
+     * Sets the height of each node of the target tree to the mean height of the most recent common
+     * ancestor of its taxa in the trees after the burnin, as TreeAnnotator does. This needs another
+     * pass over the trees: they are read and their common ancestor heights found on the worker
+     * threads, and the heights are added up in the order of the trees.
+     */
+    private void setTreeHeightsByCA(MutableTree targetTree, String inputFileName, int burnin, int totalTrees,
+                                    int threadCount) throws IOException, Importer.ImportException {
+        progressStream.println("Setting node heights...");
+        progressStream.println("0              25             50             75            100");
+        progressStream.println("|--------------|--------------|--------------|--------------|");
+
+        final int stepSize = Math.max(totalTrees / 60, 1);
+
+        final Map<String, Integer> taxonIndices = new HashMap<String, Integer>();
+        for (int i = 0; i < targetTree.getExternalNodeCount(); i++) {
+            taxonIndices.put(targetTree.getNodeTaxon(targetTree.getExternalNode(i)).getId(), i);
+        }
+        final BitSet[] targetClades = getCladeCodes(targetTree, taxonIndices);
+
+        double[] heightSums = new double[targetClades.length];
+        int totalTreesUsed = 0;
+
+        BoundedOrderedExecutor<double[][]> executor = new BoundedOrderedExecutor<double[][]>("ca-heights", threadCount);
+        ParallelTreeImporter importer = new ParallelTreeImporter(new File(inputFileName), true, threadCount);
+        try {
+            int counter = 0;
+            List<Tree> batch = new ArrayList<Tree>();
+            boolean moreTrees = importer.hasTree();
+            while (moreTrees) {
+                Tree tree = importer.importNextTree();
+                if (counter >= burnin) {
+                    batch.add(tree);
+                }
+                if (counter > 0 && counter % stepSize == 0) {
+                    progressStream.print("*");
+                    progressStream.flush();
+                }
+                counter++;
+                moreTrees = importer.hasTree();
+
+                if (batch.size() == TREES_PER_BATCH || (!moreTrees && batch.size() > 0)) {
+                    final List<Tree> trees = batch;
+                    executor.submit(new Callable<double[][]>() {
+                        public double[][] call() {
+                            double[][] heights = new double[trees.size()][];
+                            for (int i = 0; i < heights.length; i++) {
+                                heights[i] = getCommonAncestorHeights(trees.get(i), targetClades, taxonIndices);
+                            }
+                            return heights;
+                        }
+                    });
+                    batch = new ArrayList<Tree>();
+                }
+
+                while (moreTrees ? executor.isFull() : !executor.isEmpty()) {
+                    for (double[] heights : executor.take()) {
+                        for (int k = 0; k < heightSums.length; k++) {
+                            heightSums[k] += heights[k];
+                        }
+                        totalTreesUsed++;
+                    }
+                }
+            }
+        } finally {
+            importer.close();
+            executor.shutdown();
+        }
+
+        for (int k = 0; k < heightSums.length; k++) {
+            targetTree.setNodeHeight(targetTree.getNode(k), heightSums[k] / totalTreesUsed);
+        }
+
+        progressStream.println();
+        progressStream.println();
+    }
+
+    /**
+     * @return the height of the most recent common ancestor in the tree of the taxa of each of the
+     *         target clades
+     */
+    private static double[] getCommonAncestorHeights(Tree tree, BitSet[] targetClades, Map<String, Integer> taxonIndices) {
+        final int nodeCount = tree.getNodeCount();
+        BitSet[] clades = getCladeCodes(tree, taxonIndices);
+        int[] preOrder = new int[nodeCount];
+        TreeUtils.preOrderTraversalList(tree, preOrder);
+
+        // the last node in pre-order containing a clade is its common ancestor
+        double[] heights = new double[targetClades.length];
+        for (int k = 0; k < nodeCount; k++) {
+            int j = preOrder[k];
+            for (int i = 0; i < targetClades.length; i++) {
+                if (TreeAnnotator.isSubSet(targetClades[i], clades[j])) {
+                    heights[i] = tree.getNodeHeight(tree.getNode(j));
+                }
+            }
+        }
+        return heights;
+    }
+
+    /**
+     * @return the taxa below each node as bits given by the taxon indices
+     */
+    private static BitSet[] getCladeCodes(Tree tree, Map<String, Integer> taxonIndices) {
+        BitSet[] codes = new BitSet[tree.getNodeCount()];
+        getCladeCodes(tree, tree.getRoot(), taxonIndices, codes);
+        return codes;
+    }
+
+    private static BitSet getCladeCodes(Tree tree, NodeRef node, Map<String, Integer> taxonIndices, BitSet[] codes) {
+        BitSet code = new BitSet();
+        if (tree.isExternal(node)) {
+            String id = tree.getNodeTaxon(node).getId();
+            Integer index = taxonIndices.get(id);
+            if (index == null) {
+                throw new IllegalArgumentException("Taxon " + id + " is not in the target tree");
+            }
+            code.set(index);
+        } else {
+            for (int i = 0; i < tree.getChildCount(node); i++) {
+                code.or(getCladeCodes(tree, tree.getChild(node, i), taxonIndices, codes));
+            }
+        }
+        codes[node.getNumber()] = code;
+        return code;
+    }
+
+    private static void hashClades(Tree tree, NodeRef node, long[] hash1, long[] hash2) {
+        final int number = node.getNumber();
+        if (tree.isExternal(node)) {
+            String id = tree.getNodeTaxon(node).getId();
+            hash1[number] = taxonCode(id, HASH_SEED1);
+            hash2[number] = taxonCode(id, HASH_SEED2);
+        } else {
+            hash1[number] = 0;
+            hash2[number] = 0;
+            for (int i = 0; i < tree.getChildCount(node); i++) {
+                NodeRef child = tree.getChild(node, i);
+                hashClades(tree, child, hash1, hash2);
+                hash1[number] += hash1[child.getNumber()];
+                hash2[number] += hash2[child.getNumber()];
+            }
+        }
+    }
+
+    private static long taxonCode(String id, long seed) {
+        // FNV-1a over the characters followed by the SplitMix64 finaliser
+        long h = seed;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+
+    private Clade getClade(CladeKey key, boolean create) {
+        Clade clade = clades.get(key);
+        if (clade == null && create) {
+            clade = new Clade(cladeList.size(), attributeNames.size());
+            clades.put(key, clade);
+            cladeList.add(clade);
+        }
+        return clade;
+    }
+
+    private void setupAttributes(Tree tree) {
+        Set<String> names = new TreeSet<String>();
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            Iterator iter = tree.getNodeAttributeNames(node);
+            if (iter != null) {
+                while (iter.hasNext()) {
+                    names.add((String) iter.next());
+                }
+            }
+        }
+        attributeNames.add("height");
+        attributeNames.add("length");
+        names.removeAll(attributeNames);
+        attributeNames.addAll(names);
+
+        // clades of a user target tree were created before the attributes were known
+        for (Clade clade : cladeList) {
+            clade.summaries = new AttributeSummary[attributeNames.size()];
+        }
+    }
+
+    private void addTree(Tree tree, long position, long[] hash1, long[] hash2, boolean createClades,
+                         DataOutputStream cladeStream) throws IOException {
+        if (cladeStream != null) {
+            cladeStream.writeLong(position);
+            cladeStream.writeInt(tree.getInternalNodeCount());
+        }
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            Clade clade = getClade(new CladeKey(hash1[i], hash2[i]), createClades);
+
+            if (cladeStream != null && !tree.isExternal(node)) {
+                cladeStream.writeInt(clade.index);
+            }
+
+            if (clade != null) {
+                clade.count++;
+                for (int j = 0; j < attributeNames.size(); j++) {
+                    String attributeName = attributeNames.get(j);
+                    Object value;
+                    if (attributeName.equals("height")) {
+                        value = tree.getNodeHeight(node);
+                    } else if (attributeName.equals("length")) {
+                        value = tree.getBranchLength(node);
+                    } else {
+                        value = tree.getNodeAttribute(node, attributeName);
+                        if (value instanceof String && ((String) value).startsWith("\"")) {
+                            value = ((String) value).replaceAll("\"", "");
+                        }
+                    }
+
+                    if (clade.summaries[j] == null) {
+                        clade.summaries[j] = new AttributeSummary(value);
+                    }
+                    clade.summaries[j].add(value);
+                }
+            }
+        }
+    }
+
+    private MutableTree findMaximumCladeCredibilityTree(File cladeFile, String inputFileName, int burnin, int totalTreesUsed)
+            throws IOException, Importer.ImportException {
+
+        double[] logCredibilities = new double[cladeList.size()];
+        for (int i = 0; i < logCredibilities.length; i++) {
+            logCredibilities[i] = Math.log(((double) cladeList.get(i).count) / totalTreesUsed);
+        }
+
+        double bestScore = Double.NEGATIVE_INFINITY;
+        long bestOffset = -1;
+        int bestTreeNumber = 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cladeFile)));
+        try {
+            for (int i = 0; i < totalTreesUsed; i++) {
+                long offset = in.readLong();
+                int count = in.readInt();
+                double score = 0.0;
+                for (int j = 0; j < count; j++) {
+                    score += logCredibilities[in.readInt()];
+                }
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestOffset = offset;
+                    bestTreeNumber = burnin + i + 1;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        Tree bestTree;
+        ParallelTreeImporter importer = new ParallelTreeImporter(new File(inputFileName), false, 1);
+        try {
+            bestTree = importer.importTreeAt(bestOffset);
+        } finally {
+            importer.close();
+        }
+
+        progressStream.println("Best tree: " + bestTree.getId() + " (tree number " + bestTreeNumber + ")");
+        progressStream.println("Highest Log Clade Credibility: " + bestScore);
+
+        return new FlexibleTree(bestTree);
+    }
+
+    private void annotateTree(MutableTree tree, NodeRef node, long[] hash1, long[] hash2,
+                              TreeAnnotator.HeightsSummary heightsOption, int totalTreesUsed) {
+        for (int i = 0; i < tree.getChildCount(node); i++) {
+            annotateTree(tree, tree.getChild(node, i), hash1, hash2, heightsOption, totalTreesUsed);
+        }
+
+        Clade clade = getClade(new CladeKey(hash1[node.getNumber()], hash2[node.getNumber()]), false);
+        if (clade == null) {
+            throw new IllegalArgumentException("A clade of the target tree was not found in the trees");
+        }
+
+        boolean filter = false;
+        if (!tree.isExternal(node)) {
+            final double posterior = ((double) clade.count) / totalTreesUsed;
+            tree.setNodeAttribute(node, "posterior", posterior);
+            if (posterior < posteriorLimit) {
+                filter = true;
+            }
+        }
+
+        for (int i = 0; i < attributeNames.size(); i++) {
+            final String attributeName = attributeNames.get(i);
+            final AttributeSummary summary = clade.summaries == null ? null : clade.summaries[i];
+            if (summary == null || summary.type == AttributeType.NONE) {
+                continue;
+            }
+
+            if (attributeName.equals("height")) {
+                if (heightsOption == TreeAnnotator.HeightsSummary.MEAN_HEIGHTS) {
+                    tree.setNodeHeight(node, summary.getMean(0));
+                } else if (heightsOption == TreeAnnotator.HeightsSummary.MEDIAN_HEIGHTS) {
+                    tree.setNodeHeight(node, median(summary.getSample(0)));
+                }
+            }
+
+            if (filter) {
+                continue;
+            }
+
+            switch (summary.type) {
+                case DISCRETE:
+                    annotateModeAttribute(tree, node, attributeName, summary.frequencies);
+                    annotateFrequencyAttribute(tree, node, attributeName, summary.frequencies);
+                    break;
+                case BOOLEAN:
+                    tree.setNodeAttribute(node, attributeName, summary.getMean(0));
+                    break;
+                case NUMBER:
+                    tree.setNodeAttribute(node, attributeName, summary.getMean(0));
+                    if (summary.min[0] < summary.max[0]) {
+                        double[] values = summary.getSample(0);
+                        tree.setNodeAttribute(node, attributeName + "_median", median(values));
+                        annotateHPDAttribute(tree, node, attributeName + "_95%_HPD", 0.95, values);
+                        tree.setNodeAttribute(node, attributeName + "_range", new Object[]{summary.min[0], summary.max[0]});
+                    }
+                    break;
+                case ARRAY:
+                    annotateArrayAttribute(tree, node, attributeName, summary);
+                    break;
+                default:
+            }
+        }
+    }
+
+    private void annotateArrayAttribute(MutableTree tree, NodeRef node, String name, AttributeSummary summary) {
+        final int length = summary.width;
+
+        for (int k = 0; k < length; k++) {
+            tree.setNodeAttribute(node, name + (k + 1), summary.getMean(k));
+        }
+
+        boolean want2d = TreeAnnotator.processBivariateAttributes && length == 2;
+        if (name.equals("dmv")) {
+            want2d = false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (summary.min[k] < summary.max[k]) {
+                double[] values = summary.getSample(k);
+                tree.setNodeAttribute(node, name + (k + 1) + "_median", median(values));
+                tree.setNodeAttribute(node, name + (k + 1) + "_range", new Object[]{summary.min[k], summary.max[k]});
+                if (!want2d) {
+                    annotateHPDAttribute(tree, node, name + (k + 1) + "_95%_HPD", 0.95, values);
+                }
+            }
+        }
+
+        if (want2d) {
+            boolean variationInFirst = (summary.min[0] < summary.max[0]);
+            boolean variationInSecond = (summary.min[1] < summary.max[1]);
+
+            if (variationInFirst && !variationInSecond) {
+                annotateHPDAttribute(tree, node, name + "1" + "_95%_HPD", 0.95, summary.getSample(0));
+            }
+            if (variationInSecond && !variationInFirst) {
+                annotateHPDAttribute(tree, node, name + "2" + "_95%_HPD", 0.95, summary.getSample(1));
+            }
+            if (variationInFirst && variationInSecond) {
+                for (double hpd : hpd2D) {
+                    if (hpd > 1) {
+                        System.err.println("no HPD for proportion > 1 (" + hpd + ")");
+                    } else if (hpd < 0) {
+                        System.err.println("no HPD for proportion < 0 (" + hpd + ")");
+                    } else {
+                        annotate2DHPDAttribute(tree, node, name, "_" + (int) (100 * hpd) + "%HPD", hpd,
+                                summary.getSample(0), summary.getSample(1));
+                    }
+                }
+            }
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        return (n % 2 == 1) ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2.0;
+    }
+
+    private static void annotateHPDAttribute(MutableTree tree, NodeRef node, String label, double hpd, double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        double minRange = Double.MAX_VALUE;
+        int hpdIndex = 0;
+
+        int diff = (int) Math.round(hpd * (double) sorted.length);
+        for (int i = 0; i <= (sorted.length - diff); i++) {
+            double range = Math.abs(sorted[i + diff - 1] - sorted[i]);
+            if (range < minRange) {
+                minRange = range;
+                hpdIndex = i;
+            }
+        }
+        tree.setNodeAttribute(node, label, new Object[]{sorted[hpdIndex], sorted[hpdIndex + diff - 1]});
+    }
+
+    private static void annotateModeAttribute(MutableTree tree, NodeRef node, String label, Map<Object, Integer> values) {
+        Object mode = null;
+        int maxCount = 0;
+        int totalCount = 0;
+        int countInMode = 1;
+
+        for (Object key : values.keySet()) {
+            int thisCount = values.get(key);
+            if (thisCount == maxCount) {
+                mode = mode.toString().concat("+" + key);
+                countInMode++;
+            } else if (thisCount > maxCount) {
+                mode = key;
+                maxCount = thisCount;
+                countInMode = 1;
+            }
+            totalCount += thisCount;
+        }
+        double freq = (double) maxCount / (double) totalCount * countInMode;
+        tree.setNodeAttribute(node, label, mode);
+        tree.setNodeAttribute(node, label + ".prob", freq);
+    }
+
+    private static void annotateFrequencyAttribute(MutableTree tree, NodeRef node, String label, Map<Object, Integer> values) {
+        double totalCount = 0;
+        int length = values.size();
+        String[] name = new String[length];
+        Double[] freq = new Double[length];
+        int index = 0;
+        for (Object key : values.keySet()) {
+            name[index] = key.toString();
+            freq[index] = (double) values.get(key);
+            totalCount += freq[index];
+            index++;
+        }
+        for (int i = 0; i < length; i++) {
+            freq[i] /= totalCount;
+        }
+
+        tree.setNodeAttribute(node, label + ".set", name);
+        tree.setNodeAttribute(node, label + ".set.prob", freq);
+    }
+
+    private static void annotate2DHPDAttribute(MutableTree tree, NodeRef node, String preLabel, String postLabel,
+                                               double hpd, double[] values1, double[] values2) {
+        ContourMaker kde = new ContourWithSynder(values1, values2, false);
+
+        ContourPath[] paths = kde.getContourPaths(hpd);
+
+        tree.setNodeAttribute(node, preLabel + postLabel + "_modality", paths.length);
+
+        if (paths.length > 1) {
+            System.err.println("Warning: a node has a disjoint " + 100 * hpd + "% HPD region.  This may be an artifact!");
+            System.err.println("Try decreasing the enclosed mass or increasing the number of samples.");
+        }
+
+        int i = 0;
+        for (ContourPath p : paths) {
+            double[] xList = p.getAllX();
+            double[] yList = p.getAllY();
+            StringBuffer xString = new StringBuffer("{");
+            StringBuffer yString = new StringBuffer("{");
+            for (int k = 0; k < xList.length; k++) {
+                xString.append(String.format("%5.8f", xList[k])).append(",");
+                yString.append(String.format("%5.8f", yList[k])).append(",");
+            }
+            xString.append(String.format("%5.8f", xList[0])).append("}");
+            yString.append(String.format("%5.8f", yList[0])).append("}");
+
+            tree.setNodeAttribute(node, preLabel + "1" + postLabel + "_" + (i + 1), xString);
+            tree.setNodeAttribute(node, preLabel + "2" + postLabel + "_" + (i + 1), yString);
+            i++;
+        }
+    }
+
+    private enum AttributeType {
+        NONE, NUMBER, BOOLEAN, DISCRETE, ARRAY
+    }
+
+    /**
+     * A running summary of the values of one attribute for one clade. As in TreeAnnotator, the
+     * type of the attribute is taken from the first value.
+     */
+    private final class AttributeSummary {
+
+        AttributeSummary(Object first) {
+            if (first == null) {
+                type = AttributeType.NONE;
+                width = 0;
+            } else if (first instanceof String || (forceIntegerToDiscrete && first instanceof Integer)) {
+                type = AttributeType.DISCRETE;
+                width = 0;
+                frequencies = new HashMap<Object, Integer>();
+            } else if (first instanceof Boolean) {
+                type = AttributeType.BOOLEAN;
+                width = 1;
+            } else if (isDoubleArray(first)) {
+                type = AttributeType.ARRAY;
+                width = ((Object[]) first).length;
+            } else {
+                type = AttributeType.NUMBER;
+                width = 1;
+            }
+
+            if (width > 0) {
+                sum = new double[width];
+                min = new double[width];
+                max = new double[width];
+                Arrays.fill(min, Double.MAX_VALUE);
+                Arrays.fill(max, -Double.MAX_VALUE);
+                row = new double[width];
+                sample = new ThinnedSample(width, sampleSize);
+            }
+        }
+
+        void add(Object value) {
+            switch (type) {
+                case NONE:
+                    return;
+                case DISCRETE: {
+                    Integer count = frequencies.get(value);
+                    frequencies.put(value, count == null ? 1 : count + 1);
+                    return;
+                }
+                case BOOLEAN:
+                    row[0] = (value instanceof Boolean && (Boolean) value) ? 1.0 : 0.0;
+                    break;
+                case ARRAY: {
+                    if (!(value instanceof Object[]) || ((Object[]) value).length != width) {
+                        return;
+                    }
+                    Object[] array = (Object[]) value;
+                    for (int k = 0; k < width; k++) {
+                        row[k] = ((Number) array[k]).doubleValue();
+                    }
+                    break;
+                }
+                default:
+                    if (!(value instanceof Number)) {
+                        return;
+                    }
+                    row[0] = ((Number) value).doubleValue();
+            }
+
+            for (int k = 0; k < width; k++) {
+                sum[k] += row[k];
+                if (row[k] < min[k]) min[k] = row[k];
+                if (row[k] > max[k]) max[k] = row[k];
+            }
+            count++;
+            sample.add(row);
+        }
+
+        double getMean(int k) {
+            return sum[k] / count;
+        }
+
+        double[] getSample(int k) {
+            return sample.getColumn(k);
+        }
+
+        final AttributeType type;
+        final int width;
+        long count = 0;
+        double[] sum;
+        double[] min;
+        double[] max;
+        double[] row;
+        ThinnedSample sample;
+        Map<Object, Integer> frequencies;
+    }
+
+    private static boolean isDoubleArray(Object value) {
+        if (!(value instanceof Object[]) || ((Object[]) value).length == 0) {
+            return false;
+        }
+        for (Object n : (Object[]) value) {
+            if (!(n instanceof Double)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps every stride'th row of values. When the capacity is reached every second row is
+     * dropped and the stride doubled so the sample stays evenly spread over the values seen.
+     */
+    private static final class ThinnedSample {
+
+        ThinnedSample(int width, int capacity) {
+            this.width = width;
+            this.capacity = Math.max(capacity - (capacity % 2), 2);
+            values = new double[width * Math.min(this.capacity, 8)];
+        }
+
+        void add(double[] row) {
+            if (seen % stride == 0) {
+                if (size == capacity) {
+                    for (int i = 1; i < size / 2; i++) {
+                        System.arraycopy(values, (2 * i) * width, values, i * width, width);
+                    }
+                    size /= 2;
+                    stride *= 2;
+                }
+                if (seen % stride == 0) {
+                    if ((size + 1) * width > values.length) {
+                        values = Arrays.copyOf(values, Math.min(values.length * 2, capacity * width));
+                    }
+                    System.arraycopy(row, 0, values, size * width, width);
+                    size++;
+                }
+            }
+            seen++;
+        }
+
+        double[] getColumn(int k) {
+            double[] column = new double[size];
+            for (int i = 0; i < size; i++) {
+                column[i] = values[i * width + k];
+            }
+            return column;
+        }
+
+        private final int width;
+        private final int capacity;
+        private double[] values;
+        private int size = 0;
+        private long seen = 0;
+        private long stride = 1;
+    }
+
+    private static final class CladeKey {
+        CladeKey(long hash1, long hash2) {
+            this.hash1 = hash1;
+            this.hash2 = hash2;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof CladeKey)) return false;
+            CladeKey key = (CladeKey) o;
+            return hash1 == key.hash1 && hash2 == key.hash2;
+        }
+
+        public int hashCode() {
+            return (int) (hash1 ^ (hash1 >>> 32));
+        }
+
+        final long hash1;
+        final long hash2;
+    }
+
+    private static final class Clade {
+        Clade(int index, int attributeCount) {
+            this.index = index;
+            this.summaries = new AttributeSummary[attributeCount];
+        }
+
+        final int index;
+        int count = 0;
+        AttributeSummary[] summaries;
+    }
+
+    private final double posteriorLimit;
+    private final double[] hpd2D;
+    private final boolean forceIntegerToDiscrete;
+    private final int sampleSize;
+
+    private final List<String> attributeNames = new ArrayList<String>();
+    private final Map<CladeKey, Clade> clades = new HashMap<CladeKey, Clade>();
+    private final List<Clade> cladeList = new ArrayList<Clade>();
+}
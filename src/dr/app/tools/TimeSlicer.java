@@ -28,9 +28,7 @@ package dr.app.tools;
 import dr.app.beast.BeastVersion;
 import dr.app.util.Arguments;
 import dr.evolution.io.Importer;
-import dr.evolution.io.NewickImporter;
-import dr.evolution.io.NexusImporter;
-import dr.evolution.io.TreeImporter;
+import dr.evolution.io.ParallelTreeImporter;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeUtils;
@@ -42,6 +40,7 @@ import dr.geo.math.SphericalPolarCoordinates;
 import dr.inference.trace.TraceDistribution;
 import dr.inference.trace.TraceType;
 import dr.math.distributions.MultivariateNormalDistribution;
+import dr.util.BoundedOrderedExecutor;
 import dr.util.HeapSort;
 import dr.util.Version;
 import org.jdom.Element;
@@ -52,6 +51,7 @@ import java.awt.geom.Point2D;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * @author Marc A. Suchard
@@ -133,6 +133,14 @@ public class TimeSlicer {
     public static final String SUBSTITUTION = "N";
     public static final String DESCENDENTS = "descendents";
 
+    /**
+     * The system property giving the number of threads used to analyze the trees and to contour
+     * the slices (defaults to the number of processors).
+     */
+    public static final String THREADS = "timeslicer.threads";
+
+    private static final int TREES_PER_BATCH = 50;
+
     public static final String[] falseTrue = {"false", "true"};
 
     private final static Calendar calendar = GregorianCalendar.getInstance();
@@ -192,24 +200,26 @@ public class TimeSlicer {
             }
         }
 
-        values = new ArrayList<List<List<Trait>>>(sliceCount);
+        threadCount = Integer.getInteger(THREADS, Runtime.getRuntime().availableProcessors());
+
+        values = new ArrayList<List<TraitValues>>(sliceCount);
         for (int i = 0; i < sliceCount; i++) {
-            List<List<Trait>> thisSlice = new ArrayList<List<Trait>>(traitCount);
+            List<TraitValues> thisSlice = new ArrayList<TraitValues>(traitCount);
             values.add(thisSlice);
             for (int j = 0; j < traitCount; j++) {
-                List<Trait> thisTraitSlice = new ArrayList<Trait>();
+                TraitValues thisTraitSlice = new TraitValues();
                 thisSlice.add(thisTraitSlice);
             }
         }
         if (summarizeRoot) {
-            rootValues = new ArrayList<List<Trait>>(traitCount);
+            rootValues = new ArrayList<TraitValues>(traitCount);
             for (int k = 0; k < traitCount; k++) {
-                List<Trait> thisTrait = new ArrayList<Trait>();
+                TraitValues thisTrait = new TraitValues();
                 rootValues.add(thisTrait);
             }
         }
         if (summarizeTips) {
-            tipValues = new ArrayList<List<List<Trait>>>();
+            tipValues = new ArrayList<List<TraitValues>>();
             tipNames = new ArrayList<String>();
         }
 
@@ -368,6 +378,10 @@ public class TimeSlicer {
                 rootElement.addContent(documentElement);
             }
 
+            if (contours && outputFormat != OutputFormat.TAB) {
+                makeSliceContours(hpdValues);
+            }
+
             if (sliceHeights == null) {
                 for (double hpdValue : hpdValues) {
                     summarizeSlice(0, Double.NaN, contours, points, outputFormat, hpdValue);
@@ -652,19 +666,19 @@ public class TimeSlicer {
         }
     }
 
-    enum Normalization {
+    public enum Normalization {
         LENGTH,
         HEIGHT,
         NONE
     }
 
-    enum OutputFormat {
+    public enum OutputFormat {
         TAB,
         KML,
         XML
     }
 
-    enum BranchSet {
+    public enum BranchSet {
         ALL,
         INT,
         EXT,
@@ -672,7 +686,7 @@ public class TimeSlicer {
         CLADE
     }
 
-    enum SliceMode {
+    public enum SliceMode {
         BRANCHES,
         NODES,
     }
@@ -717,7 +731,7 @@ public class TimeSlicer {
 
         for (int traitIndex = 0; traitIndex < rootValues.size(); traitIndex++) {
 
-            List<Trait> thisTrait = rootValues.get(traitIndex);
+            TraitValues thisTrait = rootValues.get(traitIndex);
             if (thisTrait.size() == 0) {
                 return;
             }
@@ -750,7 +764,7 @@ public class TimeSlicer {
 
                         if (contourElement != null) {
                             String name = "root_hpd" + (hpdValue * 100);
-                            generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue);
+                            generateContours(name, contourElement, null, y, null, -1, Double.NaN, Double.NaN, hpdValue);
                         }
 
                         if (pointsElement != null) {
@@ -803,9 +817,9 @@ public class TimeSlicer {
 
         for (int traitIndex = 0; traitIndex < tipValues.size(); traitIndex++) {
 
-            List<List<Trait>> thisTrait = tipValues.get(traitIndex);
+            List<TraitValues> thisTrait = tipValues.get(traitIndex);
             for (int tipIndex = 0; tipIndex < thisTrait.size(); tipIndex++) {
-                List<Trait> thisTip = thisTrait.get(tipIndex);
+                TraitValues thisTip = thisTrait.get(tipIndex);
                 if (thisTip.size() == 0) {
                     return;
                 }
@@ -835,7 +849,7 @@ public class TimeSlicer {
 
                             if (contourElement != null) {
                                 String name = tipNames.get(tipIndex) + "_hpd";
-                                generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue);
+                                generateContours(name, contourElement, null, y, null, -1, Double.NaN, Double.NaN, hpdValue);
                             }
 
                             if (pointsElement != null) {
@@ -895,7 +909,7 @@ public class TimeSlicer {
             }
         }
 
-        List<List<Trait>> thisSlice = values.get(slice);
+        List<TraitValues> thisSlice = values.get(slice);
         int traitCount = thisSlice.size();
 
         for (int traitIndex = 0; traitIndex < traitCount; traitIndex++) {
@@ -932,7 +946,7 @@ public class TimeSlicer {
         }
     }
 
-    private void summarizeSliceTrait(Element contourElement, Element pointsElement, int slice, List<Trait> thisTrait, int traitIndex, double sliceValue,
+    private void summarizeSliceTrait(Element contourElement, Element pointsElement, int slice, TraitValues thisTrait, int traitIndex, double sliceValue,
                                      OutputFormat outputFormat,
                                      double hpdValue) {
 
@@ -968,16 +982,8 @@ public class TimeSlicer {
                 }
             }
 
-            int count = thisTrait.size();
 //            System.out.println("count = "+count+", dim = "+dim);
-            double[][] y = new double[dim][count];
-            for (int i = 0; i < count; i++) {
-                Trait trait = thisTrait.get(i);
-                double[] value = trait.getValue();
-                for (int j = 0; j < dim; j++) {
-                    y[j][i] = value[j];
-                }
-            }
+            double[][] y = thisTrait.getValues();
 //            System.out.println(y.length+"\t"+y[0].length);
 
             if (outputFormat == OutputFormat.XML || outputFormat == OutputFormat.TAB) {
@@ -1044,7 +1050,11 @@ public class TimeSlicer {
 
                 if (contourElement != null) {
                     String name = "" + date + "_hpd" + hpdValue;
-                    generateContours(name, contourElement, traitElement, y, slice, date, sliceValue, hpdValue);
+                    ContourPath[] paths = null;
+                    if (sliceContourPaths != null) {
+                        paths = sliceContourPaths.get(getContourKey(slice, traitIndex, hpdValue));
+                    }
+                    generateContours(name, contourElement, traitElement, y, paths, slice, date, sliceValue, hpdValue);
                 }
 
             }
@@ -1115,24 +1125,15 @@ public class TimeSlicer {
         }
     }
 
-    private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, int slice, double date, double height, double hpdValue) {
+    private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, ContourPath[] paths,
+                                  int slice, double date, double height, double hpdValue) {
         //to test how much points are within the polygons
         double numberOfPointsInPolygons = 0;
         double totalArea = 0;
 
-        ContourMaker contourMaker;
-        if (contourMode == ContourMode.JAVA)
-//            contourMaker = new KernelDensityEstimator2D(y[0], y[1], gridSize);
-            contourMaker = new KernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT);
-        else if (contourMode == ContourMode.R)
-            contourMaker = new ContourWithR(y[0], y[1], gridSize);
-        else if (contourMode == ContourMode.SNYDER)
-//            contourMaker = new ContourWithSynder(y[0], y[1], gridSize);
-            contourMaker = new ContourWithSynder(y[0], y[1], BANDWIDTHLIMIT);
-        else
-            throw new RuntimeException("Unimplemented ContourModel!");
-
-        ContourPath[] paths = contourMaker.getContourPaths(hpdValue);
+        if (paths == null) {
+            paths = getContourPaths(y, hpdValue);
+        }
         int pathCounter = 1;
         for (ContourPath path : paths) {
 
@@ -1181,6 +1182,70 @@ public class TimeSlicer {
         }
     }
 
+    private ContourPath[] getContourPaths(double[][] y, double hpdValue) {
+        ContourMaker contourMaker;
+        if (contourMode == ContourMode.JAVA)
+//            contourMaker = new KernelDensityEstimator2D(y[0], y[1], gridSize);
+            contourMaker = new KernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT);
+        else if (contourMode == ContourMode.R)
+            contourMaker = new ContourWithR(y[0], y[1], gridSize);
+        else if (contourMode == ContourMode.SNYDER)
+//            contourMaker = new ContourWithSynder(y[0], y[1], gridSize);
+            contourMaker = new ContourWithSynder(y[0], y[1], BANDWIDTHLIMIT);
+        else
+            throw new RuntimeException("Unimplemented ContourModel!");
+
+        return contourMaker.getContourPaths(hpdValue);
+    }
+
+    private static String getContourKey(int slice, int traitIndex, double hpdValue) {
+        return slice + sep + traitIndex + sep + hpdValue;
+    }
+
+    /**
+     * Contours the bivariate traits of all the slices for each HPD value at once, spread over
+     * the threads. R can only be used by one thread so the contours are left to be made in turn.
+     */
+    private void makeSliceContours(double[] hpdValues) {
+        if (contourMode == ContourMode.R || threadCount < 2) {
+            return;
+        }
+
+        BoundedOrderedExecutor<ContourPath[]> executor =
+                new BoundedOrderedExecutor<ContourPath[]>("slice-contours", threadCount);
+
+        // the keys of the contours being made, in the order they were submitted
+        Deque<String> keys = new ArrayDeque<String>();
+        sliceContourPaths = new HashMap<String, ContourPath[]>();
+        try {
+            for (int slice = 0; slice < values.size(); slice++) {
+                for (int traitIndex = 0; traitIndex < traitCount; traitIndex++) {
+                    TraitValues thisTrait = values.get(slice).get(traitIndex);
+                    if (thisTrait.size() == 0 || !thisTrait.isNumber() || !thisTrait.isMultivariate() || thisTrait.getDim() != 2) {
+                        continue;
+                    }
+                    final double[][] y = thisTrait.getValues();
+                    for (final double hpdValue : hpdValues) {
+                        if (executor.isFull()) {
+                            sliceContourPaths.put(keys.removeFirst(), executor.take());
+                        }
+                        keys.add(getContourKey(slice, traitIndex, hpdValue));
+                        executor.submit(new Callable<ContourPath[]>() {
+                            public ContourPath[] call() {
+                                return getContourPaths(y, hpdValue);
+                            }
+                        });
+                    }
+                }
+            }
+            while (!executor.isEmpty()) {
+                sliceContourPaths.put(keys.removeFirst(), executor.take());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     public static int getNumberOfPointsInPolygon(double[][] pointsArray, Polygon2D testPolygon) {
         int numberOfPointsInPolygon = 0;
         for (int x = 0; x < pointsArray[0].length; x++) {
@@ -1487,9 +1552,9 @@ public class TimeSlicer {
 //    }
 
     private void readAndAnalyzeTrees(String treeFileName, int burnin, int skipEvery,
-                                     String[] traits, double[] slices,
-                                     boolean impute, boolean trueNoise, Normalization normalize,
-                                     boolean divideByBranchLength, BranchSet branchset, Set taxaSet)
+                                     final String[] traits, final double[] slices,
+                                     final boolean impute, final boolean trueNoise, final Normalization normalize,
+                                     final boolean divideByBranchLength, final BranchSet branchset, final Set taxaSet)
             throws IOException, Importer.ImportException {
 
         int totalTrees = 10000;
@@ -1502,37 +1567,311 @@ public class TimeSlicer {
         int stepSize = totalTrees / 60;
         if (stepSize < 1) stepSize = 1;
 
-        BufferedReader reader1 = new BufferedReader(new FileReader(treeFileName));
+        // imputing with noise draws random numbers so the trees are then analyzed one at a time in order
+        int threads = (impute && trueNoise ? 1 : threadCount);
+        // batches of trees being analyzed, added to the totals in the order they were read
+        BoundedOrderedExecutor<BatchValues> executor = new BoundedOrderedExecutor<BatchValues>("tree-slicer", threads);
 
-        String line1 = reader1.readLine();
-        TreeImporter importer1;
-        if (line1.toUpperCase().startsWith("#NEXUS")) {
-            importer1 = new NexusImporter(new FileReader(treeFileName));
-        } else {
-            importer1 = new NewickImporter(new FileReader(treeFileName));
-        }
+        ParallelTreeImporter importer1 = new ParallelTreeImporter(new File(treeFileName));
         totalTrees = 0;
 
-        while (importer1.hasTree()) {
-            Tree treeTime = importer1.importNextTree();
-            if (totalTrees % skipEvery == 0) {
-                treesRead++;
-                if (totalTrees >= burnin) {
-                    analyzeTree(treeTime, traits, slices, impute, trueNoise, normalize, divideByBranchLength, branchset, taxaSet);
+        try {
+            List<Tree> batch = new ArrayList<Tree>();
+            boolean moreTrees = importer1.hasTree();
+            while (moreTrees) {
+                Tree treeTime = importer1.importNextTree();
+                if (totalTrees % skipEvery == 0) {
+                    treesRead++;
+                    if (totalTrees >= burnin) {
+                        if (tipValues != null && tipValues.size() == 0) {
+                            initializeTips(treeTime);
+                        }
+                        batch.add(treeTime);
+                    }
+                }
+                if (totalTrees > 0 && totalTrees % stepSize == 0) {
+                    progressStream.print("*");
+                    totalStars++;
+                    if (totalStars % 61 == 0)
+                        progressStream.print("\n");
+                    progressStream.flush();
+                }
+                totalTrees++;
+                moreTrees = importer1.hasTree();
+
+                if (batch.size() == TREES_PER_BATCH || (!moreTrees && batch.size() > 0)) {
+                    final List<Tree> trees = batch;
+                    executor.submit(new Callable<BatchValues>() {
+                        public BatchValues call() {
+                            BatchValues batchValues = new BatchValues();
+                            for (Tree tree : trees) {
+                                analyzeTree(tree, traits, slices, impute, trueNoise, normalize, divideByBranchLength,
+                                        branchset, taxaSet, batchValues);
+                            }
+                            return batchValues;
+                        }
+                    });
+                    batch = new ArrayList<Tree>();
+                }
+
+                while (moreTrees ? executor.isFull() : !executor.isEmpty()) {
+                    addBatchValues(executor.take());
                 }
             }
-            if (totalTrees > 0 && totalTrees % stepSize == 0) {
-                progressStream.print("*");
-                totalStars++;
-                if (totalStars % 61 == 0)
-                    progressStream.print("\n");
-                progressStream.flush();
-            }
-            totalTrees++;
+        } finally {
+            importer1.close();
+            executor.shutdown();
         }
         progressStream.print("\n");
     }
 
+    private void initializeTips(Tree treeTime) {
+        // this is the first tree so initialize the tip value lists
+        for (int i = 0; i < treeTime.getExternalNodeCount(); i++) {
+            List<TraitValues> thisTip = new ArrayList<TraitValues>(traitCount);
+            tipValues.add(thisTip);
+            for (int j = 0; j < traitCount; j++) {
+                TraitValues thisTipTrait = new TraitValues();
+                thisTip.add(thisTipTrait);
+            }
+
+            tipNames.add(treeTime.getNodeTaxon(treeTime.getExternalNode(i)).getId());
+        }
+    }
+
+    private void addBatchValues(BatchValues batch) {
+        for (int i = 0; i < sliceCount; i++) {
+            for (int j = 0; j < traitCount; j++) {
+                values.get(i).get(j).addAll(batch.values.get(i).get(j));
+            }
+        }
+        if (rootValues != null) {
+            for (int j = 0; j < traitCount; j++) {
+                rootValues.get(j).addAll(batch.rootValues.get(j));
+            }
+        }
+        if (tipValues != null) {
+            for (int i = 0; i < tipValues.size(); i++) {
+                for (int j = 0; j < traitCount; j++) {
+                    tipValues.get(i).get(j).addAll(batch.tipValues.get(i).get(j));
+                }
+            }
+        }
+
+        treeLengths.addAll(batch.treeLengths);
+        sliceTreeDistanceArrays.addAll(batch.sliceTreeDistanceArrays);
+        sliceTreeTimeArrays.addAll(batch.sliceTreeTimeArrays);
+        sliceTreeMaxPathDistanceArrays.addAll(batch.sliceTreeMaxPathDistanceArrays);
+        sliceTreeMaxDistanceFromRootArrays.addAll(batch.sliceTreeMaxDistanceFromRootArrays);
+        sliceTreeTimeFromRootArrays.addAll(batch.sliceTreeTimeFromRootArrays);
+        sliceTreeDiffusionCoefficientArrays.addAll(batch.sliceTreeDiffusionCoefficientArrays);
+        sliceTreeDiffusionCoefficientVarianceArrays.addAll(batch.sliceTreeDiffusionCoefficientVarianceArrays);
+
+        treesAnalyzed += batch.treeLengths.size();
+    }
+
+    /**
+     * The values taken from a batch of trees (which may be analyzed at the same time as other
+     * batches) before they are added to the totals.
+     */
+    private class BatchValues {
+
+        BatchValues() {
+            values = new ArrayList<List<TraitValues>>(sliceCount);
+            for (int i = 0; i < sliceCount; i++) {
+                values.add(createTraitValues());
+            }
+            rootValues = (TimeSlicer.this.rootValues != null ? createTraitValues() : null);
+            if (TimeSlicer.this.tipValues != null) {
+                tipValues = new ArrayList<List<TraitValues>>();
+                for (int i = 0; i < TimeSlicer.this.tipValues.size(); i++) {
+                    tipValues.add(createTraitValues());
+                }
+            } else {
+                tipValues = null;
+            }
+        }
+
+        private List<TraitValues> createTraitValues() {
+            List<TraitValues> traitValues = new ArrayList<TraitValues>(traitCount);
+            for (int j = 0; j < traitCount; j++) {
+                traitValues.add(new TraitValues());
+            }
+            return traitValues;
+        }
+
+        final List<List<TraitValues>> values;
+        final List<TraitValues> rootValues;
+        final List<List<TraitValues>> tipValues;
+
+        final List<Double> treeLengths = new ArrayList<Double>();
+        final List<double[]> sliceTreeDistanceArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeTimeArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeMaxPathDistanceArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeMaxDistanceFromRootArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeTimeFromRootArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeDiffusionCoefficientArrays = new ArrayList<double[]>();
+        final List<double[]> sliceTreeDiffusionCoefficientVarianceArrays = new ArrayList<double[]>();
+    }
+
+    /**
+     * The values of a trait. Numbers are kept in a primitive array (dim values at a time) and
+     * anything else (or a mixture) as a list of Traits.
+     */
+    class TraitValues {
+
+        public int size() {
+            return (traits != null ? traits.size() : count);
+        }
+
+        public void add(Trait trait) {
+            if (traits == null && !(trait.isNumeric() &&
+                    (count == 0 || (trait.isMultivariate() == isMultivariate && trait.getDim() == dim)))) {
+                traits = new ArrayList<Trait>(count + 1);
+                for (int i = 0; i < count; i++) {
+                    traits.add(get(i));
+                }
+                data = null;
+                heights = null;
+            }
+            if (traits != null) {
+                traits.add(trait);
+                return;
+            }
+
+            if (count == 0) {
+                isMultivariate = trait.isMultivariate();
+                dim = trait.getDim();
+            }
+            ensureCapacity(count + 1, trait.getHeight() != 0.0);
+            System.arraycopy(trait.getValue(), 0, data, count * dim, dim);
+            if (heights != null) {
+                heights[count] = trait.getHeight();
+            }
+            count++;
+        }
+
+        public void addAll(TraitValues other) {
+            if (traits != null || other.traits != null ||
+                    (count > 0 && other.count > 0 && (other.isMultivariate != isMultivariate || other.dim != dim))) {
+                for (int i = 0; i < other.size(); i++) {
+                    add(other.get(i));
+                }
+                return;
+            }
+            if (other.count == 0) {
+                return;
+            }
+
+            if (count == 0) {
+                isMultivariate = other.isMultivariate;
+                dim = other.dim;
+            }
+            ensureCapacity(count + other.count, other.heights != null);
+            System.arraycopy(other.data, 0, data, count * dim, other.count * dim);
+            if (other.heights != null) {
+                System.arraycopy(other.heights, 0, heights, count, other.count);
+            }
+            count += other.count;
+        }
+
+        public Trait get(int index) {
+            if (traits != null) {
+                return traits.get(index);
+            }
+            if (!isMultivariate) {
+                return new Trait(data[index], getHeight(index));
+            }
+            Object[] array = new Object[dim];
+            for (int j = 0; j < dim; j++) {
+                array[j] = data[index * dim + j];
+            }
+            return new Trait(array, getHeight(index));
+        }
+
+        public boolean isNumber() {
+            return (traits != null ? traits.get(0).isNumber() : true);
+        }
+
+        public boolean isMultivariate() {
+            return (traits != null ? traits.get(0).isMultivariate() : isMultivariate);
+        }
+
+        public int getDim() {
+            return (traits != null ? traits.get(0).getDim() : dim);
+        }
+
+        public double getHeight(int index) {
+            if (traits != null) {
+                return traits.get(index).getHeight();
+            }
+            return (heights != null ? heights[index] : 0.0);
+        }
+
+        /**
+         * @return the values as an array of [dimension][value]
+         */
+        public double[][] getValues() {
+            int dim = getDim();
+            int count = size();
+            double[][] y = new double[dim][count];
+            for (int i = 0; i < count; i++) {
+                if (traits != null) {
+                    double[] value = traits.get(i).getValue();
+                    for (int j = 0; j < dim; j++) {
+                        y[j][i] = value[j];
+                    }
+                } else {
+                    for (int j = 0; j < dim; j++) {
+                        y[j][i] = data[i * this.dim + j];
+                    }
+                }
+            }
+            return y;
+        }
+
+        /**
+         * Appends a value as Trait.toString would write it.
+         */
+        public void appendValue(StringBuffer sb, int index) {
+            if (traits != null) {
+                sb.append(traits.get(index));
+                return;
+            }
+            sb.append(data[index * dim]);
+            for (int j = 1; j < dim; j++) {
+                sb.append(sep).append(data[index * dim + j]);
+            }
+        }
+
+        private void ensureCapacity(int size, boolean needHeights) {
+            if (data == null || data.length < size * dim) {
+                int capacity = Math.max(size, data == null ? 16 : (data.length / dim) * 2);
+                double[] newData = new double[capacity * dim];
+                if (data != null) {
+                    System.arraycopy(data, 0, newData, 0, count * dim);
+                }
+                data = newData;
+                if (heights != null) {
+                    double[] newHeights = new double[capacity];
+                    System.arraycopy(heights, 0, newHeights, 0, count);
+                    heights = newHeights;
+                }
+            }
+            if (needHeights && heights == null) {
+                // the heights are only kept once one of them isn't zero
+                heights = new double[data.length / dim];
+            }
+        }
+
+        private boolean isMultivariate;
+        private int dim;
+        private int count = 0;
+        private double[] data;
+        private double[] heights;
+        private List<Trait> traits;
+    }
+
     class Trait {
 
         Trait(Object obj) {
@@ -1563,6 +1902,19 @@ public class TimeSlicer {
             return (array[0] instanceof Double);
         }
 
+        /**
+         * @return true if every value is a number (isNumber only looks at the first)
+         */
+        public boolean isNumeric() {
+            if (!isMultivariate)
+                return (obj instanceof Double);
+            for (Object value : array) {
+                if (!(value instanceof Double))
+                    return false;
+            }
+            return array.length > 0;
+        }
+
         public int getDim() {
             if (isMultivariate) {
                 return array.length;
@@ -1611,14 +1963,16 @@ public class TimeSlicer {
         }
     }
 
-    private List<List<List<Trait>>> values;
-    private List<List<Trait>> rootValues;
-    private List<List<List<Trait>>> tipValues;
+    private List<List<TraitValues>> values;
+    private List<TraitValues> rootValues;
+    private List<List<TraitValues>> tipValues;
     private List<String> tipNames;
 
+    private Map<String, ContourPath[]> sliceContourPaths;
+
     private void outputSlice(int slice, double sliceValue) {
 
-        List<List<Trait>> thisSlice = values.get(slice);
+        List<TraitValues> thisSlice = values.get(slice);
         int traitCount = thisSlice.size();
         int valueCount = thisSlice.get(0).size();
 
@@ -1631,7 +1985,7 @@ public class TimeSlicer {
                 sb.append(sliceValue);
             for (int t = 0; t < traitCount; t++) {
                 sb.append(sep);
-                sb.append(thisSlice.get(t).get(v));
+                thisSlice.get(t).appendValue(sb, v);
             }
             sb.append("\n");
         }
@@ -1695,7 +2049,7 @@ public class TimeSlicer {
 
     private void analyzeTree(Tree treeTime, String[] traits, double[] slices, boolean impute,
                              boolean trueNoise, Normalization normalize, boolean divideByBranchlength,
-                             BranchSet branchset, Set taxaSet) {
+                             BranchSet branchset, Set taxaSet, BatchValues batch) {
 
         double[][] precision = null;
 
@@ -1724,21 +2078,6 @@ public class TimeSlicer {
         }
 
 
-        if (tipValues != null && tipValues.size() == 0) {
-            // this is the first tree so initialize the tip value lists
-            for (int i = 0; i < treeTime.getExternalNodeCount(); i++) {
-                List<List<Trait>> thisTip = new ArrayList<List<Trait>>(traitCount);
-                tipValues.add(thisTip);
-                for (int j = 0; j < traitCount; j++) {
-                    List<Trait> thisTipTrait = new ArrayList<Trait>();
-                    thisTip.add(thisTipTrait);
-                }
-
-                tipNames.add(treeTime.getNodeTaxon(treeTime.getExternalNode(i)).getId());
-            }
-
-        }
-
 //  employed to get dispersal rates across the whole tree
 //        double treeNativeDistance = 0;
 //        double treeKilometerGreatCircleDistance = 0;
@@ -1757,7 +2096,7 @@ public class TimeSlicer {
         double[][] treeSliceDiffusionCoefficients = new double[sliceCount][treeTime.getNodeCount() - 1];
         double[] treeSliceBranchCount = new double[sliceCount];
 
-        treeLengths.add(TreeUtils.getTreeLength(treeTime, treeTime.getRoot()));
+        batch.treeLengths.add(TreeUtils.getTreeLength(treeTime, treeTime.getRoot()));
 
         for (int x = 0; x < treeTime.getNodeCount(); x++) {
 
@@ -1909,10 +2248,10 @@ public class TimeSlicer {
 
                         if (proceed) {
 
-                            List<List<Trait>> thisSlice = values.get(i);
+                            List<TraitValues> thisSlice = batch.values.get(i);
                             for (int j = 0; j < traitCount; j++) {
 
-                                List<Trait> thisTraitSlice = thisSlice.get(j);
+                                TraitValues thisTraitSlice = thisSlice.get(j);
                                 Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                                 if (tmpTrait == null) {
                                     System.err.println("Trait '" + traits[j] + "' not found on branch.");
@@ -1929,10 +2268,7 @@ public class TimeSlicer {
                                         Double rateAttribute = (Double) treeTime.getNodeAttribute(node, rateAttributeString);
                                         if (rateAttribute != null) {
                                             rate = rateAttribute;
-                                            if (outputRateWarning) {
-                                                progressStream.println("Warning: using "+rateAttributeString+" as rate attribute during imputation!");
-                                                outputRateWarning = false;
-                                            }
+                                            warnRateAttribute();
                                         }
                                     }
                                     if (trueNoise && precision == null) {
@@ -1991,8 +2327,8 @@ public class TimeSlicer {
                     }
                 }
 
-                if (tipValues != null && treeTime.isExternal(node)) {
-                    List<List<Trait>> thisTip = tipValues.get(x);
+                if (batch.tipValues != null && treeTime.isExternal(node)) {
+                    List<TraitValues> thisTip = batch.tipValues.get(x);
 
                     for (int j = 0; j < traitCount; j++) {
                         Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
@@ -2014,9 +2350,9 @@ public class TimeSlicer {
                             height = slices[i + 1];
                         }
                         if ((slices[i] < nodeHeight && height >= nodeHeight)){
-                            List<List<Trait>> thisSlice = values.get(i);
+                            List<TraitValues> thisSlice = batch.values.get(i);
                             for (int j = 0; j < traitCount; j++) {
-                                List<Trait> thisTraitSlice = thisSlice.get(j);
+                                TraitValues thisTraitSlice = thisSlice.get(j);
                                 Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                                 if (tmpTrait == null) {
                                     System.err.println("Trait '" + traits[j] + "' not found on node.");
@@ -2032,9 +2368,9 @@ public class TimeSlicer {
                     }
                 }
 
-                if (rootValues != null) {
+                if (batch.rootValues != null) {
                     for (int j = 0; j < traitCount; j++) {
-                        List<Trait> thisRootTrait = rootValues.get(j);
+                        TraitValues thisRootTrait = batch.rootValues.get(j);
                         Object tmpTrait = treeTime.getNodeAttribute(node, traits[j]);
                         if (tmpTrait == null) {
                             System.err.println("Trait '" + traits[j] + "' not found on root node.");
@@ -2051,12 +2387,12 @@ public class TimeSlicer {
         //System.out.println(Tree.Utils.getTreeLength(treeTime, treeTime.getRoot())+"\t"+test);
 
         if (sdr || snr) {
-            sliceTreeDistanceArrays.add(treeSliceDistance);
-            sliceTreeTimeArrays.add(treeSliceTime);
+            batch.sliceTreeDistanceArrays.add(treeSliceDistance);
+            batch.sliceTreeTimeArrays.add(treeSliceTime);
             if (sdr){
-                sliceTreeMaxPathDistanceArrays.add(treeSliceMaxDistance);
-                sliceTreeMaxDistanceFromRootArrays.add(maxDistanceFromRoot);
-                sliceTreeTimeFromRootArrays.add(treeTimeFromRoot);
+                batch.sliceTreeMaxPathDistanceArrays.add(treeSliceMaxDistance);
+                batch.sliceTreeMaxDistanceFromRootArrays.add(maxDistanceFromRoot);
+                batch.sliceTreeTimeFromRootArrays.add(treeTimeFromRoot);
                 for (int i = 0; i < treeSliceDiffusionCoefficientA.length; i++) {
                     //treeSliceDiffusionCoefficientWA[i] = treeSliceDiffusionCoefficientWA[i]/treeSliceTime[i];
                     treeSliceDiffusionCoefficientA[i] = treeSliceDiffusionCoefficientA[i] / treeSliceBranchCount[i];
@@ -2066,8 +2402,8 @@ public class TimeSlicer {
                     treeSliceDiffusionCoefficientV[i] = treeSliceDiffusionCoefficientV[i] / treeSliceBranchCount[i];
                     //System.out.println(treeSliceTime[i]+"\t"+treeLengths.get(i));
                 }
-                sliceTreeDiffusionCoefficientArrays.add(treeSliceDiffusionCoefficientA);
-                sliceTreeDiffusionCoefficientVarianceArrays.add(treeSliceDiffusionCoefficientV);
+                batch.sliceTreeDiffusionCoefficientArrays.add(treeSliceDiffusionCoefficientA);
+                batch.sliceTreeDiffusionCoefficientVarianceArrays.add(treeSliceDiffusionCoefficientV);
             }
         }
 
@@ -2081,8 +2417,6 @@ public class TimeSlicer {
 //            dispersalrates.add(dispersalNativeRate+"\t"+dispersalKilometerRate);
 //        }
 
-        treesAnalyzed++;
-
     }
 
     private static double getNativeDistance(double[] location1, double[] location2) {
@@ -2151,6 +2485,7 @@ public class TimeSlicer {
     private boolean doSlices;
     private int treesRead = 0;
     private int treesAnalyzed = 0;
+    private int threadCount;
     private double mostRecentSamplingDate;
     private ContourMode contourMode;
     private SliceMode sliceMode;
@@ -2189,6 +2524,13 @@ public class TimeSlicer {
 
     private boolean outputRateWarning = true;
 
+    private synchronized void warnRateAttribute() {
+        if (outputRateWarning) {
+            progressStream.println("Warning: using "+rateAttributeString+" as rate attribute during imputation!");
+            outputRateWarning = false;
+        }
+    }
+
 
     private Trait imputeValue(Trait nodeTrait, Trait parentTrait, double time, double nodeHeight, double parentHeight, double[][] precision, double rate, boolean trueNoise) {
         if (!nodeTrait.isNumber()) {
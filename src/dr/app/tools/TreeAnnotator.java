@@ -30,7 +30,7 @@ import dr.app.util.Arguments;
 import dr.evolution.io.Importer;
 import dr.evolution.io.NewickImporter;
 import dr.evolution.io.NexusImporter;
-import dr.evolution.io.TreeImporter;
+import dr.evolution.io.ParallelTreeImporter;
 import dr.evolution.tree.*;
 import dr.evolution.util.TaxonList;
 import dr.geo.contouring.ContourMaker;
@@ -45,6 +45,7 @@ import org.rosuda.JRI.RVector;
 import org.rosuda.JRI.Rengine;
 
 import javax.swing.*;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
@@ -63,7 +64,7 @@ public class TreeAnnotator {
 
     private static boolean forceIntegerToDiscrete = false;
 
-    enum Target {
+    public enum Target {
         MAX_CLADE_CREDIBILITY("Maximum clade credibility tree"),
         //MAX_SUM_CLADE_CREDIBILITY("Maximum sum of clade credibilities"),
         USER_TARGET_TREE("User target tree");
@@ -79,7 +80,7 @@ public class TreeAnnotator {
         }
     }
 
-    enum HeightsSummary {
+    public enum HeightsSummary {
         MEDIAN_HEIGHTS("Median heights"),
         MEAN_HEIGHTS("Mean heights"),
         KEEP_HEIGHTS("Keep target heights"),
@@ -151,8 +152,7 @@ public class TreeAnnotator {
 
         if (targetOption != Target.USER_TARGET_TREE) {
             cladeSystem = new CladeSystem();
-            FileReader fileReader = new FileReader(inputFileName);
-            TreeImporter importer = new NexusImporter(fileReader, true);
+            ParallelTreeImporter importer = new ParallelTreeImporter(new File(inputFileName), true);
             try {
                 totalTrees = 0;
                 while (importer.hasTree()) {
@@ -194,7 +194,7 @@ public class TreeAnnotator {
                 System.err.println("Error Parsing Input Tree: " + e.getMessage());
                 return;
             }
-            fileReader.close();
+            importer.close();
             progressStream.println();
             progressStream.println();
 
@@ -271,8 +271,7 @@ public class TreeAnnotator {
         stepSize = totalTrees / 60;
         if (stepSize < 1) stepSize = 1;
 
-        FileReader fileReader = new FileReader(inputFileName);
-        NexusImporter importer = new NexusImporter(fileReader);
+        ParallelTreeImporter importer = new ParallelTreeImporter(new File(inputFileName));
 
         // this call increments the clade counts and it shouldn't
         // this is remedied with removeClades call after while loop below
@@ -309,7 +308,7 @@ public class TreeAnnotator {
         }
         progressStream.println();
         progressStream.println();
-        fileReader.close();
+        importer.close();
 
         progressStream.println("Annotating target tree...");
 
@@ -372,7 +371,7 @@ public class TreeAnnotator {
 
         int counter = 0;
         int bestTreeNumber = 0;
-        TreeImporter importer = new NexusImporter(new FileReader(inputFileName), true);
+        ParallelTreeImporter importer = new ParallelTreeImporter(new File(inputFileName), true);
         try {
             while (importer.hasTree()) {
                 Tree tree = importer.importNextTree();
@@ -395,6 +394,8 @@ public class TreeAnnotator {
         } catch (Importer.ImportException e) {
             System.err.println("Error Parsing Input Tree: " + e.getMessage());
             return null;
+        } finally {
+            importer.close();
         }
         progressStream.println();
         progressStream.println();
@@ -1276,6 +1277,7 @@ public class TreeAnnotator {
         progressStream.println("  Example: treeannotator test.trees out.txt");
         progressStream.println("  Example: treeannotator -burnin 100 -heights mean test.trees out.txt");
         progressStream.println("  Example: treeannotator -burnin 100 -target map.tree test.trees out.txt");
+        progressStream.println("  Example: treeannotator -burnin 100 -threads 4 test.trees out.txt");
         progressStream.println();
     }
 
@@ -1415,7 +1417,10 @@ public class TreeAnnotator {
                         new Arguments.StringOption("target", "target_file_name", "specifies a user target tree to be annotated"),
                         new Arguments.Option("help", "option to print this message"),
                         new Arguments.Option("forceDiscrete", "forces integer traits to be treated as discrete traits."),
-                        new Arguments.StringOption("hpd2D", "the HPD interval to be used for the bivariate traits", "specifies a (vector of comma seperated) HPD proportion(s)")
+                        new Arguments.StringOption("hpd2D", "the HPD interval to be used for the bivariate traits", "specifies a (vector of comma seperated) HPD proportion(s)"),
+                        new Arguments.IntegerOption("threads", "read the trees in a single pass using this many threads (for very large tree files); " +
+                                "medians and HPD intervals are then taken from an evenly thinned sample of " +
+                                StreamingTreeAnnotator.DEFAULT_SAMPLE_SIZE + " values per clade")
                 });
 
         try {
@@ -1496,7 +1501,18 @@ public class TreeAnnotator {
             }
         }
 
-        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, target, targetTreeFileName, inputFileName, outputFileName);
+        int threadCount = 0;
+        if (arguments.hasOption("threads")) {
+            threadCount = arguments.getIntegerOption("threads");
+        }
+
+        if (threadCount > 0) {
+            new StreamingTreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, forceIntegerToDiscrete,
+                    target, targetTreeFileName, inputFileName, outputFileName, threadCount,
+                    StreamingTreeAnnotator.DEFAULT_SAMPLE_SIZE);
+        } else {
+            new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, target, targetTreeFileName, inputFileName, outputFileName);
+        }
 
         System.exit(0);
     }
@@ -1529,8 +1545,7 @@ public class TreeAnnotator {
         int reportStepSize = totalTrees / 60;
         if (reportStepSize < 1) reportStepSize = 1;
 
-        final FileReader fileReader = new FileReader(inputFileName);
-        final NexusImporter importer = new NexusImporter(fileReader, true);
+        final ParallelTreeImporter importer = new ParallelTreeImporter(new File(inputFileName), true);
 
         // this call increments the clade counts and it shouldn't
         // this is remedied with removeClades call after while loop below
@@ -1590,7 +1605,7 @@ public class TreeAnnotator {
             final NodeRef node = targetTree.getNode(k);
             targetTree.setNodeHeight(node, ths[k]);
         }
-        fileReader.close();
+        importer.close();
 
         progressStream.println();
         progressStream.println();
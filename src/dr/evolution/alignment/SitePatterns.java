@@ -93,6 +93,13 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
 
     protected boolean unique = true; // Compress into weighted list of unique patterns
 
+    /**
+     * hash index over the unique patterns: open addressed table of (pattern index + 1), 0 if empty
+     */
+    private int[] patternIndex;
+    private int patternIndexMask;
+    private int[] patternHashes;
+
     /**
      * Constructor
      */
@@ -258,6 +265,8 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
 
         invariantCount = 0;
 
+        createPatternIndex(siteCount);
+
         if (constantSiteCounts != null) {
             if (constantSiteCounts.length != siteList.getStateCount()) {
                 throw new IllegalArgumentException("Constant site count array length doesn't equal the number of states");
@@ -314,6 +323,7 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
         weights = new double[siteCount];
 
         invariantCount = 0;
+        createPatternIndex(siteCount);
         int[] pattern;
 
         int site = 0;
@@ -355,12 +365,21 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
      */
     private int addPattern(int[] pattern, int weight) {
 
-        for (int i = 0; i < patternCount; i++) {
+        int hash = 0;
+        int slot = -1;
 
-            if (unique && comparePatterns(patterns[i], pattern)) {
+        if (unique) {
+            hash = hashPattern(pattern);
+            slot = hash & patternIndexMask;
 
-                weights[i] += weight;
-                return i;
+            // open addressing with linear probing over the unique patterns seen so far
+            while (patternIndex[slot] != 0) {
+                int i = patternIndex[slot] - 1;
+                if (patternHashes[i] == hash && comparePatterns(patterns[i], pattern)) {
+                    weights[i] += weight;
+                    return i;
+                }
+                slot = (slot + 1) & patternIndexMask;
             }
         }
 
@@ -373,9 +392,49 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
         weights[index] = weight;
         patternCount++;
 
+        if (unique) {
+            patternHashes[index] = hash;
+            patternIndex[slot] = index + 1;
+        }
+
         return index;
     }
 
+    /**
+     * creates an empty hash index able to hold the given number of patterns at a load factor of at most 0.5
+     */
+    private void createPatternIndex(int maxPatternCount) {
+        if (!unique) {
+            patternIndex = null;
+            patternHashes = null;
+            return;
+        }
+        int capacity = 16;
+        while (capacity < 2 * maxPatternCount) {
+            capacity <<= 1;
+        }
+        patternIndex = new int[capacity];
+        patternIndexMask = capacity - 1;
+        patternHashes = new int[maxPatternCount];
+    }
+
+    /**
+     * a polynomial rolling hash over the states of a pattern, finished with a bit mixer
+     * so that the low bits used by the index are well distributed.
+     */
+    private static int hashPattern(int[] pattern) {
+        int hash = 1;
+        for (int state : pattern) {
+            hash = 31 * hash + state;
+        }
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        hash *= 0xc2b2ae35;
+        hash ^= (hash >>> 16);
+        return hash;
+    }
+
     /**
      * @return true if the pattern is invariant
      */
@@ -30,12 +30,18 @@ import dr.evolution.tree.Tree;
 import dr.util.HeapSort;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 /**
  * Extracts the intervals from a tree.
  *
+ * The events (node heights) are kept in sorted order between calculations so when only a few
+ * nodes have moved (see setNodeChanged) they are repositioned locally rather than re-sorting
+ * all the events. If the changed nodes are not known, the heights are compared with the last
+ * ones seen to find them.
+ *
  * @author Andrew Rambaut
  * @author Alexei Drummond
  */
@@ -59,6 +65,7 @@ public class TreeIntervals implements IntervalList {
     public void setTree(Tree tree) {
         this.tree = tree;
         intervalsKnown = false;
+        eventsKnown = false;
     }
 
     /**
@@ -66,6 +73,26 @@ public class TreeIntervals implements IntervalList {
      */
     public void setIntervalsUnknown() {
         intervalsKnown = false;
+        changesKnown = false;
+    }
+
+    /**
+     * Specifies that the height (or the children) of a single node has changed. As long as
+     * all changes are reported this way, only these nodes are looked at when the intervals
+     * are next calculated.
+     *
+     * @param node the node that has changed
+     */
+    public void setNodeChanged(NodeRef node) {
+        intervalsKnown = false;
+        if (eventsKnown && changesKnown) {
+            int nodeNumber = node.getNumber();
+            if (!nodeChanged[nodeNumber]) {
+                nodeChanged[nodeNumber] = true;
+                changedNodes[changedNodeCount] = nodeNumber;
+                changedNodeCount++;
+            }
+        }
     }
 
     /**
@@ -122,6 +149,9 @@ public class TreeIntervals implements IntervalList {
      * @return a list of the noderefs representing the lineages in the ith interval.
      */
     public final List getLineages(int interval) {
+        if (!intervalsKnown || !lineagesKnown) {
+            calculateLineages();
+        }
 
         if (lineages[interval] == null) {
 
@@ -168,6 +198,9 @@ public class TreeIntervals implements IntervalList {
 
     public NodeRef getCoalescentNode(int interval) {
         if (getIntervalType(interval) == IntervalType.COALESCENT) {
+            if (!intervalsKnown || !lineagesKnown) {
+                calculateLineages();
+            }
             if (lineagesRemoved[interval] != null) {
                 if (lineagesRemoved[interval].size() == 1) {
                     return lineagesRemoved[interval].get(0);
@@ -233,21 +266,21 @@ public class TreeIntervals implements IntervalList {
 
         int nodeCount = tree.getNodeCount();
 
-        times = new double[nodeCount];
-        int[] childCounts = new int[nodeCount];
-
-        collectTimes(tree, times, childCounts);
-
-        indices = new int[nodeCount];
-
-        HeapSort.sort(times, indices);
+        if (!eventsKnown || times.length != nodeCount) {
+            sortEvents(nodeCount);
+        } else {
+            if (!changesKnown) {
+                findChangedNodes(nodeCount);
+            }
+            if (!repositionChangedNodes(nodeCount)) {
+                sortEvents(nodeCount);
+            }
+        }
+        clearChangedNodes();
 
         if (intervals == null || intervals.length != nodeCount) {
             intervals = new double[nodeCount];
             lineageCounts = new int[nodeCount];
-            lineagesAdded = new List[nodeCount];
-            lineagesRemoved = new List[nodeCount];
-            lineages = new List[nodeCount];
         }
 
         // start is the time of the first tip
@@ -266,25 +299,15 @@ public class TreeIntervals implements IntervalList {
             do {
                 final int childIndex = indices[nodeNo];
                 final int childCount = childCounts[childIndex];
+                // the lineages of this event are recorded against the current interval
+                eventIntervals[nodeNo] = intervalCount;
                 // dont use nodeNo from here on in do loop
                 nodeNo += 1;
                 if (childCount == 0) {
-                    addLineage(intervalCount, tree.getNode(childIndex));
                     lineagesAdded += 1;
                 } else {
                     lineagesRemoved += (childCount - 1);
 
-                    // record removed lineages
-                    final NodeRef parent = tree.getNode(childIndex);
-                    //assert childCounts[indices[nodeNo]] == tree.getChildCount(parent);
-                    //for (int j = 0; j < lineagesRemoved + 1; j++) {
-                    for (int j = 0; j < childCount; j++) {
-                        NodeRef child = tree.getChild(parent, j);
-                        removeLineage(intervalCount, child);
-                    }
-
-                    // record added lineages
-                    addLineage(intervalCount, parent);
                     // no mix of removed lineages when 0 th
                     if (multifurcationLimit == 0.0) {
                         break;
@@ -322,6 +345,132 @@ public class TreeIntervals implements IntervalList {
         }
 
         intervalsKnown = true;
+        lineagesKnown = false;
+    }
+
+    /**
+     * Collects the times of all the nodes and sorts them from scratch.
+     */
+    private void sortEvents(int nodeCount) {
+        if (times == null || times.length != nodeCount) {
+            times = new double[nodeCount];
+            childCounts = new int[nodeCount];
+            indices = new int[nodeCount];
+            ranks = new int[nodeCount];
+            eventIntervals = new int[nodeCount];
+            changedNodes = new int[nodeCount];
+            nodeChanged = new boolean[nodeCount];
+            changedNodeCount = 0;
+        }
+
+        collectTimes(tree, times, childCounts);
+
+        HeapSort.sort(times, indices);
+
+        for (int i = 0; i < nodeCount; i++) {
+            ranks[indices[i]] = i;
+        }
+
+        eventsKnown = true;
+    }
+
+    /**
+     * Finds the nodes whose height or number of children differ from those last seen.
+     */
+    private void findChangedNodes(int nodeCount) {
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef node = tree.getNode(i);
+            if (!nodeChanged[i] && (tree.getNodeHeight(node) != times[i] || tree.getChildCount(node) != childCounts[i])) {
+                nodeChanged[i] = true;
+                changedNodes[changedNodeCount] = i;
+                changedNodeCount++;
+            }
+        }
+    }
+
+    /**
+     * Moves each changed node to its new place in the sorted events by shifting the events
+     * in between. This gives up (returning false) once more events have been shifted than
+     * a full sort would be expected to cost.
+     */
+    private boolean repositionChangedNodes(int nodeCount) {
+        int budget = MAX_SHIFTS_PER_EVENT * nodeCount;
+
+        for (int k = 0; k < changedNodeCount; k++) {
+            final int nodeNumber = changedNodes[k];
+            final NodeRef node = tree.getNode(nodeNumber);
+            final double time = tree.getNodeHeight(node);
+            childCounts[nodeNumber] = tree.getChildCount(node);
+            times[nodeNumber] = time;
+
+            int rank = ranks[nodeNumber];
+            while (rank > 0 && times[indices[rank - 1]] > time) {
+                indices[rank] = indices[rank - 1];
+                ranks[indices[rank]] = rank;
+                rank--;
+                budget--;
+            }
+            while (rank < nodeCount - 1 && times[indices[rank + 1]] < time) {
+                indices[rank] = indices[rank + 1];
+                ranks[indices[rank]] = rank;
+                rank++;
+                budget--;
+            }
+            indices[rank] = nodeNumber;
+            ranks[nodeNumber] = rank;
+
+            if (budget < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void clearChangedNodes() {
+        for (int k = 0; k < changedNodeCount; k++) {
+            nodeChanged[changedNodes[k]] = false;
+        }
+        changedNodeCount = 0;
+        changesKnown = true;
+    }
+
+    /**
+     * Records the lineages added and removed in each interval. These are only needed by a few
+     * analyses so they are only collected when first asked for.
+     */
+    private void calculateLineages() {
+        if (!intervalsKnown) {
+            calculateIntervals();
+        }
+
+        int nodeCount = times.length;
+        if (lineagesAdded == null || lineagesAdded.length != nodeCount) {
+            lineagesAdded = new List[nodeCount];
+            lineagesRemoved = new List[nodeCount];
+            lineages = new List[nodeCount];
+        } else {
+            Arrays.fill(lineagesAdded, null);
+            Arrays.fill(lineagesRemoved, null);
+            Arrays.fill(lineages, null);
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            final NodeRef node = tree.getNode(indices[i]);
+            final int interval = eventIntervals[i];
+            final int childCount = childCounts[indices[i]];
+
+            if (childCount > 0) {
+                // record removed lineages
+                for (int j = 0; j < childCount; j++) {
+                    removeLineage(interval, tree.getChild(node, j));
+                }
+            }
+            // record added lineages
+            addLineage(interval, node);
+        }
+
+        lineagesKnown = true;
     }
 
     /**
@@ -387,35 +536,34 @@ public class TreeIntervals implements IntervalList {
     public void storeState() {
         if (intervalsKnown) {
 
-            if (storedIntervals == null) {
+            if (storedIntervals == null || storedIntervals.length != intervals.length) {
                 storedIntervals = new double[intervals.length];
-            }
-            if (storedLineageCounts == null) {
                 storedLineageCounts = new int[lineageCounts.length];
             }
-            if (superStore) {
-            if (storedIndices == null) {
-                storedIndices = new int[indices.length];
-            }
-            if (storedTimes == null) {
+            if (storedTimes == null || storedTimes.length != times.length) {
                 storedTimes = new double[times.length];
-            }
+                storedChildCounts = new int[childCounts.length];
+                storedIndices = new int[indices.length];
+                storedRanks = new int[ranks.length];
+                storedEventIntervals = new int[eventIntervals.length];
             }
             System.arraycopy(intervals, 0, storedIntervals, 0, intervals.length);
             System.arraycopy(lineageCounts, 0, storedLineageCounts, 0, lineageCounts.length);
-            if (superStore) {
-            System.arraycopy(indices, 0, storedIndices, 0, indices.length);
             System.arraycopy(times, 0, storedTimes, 0, times.length);
-            }
+            System.arraycopy(childCounts, 0, storedChildCounts, 0, childCounts.length);
+            System.arraycopy(indices, 0, storedIndices, 0, indices.length);
+            System.arraycopy(ranks, 0, storedRanks, 0, ranks.length);
+            System.arraycopy(eventIntervals, 0, storedEventIntervals, 0, eventIntervals.length);
+            storedIntervalCount = intervalCount;
         }
 
         storedIntervalsKnown = intervalsKnown;
     }
 
     public void restoreState() {
-        intervalsKnown = storedIntervalsKnown;
+        clearChangedNodes();
 
-        if (intervalsKnown) {
+        if (storedIntervalsKnown) {
             double[] tmp1 = storedIntervals;
             storedIntervals = intervals;
             intervals = tmp1;
@@ -424,16 +572,36 @@ public class TreeIntervals implements IntervalList {
             storedLineageCounts = lineageCounts;
             lineageCounts = tmp2;
 
-            if (superStore) {
             tmp1 = storedTimes;
             storedTimes = times;
             times = tmp1;
 
+            tmp2 = storedChildCounts;
+            storedChildCounts = childCounts;
+            childCounts = tmp2;
+
             tmp2 = storedIndices;
             storedIndices = indices;
             indices = tmp2;
-            }
+
+            tmp2 = storedRanks;
+            storedRanks = ranks;
+            ranks = tmp2;
+
+            tmp2 = storedEventIntervals;
+            storedEventIntervals = eventIntervals;
+            eventIntervals = tmp2;
+
+            intervalCount = storedIntervalCount;
+            intervalsKnown = true;
+            eventsKnown = true;
+        } else {
+            // the sorted events are still those of some earlier tree so any
+            // nodes that differ will be found and moved when next needed
+            intervalsKnown = false;
+            changesKnown = false;
         }
+        lineagesKnown = false;
     }
 
     public String toString() {
@@ -450,11 +618,34 @@ public class TreeIntervals implements IntervalList {
         return sb.toString();
     }
 
+    /**
+     * The node numbers in order of height and the position (rank) of each node in this order.
+     */
     private int[] indices;
     private int[] storedIndices;
+    private int[] ranks;
+    private int[] storedRanks;
 
+    /**
+     * The height and number of children of each node when the events were last sorted.
+     */
     private double[] times;
     private double[] storedTimes;
+    private int[] childCounts;
+    private int[] storedChildCounts;
+
+    /**
+     * The interval to which the lineages of each (sorted) event belong.
+     */
+    private int[] eventIntervals;
+    private int[] storedEventIntervals;
+
+    /**
+     * The nodes that have changed since the intervals were last calculated.
+     */
+    private int[] changedNodes;
+    private boolean[] nodeChanged;
+    private int changedNodeCount = 0;
 
     /**
      * The tree.
@@ -481,14 +672,30 @@ public class TreeIntervals implements IntervalList {
     private List[] lineages;
 
     private int intervalCount = 0;
+    private int storedIntervalCount = 0;
 
     /**
      * are the intervals known?
      */
     private boolean intervalsKnown = false;
     private boolean storedIntervalsKnown;
+
+    /**
+     * are the sorted events (times, indices and ranks) those of a recent state of the tree?
+     */
+    private boolean eventsKnown = false;
+
+    /**
+     * have all the nodes that changed since then been reported through setNodeChanged?
+     */
+    private boolean changesKnown = false;
+
+    private boolean lineagesKnown = false;
 	
 	private double multifurcationLimit = -1.0;
 
-    private static final boolean superStore = true;
+    /**
+     * The number of shifts per event that the local repositioning may use before a full sort is done instead.
+     */
+    private static final int MAX_SHIFTS_PER_EVENT = 4;
 }
\ No newline at end of file
@@ -79,6 +79,7 @@ public class DistanceMatrix extends Matrix.AbstractMatrix implements TaxonList {
         dimension = patterns.getTaxonCount();
         dataType = patterns.getDataType();
         distancesKnown = false;
+        knownRows.clear();
     }
 
     /**
@@ -107,6 +108,37 @@ public class DistanceMatrix extends Matrix.AbstractMatrix implements TaxonList {
         return distances[row][column];
     }
 
+    /**
+     * Returns the distances from one taxon to all the others. If the full matrix has not been
+     * calculated only this row is, so that placing a few new taxa against a large alignment does
+     * not cost the whole matrix. Rows are cached and must not be modified.
+     */
+    public double[] getRow(int row) {
+
+        if (distancesKnown || patterns == null) {
+            // the distances have been calculated or set (or aren't calculated from patterns)
+            double[] rowDistances = new double[dimension];
+            for (int j = 0; j < dimension; j++) {
+                rowDistances[j] = getElement(row, j);
+            }
+            return rowDistances;
+        }
+
+        double[] rowDistances = knownRows.get(row);
+        if (rowDistances == null) {
+            rowDistances = new double[dimension];
+            for (int j = 0; j < dimension; j++) {
+                if (j != row) {
+                    double[] otherRow = knownRows.get(j);
+                    rowDistances[j] = (otherRow != null ? otherRow[row] : calculatePairwiseDistance(row, j));
+                }
+            }
+            knownRows.put(row, rowDistances);
+        }
+
+        return rowDistances;
+    }
+
     /**
      * set an element - this overwrites any existing elements
      */
@@ -306,6 +338,7 @@ public class DistanceMatrix extends Matrix.AbstractMatrix implements TaxonList {
     int dimension = 0;
     boolean distancesKnown;
     private double[][] distances = null;
+    private final Map<Integer, double[]> knownRows = new HashMap<Integer, double[]>();
     protected PatternList patterns = null;
     private TaxonList taxa = null;
 }
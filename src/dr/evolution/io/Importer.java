@@ -464,7 +464,7 @@ public abstract class Importer {
 
 		nextCharacter();
 
-		StringBuffer token = new StringBuffer();
+		StringBuilder token = new StringBuilder();
 
 		while (!done) {
 			ch = read();
@@ -373,6 +373,33 @@ public class NexusImporter extends Importer implements SequenceImporter, TreeImp
         return false;
     }
 
+    /**
+     * Reads up to the first command of the TREES block and returns its translation list. This and
+     * readTreeCommand allow the header and the trees of a file to be read by separate importers
+     * (see ParallelTreeImporter).
+     *
+     * @param taxonList the taxa to translate to or null to use those of a TAXA block
+     * @return the translation list or null if there is no TREES block
+     */
+    HashMap<String, Taxon> readTreesHeader(TaxonList taxonList) throws IOException, ImportException {
+        TaxonList[] aTaxonList = new TaxonList[1];
+        aTaxonList[0] = taxonList;
+        if (!startReadingTrees(aTaxonList)) {
+            return null;
+        }
+        return readTranslationList(aTaxonList[0], lastToken);
+    }
+
+    /**
+     * Reads a single TREE command using the translation list of the TREES block it is in.
+     *
+     * @return the tree or null if the command is the end of the block
+     */
+    Tree readTreeCommand(HashMap<String, Taxon> translationList) throws IOException, ImportException {
+        lastToken[0] = readToken(";");
+        return readNextTree(translationList, lastToken, null);
+    }
+
     /**
      * Finds the end of the current block.
      */
@@ -0,0 +1,506 @@
+/*
+ * ParallelTreeImporter.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.io;
+
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.TaxonList;
+import dr.util.BoundedOrderedExecutor;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Imports the trees of a NEXUS or Newick file using a pool of threads. The file is memory
+ * mapped and split into its TREE commands (or Newick trees) by scanning the bytes for the
+ * terminating semicolons (outside comments and quotes), and blocks of these are parsed
+ * concurrently, straight from the mapped file, by NexusImporter (or NewickImporter). The trees
+ * are returned in the order they are in the file and are the same as those NexusImporter would
+ * read, but each Newick tree gets its own taxa rather than those of the tree before.
+ * <p/>
+ * Only a limited number of blocks are parsed ahead of the tree being returned so the memory
+ * used does not depend on the size of the file. The whole file stays mapped (in segments of up to
+ * 1Gb) for as long as the importer is open, so that trees can be read again with importTreeAt,
+ * and the mappings are only released when close() is called and they have been garbage collected.
+ */
+public class ParallelTreeImporter implements TreeImporter {
+
+    /**
+     * System property giving the number of threads used to parse trees (default is the number of processors)
+     */
+    public static final String THREADS = "tree.import.threads";
+
+    private static final int TREES_PER_BLOCK = 32;
+    private static final int SEGMENT_BITS = 30; // map the file in 1Gb segments
+    private static final byte[] END_COMMAND = "\nEND;\n".getBytes();
+
+    public ParallelTreeImporter(File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * @param ignoreMetaComments if true, node attributes in comments are not read (see NexusImporter)
+     */
+    public ParallelTreeImporter(File file, boolean ignoreMetaComments) throws IOException {
+        this(file, ignoreMetaComments, Integer.getInteger(THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param ignoreMetaComments if true, node attributes in comments are not read (see NexusImporter)
+     * @param threadCount        the number of threads used to parse the trees
+     */
+    public ParallelTreeImporter(File file, boolean ignoreMetaComments, int threadCount) throws IOException {
+        this.ignoreMetaComments = ignoreMetaComments;
+        this.threadCount = threadCount;
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            length = channel.size();
+            int segmentCount = (int) ((length >> SEGMENT_BITS) + 1);
+            segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long offset = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                        Math.min(1L << SEGMENT_BITS, length - offset));
+            }
+        } finally {
+            // the mapping remains valid after the channel is closed
+            input.close();
+        }
+
+        position = skipSpaceAndComments(0);
+        isNexus = startsWith(position, "#NEXUS");
+    }
+
+    /**
+     * return whether another tree is available.
+     */
+    public boolean hasTree() throws IOException, Importer.ImportException {
+        checkOpen();
+        if (translationList == null && !startReadingTrees(null)) {
+            return false;
+        }
+        while (nextTree >= currentBlock.trees.size()) {
+            if (!readBlock()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * import the next tree.
+     * return the tree or null if no more trees are available
+     */
+    public Tree importNextTree() throws IOException, Importer.ImportException {
+        if (!hasTree()) {
+            return null;
+        }
+        Tree tree = currentBlock.trees.get(nextTree);
+        currentBlock.trees.set(nextTree, null);
+        treePosition = currentBlock.positions[nextTree];
+        nextTree++;
+        return tree;
+    }
+
+    /**
+     * @return the position in the file of the tree last returned by importNextTree, so it can be
+     *         read again with importTreeAt
+     */
+    public long getTreePosition() {
+        return treePosition;
+    }
+
+    /**
+     * Reads the tree at the given position again (on the calling thread) without disturbing the
+     * trees being read in order.
+     *
+     * @param position a position given by getTreePosition
+     * @return the tree
+     */
+    public Tree importTreeAt(long position) throws IOException, Importer.ImportException {
+        checkOpen();
+        if (translationList == null && !startReadingTrees(null)) {
+            throw new NexusImporter.MissingBlockException("TREES block is missing");
+        }
+        TreeBlock block = parseTrees(new long[]{position}, new long[]{findCommandEnd(position)}, 1);
+        if (block.trees.size() == 0) {
+            throw new Importer.ImportException("Unable to read the tree at position " + position);
+        }
+        return block.trees.get(0);
+    }
+
+    /**
+     * import a single tree.
+     */
+    public Tree importTree(TaxonList taxonList) throws IOException, Importer.ImportException {
+        if (translationList == null && !startReadingTrees(taxonList)) {
+            throw new NexusImporter.MissingBlockException("TREES block is missing");
+        }
+        return importNextTree();
+    }
+
+    /**
+     * import an array of all trees.
+     */
+    public Tree[] importTrees(TaxonList taxonList) throws IOException, Importer.ImportException {
+        if (translationList == null && !startReadingTrees(taxonList)) {
+            throw new NexusImporter.MissingBlockException("TREES block is missing");
+        }
+        List<Tree> trees = new ArrayList<Tree>();
+        while (hasTree()) {
+            trees.add(importNextTree());
+        }
+        if (isNexus && trees.size() == 0) {
+            throw new Importer.BadFormatException("No trees defined in TREES block");
+        }
+        return trees.toArray(new Tree[trees.size()]);
+    }
+
+    /**
+     * Stops any parsing that is under way and drops the mapped segments of the file so they can be
+     * unmapped. The importer cannot be used after it is closed.
+     */
+    public void close() {
+        stopParsing();
+        segments = null;
+    }
+
+    private void checkOpen() throws IOException {
+        if (segments == null) {
+            throw new IOException("The tree importer has been closed");
+        }
+    }
+
+    /**
+     * Stops the parsing threads. This is done automatically once all the trees have been read.
+     */
+    private void stopParsing() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Finds the first TREE command of the TREES block and reads the translation list (using the
+     * given taxa, if not null, or otherwise those of a TAXA block, as NexusImporter does).
+     *
+     * @return false if there is no TREES block
+     */
+    private boolean startReadingTrees(TaxonList taxonList) throws IOException, Importer.ImportException {
+        if (!isNexus) {
+            translationList = new HashMap<String, Taxon>();
+            return true;
+        }
+
+        boolean inTreesBlock = false;
+        long start = position;
+        while (start < length) {
+            long end = findCommandEnd(start);
+            if (inTreesBlock && (isCommand(start, "TREE") || isCommand(start, "UTREE"))) {
+                break;
+            }
+            if (isBeginTrees(start, end)) {
+                inTreesBlock = true;
+            }
+            start = skipSpaceAndComments(end);
+        }
+        if (!inTreesBlock) {
+            return false;
+        }
+
+        // the header, with an end to the block so it stops before the first tree
+        NexusImporter importer = createNexusImporter(0, start);
+        translationList = importer.readTreesHeader(taxonList);
+        position = start;
+        return translationList != null;
+    }
+
+    /**
+     * Gets the next block of parsed trees, first submitting as many more blocks as will be
+     * parsed ahead.
+     *
+     * @return false if there are no more trees
+     */
+    private boolean readBlock() throws IOException, Importer.ImportException {
+        if (executor == null && position < length) {
+            executor = new BoundedOrderedExecutor<TreeBlock>("tree-parser", threadCount);
+        }
+
+        while (position < length && !executor.isFull()) {
+            final long[] starts = new long[TREES_PER_BLOCK];
+            final long[] ends = new long[TREES_PER_BLOCK];
+            int count = 0;
+            while (count < TREES_PER_BLOCK && position < length) {
+                if (isNexus && (isCommand(position, "END") || isCommand(position, "ENDBLOCK"))) {
+                    position = length;
+                    break;
+                }
+                long end = findCommandEnd(position);
+                starts[count] = position;
+                ends[count] = end;
+                count++;
+                position = skipSpaceAndComments(end);
+            }
+            if (count == 0) {
+                break;
+            }
+
+            final int treeCount = count;
+            executor.submit(new Callable<TreeBlock>() {
+                public TreeBlock call() throws IOException, Importer.ImportException {
+                    return parseTrees(starts, ends, treeCount);
+                }
+            });
+        }
+
+        if (executor == null || executor.isEmpty()) {
+            stopParsing();
+            return false;
+        }
+
+        try {
+            currentBlock = executor.take(Importer.ImportException.class, IOException.class);
+            nextTree = 0;
+        } catch (IOException ioe) {
+            stopParsing();
+            throw ioe;
+        } catch (Importer.ImportException ie) {
+            stopParsing();
+            throw ie;
+        }
+        return true;
+    }
+
+    private TreeBlock parseTrees(long[] starts, long[] ends, int count) throws IOException, Importer.ImportException {
+        TreeBlock block = new TreeBlock(count);
+        for (int i = 0; i < count; i++) {
+            Tree tree;
+            if (isNexus) {
+                tree = createNexusImporter(starts[i], ends[i]).readTreeCommand(translationList);
+            } else {
+                Reader reader = new InputStreamReader(new SegmentInputStream(starts[i], ends[i]), "UTF-8");
+                tree = new NewickImporter(reader).importNextTree();
+            }
+            if (tree != null) {
+                block.positions[block.trees.size()] = starts[i];
+                block.trees.add(tree);
+            }
+        }
+        return block;
+    }
+
+    /**
+     * @return a NexusImporter reading the given part of the file followed by an END command
+     */
+    private NexusImporter createNexusImporter(long start, long end) throws IOException {
+        InputStream stream = new SequenceInputStream(new SegmentInputStream(start, end),
+                new ByteArrayInputStream(END_COMMAND));
+        Reader reader = new InputStreamReader(stream, "UTF-8");
+        return (ignoreMetaComments ? new NexusImporter(reader, true) : new NexusImporter(reader));
+    }
+
+    private byte getByte(long index) {
+        return segments[(int) (index >> SEGMENT_BITS)].get((int) (index & ((1L << SEGMENT_BITS) - 1)));
+    }
+
+    private boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    /**
+     * @return the index of the first character at or after index which is not space or in a comment
+     */
+    private long skipSpaceAndComments(long index) {
+        while (index < length) {
+            byte b = getByte(index);
+            if (isSpace(b)) {
+                index++;
+            } else if (b == '[' && isNexus) {
+                index = skipComment(index);
+            } else {
+                break;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the index after the end of the (possibly nested) comment starting at index
+     */
+    private long skipComment(long index) {
+        int depth = 0;
+        do {
+            byte b = getByte(index);
+            if (b == '[') {
+                depth++;
+            } else if (b == ']') {
+                depth--;
+            }
+            index++;
+        } while (depth > 0 && index < length);
+        return index;
+    }
+
+    /**
+     * @return the index after the semicolon ending the command (or tree) starting at index,
+     * ignoring any in comments or quoted labels, or the length of the file if there is none
+     */
+    private long findCommandEnd(long index) {
+        while (index < length) {
+            byte b = getByte(index);
+            if (b == ';') {
+                return index + 1;
+            } else if (b == '[') {
+                index = skipComment(index);
+            } else if (b == '\'' || b == '"') {
+                // a repeated quote inside the label is read as the end and start of two quoted parts
+                index++;
+                while (index < length && getByte(index) != b) {
+                    index++;
+                }
+                index++;
+            } else {
+                index++;
+            }
+        }
+        return length;
+    }
+
+    private boolean startsWith(long index, String word) {
+        if (index + word.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (Character.toUpperCase((char) getByte(index + i)) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the command at index starts with the given (upper case) word followed by a delimiter
+     */
+    private boolean isCommand(long index, String word) {
+        if (!startsWith(index, word)) {
+            return false;
+        }
+        long next = index + word.length();
+        if (next >= length) {
+            return true;
+        }
+        byte b = getByte(next);
+        return isSpace(b) || b == ';' || b == '[' || b == '*';
+    }
+
+    /**
+     * @return whether the command between start and end is BEGIN TREES
+     */
+    private boolean isBeginTrees(long start, long end) {
+        long index = start;
+        // the first command of the file also has the #NEXUS line
+        if (startsWith(index, "#NEXUS")) {
+            index = skipSpaceAndComments(index + 6);
+        }
+        if (!isCommand(index, "BEGIN")) {
+            return false;
+        }
+        index = skipSpaceAndComments(index + 5);
+        return index < end && isCommand(index, "TREES");
+    }
+
+    /**
+     * Reads a range of the mapped file.
+     */
+    private class SegmentInputStream extends InputStream {
+
+        SegmentInputStream(long start, long end) {
+            this.index = start;
+            this.end = end;
+        }
+
+        public int read() {
+            if (index >= end) {
+                return -1;
+            }
+            return getByte(index++) & 0xFF;
+        }
+
+        public int read(byte[] bytes, int offset, int count) {
+            if (index >= end) {
+                return -1;
+            }
+            int segment = (int) (index >> SEGMENT_BITS);
+            int segmentOffset = (int) (index & ((1L << SEGMENT_BITS) - 1));
+            MappedByteBuffer buffer = segments[segment];
+            count = (int) Math.min(Math.min(count, end - index), buffer.limit() - segmentOffset);
+
+            // each thread reads through its own view of the buffer
+            java.nio.ByteBuffer view = buffer.duplicate();
+            view.position(segmentOffset);
+            view.get(bytes, offset, count);
+            index += count;
+            return count;
+        }
+
+        private long index;
+        private final long end;
+    }
+
+    /**
+     * A block of parsed trees and the positions of their commands in the file.
+     */
+    private static final class TreeBlock {
+        TreeBlock(int capacity) {
+            trees = new ArrayList<Tree>(capacity);
+            positions = new long[capacity];
+        }
+
+        final List<Tree> trees;
+        final long[] positions;
+    }
+
+    private final boolean ignoreMetaComments;
+    // the mapped file, dropped on close
+    private MappedByteBuffer[] segments;
+    private final long length;
+    private final boolean isNexus;
+    private final int threadCount;
+
+    private long position;
+    private HashMap<String, Taxon> translationList = null;
+
+    private BoundedOrderedExecutor<TreeBlock> executor = null;
+    private TreeBlock currentBlock = new TreeBlock(0);
+    private int nextTree = 0;
+    private long treePosition = -1;
+}
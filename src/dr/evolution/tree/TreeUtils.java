@@ -879,7 +879,7 @@ public class TreeUtils {
         }
     }
 
-    private static void writeTreeTraits(StringBuffer buffer, Tree tree, NodeRef node, TreeTraitProvider[] treeTraitProviders, TreeTrait.Intent intent) {
+    public static void writeTreeTraits(StringBuffer buffer, Tree tree, NodeRef node, TreeTraitProvider[] treeTraitProviders, TreeTrait.Intent intent) {
         if (treeTraitProviders != null) {
             boolean hasAttribute = false;
             for (TreeTraitProvider ttp : treeTraitProviders) {
@@ -79,46 +79,35 @@ public class EpochBranchModel extends AbstractModel implements BranchModel, Cita
         int nModels = substitutionModels.size();
         int epochCount = nModels - 1;
 
-        double[] transitionTimes = epochTimes.getParameterValues();
-
         double parentHeight = tree.getNodeHeight(tree.getParent(node));
         double nodeHeight = tree.getNodeHeight(node);
 
-        List<Double> weightList = new ArrayList<Double>();
-        List<Integer> orderList = new ArrayList<Integer>();
-
         // find the epoch that the node height is in...
-        int epoch = 0;
-        while (epoch < epochCount && nodeHeight >= transitionTimes[epoch]) {
-            epoch ++;
+        int firstEpoch = 0;
+        while (firstEpoch < epochCount && nodeHeight >= epochTimes.getParameterValue(firstEpoch)) {
+            firstEpoch ++;
         }
 
-        double currentHeight = nodeHeight;
-
         // find the epoch that the parent height is in...
-        while (epoch < epochCount && parentHeight >= transitionTimes[epoch]) {
-            weightList.add( transitionTimes[epoch] - currentHeight );
-            orderList.add(epoch);
-
-            currentHeight = transitionTimes[epoch];
-
-            epoch ++;
+        int lastEpoch = firstEpoch;
+        while (lastEpoch < epochCount && parentHeight >= epochTimes.getParameterValue(lastEpoch)) {
+            lastEpoch ++;
         }
 
-        weightList.add( parentHeight - currentHeight );
-        orderList.add(epoch);
+        final int[] order = new int[lastEpoch - firstEpoch + 1];
+        final double[] weights = new double[order.length];
 
+        double currentHeight = nodeHeight;
+        for (int i = 0; i < order.length - 1; i++) {
+            double transitionTime = epochTimes.getParameterValue(firstEpoch + i);
+            weights[i] = transitionTime - currentHeight;
+            order[i] = firstEpoch + i;
 
-        if (orderList.size() == 0) {
-            throw new RuntimeException("EpochBranchModel failed to give a valid mapping");
+            currentHeight = transitionTime;
         }
 
-        final int[] order = new int[orderList.size()];
-        final double[] weights = new double[weightList.size()];
-        for (int i = 0; i < orderList.size(); i++) {
-            order[i] = orderList.get(i);
-            weights[i] = weightList.get(i);
-        }
+        weights[order.length - 1] = parentHeight - currentHeight;
+        order[order.length - 1] = lastEpoch;
 
         return new Mapping() {
             @Override
@@ -31,6 +31,7 @@ import dr.evolution.tree.TreeTrait;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodel.tree.TreeParameterModel;
 import dr.evomodelxml.branchratemodel.DiscretizedBranchRatesParser;
+import dr.inference.distribution.CachedQuantiles;
 import dr.inference.distribution.ParametricDistributionModel;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
@@ -63,6 +64,9 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel implements C
 
     private final ParametricDistributionModel distributionModel;
 
+    // the quantiles of the distribution at the middle of each category
+    private final CachedQuantiles quantiles;
+
     // The rate categories of each branch
     final TreeParameterModel rateCategories;
 
@@ -119,6 +123,14 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel implements C
 
         rates = new double[2][categoryCount];
 
+        double[] probabilities = new double[categoryCount];
+        double z = step / 2.0;
+        for (int i = 0; i < categoryCount; i++) {
+            probabilities[i] = z;
+            z += step;
+        }
+        quantiles = new CachedQuantiles(model, probabilities);
+
         this.normalize = normalize;
 
         this.treeModel = tree;
@@ -269,6 +281,7 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel implements C
    }
 
     protected void storeState() {
+        quantiles.storeState();
         if (cacheRates) {
             storedRateArrayIndex = currentRateArrayIndex;
             storedScaleFactor = scaleFactor;
@@ -276,6 +289,7 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel implements C
     }
 
     protected void restoreState() {
+        quantiles.restoreState();
         if (cacheRates) {
             currentRateArrayIndex = storedRateArrayIndex;
             scaleFactor = storedScaleFactor;
@@ -325,12 +339,7 @@ public class DiscretizedBranchRates extends AbstractBranchRateModel implements C
             currentRateArrayIndex = 1 - currentRateArrayIndex;
         }
 
-        double z = step / 2.0;
-        for (int i = 0; i < categoryCount; i++) {
-            rates[currentRateArrayIndex][i] = distributionModel.quantile(z);
-            //System.out.print(rates[i]+"\t");
-            z += step;
-        }
+        quantiles.getQuantiles(rates[currentRateArrayIndex]);
 
         if (normalize) computeFactor();
 
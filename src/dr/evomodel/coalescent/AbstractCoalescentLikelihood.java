@@ -28,6 +28,7 @@ package dr.evomodel.coalescent;
 import dr.evolution.coalescent.IntervalList;
 import dr.evolution.coalescent.IntervalType;
 import dr.evolution.coalescent.Intervals;
+import dr.evolution.coalescent.TreeIntervals;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeUtils;
@@ -81,8 +82,13 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
             addModel((TreeModel) tree);
         }
 
-        intervals = new Intervals(tree.getNodeCount());
-        storedIntervals = new Intervals(tree.getNodeCount());
+        if (includedLeafSet == null && excludedLeafSets.length == 0) {
+            // the whole tree is used so the intervals can be updated as nodes move
+            treeIntervals = new TreeIntervals(tree);
+        } else {
+            intervals = new Intervals(tree.getNodeCount());
+            storedIntervals = new Intervals(tree.getNodeCount());
+        }
         eventsKnown = false;
 
         this.coalescentEventStatisticValues = new double[getNumberOfCoalescentEvents()];
@@ -99,6 +105,9 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
     protected final void handleModelChangedEvent(Model model, Object object, int index) {
         if (model == tree) {
             // treeModel has changed so recalculate the intervals
+            if (treeIntervals != null) {
+                OldAbstractCoalescentLikelihood.updateTreeIntervals(treeIntervals, object);
+            }
             eventsKnown = false;
         }
 
@@ -120,8 +129,12 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
      * Stores the precalculated state: in this case the intervals
      */
     protected final void storeState() {
-        // copy the intervals into the storedIntervals
-        storedIntervals.copyIntervals(intervals);
+        if (treeIntervals != null) {
+            treeIntervals.storeState();
+        } else {
+            // copy the intervals into the storedIntervals
+            storedIntervals.copyIntervals(intervals);
+        }
 
         storedEventsKnown = eventsKnown;
         storedLikelihoodKnown = likelihoodKnown;
@@ -132,10 +145,14 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
      * Restores the precalculated state: that is the intervals of the tree.
      */
     protected final void restoreState() {
-        // swap the intervals back
-        Intervals tmp = storedIntervals;
-        storedIntervals = intervals;
-        intervals = tmp;
+        if (treeIntervals != null) {
+            treeIntervals.restoreState();
+        } else {
+            // swap the intervals back
+            Intervals tmp = storedIntervals;
+            storedIntervals = intervals;
+            intervals = tmp;
+        }
 
         eventsKnown = storedEventsKnown;
         likelihoodKnown = storedLikelihoodKnown;
@@ -169,6 +186,9 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
     public final void makeDirty() {
         likelihoodKnown = false;
         eventsKnown = false;
+        if (treeIntervals != null) {
+            treeIntervals.setIntervalsUnknown();
+        }
     }
 
     /**
@@ -208,6 +228,9 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
     }
 
     public IntervalList getIntervals() {
+        if (treeIntervals != null) {
+            return treeIntervals;
+        }
         return intervals;
     }
 
@@ -216,6 +239,15 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
      */
     protected final void setupIntervals() {
 
+        if (treeIntervals != null) {
+            // only the nodes that have moved are repositioned
+            treeIntervals.getIntervalCount();
+
+            eventsKnown = true;
+            likelihoodKnown = false;
+            return;
+        }
+
         intervals.resetEvents();
         collectTimes(tree, getIncludedMRCA(tree), getExcludedMRCAs(tree), intervals);
         // force a calculation of the intervals...
@@ -260,14 +292,14 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
         if (!eventsKnown) {
             setupIntervals();
         }
-        return intervals.getInterval(i);
+        return getIntervals().getInterval(i);
     }
 
     public int getCoalescentIntervalDimension() {
         if (!eventsKnown) {
             setupIntervals();
         }
-        return intervals.getIntervalCount();
+        return getIntervals().getIntervalCount();
     }
 
     public int getNumberOfCoalescentEvents() {
@@ -278,14 +310,14 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
         if (!eventsKnown) {
             setupIntervals();
         }
-        return intervals.getLineageCount(i);
+        return getIntervals().getLineageCount(i);
     }
 
     public IntervalType getCoalescentIntervalType(int i) {
         if (!eventsKnown) {
             setupIntervals();
         }
-        return intervals.getIntervalType(i);
+        return getIntervals().getIntervalType(i);
     }
 
     public double getCoalescentEventsStatisticValue(int i) {
@@ -343,6 +375,12 @@ public abstract class AbstractCoalescentLikelihood extends AbstractModelLikeliho
     private final Set<String> includedLeafSet;
     private final Set[] excludedLeafSets;
 
+    /**
+     * The intervals of the whole tree, kept up to date as nodes move. This is null if only
+     * part of the tree is included in which case the events are collected into intervals.
+     */
+    private TreeIntervals treeIntervals = null;
+
     /**
      * The intervals.
      */
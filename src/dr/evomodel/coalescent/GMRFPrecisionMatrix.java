@@ -0,0 +1,298 @@
+/*
+ * GMRFPrecisionMatrix.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.coalescent;
+
+import no.uib.cipr.matrix.SymmTridiagMatrix;
+
+/**
+ * The symmetric tridiagonal precision matrix, Q, of a first order GMRF held in primitive arrays.
+ * Q + D, for a diagonal D, can be Cholesky factorized (Q + D = U'U) into preallocated storage and
+ * used for solves, sampling and the log determinant, so the block update operators and the field
+ * likelihoods do not create any matrix or vector objects on each proposal or Newton-Raphson step.
+ */
+public class GMRFPrecisionMatrix {
+
+    public GMRFPrecisionMatrix(int dimension) {
+        this.dimension = dimension;
+
+        diagonal = new double[dimension];
+        offDiagonal = new double[Math.max(dimension - 1, 0)];
+
+        factoredDiagonal = new double[dimension];
+        factorDiagonal = new double[dimension];
+        factorOffDiagonal = new double[Math.max(dimension - 1, 0)];
+
+        gradient = new double[dimension];
+        step = new double[dimension];
+        offsetProduct = new double[dimension];
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Sets Q to the weight matrix scaled by precision and mixed with the identity by lambda,
+     * as GMRFSkyrideLikelihood.getScaledWeightMatrix(precision, lambda) does.
+     */
+    public void setScaledWeights(SymmTridiagMatrix weights, double precision, double lambda) {
+        double[] weightDiagonal = weights.getDiagonal();
+        double[] weightOffDiagonal = weights.getOffDiagonal();
+
+        if (lambda == 1) {
+            for (int i = 0; i < dimension - 1; i++) {
+                diagonal[i] = weightDiagonal[i] * precision;
+                offDiagonal[i] = weightOffDiagonal[i] * precision;
+            }
+            diagonal[dimension - 1] = weightDiagonal[dimension - 1] * precision;
+        } else {
+            for (int i = 0; i < dimension - 1; i++) {
+                diagonal[i] = precision * (1 - lambda + lambda * weightDiagonal[i]);
+                offDiagonal[i] = weightOffDiagonal[i] * precision * lambda;
+            }
+            diagonal[dimension - 1] = precision * (1 - lambda + lambda * weightDiagonal[dimension - 1]);
+        }
+
+        factored = false;
+    }
+
+    /**
+     * y = Q x
+     */
+    public void multiply(double[] x, double[] y) {
+        if (dimension == 1) {
+            y[0] = diagonal[0] * x[0];
+            return;
+        }
+
+        y[0] = diagonal[0] * x[0] + offDiagonal[0] * x[1];
+        for (int i = 1; i < dimension - 1; i++) {
+            y[i] = offDiagonal[i - 1] * x[i - 1] + diagonal[i] * x[i] + offDiagonal[i] * x[i + 1];
+        }
+        y[dimension - 1] = offDiagonal[dimension - 2] * x[dimension - 2] + diagonal[dimension - 1] * x[dimension - 1];
+    }
+
+    /**
+     * @return x'Qx
+     */
+    public double getQuadraticForm(double[] x) {
+        double sum = 0.0;
+        for (int i = 0; i < dimension - 1; i++) {
+            sum += x[i] * (diagonal[i] * x[i] + 2.0 * offDiagonal[i] * x[i + 1]);
+        }
+        sum += x[dimension - 1] * diagonal[dimension - 1] * x[dimension - 1];
+        return sum;
+    }
+
+    /**
+     * Factorizes Q + diag(extraDiagonal) = U'U in place, leaving Q unchanged.
+     *
+     * @return false if Q + diag(extraDiagonal) is not positive definite
+     */
+    public boolean factor(double[] extraDiagonal) {
+        for (int i = 0; i < dimension; i++) {
+            factoredDiagonal[i] = diagonal[i] + extraDiagonal[i];
+        }
+
+        factored = false;
+        logDeterminantKnown = false;
+
+        double pivot = factoredDiagonal[0];
+        for (int i = 0; i < dimension; i++) {
+            if (!(pivot > 0.0)) {
+                return false;
+            }
+            double u = Math.sqrt(pivot);
+            factorDiagonal[i] = u;
+            if (i < dimension - 1) {
+                double v = offDiagonal[i] * (1.0 / u);
+                factorOffDiagonal[i] = v;
+                pivot = factoredDiagonal[i + 1] - v * v;
+            }
+        }
+
+        factored = true;
+        return true;
+    }
+
+    /**
+     * Solves (Q + D) x = b using the current factorization. b and x may be the same array.
+     */
+    public void solve(double[] b, double[] x) {
+        checkFactored();
+
+        // U'w = b
+        x[0] = b[0] / factorDiagonal[0];
+        for (int i = 1; i < dimension; i++) {
+            x[i] = (b[i] - factorOffDiagonal[i - 1] * x[i - 1]) / factorDiagonal[i];
+        }
+
+        // U x = w
+        backSolve(x, x);
+    }
+
+    /**
+     * Solves U x = b using the current factorization. If b is a standard normal draw then x is a
+     * draw from a normal with precision Q + D. b and x may be the same array.
+     */
+    public void backSolve(double[] b, double[] x) {
+        checkFactored();
+
+        x[dimension - 1] = b[dimension - 1] / factorDiagonal[dimension - 1];
+        for (int i = dimension - 2; i >= 0; i--) {
+            x[i] = (b[i] - factorOffDiagonal[i] * x[i + 1]) / factorDiagonal[i];
+        }
+    }
+
+    /**
+     * @return x'(Q + D)x for the currently factorized Q + D
+     */
+    public double getFactoredQuadraticForm(double[] x) {
+        checkFactored();
+
+        double sum = 0.0;
+        for (int i = 0; i < dimension - 1; i++) {
+            sum += x[i] * (factoredDiagonal[i] * x[i] + 2.0 * offDiagonal[i] * x[i + 1]);
+        }
+        sum += x[dimension - 1] * factoredDiagonal[dimension - 1] * x[dimension - 1];
+        return sum;
+    }
+
+    /**
+     * The log of the generalized determinant of U (half that of Q + D), ignoring zero pivots.
+     * This is cached until the next factorization.
+     */
+    public double getLogGeneralizedDeterminant() {
+        checkFactored();
+
+        if (!logDeterminantKnown) {
+            logDeterminant = 0.0;
+            for (int i = 0; i < dimension; i++) {
+                if (factorDiagonal[i] > 0.0000001) {
+                    logDeterminant += Math.log(factorDiagonal[i]);
+                }
+            }
+            logDeterminantKnown = true;
+        }
+        return logDeterminant;
+    }
+
+    /**
+     * Finds the mode of the full conditional of the log population sizes by Newton-Raphson. The
+     * gradient of the log density is
+     * <p/>
+     * -Q (gamma - offset) - data1 + data2 * exp(-gamma)
+     * <p/>
+     * where offset is the covariate effect (or null) and data1 and data2 are the number of
+     * coalescent events and the sufficient statistics of each grid cell, summed over loci. On
+     * return the factorization is that of Q + diag(data2 * exp(-mode)).
+     *
+     * @return the number of iterations taken, which will exceed maxIterations if the algorithm
+     * did not converge, or -1 if the Jacobian was not positive definite
+     */
+    public int findMode(double[] data1, double[] data2, double[] offset, double[] start, double[] mode,
+                        int maxIterations, double stopValue) {
+
+        if (offset != null) {
+            multiply(offset, offsetProduct);
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                offsetProduct[i] = 0.0;
+            }
+        }
+
+        if (mode != start) {
+            System.arraycopy(start, 0, mode, 0, dimension);
+        }
+
+        int iterations = 0;
+        while (getGradient(data1, data2, mode) > stopValue) {
+            for (int i = 0; i < dimension; i++) {
+                step[i] = data2[i] * Math.exp(-mode[i]);
+            }
+            if (!factor(step)) {
+                return -1;
+            }
+            solve(gradient, step);
+
+            for (int i = 0; i < dimension; i++) {
+                mode[i] += step[i];
+            }
+            iterations++;
+
+            if (iterations > maxIterations) {
+                return iterations;
+            }
+        }
+
+        for (int i = 0; i < dimension; i++) {
+            step[i] = data2[i] * Math.exp(-mode[i]);
+        }
+        if (!factor(step)) {
+            return -1;
+        }
+
+        return iterations;
+    }
+
+    /**
+     * Fills the gradient array at gamma and returns its Euclidean norm.
+     */
+    private double getGradient(double[] data1, double[] data2, double[] gamma) {
+        multiply(gamma, gradient);
+
+        double sumSquares = 0.0;
+        for (int i = 0; i < dimension; i++) {
+            double g = -gradient[i] + offsetProduct[i] - data1[i] + data2[i] * Math.exp(-gamma[i]);
+            gradient[i] = g;
+            sumSquares += g * g;
+        }
+        return Math.sqrt(sumSquares);
+    }
+
+    private void checkFactored() {
+        if (!factored) {
+            throw new IllegalStateException("The precision matrix has not been factorized");
+        }
+    }
+
+    private final int dimension;
+
+    private final double[] diagonal;
+    private final double[] offDiagonal;
+
+    private final double[] factoredDiagonal;
+    private final double[] factorDiagonal;
+    private final double[] factorOffDiagonal;
+    private boolean factored = false;
+
+    private double logDeterminant;
+    private boolean logDeterminantKnown = false;
+
+    private final double[] gradient;
+    private final double[] step;
+    private final double[] offsetProduct;
+}
@@ -26,18 +26,19 @@
 package dr.evomodel.coalescent;
 
 import dr.evolution.coalescent.IntervalType;
+import dr.evolution.coalescent.TreeIntervals;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodelxml.coalescent.GMRFSkyrideLikelihoodParser;
 import dr.inference.model.MatrixParameter;
+import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 import dr.math.MathUtils;
 import dr.util.Author;
 import dr.util.Citable;
 import dr.util.Citation;
-import no.uib.cipr.matrix.DenseVector;
 import no.uib.cipr.matrix.NotConvergedException;
 import no.uib.cipr.matrix.SymmTridiagEVD;
 import no.uib.cipr.matrix.SymmTridiagMatrix;
@@ -83,6 +84,12 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
 
     protected SymmTridiagMatrix weightMatrix;
     protected SymmTridiagMatrix storedWeightMatrix;
+
+    // the intervals of the whole tree, updated as nodes move
+    private TreeIntervals treeIntervals;
+
+    private GMRFPrecisionMatrix fieldPrecisionMatrix;
+    private double[] fieldValues;
     protected MatrixParameter dMatrix;
     protected boolean timeAwareSmoothing = TIME_AWARE_IS_ON_BY_DEFAULT;
     protected boolean rescaleByRootHeight;
@@ -169,7 +176,11 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
     }
 
     protected void wrapSetupIntervals() {
-        setupIntervals();
+        if (treeIntervals != null) {
+            setupIntervals(treeIntervals);
+        } else {
+            setupIntervals();
+        }
     }
 
     protected void setTree(List<Tree> treeList) {
@@ -181,6 +192,13 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         if (tree instanceof TreeModel) {
             addModel((TreeModel) tree);
         }
+
+        if (getMRCAOfCoalescent(tree) == tree.getRoot() && getExcludedMRCAs(tree) == null) {
+            treeIntervals = new TreeIntervals(tree);
+            treeIntervals.setMultifurcationLimit(MULTIFURCATION_LIMIT);
+        } else {
+            treeIntervals = null;
+        }
     }
 
 //    public double[] getCopyOfCoalescentIntervals() {
@@ -344,6 +362,18 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         return a;
     }
 
+    /**
+     * Sets the given precision matrix to the weight matrix scaled by precision and lambda
+     * without creating a copy.
+     */
+    public void getScaledWeightMatrix(double precision, double lambda, GMRFPrecisionMatrix matrix) {
+        matrix.setScaledWeights(weightMatrix, precision, lambda);
+    }
+
+    public void getStoredScaledWeightMatrix(double precision, double lambda, GMRFPrecisionMatrix matrix) {
+        matrix.setScaledWeights(storedWeightMatrix, precision, lambda);
+    }
+
     private void makeIntervalsKnown() {
         if (!intervalsKnown) {
             wrapSetupIntervals();
@@ -409,21 +439,51 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
     }
 
 
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        if (model == tree && treeIntervals != null) {
+            updateTreeIntervals(treeIntervals, object);
+        }
+        super.handleModelChangedEvent(model, object, index);
+    }
+
+    public void makeDirty() {
+        super.makeDirty();
+        if (treeIntervals != null) {
+            treeIntervals.setIntervalsUnknown();
+        }
+    }
+
     protected void storeState() {
         super.storeState();
+        if (treeIntervals != null) {
+            treeIntervals.storeState();
+        }
         System.arraycopy(coalescentIntervals, 0, storedCoalescentIntervals, 0, coalescentIntervals.length);
         System.arraycopy(sufficientStatistics, 0, storedSufficientStatistics, 0, sufficientStatistics.length);
-        storedWeightMatrix = weightMatrix.copy();
+        if (storedWeightMatrix == null || storedWeightMatrix == weightMatrix
+                || storedWeightMatrix.numRows() != weightMatrix.numRows()) {
+            storedWeightMatrix = weightMatrix.copy();
+        } else {
+            double[] diagonal = weightMatrix.getDiagonal();
+            double[] offDiagonal = weightMatrix.getOffDiagonal();
+            System.arraycopy(diagonal, 0, storedWeightMatrix.getDiagonal(), 0, diagonal.length);
+            System.arraycopy(offDiagonal, 0, storedWeightMatrix.getOffDiagonal(), 0, offDiagonal.length);
+        }
         storedLogFieldLikelihood = logFieldLikelihood;
     }
 
 
     protected void restoreState() {
         super.restoreState();
+        if (treeIntervals != null) {
+            treeIntervals.restoreState();
+        }
         // TODO Just swap pointers
         System.arraycopy(storedCoalescentIntervals, 0, coalescentIntervals, 0, storedCoalescentIntervals.length);
         System.arraycopy(storedSufficientStatistics, 0, sufficientStatistics, 0, storedSufficientStatistics.length);
+        SymmTridiagMatrix tmp = weightMatrix;
         weightMatrix = storedWeightMatrix;
+        storedWeightMatrix = tmp;
         logFieldLikelihood = storedLogFieldLikelihood;
     }
 
@@ -457,15 +517,14 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         makeIntervalsKnown();
 
         double currentLike = 0;
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector currentGamma = new DenseVector(popSizeParameter.getParameterValues());
+        double[] currentGamma = getFieldValues();
 
-        SymmTridiagMatrix currentQ = getScaledWeightMatrix(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
-        currentQ.mult(currentGamma, diagonal1);
+        GMRFPrecisionMatrix currentQ = getFieldPrecisionMatrix();
+        getScaledWeightMatrix(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0), currentQ);
 
 //        currentLike += 0.5 * logGeneralizedDeterminant(currentQ) - 0.5 * currentGamma.dot(diagonal1);
 
-        currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentGamma.dot(diagonal1);
+        currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentQ.getQuadraticForm(currentGamma);
         if (lambdaParameter.getParameterValue(0) == 1) {
             currentLike -= (fieldLength - 1) / 2.0 * LOG_TWO_TIMES_PI;
         } else {
@@ -511,6 +570,29 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         return lambdaParameter;
     }
 
+    /**
+     * @return the current log population sizes in a reusable array
+     */
+    protected double[] getFieldValues() {
+        if (fieldValues == null || fieldValues.length != popSizeParameter.getDimension()) {
+            fieldValues = new double[popSizeParameter.getDimension()];
+        }
+        for (int i = 0; i < fieldValues.length; i++) {
+            fieldValues[i] = popSizeParameter.getParameterValue(i);
+        }
+        return fieldValues;
+    }
+
+    /**
+     * @return a reusable precision matrix for calculating the field likelihood
+     */
+    protected GMRFPrecisionMatrix getFieldPrecisionMatrix() {
+        if (fieldPrecisionMatrix == null || fieldPrecisionMatrix.getDimension() != fieldLength) {
+            fieldPrecisionMatrix = new GMRFPrecisionMatrix(fieldLength);
+        }
+        return fieldPrecisionMatrix;
+    }
+
     public SymmTridiagMatrix getWeightMatrix() {
         return weightMatrix.copy();
     }
@@ -208,8 +208,7 @@ public class GaussianProcessMultilocusSkytrackLikelihood extends GaussianProcess
             TreeModel treeModel = (TreeModel) model;
             int tn = treeList.indexOf(treeModel);
             if (tn >= 0) {
-                //   intervalsList.get(tn).setIntervalsUnknown();  // TODO Why is this slower (?) than remaking whole list?
-                makeTreeIntervalList(treeList, false);
+                updateTreeIntervals(intervalsList.get(tn), object);
                 intervalsKnown = false;
                 likelihoodKnown = false;
             } else {
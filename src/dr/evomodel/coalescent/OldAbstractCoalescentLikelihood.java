@@ -28,6 +28,7 @@ package dr.evomodel.coalescent;
 import dr.evolution.coalescent.Coalescent;
 import dr.evolution.coalescent.DemographicFunction;
 import dr.evolution.coalescent.ScaledDemographic;
+import dr.evolution.coalescent.TreeIntervals;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.Units;
@@ -166,6 +167,27 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
         likelihoodKnown = false;
     }
 
+    /**
+     * Passes a change to a tree on to its intervals so only the nodes that have moved are
+     * repositioned when the intervals are next needed.
+     *
+     * @param intervals the intervals of the tree that has changed
+     * @param object    the object of the model changed event (a TreeChangedEvent for a TreeModel)
+     */
+    protected static void updateTreeIntervals(TreeIntervals intervals, Object object) {
+        if (object instanceof TreeModel.TreeChangedEvent) {
+            TreeModel.TreeChangedEvent event = (TreeModel.TreeChangedEvent) object;
+            if (event.isNodeChanged() && !event.areAllInternalHeightsChanged()) {
+                if (event.isTreeChanged() || event.isHeightChanged()) {
+                    intervals.setNodeChanged(event.getNode());
+                }
+                // changes to rates or traits do not affect the intervals
+                return;
+            }
+        }
+        intervals.setIntervalsUnknown();
+    }
+
     // **************************************************************
     // VariableListener IMPLEMENTATION
     // **************************************************************
@@ -235,7 +257,7 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
         return logLikelihood;
     }
 
-    public final void makeDirty() {
+    public void makeDirty() {
         likelihoodKnown = false;
         intervalsKnown = false;
     }
@@ -420,6 +442,32 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
         intervalsKnown = true;
     }
 
+    /**
+     * Copies the intervals from intervals kept for the whole tree. These only reposition the nodes
+     * that have moved so this avoids collecting and sorting all the node heights again.
+     *
+     * @param treeIntervals the intervals of the tree (with a multifurcation limit of MULTIFURCATION_LIMIT)
+     */
+    protected final void setupIntervals(TreeIntervals treeIntervals) {
+
+        if (intervals == null) {
+            int maxIntervalCount = tree.getNodeCount();
+
+            intervals = new double[maxIntervalCount];
+            lineageCounts = new int[maxIntervalCount];
+            storedIntervals = new double[maxIntervalCount];
+            storedLineageCounts = new int[maxIntervalCount];
+        }
+
+        intervalCount = treeIntervals.getIntervalCount();
+        for (int i = 0; i < intervalCount; i++) {
+            intervals[i] = treeIntervals.getInterval(i);
+            lineageCounts[i] = treeIntervals.getLineageCount(i);
+        }
+
+        intervalsKnown = true;
+    }
+
 
     /**
      * Extract coalescent times and tip information into ArrayList times from tree.
@@ -471,8 +519,6 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
     }
 
     private static void getTreeIntervals(Tree tree, NodeRef root, NodeRef[] exclude, XTreeIntervals ti) {
-        double MULTIFURCATION_LIMIT = 1e-9;
-
         ArrayList<ComparableDouble> times = new ArrayList<ComparableDouble>();
         ArrayList<Integer> childs = new ArrayList<Integer>();
         collectAllTimes(tree, root, exclude, times, childs);
@@ -808,6 +854,11 @@ public class OldAbstractCoalescentLikelihood extends AbstractModelLikelihood imp
 		};
 	};*/
 
+    /**
+     * Events closer together than this are treated as simultaneous.
+     */
+    protected static final double MULTIFURCATION_LIMIT = 1e-9;
+
     /**
      * The demographic model.
      */
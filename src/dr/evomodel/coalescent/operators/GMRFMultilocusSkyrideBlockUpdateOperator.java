@@ -26,13 +26,14 @@
 package dr.evomodel.coalescent.operators;
 
 import dr.evomodel.coalescent.GMRFMultilocusSkyrideLikelihood;
+import dr.evomodel.coalescent.GMRFPrecisionMatrix;
 import dr.evomodelxml.coalescent.operators.GMRFSkyrideBlockUpdateOperatorParser;
 import dr.inference.model.MatrixParameter;
 import dr.inference.model.Parameter;
 import dr.inference.operators.*;
 import dr.math.MathUtils;
-import no.uib.cipr.matrix.*;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -62,7 +63,17 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
 
     GMRFMultilocusSkyrideLikelihood gmrfField;
 
-    private double[] zeros;
+    private final GMRFPrecisionMatrix forwardQ;
+    private final GMRFPrecisionMatrix backwardQ;
+
+    private final double[] currentGamma;
+    private final double[] proposedGamma;
+    private final double[] zBeta;
+    private final double[] qzBeta;
+    private final double[] fieldMode;
+    private final double[] mean;
+    private final double[] canonical;
+    private final double[] standardNormal;
 
     public GMRFMultilocusSkyrideBlockUpdateOperator(GMRFMultilocusSkyrideLikelihood gmrfLikelihood,
                                           double weight, CoercionMode mode, double scaleFactor,
@@ -83,7 +94,17 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         this.stopValue = stopValue;
         setWeight(weight);
 
-        zeros = new double[fieldLength];
+        forwardQ = new GMRFPrecisionMatrix(fieldLength);
+        backwardQ = new GMRFPrecisionMatrix(fieldLength);
+
+        currentGamma = new double[fieldLength];
+        proposedGamma = new double[fieldLength];
+        zBeta = new double[fieldLength];
+        qzBeta = new double[fieldLength];
+        fieldMode = new double[fieldLength];
+        mean = new double[fieldLength];
+        canonical = new double[fieldLength];
+        standardNormal = new double[fieldLength];
     }
 
     private double getNewLambda(double currentValue, double lambdaScale) {
@@ -113,177 +134,40 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         return returnValue;
     }
 
-    public DenseVector getMultiNormalMean(DenseVector CanonVector, BandCholesky Cholesky) {
-
-        DenseVector tempValue = new DenseVector(zeros);
-        DenseVector Mean = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // Assume Cholesky factorization of the precision matrix Q = LL^T
-
-        // 1. Solve L\omega = b
-
-        CholeskyUpper.transSolve(CanonVector, tempValue);
-
-        // 2. Solve L^T \mu = \omega
-
-        CholeskyUpper.solve(tempValue, Mean);
-
-        return Mean;
-    }
+    private void getZBeta(List<MatrixParameter> covariates, List<Parameter> beta, double[] zBeta) {
 
-    public DenseVector getMultiNormal(DenseVector StandNorm, DenseVector Mean, BandCholesky Cholesky) {
-
-        DenseVector returnValue = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // 3. Solve L^T v = z
-
-        CholeskyUpper.solve(StandNorm, returnValue);
-
-        // 4. Return x = \mu + v
-
-        returnValue.add(Mean);
-
-        return returnValue;
-    }
+        Arrays.fill(zBeta, 0.0);
 
-
-    public static DenseVector getMultiNormal(DenseVector Mean, UpperSPDDenseMatrix Variance) {
-        int length = Mean.size();
-        DenseVector tempValue = new DenseVector(length);
-        DenseVector returnValue = new DenseVector(length);
-        UpperSPDDenseMatrix ab = Variance.copy();
-
-        for (int i = 0; i < returnValue.size(); i++)
-            tempValue.set(i, MathUtils.nextGaussian());
-
-        DenseCholesky chol = new DenseCholesky(length, true);
-        chol.factor(ab);
-
-        UpperTriangDenseMatrix x = chol.getU();
-
-        x.transMult(tempValue, returnValue);
-        returnValue.add(Mean);
-        return returnValue;
-    }
-
-
-    public static double logGeneralizedDeterminant(UpperTriangBandMatrix Matrix) {
-        double returnValue = 0;
-
-        for (int i = 0; i < Matrix.numColumns(); i++) {
-            if (Matrix.get(i, i) > 0.0000001) {
-                returnValue += Math.log(Matrix.get(i, i));
-            }
-        }
-
-        return returnValue;
-    }
-
-    public DenseVector getZBeta(List<MatrixParameter> covariates, List<Parameter> beta){
-
-        DenseVector temporaryVect = new DenseVector(fieldLength);
-        
         // TODO: Update for covariateMatrix block as well !!!
-        
-        if(covariates != null) {
-           // DenseVector currentBeta = new DenseVector(beta.getParameterValues());
-            DenseVector currentBeta = new DenseVector(beta.size());
-            for(int i =0; i < beta.size(); i++){
-                currentBeta.set(i, beta.get(i).getParameterValue(0));
-            }
 
+        if (covariates != null) {
             for (int i = 0; i < covariates.size(); i++) {
+                double currentBeta = beta.get(i).getParameterValue(0);
                 for (int j = 0; j < covariates.get(i).getColumnDimension(); j++) {
-                    temporaryVect.set(j, covariates.get(i).getParameterValue(0, j) * currentBeta.get(i));
+                    zBeta[j] = covariates.get(i).getParameterValue(0, j) * currentBeta;
                 }
             }
-            return temporaryVect;
-        }else{
-            return temporaryVect.zero();
         }
     }
 
-    public DenseVector newtonRaphson(double[] data1, double[] data2, DenseVector currentGamma,
-                                     SymmTridiagMatrix proposedQ, DenseVector ZBeta) {
-        return newNewtonRaphson(data1, data2, currentGamma, proposedQ, maxIterations, stopValue, ZBeta);
-    }
-
-    public static DenseVector newNewtonRaphson(double[] data1, double[] data2, DenseVector currentGamma, SymmTridiagMatrix proposedQ,
-                                               int maxIterations, double stopValue, DenseVector ZBeta) {
-
-        DenseVector iterateGamma = currentGamma.copy();
-        DenseVector tempValue = currentGamma.copy();
-
-        int numberIterations = 0;
-
-
-        while (gradient(data1, data2, iterateGamma, proposedQ, ZBeta).norm(Vector.Norm.Two) > stopValue) {
-           try {
-                jacobian(data2, iterateGamma, proposedQ).solve(gradient(data1, data2, iterateGamma, proposedQ, ZBeta), tempValue);
-           } catch (no.uib.cipr.matrix.MatrixNotSPDException e) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-//                throw new OperatorFailedException("");
-               if (FAIL_SILENTLY) {
-                   // this replicates the old behaviour of throwing an OperatorFailedException and rejecting the move.
-                   return null;
-               }
-               throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
-                       "Try starting BEAST with a more accurate initial tree.");
-           } catch (no.uib.cipr.matrix.MatrixSingularException e) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-//                throw new OperatorFailedException("");
-               if (FAIL_SILENTLY) {
-                   // this replicates the old behaviour of throwing an OperatorFailedException and rejecting the move.
-                   return null;
-               }
-               throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
-                       "Try starting BEAST with a more accurate initial tree.");
-            }
+    private boolean newtonRaphson(double[] data1, double[] data2, double[] start,
+                                  GMRFPrecisionMatrix proposedQ, double[] zBeta, double[] mode) {
 
-            iterateGamma.add(tempValue);
-            numberIterations++;
+        // the sufficient statistics are summed over the loci so a single solve covers all of them
+        int iterations = proposedQ.findMode(data1, data2, zBeta, start, mode, maxIterations, stopValue);
 
-            if (numberIterations > maxIterations) {
-                if (FAIL_SILENTLY) {
-                    // this replicates the old behaviour of throwing an OperatorFailedException and rejecting the move.
-                    return null;
-                }
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-                throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
-                        "Try starting BEAST with a more accurate initial tree.");
+        if (iterations < 0 || iterations > maxIterations) {
+            Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
+            if (FAIL_SILENTLY) {
+                // this replicates the old behaviour of throwing an OperatorFailedException and rejecting the move.
+                return false;
             }
+            throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
+                    "Try starting BEAST with a more accurate initial tree.");
         }
 
         Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson S");
-        return iterateGamma;
-
-    }
-
-    private static DenseVector gradient(double[] data1, double[] data2, DenseVector value,
-                                        SymmTridiagMatrix Q, DenseVector ZBeta) {
-
-        DenseVector returnValue = new DenseVector(value.size());
-        DenseVector returnValueCov = new DenseVector(ZBeta.size());
-        Q.mult(value, returnValue);
-        //check this
-        Q.mult(ZBeta, returnValueCov);
-        for (int i = 0; i < value.size(); i++) {
-            returnValue.set(i, -returnValue.get(i) +returnValueCov.get(i) - data1[i] + data2[i] * Math.exp(-value.get(i)));
-        }
-        return returnValue;
-    }
-
-
-    private static SPDTridiagMatrix jacobian(double[] data2, DenseVector value, SymmTridiagMatrix Q) {
-        SPDTridiagMatrix jacobian = new SPDTridiagMatrix(Q, true);
-        for (int i = 0, n = value.size(); i < n; i++) {
-            jacobian.set(i, i, jacobian.get(i, i) + Math.exp(-value.get(i)) * data2[i]);
-        }
-        return jacobian;
+        return true;
     }
 
     public double doOperation() {
@@ -297,108 +181,66 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         precisionParameter.setParameterValue(0, proposedPrecision);
         lambdaParameter.setParameterValue(0, proposedLambda);
 
-        DenseVector currentGamma = new DenseVector(gmrfField.getPopSizeParameter().getParameterValues());
-        DenseVector proposedGamma;
+        for (int i = 0; i < fieldLength; i++) {
+            currentGamma[i] = popSizeParameter.getParameterValue(i);
+        }
 
-        SymmTridiagMatrix currentQ = gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda);
-        SymmTridiagMatrix proposedQ = gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda);
+        gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda, backwardQ);
+        gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda, forwardQ);
 
         double[] wNative = gmrfField.getSufficientStatistics();
         double[] numCoalEv = gmrfField.getNumCoalEvents();
 
-        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
-        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
-
-        BandCholesky forwardCholesky = new BandCholesky(wNative.length, 1, true);
-        BandCholesky backwardCholesky = new BandCholesky(wNative.length, 1, true);
-
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector diagonal2 = new DenseVector(fieldLength);
-        DenseVector diagonal3 = new DenseVector(fieldLength);
-        DenseVector ZBetaVector = getZBeta(covariates, betaParameter);
-        DenseVector QZBetaProp = new DenseVector(fieldLength);
-        DenseVector QZBetaCurrent = new DenseVector(fieldLength);
-        forwardQW.mult(ZBetaVector, QZBetaProp);
-        backwardQW.mult(ZBetaVector, QZBetaCurrent);
-
-        DenseVector modeForward = newtonRaphson(numCoalEv, wNative, currentGamma, proposedQ.copy(), ZBetaVector);
+        getZBeta(covariates, betaParameter, zBeta);
 
-        if (modeForward == null) {
+        // the mode of the forward proposal, leaving forwardQ factorized as Q + W at the mode
+        if (!newtonRaphson(numCoalEv, wNative, currentGamma, forwardQ, zBeta, fieldMode)) {
             // used to pass on an OperatorFailedException
             return Double.NEGATIVE_INFINITY;
         }
 
+        forwardQ.multiply(zBeta, qzBeta);
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeForward.get(i)));
-            diagonal2.set(i, modeForward.get(i) + 1);
-
-            forwardQW.set(i, i, diagonal1.get(i) + forwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, QZBetaProp.get(i) + diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
+            canonical[i] = qzBeta[i] + wNative[i] * Math.exp(-fieldMode[i]) * (fieldMode[i] + 1) - numCoalEv[i];
         }
+        forwardQ.solve(canonical, mean);
 
-        forwardCholesky.factor(forwardQW.copy());
-
-        DenseVector forwardMean = getMultiNormalMean(diagonal1, forwardCholesky);
-
-        DenseVector stand_norm = new DenseVector(zeros);
-
-        for (int i = 0; i < zeros.length; i++)
-            stand_norm.set(i, MathUtils.nextGaussian());
-
-        proposedGamma = getMultiNormal(stand_norm, forwardMean, forwardCholesky);
-
-        /*
-        double hRatio = 0;
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, proposedGamma.get(i) - forwardMean.get(i));
+            standardNormal[i] = MathUtils.nextGaussian();
         }
-        diagonal3.zero();
-        forwardQW.mult(diagonal1, diagonal3);
+        forwardQ.backSolve(standardNormal, proposedGamma);
 
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * diagonal1.dot(diagonal3);
-        */
-
-        for (int i = 0; i < fieldLength; i++)
-            popSizeParameter.setParameterValueQuietly(i, proposedGamma.get(i));
+        for (int i = 0; i < fieldLength; i++) {
+            proposedGamma[i] += mean[i];
+            popSizeParameter.setParameterValueQuietly(i, proposedGamma[i]);
+        }
 
         ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
 
-
         double hRatio = 0;
 
-        diagonal1.zero();
-        diagonal2.zero();
-        diagonal3.zero();
-
-        DenseVector modeBackward = newtonRaphson(numCoalEv, wNative, proposedGamma, currentQ.copy(), ZBetaVector);
-
-        if (modeBackward == null) {
+        if (!newtonRaphson(numCoalEv, wNative, proposedGamma, backwardQ, zBeta, fieldMode)) {
             // used to pass on an OperatorFailedException
             return Double.NEGATIVE_INFINITY;
         }
 
+        backwardQ.multiply(zBeta, qzBeta);
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeBackward.get(i)));
-            diagonal2.set(i, modeBackward.get(i) + 1);
-
-            backwardQW.set(i, i, diagonal1.get(i) + backwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, QZBetaCurrent.get(i) + diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
+            canonical[i] = qzBeta[i] + wNative[i] * Math.exp(-fieldMode[i]) * (fieldMode[i] + 1) - numCoalEv[i];
         }
-
-        backwardCholesky.factor(backwardQW.copy());
-
-        DenseVector backwardMean = getMultiNormalMean(diagonal1, backwardCholesky);
+        backwardQ.solve(canonical, mean);
 
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, currentGamma.get(i) - backwardMean.get(i));
+            mean[i] = currentGamma[i] - mean[i];
         }
 
-        backwardQW.mult(diagonal1, diagonal3);
+        double standardNormalSquared = 0.0;
+        for (int i = 0; i < fieldLength; i++) {
+            standardNormalSquared += standardNormal[i] * standardNormal[i];
+        }
 
-        hRatio += logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * diagonal1.dot(diagonal3);
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * stand_norm.dot(stand_norm);
+        hRatio += backwardQ.getLogGeneralizedDeterminant() - 0.5 * backwardQ.getFactoredQuadraticForm(mean);
+        hRatio -= forwardQ.getLogGeneralizedDeterminant() - 0.5 * standardNormalSquared;
 
        return hRatio;
     }
@@ -25,13 +25,18 @@
 
 package dr.evomodel.coalescent.operators;
 
+import dr.evomodel.coalescent.GMRFPrecisionMatrix;
 import dr.evomodel.coalescent.GMRFSkyrideLikelihood;
 import dr.evomodelxml.coalescent.operators.GMRFSkyrideBlockUpdateOperatorParser;
 import dr.inference.model.Parameter;
 import dr.inference.operators.*;
 import dr.math.MathUtils;
-import no.uib.cipr.matrix.*;
+import no.uib.cipr.matrix.DenseCholesky;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.UpperSPDDenseMatrix;
+import no.uib.cipr.matrix.UpperTriangDenseMatrix;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /* A Metropolis-Hastings operator to update the log population sizes and precision parameter jointly under a Gaussian Markov random field prior
@@ -55,7 +60,16 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
 
     GMRFSkyrideLikelihood gmrfField;
 
-    private double[] zeros;
+    private final GMRFPrecisionMatrix forwardQ;
+    private final GMRFPrecisionMatrix backwardQ;
+
+    private final double[] ones;
+    private final double[] currentGamma;
+    private final double[] proposedGamma;
+    private final double[] fieldMode;
+    private final double[] mean;
+    private final double[] canonical;
+    private final double[] standardNormal;
 
     public GMRFSkyrideBlockUpdateOperator(GMRFSkyrideLikelihood gmrfLikelihood,
                                           double weight, CoercionMode mode, double scaleFactor,
@@ -74,7 +88,17 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         this.stopValue = stopValue;
         setWeight(weight);
 
-        zeros = new double[fieldLength];
+        forwardQ = new GMRFPrecisionMatrix(fieldLength);
+        backwardQ = new GMRFPrecisionMatrix(fieldLength);
+
+        ones = new double[fieldLength];
+        Arrays.fill(ones, 1.0);
+        currentGamma = new double[fieldLength];
+        proposedGamma = new double[fieldLength];
+        fieldMode = new double[fieldLength];
+        mean = new double[fieldLength];
+        canonical = new double[fieldLength];
+        standardNormal = new double[fieldLength];
     }
 
     private double getNewLambda(double currentValue, double lambdaScale) {
@@ -104,44 +128,6 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         return returnValue;
     }
 
-    public DenseVector getMultiNormalMean(DenseVector CanonVector, BandCholesky Cholesky) {
-
-        DenseVector tempValue = new DenseVector(zeros);
-        DenseVector Mean = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // Assume Cholesky factorization of the precision matrix Q = LL^T
-
-        // 1. Solve L\omega = b
-
-        CholeskyUpper.transSolve(CanonVector, tempValue);
-
-        // 2. Solve L^T \mu = \omega
-
-        CholeskyUpper.solve(tempValue, Mean);
-
-        return Mean;
-    }
-
-    public DenseVector getMultiNormal(DenseVector StandNorm, DenseVector Mean, BandCholesky Cholesky) {
-
-        DenseVector returnValue = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // 3. Solve L^T v = z
-
-        CholeskyUpper.solve(StandNorm, returnValue);
-
-        // 4. Return x = \mu + v
-
-        returnValue.add(Mean);
-
-        return returnValue;
-    }
-
-
     public static DenseVector getMultiNormal(DenseVector Mean, UpperSPDDenseMatrix Variance) {
         int length = Mean.size();
         DenseVector tempValue = new DenseVector(length);
@@ -161,78 +147,6 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         return returnValue;
     }
 
-
-    public static double logGeneralizedDeterminant(UpperTriangBandMatrix Matrix) {
-        double returnValue = 0;
-
-        for (int i = 0; i < Matrix.numColumns(); i++) {
-            if (Matrix.get(i, i) > 0.0000001) {
-                returnValue += Math.log(Matrix.get(i, i));
-            }
-        }
-
-        return returnValue;
-    }
-
-    public DenseVector newtonRaphson(double[] data, DenseVector currentGamma, SymmTridiagMatrix proposedQ) {
-        return newNewtonRaphson(data, currentGamma, proposedQ, maxIterations, stopValue);
-    }
-
-    public static DenseVector newNewtonRaphson(double[] data, DenseVector currentGamma, SymmTridiagMatrix proposedQ,
-                                               int maxIterations, double stopValue) {
-        DenseVector iterateGamma = currentGamma.copy();
-        DenseVector tempValue = currentGamma.copy();
-
-        int numberIterations = 0;
-
-
-        while (gradient(data, iterateGamma, proposedQ).norm(Vector.Norm.Two) > stopValue) {
-            try {
-                jacobian(data, iterateGamma, proposedQ).solve(gradient(data, iterateGamma, proposedQ), tempValue);
-            } catch (no.uib.cipr.matrix.MatrixNotSPDException e) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-//                throw new OperatorFailedException("");
-                return null;
-            } catch (no.uib.cipr.matrix.MatrixSingularException e) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-
-//                throw new OperatorFailedException("");
-                return null;
-            }
-            iterateGamma.add(tempValue);
-            numberIterations++;
-
-            if (numberIterations > maxIterations) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-                throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
-                        "Try starting BEAST with a more accurate initial tree.");
-            }
-        }
-
-        Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson S");
-        return iterateGamma;
-
-    }
-
-    private static DenseVector gradient(double[] data, DenseVector value, SymmTridiagMatrix Q) {
-
-        DenseVector returnValue = new DenseVector(value.size());
-        Q.mult(value, returnValue);
-        for (int i = 0; i < value.size(); i++) {
-            returnValue.set(i, -returnValue.get(i) - 1 + data[i] * Math.exp(-value.get(i)));
-        }
-        return returnValue;
-    }
-
-
-    private static SPDTridiagMatrix jacobian(double[] data, DenseVector value, SymmTridiagMatrix Q) {
-        SPDTridiagMatrix jacobian = new SPDTridiagMatrix(Q, true);
-        for (int i = 0, n = value.size(); i < n; i++) {
-            jacobian.set(i, i, jacobian.get(i, i) + Math.exp(-value.get(i)) * data[i]);
-        }
-        return jacobian;
-    }
-
     public double doOperation() {
 
         double currentPrecision = precisionParameter.getParameterValue(0);
@@ -244,97 +158,84 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         precisionParameter.setParameterValue(0, proposedPrecision);
         lambdaParameter.setParameterValue(0, proposedLambda);
 
-        DenseVector currentGamma = new DenseVector(gmrfField.getPopSizeParameter().getParameterValues());
-        DenseVector proposedGamma;
-
-        SymmTridiagMatrix currentQ = gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda);
-        SymmTridiagMatrix proposedQ = gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda);
+        for (int i = 0; i < fieldLength; i++) {
+            currentGamma[i] = popSizeParameter.getParameterValue(i);
+        }
 
+        gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda, backwardQ);
+        gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda, forwardQ);
 
         double[] wNative = gmrfField.getSufficientStatistics();
 
-        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
-        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
-
-        BandCholesky forwardCholesky = new BandCholesky(wNative.length, 1, true);
-        BandCholesky backwardCholesky = new BandCholesky(wNative.length, 1, true);
-
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector diagonal2 = new DenseVector(fieldLength);
-        DenseVector diagonal3 = new DenseVector(fieldLength);
-
-        DenseVector modeForward = newtonRaphson(wNative, currentGamma, proposedQ.copy());
-
-        if (modeForward == null) {
+        // the mode of the forward proposal, leaving forwardQ factorized as Q + W at the mode
+        if (!newtonRaphson(wNative, currentGamma, forwardQ, fieldMode)) {
             // used to pass on an OperatorFailedException
             return Double.NEGATIVE_INFINITY;
         }
 
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeForward.get(i)));
-            diagonal2.set(i, modeForward.get(i) + 1);
-
-            forwardQW.set(i, i, diagonal1.get(i) + forwardQW.get(i, i));
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
+            canonical[i] = wNative[i] * Math.exp(-fieldMode[i]) * (fieldMode[i] + 1) - 1;
         }
+        forwardQ.solve(canonical, mean);
 
-        forwardCholesky.factor(forwardQW.copy());
-
-        DenseVector forwardMean = getMultiNormalMean(diagonal1, forwardCholesky);
-
-        DenseVector stand_norm = new DenseVector(zeros);
-
-        for (int i = 0; i < zeros.length; i++)
-            stand_norm.set(i, MathUtils.nextGaussian());
-
-        proposedGamma = getMultiNormal(stand_norm, forwardMean, forwardCholesky);
-
+        for (int i = 0; i < fieldLength; i++) {
+            standardNormal[i] = MathUtils.nextGaussian();
+        }
+        forwardQ.backSolve(standardNormal, proposedGamma);
 
-        for (int i = 0; i < fieldLength; i++)
-            popSizeParameter.setParameterValueQuietly(i, proposedGamma.get(i));
+        for (int i = 0; i < fieldLength; i++) {
+            proposedGamma[i] += mean[i];
+            popSizeParameter.setParameterValueQuietly(i, proposedGamma[i]);
+        }
 
         ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
 
-
         double hRatio = 0;
 
-        diagonal1.zero();
-        diagonal2.zero();
-        diagonal3.zero();
-
-        DenseVector modeBackward = newtonRaphson(wNative, proposedGamma, currentQ.copy());
-
-        if (modeBackward == null) {
+        if (!newtonRaphson(wNative, proposedGamma, backwardQ, fieldMode)) {
             // used to pass on an OperatorFailedException
             return Double.NEGATIVE_INFINITY;
         }
 
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeBackward.get(i)));
-            diagonal2.set(i, modeBackward.get(i) + 1);
-
-            backwardQW.set(i, i, diagonal1.get(i) + backwardQW.get(i, i));
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
+            canonical[i] = wNative[i] * Math.exp(-fieldMode[i]) * (fieldMode[i] + 1) - 1;
         }
-
-        backwardCholesky.factor(backwardQW.copy());
-
-        DenseVector backwardMean = getMultiNormalMean(diagonal1, backwardCholesky);
+        backwardQ.solve(canonical, mean);
 
         for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, currentGamma.get(i) - backwardMean.get(i));
+            mean[i] = currentGamma[i] - mean[i];
         }
 
-        backwardQW.mult(diagonal1, diagonal3);
+        double standardNormalSquared = 0.0;
+        for (int i = 0; i < fieldLength; i++) {
+            standardNormalSquared += standardNormal[i] * standardNormal[i];
+        }
 
         // Removed 0.5 * 2
-        hRatio += logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * diagonal1.dot(diagonal3);
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * stand_norm.dot(stand_norm);
-
+        hRatio += backwardQ.getLogGeneralizedDeterminant() - 0.5 * backwardQ.getFactoredQuadraticForm(mean);
+        hRatio -= forwardQ.getLogGeneralizedDeterminant() - 0.5 * standardNormalSquared;
 
         return hRatio;
     }
 
+    private boolean newtonRaphson(double[] data, double[] start, GMRFPrecisionMatrix proposedQ, double[] mode) {
+        int iterations = proposedQ.findMode(ones, data, null, start, mode, maxIterations, stopValue);
+
+        if (iterations < 0) {
+            Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
+            return false;
+        }
+
+        if (iterations > maxIterations) {
+            Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
+            throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
+                    "Try starting BEAST with a more accurate initial tree.");
+        }
+
+        Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson S");
+        return true;
+    }
+
     //MCMCOperator INTERFACE
 
     public final String getOperatorName() {
@@ -393,39 +294,4 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
             return "Try setting scaleFactor to about " + formatter.format(sf);
         } else return "";
     }
-
-
-//  public DenseVector oldNewtonRaphson(double[] data, DenseVector currentGamma, SymmTridiagMatrix proposedQ) throws OperatorFailedException{
-//  return newNewtonRaphson(data, currentGamma, proposedQ, maxIterations, stopValue);
-//
-//}
-//
-//public static DenseVector newtonRaphson(double[] data, DenseVector currentGamma, SymmTridiagMatrix proposedQ,
-//int maxIterations, double stopValue) {
-//
-//DenseVector iterateGamma = currentGamma.copy();
-//int numberIterations = 0;
-//while (gradient(data, iterateGamma, proposedQ).norm(Vector.Norm.Two) > stopValue) {
-//inverseJacobian(data, iterateGamma, proposedQ).multAdd(gradient(data, iterateGamma, proposedQ), iterateGamma);
-//numberIterations++;
-//}
-//
-//if (numberIterations > maxIterations)
-//throw new RuntimeException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue);
-//
-//return iterateGamma;
-//}
-//
-//private static DenseMatrix inverseJacobian(double[] data, DenseVector value, SymmTridiagMatrix Q) {
-//
-//      SPDTridiagMatrix jacobian = new SPDTridiagMatrix(Q, true);
-//      for (int i = 0; i < value.size(); i++) {
-//          jacobian.set(i, i, jacobian.get(i, i) + Math.exp(-value.get(i)) * data[i]);
-//      }
-//
-//      DenseMatrix inverseJacobian = Matrices.identity(jacobian.numRows());
-//      jacobian.solve(Matrices.identity(value.size()), inverseJacobian);
-//
-//      return inverseJacobian;
-//  }
 }
@@ -27,11 +27,14 @@ package dr.evomodel.tree;
 
 import dr.app.tools.NexusExporter;
 import dr.evolution.tree.*;
+import dr.inference.loggers.AsynchronousLogWriter;
 import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.MCLogger;
 
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * A logger that logs tree and clade frequencies.
@@ -61,6 +64,10 @@ public class TreeLogger extends MCLogger {
     private NumberFormat format;
     private LogUpon condition = null;
 
+    // used when logging asynchronously
+    private BlockingQueue<TreeSnapshot> freeSnapshots = null;
+    private final StringBuffer newickBuffer = new StringBuffer();
+
     /**
      * Interface to indicate when to log a tree
      */
@@ -133,6 +140,14 @@ public class TreeLogger extends MCLogger {
 
     public void startLogging() {
 
+        startWriter();
+        if (getWriter() != null) {
+            freeSnapshots = new ArrayBlockingQueue<TreeSnapshot>(AsynchronousLogWriter.DEFAULT_QUEUE_SIZE + 1);
+            for (int i = 0; i < AsynchronousLogWriter.DEFAULT_QUEUE_SIZE + 1; i++) {
+                freeSnapshots.add(new TreeSnapshot(tree.getNodeCount()));
+            }
+        }
+
         if (nexusFormat) {
             int taxonCount = tree.getTaxonCount();
             logLine("#NEXUS");
@@ -218,6 +233,29 @@ public class TreeLogger extends MCLogger {
 
             buffer.append(" = [&R] ");
 
+            AsynchronousLogWriter writer = getWriter();
+            if (writer != null) {
+                // copy the tree into a snapshot and build the newick string on the writer thread
+                final String prefix = buffer.toString();
+                final TreeSnapshot snapshot = takeSnapshot();
+                snapshot.capture(tree, substitutions ? branchRates : null, treeTraitProviders);
+
+                writer.submit(new Runnable() {
+                    public void run() {
+                        newickBuffer.setLength(0);
+                        newickBuffer.append(prefix);
+                        snapshot.newick(snapshot.root, !substitutions && !mapNames, format, idMap, newickBuffer);
+                        freeSnapshots.add(snapshot);
+                        newickBuffer.append(";");
+                        String line = newickBuffer.toString();
+                        for (LogFormatter formatter : getFormatters()) {
+                            formatter.logLine(line);
+                        }
+                    }
+                });
+                return;
+            }
+
             if (substitutions) {
                 TreeUtils.newick(tree, tree.getRoot(), false, TreeUtils.BranchLengthType.LENGTHS_AS_SUBSTITUTIONS,
                         format, branchRates, treeTraitProviders, idMap, buffer);
@@ -237,6 +275,150 @@ public class TreeLogger extends MCLogger {
         super.stopLogging();
     }
 
+    private TreeSnapshot takeSnapshot() {
+        try {
+            return freeSnapshots.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while logging");
+        }
+    }
+
+    /**
+     * A copy of the tree (and the trait strings and branch rates) as primitive arrays that can be written
+     * as newick on another thread. The output is identical to that of TreeUtils.newick.
+     */
+    private static class TreeSnapshot {
+
+        TreeSnapshot(int nodeCount) {
+            allocate(nodeCount);
+        }
+
+        private void allocate(int nodeCount) {
+            heights = new double[nodeCount];
+            rates = new double[nodeCount];
+            parents = new int[nodeCount];
+            firstChild = new int[nodeCount];
+            nextSibling = new int[nodeCount];
+            taxonIds = new String[nodeCount];
+            nodeTraits = new String[nodeCount];
+            branchTraits = new String[nodeCount];
+        }
+
+        void capture(Tree tree, BranchRates branchRates, TreeTraitProvider[] treeTraitProviders) {
+            int nodeCount = tree.getNodeCount();
+            if (heights.length != nodeCount) {
+                allocate(nodeCount);
+            }
+
+            root = tree.getRoot().getNumber();
+            hasRates = branchRates != null;
+
+            StringBuffer traitBuffer = new StringBuffer();
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = tree.getNode(i);
+                NodeRef parent = tree.getParent(node);
+
+                heights[i] = tree.getNodeHeight(node);
+                parents[i] = (parent != null ? parent.getNumber() : -1);
+                firstChild[i] = -1;
+                nextSibling[i] = -1;
+                taxonIds[i] = (tree.isExternal(node) ? tree.getTaxonId(i) : null);
+
+                if (hasRates && parent != null) {
+                    rates[i] = branchRates.getBranchRate(tree, node);
+                }
+
+                nodeTraits[i] = null;
+                branchTraits[i] = null;
+                if (treeTraitProviders != null) {
+                    traitBuffer.setLength(0);
+                    TreeUtils.writeTreeTraits(traitBuffer, tree, node, treeTraitProviders, TreeTrait.Intent.NODE);
+                    if (traitBuffer.length() > 0) {
+                        nodeTraits[i] = traitBuffer.toString();
+                    }
+                    if (parent != null) {
+                        traitBuffer.setLength(0);
+                        TreeUtils.writeTreeTraits(traitBuffer, tree, node, treeTraitProviders, TreeTrait.Intent.BRANCH);
+                        if (traitBuffer.length() > 0) {
+                            branchTraits[i] = traitBuffer.toString();
+                        }
+                    }
+                }
+            }
+
+            // link the children in reverse so they come out in the tree's order
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = tree.getNode(i);
+                for (int j = tree.getChildCount(node) - 1; j >= 0; j--) {
+                    int child = tree.getChild(node, j).getNumber();
+                    nextSibling[child] = firstChild[i];
+                    firstChild[i] = child;
+                }
+            }
+        }
+
+        void newick(int node, boolean labels, NumberFormat format, Map<String, Integer> idMap, StringBuffer buffer) {
+            if (firstChild[node] == -1) {
+                if (!labels) {
+                    if (idMap != null) {
+                        buffer.append(idMap.get(taxonIds[node]));
+                    } else {
+                        buffer.append((node + 1));
+                    }
+                } else {
+                    String label = taxonIds[node];
+                    if (label.contains(" ") || label.contains(":") || label.contains(";") || label.contains(",")) {
+                        buffer.append("\"");
+                        buffer.append(label);
+                        buffer.append("\"");
+                    } else {
+                        buffer.append(label);
+                    }
+                }
+            } else {
+                buffer.append("(");
+                int child = firstChild[node];
+                newick(child, labels, format, idMap, buffer);
+                for (child = nextSibling[child]; child != -1; child = nextSibling[child]) {
+                    buffer.append(",");
+                    newick(child, labels, format, idMap, buffer);
+                }
+                buffer.append(")");
+            }
+
+            if (nodeTraits[node] != null) {
+                buffer.append(nodeTraits[node]);
+            }
+
+            int parent = parents[node];
+            if (parent != -1) {
+                buffer.append(":");
+                if (branchTraits[node] != null) {
+                    buffer.append(branchTraits[node]);
+                }
+
+                double length = heights[parent] - heights[node];
+                if (hasRates) {
+                    length *= rates[node];
+                }
+                buffer.append(format != null ? format.format(length) : String.valueOf(length));
+            }
+        }
+
+        int root;
+        boolean hasRates;
+
+        double[] heights;
+        double[] rates;
+        int[] parents;
+        int[] firstChild;
+        int[] nextSibling;
+        String[] taxonIds;
+        String[] nodeTraits;
+        String[] branchTraits;
+    }
+
     public Tree getTree() {
 		return tree;
 	}
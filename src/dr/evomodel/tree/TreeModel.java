@@ -104,7 +104,6 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
         nodeCount = internalNodeCount + externalNodeCount;
 
         nodes = new Node[nodeCount];
-        storedNodes = new Node[nodeCount];
 
         int i = 0;
         int j = externalNodeCount;
@@ -118,22 +117,34 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
                 node.number = i;
 
                 nodes[i] = node;
-                storedNodes[i] = new Node();
-                storedNodes[i].taxon = node.taxon;
-                storedNodes[i].number = i;
 
                 i++;
             } else {
                 node.number = j;
 
                 nodes[j] = node;
-                storedNodes[j] = new Node();
-                storedNodes[j].number = j;
 
                 j++;
             }
         } while (node != root);
 
+        storedParents = new int[nodeCount];
+        storedLeftChildren = new int[nodeCount];
+        storedRightChildren = new int[nodeCount];
+        storedHeightParameters = new Parameter[nodeCount];
+        storedRateParameters = new Parameter[nodeCount];
+        storedTraitParameters = new ArrayList<Map<String, Parameter>>(nodeCount);
+        for (int k = 0; k < nodeCount; k++) {
+            storedTraitParameters.add(null);
+        }
+
+        // the first store takes a snapshot of every node
+        isNodeChanged = new boolean[nodeCount];
+        changedNodes = new int[nodeCount];
+        for (int k = 0; k < nodeCount; k++) {
+            nodeStructureChanged(nodes[k]);
+        }
+
         // must be done here to allow programmatic running of BEAST
         setupHeightBounds();
     }
@@ -598,7 +609,10 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
      */
     protected void storeState() {
 
-        copyNodeStructure(storedNodes);
+        for (int i = 0; i < changedNodeCount; i++) {
+            storeNodeStructure(nodes[changedNodes[i]]);
+        }
+        clearChangedNodes();
         storedRootNumber = root.getNumber();
 
     }
@@ -608,9 +622,10 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
      */
     protected void restoreState() {
 
-        Node[] tmp = storedNodes;
-        storedNodes = nodes;
-        nodes = tmp;
+        for (int i = 0; i < changedNodeCount; i++) {
+            restoreNodeStructure(nodes[changedNodes[i]]);
+        }
+        clearChangedNodes();
 
         root = nodes[storedRootNumber];
     }
@@ -622,45 +637,50 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
     } // nothing to do
 
     /**
-     * Copies the node connections from this TreeModel's nodes array to the
-     * destination array. Basically it connects up the nodes in destination
-     * in the same way as this TreeModel is set up. This method is package
-     * private.
+     * Records that the links or parameter objects of this node have changed so
+     * that the next store or restore copies it.
      */
-    private void copyNodeStructure(Node[] destination) {
-
-        if (nodes.length != destination.length) {
-            throw new IllegalArgumentException("Node arrays are of different lengths");
+    private void nodeStructureChanged(Node node) {
+        // nodes are linked up before they are numbered when the tree is constructed
+        if (isNodeChanged != null && !isNodeChanged[node.number]) {
+            isNodeChanged[node.number] = true;
+            changedNodes[changedNodeCount] = node.number;
+            changedNodeCount++;
         }
+    }
 
-        for (int i = 0, n = nodes.length; i < n; i++) {
-            Node node0 = nodes[i];
-            Node node1 = destination[i];
-
-            // the parameter values are automatically stored and restored
-            // just need to keep the links
-            node1.heightParameter = node0.heightParameter;
-            node1.rateParameter = node0.rateParameter;
-            node1.traitParameters = node0.traitParameters;
-
-            if (node0.parent != null) {
-                node1.parent = storedNodes[node0.parent.getNumber()];
-            } else {
-                node1.parent = null;
-            }
+    private void clearChangedNodes() {
+        for (int i = 0; i < changedNodeCount; i++) {
+            isNodeChanged[changedNodes[i]] = false;
+        }
+        changedNodeCount = 0;
+    }
 
-            if (node0.leftChild != null) {
-                node1.leftChild = storedNodes[node0.leftChild.getNumber()];
-            } else {
-                node1.leftChild = null;
-            }
+    /**
+     * Copies the links of a node into the stored arrays. The parameter values are
+     * automatically stored and restored so only the parameter objects are kept.
+     */
+    private void storeNodeStructure(Node node) {
+        int i = node.number;
+        storedParents[i] = (node.parent != null ? node.parent.number : -1);
+        storedLeftChildren[i] = (node.leftChild != null ? node.leftChild.number : -1);
+        storedRightChildren[i] = (node.rightChild != null ? node.rightChild.number : -1);
+        storedHeightParameters[i] = node.heightParameter;
+        storedRateParameters[i] = node.rateParameter;
+        storedTraitParameters.set(i, node.traitParameters);
+    }
 
-            if (node0.rightChild != null) {
-                node1.rightChild = storedNodes[node0.rightChild.getNumber()];
-            } else {
-                node1.rightChild = null;
-            }
-        }
+    /**
+     * Reconnects a node from the stored arrays.
+     */
+    private void restoreNodeStructure(Node node) {
+        int i = node.number;
+        node.parent = (storedParents[i] != -1 ? nodes[storedParents[i]] : null);
+        node.leftChild = (storedLeftChildren[i] != -1 ? nodes[storedLeftChildren[i]] : null);
+        node.rightChild = (storedRightChildren[i] != -1 ? nodes[storedRightChildren[i]] : null);
+        node.heightParameter = storedHeightParameters[i];
+        node.rateParameter = storedRateParameters[i];
+        node.traitParameters = storedTraitParameters.get(i);
     }
 
     /**
@@ -1250,6 +1270,9 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
             }
         }
 
+        nodeStructureChanged(n1);
+        nodeStructureChanged(n2);
+
         Parameter temp = n1.heightParameter;
         n1.heightParameter = n2.heightParameter;
         n2.heightParameter = temp;
@@ -1322,6 +1345,7 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
                 } else {
                     rateParameter = new Parameter.Default(1.0);
                 }
+                nodeStructureChanged(this);
                 setParameterId("rate", rateParameter);
                 rateParameter.addBounds(new Parameter.DefaultBounds(Double.POSITIVE_INFINITY, 0.0, 1));
                 addVariable(rateParameter);
@@ -1467,6 +1491,8 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
                 throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
             }
             node.parent = this;
+            nodeStructureChanged(this);
+            nodeStructureChanged(node);
         }
 
         /**
@@ -1483,6 +1509,8 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
                 throw new IllegalArgumentException("Unknown child node");
             }
             node.parent = null;
+            nodeStructureChanged(this);
+            nodeStructureChanged(node);
             return node;
         }
 
@@ -1503,6 +1531,8 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
                 throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
             }
             node.parent = null;
+            nodeStructureChanged(this);
+            nodeStructureChanged(node);
             return node;
         }
 
@@ -1580,7 +1610,23 @@ public class TreeModel extends AbstractModel implements MultivariateTraitTree, C
      * list of internal nodes (including root)
      */
     private Node[] nodes = null;
-    private Node[] storedNodes = null;
+
+    /**
+     * the stored links of each node by node number (-1 for none) and its parameter objects
+     */
+    private int[] storedParents;
+    private int[] storedLeftChildren;
+    private int[] storedRightChildren;
+    private Parameter[] storedHeightParameters;
+    private Parameter[] storedRateParameters;
+    private List<Map<String, Parameter>> storedTraitParameters;
+
+    /**
+     * the nodes changed since the last store or restore
+     */
+    private boolean[] isNodeChanged;
+    private int[] changedNodes;
+    private int changedNodeCount = 0;
 
     /**
      * number of nodes (including root and tips)
@@ -37,11 +37,13 @@ package dr.evomodel.treedatalikelihood;
 
 import beagle.*;
 import dr.evomodel.branchmodel.BranchModel;
+import dr.evomodel.substmodel.EigenDecomposition;
 import dr.evomodel.siteratemodel.SiteRateModel;
 import dr.evomodel.treelikelihood.*;
 import dr.evolution.alignment.PatternList;
 import dr.evolution.alignment.UncertainSiteList;
 import dr.evolution.datatype.DataType;
+import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.TaxonList;
 import dr.evomodel.tipstatesmodel.TipStatesModel;
@@ -138,6 +140,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
         internalNodeCount = nodeCount - tipCount;
 
         branchUpdateIndices = new int[nodeCount];
+        tipSequenceIndices = new int[tipCount];
         branchLengths = new double[nodeCount];
         scaleBufferIndices = new int[internalNodeCount];
         storedScaleBufferIndices = new int[internalNodeCount];
@@ -160,7 +163,12 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             // one scaling buffer for each internal node plus an extra for the accumulation, then doubled for store/restore
             scaleBufferHelper = new BufferIndexHelper(getScaleBufferCount(), 0);
 
-            evolutionaryProcessDelegate = new HomogenousSubstitutionModelDelegate(tree, branchModel);
+            if (branchModel.getSubstitutionModels().size() == 1) {
+                evolutionaryProcessDelegate = new HomogenousSubstitutionModelDelegate(tree, branchModel);
+            } else {
+                // more than one substitution model (e.g., an epoch model) so matrices may need convolving
+                evolutionaryProcessDelegate = new SubstitutionModelDelegate(tree, branchModel);
+            }
 
             // Attempt to get the resource order from the System Property
             if (resourceOrder == null) {
@@ -280,7 +288,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                 requirementFlags |= BeagleFlag.EIGEN_COMPLEX.getMask();
             }
 
-            beagle = BeagleFactory.loadBeagleInstance(
+            beagle = JavaBeagleImpl.loadBeagleInstance(
                     tipCount,
                     partialBufferHelper.getBufferCount(),
                     compactPartialsCount,
@@ -299,7 +307,11 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             ResourceDetails resourceDetails = null;
 
             if (instanceDetails != null) {
-                resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                if (beagle instanceof JavaBeagleImpl) {
+                    resourceDetails = ((JavaBeagleImpl) beagle).getResourceDetails();
+                } else {
+                    resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                }
                 if (resourceDetails != null) {
                     StringBuilder sb = new StringBuilder("  Using BEAGLE resource ");
                     sb.append(resourceDetails.getNumber()).append(": ");
@@ -325,6 +337,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                 useAmbiguities = true;
             }
 
+            this.useAmbiguities = useAmbiguities;
             logger.info("  " + (useAmbiguities ? "Using" : "Ignoring") + " ambiguities in tree likelihood.");
             logger.info("  With " + patternList.getPatternCount() + " unique site patterns.");
 
@@ -337,6 +350,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                     throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + tree.getId() +
                             ", is not found in patternList, " + patternList.getId());
                 } else {
+                    tipSequenceIndices[i] = index;
                     if (useAmbiguities) {
                         setPartials(beagle, patternList, index, i);
                     } else {
@@ -455,6 +469,18 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                                    PatternList patternList,
                                    int sequenceIndex,
                                    int nodeIndex) {
+        beagle.setPartials(nodeIndex, getSequencePartials(patternList, sequenceIndex, true));
+    }
+
+    /**
+     * Returns the partials of a sequence in an alignment (replicated for each rate category).
+     *
+     * @param patternList    patternList
+     * @param sequenceIndex  sequenceIndex
+     * @param useAmbiguities if false, ambiguous states are treated as missing (as tip states are by BEAGLE)
+     * @return the partials
+     */
+    private double[] getSequencePartials(PatternList patternList, int sequenceIndex, boolean useAmbiguities) {
         double[] partials = new double[patternCount * stateCount * categoryCount];
 
         boolean[] stateSet;
@@ -472,7 +498,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
                 stateSet = dataType.getStateSet(state);
 
                 for (int j = 0; j < stateCount; j++) {
-                    if (stateSet[j]) {
+                    if (stateSet[j] || (!useAmbiguities && state >= stateCount)) {
                         partials[v] = 1.0;
                     } else {
                         partials[v] = 0.0;
@@ -490,7 +516,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             k += n;
         }
 
-        beagle.setPartials(nodeIndex, partials);
+        return partials;
     }
 
     /**
@@ -629,7 +655,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             branchUpdateCount ++;
         }
 
-        if (updateSubstitutionModel) { // TODO More efficient to update only the substitution model that changed, instead of all
+        if (updateSubstitutionModel) {
             evolutionaryProcessDelegate.updateSubstitutionModels(beagle, flip);
 
             // we are currently assuming a no-category model...
@@ -811,6 +837,233 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
         return logL;
     }
 
+    /**
+     * Calculates the gradient of the log likelihood with respect to the length (in expected
+     * substitutions) of the branch above each node. The partials of the last likelihood
+     * calculation are pulled back from BEAGLE and a single pre-order traversal then gives,
+     * for each branch, the probability of the data outside the subtree below it, so each
+     * derivative costs the same as one step of the pruning algorithm.
+     *
+     * This must follow a likelihood calculation for the same tree and branch lengths.
+     *
+     * @param tree          the tree
+     * @param branchLengths the length of the branch above each node (by node number)
+     * @param gradient      an array (by node number) to hold the derivatives (the root's is zero)
+     */
+    public void getBranchLengthGradient(Tree tree, double[] branchLengths, double[] gradient) {
+
+        if (evolutionaryProcessDelegate.getSubstitutionModelCount() != 1) {
+            throw new RuntimeException("Branch length gradients are only implemented for a single substitution model");
+        }
+
+        EigenDecomposition ed = evolutionaryProcessDelegate.getSubstitutionModel(0).getEigenDecomposition();
+        double[] eigenValues = ed.getEigenValues();
+        if (eigenValues.length != stateCount) {
+            throw new RuntimeException("Branch length gradients are not implemented for complex diagonalizations");
+        }
+
+        final int partialsSize = patternCount * stateCount * categoryCount;
+        final int matrixSize = stateCount * stateCount;
+
+        if (postOrderPartials == null) {
+            postOrderPartials = new double[nodeCount][];
+            preOrderPartials = new double[nodeCount][partialsSize];
+            for (int i = 0; i < tipCount; i++) {
+                postOrderPartials[i] = getSequencePartials(patternList, tipSequenceIndices[i], useAmbiguities);
+            }
+            for (int i = tipCount; i < nodeCount; i++) {
+                postOrderPartials[i] = new double[partialsSize];
+            }
+            transitionMatrices = new double[nodeCount][categoryCount * matrixSize];
+            differentialMatrices = new double[nodeCount][categoryCount * matrixSize];
+            branchPartials = new double[partialsSize];
+            nodeStack = new int[nodeCount];
+        }
+
+        for (int i = tipCount; i < nodeCount; i++) {
+            getPartials(i, postOrderPartials[i]);
+        }
+
+        double[] categoryRates = siteRateModel.getCategoryRates();
+        double[] categoryWeights = siteRateModel.getCategoryProportions();
+        double[] frequencies = evolutionaryProcessDelegate.getRootStateFrequencies();
+
+        NodeRef root = tree.getRoot();
+        for (int i = 0; i < nodeCount; i++) {
+            if (i != root.getNumber()) {
+                setTransitionMatrices(ed, categoryRates, branchLengths[i], transitionMatrices[i], differentialMatrices[i]);
+            }
+        }
+
+        // the pre-order partials of the root are the root frequencies
+        double[] rootPartials = preOrderPartials[root.getNumber()];
+        for (int v = 0; v < partialsSize; v += stateCount) {
+            System.arraycopy(frequencies, 0, rootPartials, v, stateCount);
+        }
+        gradient[root.getNumber()] = 0.0;
+
+        int stackSize = 0;
+        nodeStack[stackSize++] = root.getNumber();
+
+        while (stackSize > 0) {
+            final NodeRef parent = tree.getNode(nodeStack[--stackSize]);
+            final double[] parentPartials = preOrderPartials[parent.getNumber()];
+            final int childCount = tree.getChildCount(parent);
+
+            for (int c = 0; c < childCount; c++) {
+                final int child = tree.getChild(parent, c).getNumber();
+
+                // the partials at the top of this branch are those of the parent times those of the siblings
+                System.arraycopy(parentPartials, 0, branchPartials, 0, partialsSize);
+                for (int s = 0; s < childCount; s++) {
+                    if (s != c) {
+                        final int sibling = tree.getChild(parent, s).getNumber();
+                        multiplyByBranch(branchPartials, transitionMatrices[sibling], postOrderPartials[sibling]);
+                    }
+                }
+                normalizePartials(branchPartials);
+
+                gradient[child] = getBranchDerivative(branchPartials, transitionMatrices[child],
+                        differentialMatrices[child], postOrderPartials[child], categoryWeights);
+
+                if (child >= tipCount) {
+                    // pass the partials down to the bottom of the branch
+                    final double[] childPartials = preOrderPartials[child];
+                    final double[] matrices = transitionMatrices[child];
+                    int v = 0;
+                    for (int l = 0; l < categoryCount; l++) {
+                        final int w = l * matrixSize;
+                        for (int k = 0; k < patternCount; k++) {
+                            for (int j = 0; j < stateCount; j++) {
+                                double sum = 0.0;
+                                for (int i = 0; i < stateCount; i++) {
+                                    sum += branchPartials[v + i] * matrices[w + i * stateCount + j];
+                                }
+                                childPartials[v + j] = sum;
+                            }
+                            v += stateCount;
+                        }
+                    }
+                    nodeStack[stackSize++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the transition probability matrices, and their derivatives with respect to the
+     * branch length, for each rate category.
+     */
+    private void setTransitionMatrices(EigenDecomposition ed, double[] categoryRates, double branchLength,
+                                       double[] matrices, double[] differentials) {
+        final double[] evec = ed.getEigenVectors();
+        final double[] ievc = ed.getInverseEigenVectors();
+        final double[] eval = ed.getEigenValues();
+
+        int u = 0;
+        for (int l = 0; l < categoryCount; l++) {
+            final double rate = categoryRates[l];
+            for (int i = 0; i < stateCount; i++) {
+                for (int j = 0; j < stateCount; j++) {
+                    double sum = 0.0;
+                    double differentialSum = 0.0;
+                    for (int k = 0; k < stateCount; k++) {
+                        final double x = evec[i * stateCount + k] * Math.exp(eval[k] * rate * branchLength) * ievc[k * stateCount + j];
+                        sum += x;
+                        differentialSum += x * eval[k] * rate;
+                    }
+                    matrices[u] = sum;
+                    differentials[u] = differentialSum;
+                    u++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiplies the partials by those at the top of the branch with the given matrices and bottom partials.
+     */
+    private void multiplyByBranch(double[] partials, double[] matrices, double[] bottomPartials) {
+        final int matrixSize = stateCount * stateCount;
+        int v = 0;
+        for (int l = 0; l < categoryCount; l++) {
+            final int w = l * matrixSize;
+            for (int k = 0; k < patternCount; k++) {
+                for (int i = 0; i < stateCount; i++) {
+                    double sum = 0.0;
+                    for (int j = 0; j < stateCount; j++) {
+                        sum += matrices[w + i * stateCount + j] * bottomPartials[v + j];
+                    }
+                    partials[v + i] *= sum;
+                }
+                v += stateCount;
+            }
+        }
+    }
+
+    /**
+     * Scales the partials of each pattern (across all categories) so the largest is one. As the
+     * derivatives are ratios for each pattern this avoids underflow without changing them.
+     */
+    private void normalizePartials(double[] partials) {
+        final int categorySize = patternCount * stateCount;
+        for (int k = 0; k < patternCount; k++) {
+            double max = 0.0;
+            for (int l = 0; l < categoryCount; l++) {
+                final int v = l * categorySize + k * stateCount;
+                for (int i = 0; i < stateCount; i++) {
+                    max = Math.max(max, partials[v + i]);
+                }
+            }
+            if (max > 0.0) {
+                for (int l = 0; l < categoryCount; l++) {
+                    final int v = l * categorySize + k * stateCount;
+                    for (int i = 0; i < stateCount; i++) {
+                        partials[v + i] /= max;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the derivative of the log likelihood with respect to the length of a branch given the
+     * partials at its top and bottom.
+     */
+    private double getBranchDerivative(double[] topPartials, double[] matrices, double[] differentials,
+                                       double[] bottomPartials, double[] categoryWeights) {
+        final int categorySize = patternCount * stateCount;
+        final int matrixSize = stateCount * stateCount;
+
+        double derivative = 0.0;
+        for (int k = 0; k < patternCount; k++) {
+            double likelihood = 0.0;
+            double differential = 0.0;
+            for (int l = 0; l < categoryCount; l++) {
+                final int v = l * categorySize + k * stateCount;
+                final int w = l * matrixSize;
+                double sum = 0.0;
+                double differentialSum = 0.0;
+                for (int i = 0; i < stateCount; i++) {
+                    if (topPartials[v + i] != 0.0) {
+                        double x = 0.0;
+                        double dx = 0.0;
+                        for (int j = 0; j < stateCount; j++) {
+                            x += matrices[w + i * stateCount + j] * bottomPartials[v + j];
+                            dx += differentials[w + i * stateCount + j] * bottomPartials[v + j];
+                        }
+                        sum += topPartials[v + i] * x;
+                        differentialSum += topPartials[v + i] * dx;
+                    }
+                }
+                likelihood += categoryWeights[l] * sum;
+                differential += categoryWeights[l] * differentialSum;
+            }
+            derivative += patternWeights[k] * differential / likelihood;
+        }
+        return derivative;
+    }
+
     public void getPartials(int number, double[] partials) {
         int cumulativeBufferIndex = Beagle.NONE;
         /* No need to rescale partials */
@@ -825,12 +1078,15 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
     public void makeDirty() {
         updateSiteModel = true;
         updateSubstitutionModel = true;
+        evolutionaryProcessDelegate.makeDirty();
     }
 
     @Override
     protected void handleModelChangedEvent(Model model, Object object, int index) {
         if (model == siteRateModel) {
             updateSiteModel = true;
+            // the transition matrices are computed with the category rates
+            evolutionaryProcessDelegate.makeDirty();
         } else if (model == branchModel) {
             updateSubstitutionModel = true;
         }
@@ -1013,6 +1269,26 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
      */
     private final Beagle beagle;
 
+    /**
+     * the sequence of each tip in the pattern list
+     */
+    private final int[] tipSequenceIndices;
+
+    /**
+     * whether the tips were given as partials (respecting ambiguities) rather than states
+     */
+    private boolean useAmbiguities;
+
+    /**
+     * working storage for the branch length gradients (allocated when first needed)
+     */
+    private double[][] postOrderPartials;
+    private double[][] preOrderPartials;
+    private double[][] transitionMatrices;
+    private double[][] differentialMatrices;
+    private double[] branchPartials;
+    private int[] nodeStack;
+
     /**
      * Flag to specify that the substitution model has changed
      */
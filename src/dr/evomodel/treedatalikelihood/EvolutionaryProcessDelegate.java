@@ -60,6 +60,12 @@ public interface EvolutionaryProcessDelegate {
 
     void flipTransitionMatrices(int[] branchIndices, int updateCount);
 
+    /**
+     * Flags all the eigen decompositions and transition matrices to be sent or computed again at
+     * the next update (for example because the site rate categories have changed).
+     */
+    void makeDirty();
+
     void storeState();
 
     void restoreState();
@@ -170,6 +170,10 @@ public final class HomogenousSubstitutionModelDelegate implements EvolutionaryPr
         }
     }
 
+    @Override
+    public void makeDirty() {
+        // nothing to do - everything is recomputed whenever it is updated
+    }
 
     @Override
     public void storeState() {
@@ -0,0 +1,1242 @@
+/*
+ * JavaBeagleImpl.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import beagle.*;
+import dr.util.SharedThreadPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * JavaBeagleImpl
+ *
+ * A pure Java implementation of the BEAGLE API for CPU-only machines where the native
+ * library is not installed. Partials are held in flat primitive buffers ordered pattern,
+ * then category, then state so that each block of patterns is contiguous in memory and
+ * can be computed by a separate thread. The 4-state case is fully unrolled. The 20-state
+ * (amino acid) case has its own kernels with a fixed-length inner product written out in
+ * blocks of four rather than all twenty terms, and partials-partials operations take both
+ * children through each matrix row together. Other state counts use a general inner
+ * product unrolled by four.
+ * Rescaling is only applied to patterns whose partials have drifted towards underflow.
+ * Transition matrix derivatives are supported for both real and complex eigen decompositions.
+ *
+ * This implementation is used by the BEAGLE likelihoods whenever the native library cannot be
+ * loaded and the resource order (beagle.resource.order, -beagle_order) and requirements allow
+ * the CPU (resource 0, as with -beagle_CPU), or when 'java.only' is set. Setting the system
+ * property 'beagle.java.legacy' restores the reference implementation in beagle.jar. The number
+ * of threads can be set with 'beagle.java.thread.count' (-beagle_threads).
+ *
+ * @version $Id$
+ */
+public class JavaBeagleImpl implements Beagle {
+
+    public static final String LEGACY_IMPLEMENTATION_PROPERTY = "beagle.java.legacy";
+    public static final String THREAD_COUNT_PROPERTY = "beagle.java.thread.count";
+
+    // patterns are only divided amongst threads in blocks at least this large
+    private static final int MIN_PATTERNS_PER_THREAD = 256;
+
+    // patterns whose largest partial falls below this are rescaled
+    private static final double SCALING_THRESHOLD = Math.pow(2.0, -256);
+
+
+    /**
+     * Loads a BEAGLE instance from the BeagleFactory, substituting this implementation if
+     * the native library is not available (or the factory could only provide its own
+     * Java fallback) and the requested resources allow the CPU.
+     */
+    public static Beagle loadBeagleInstance(int tipCount,
+                                            int partialsBufferCount,
+                                            int compactBufferCount,
+                                            int stateCount,
+                                            int patternCount,
+                                            int eigenBufferCount,
+                                            int matrixBufferCount,
+                                            int categoryCount,
+                                            int scaleBufferCount,
+                                            int[] resourceList,
+                                            long preferenceFlags,
+                                            long requirementFlags) {
+
+        boolean useLegacy = Boolean.valueOf(System.getProperty(LEGACY_IMPLEMENTATION_PROPERTY));
+
+        Beagle beagle = null;
+        try {
+            beagle = BeagleFactory.loadBeagleInstance(
+                    tipCount,
+                    partialsBufferCount,
+                    compactBufferCount,
+                    stateCount,
+                    patternCount,
+                    eigenBufferCount,
+                    matrixBufferCount,
+                    categoryCount,
+                    scaleBufferCount,
+                    resourceList,
+                    preferenceFlags,
+                    requirementFlags);
+        } catch (RuntimeException re) {
+            if (useLegacy || BeagleJNIWrapper.INSTANCE != null || !isCPUAllowed(resourceList, requirementFlags)) {
+                throw re;
+            }
+            // no native library: fall through to the Java implementation
+        }
+
+        if (beagle == null || (beagle instanceof GeneralBeagleImpl && !useLegacy)) {
+            beagle = new JavaBeagleImpl(
+                    tipCount,
+                    partialsBufferCount,
+                    compactBufferCount,
+                    stateCount,
+                    patternCount,
+                    eigenBufferCount,
+                    matrixBufferCount,
+                    categoryCount,
+                    scaleBufferCount,
+                    getDefaultThreadCount());
+        }
+
+        return beagle;
+    }
+
+    private static boolean isCPUAllowed(int[] resourceList, long requirementFlags) {
+        if ((requirementFlags & (BeagleFlag.PROCESSOR_GPU.getMask() |
+                BeagleFlag.FRAMEWORK_CUDA.getMask() |
+                BeagleFlag.FRAMEWORK_OPENCL.getMask() |
+                BeagleFlag.PRECISION_SINGLE.getMask())) != 0) {
+            return false;
+        }
+        if (resourceList == null) {
+            return true;
+        }
+        for (int resource : resourceList) {
+            if (resource == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getDefaultThreadCount() {
+        String t = System.getProperty(THREAD_COUNT_PROPERTY);
+        if (t != null) {
+            try {
+                return Math.max(1, Integer.parseInt(t.trim()));
+            } catch (NumberFormatException nfe) {
+                System.err.println("Invalid entry '" + t + "' in " + THREAD_COUNT_PROPERTY);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public JavaBeagleImpl(final int tipCount,
+                          final int partialsBufferCount,
+                          final int compactBufferCount,
+                          final int stateCount,
+                          final int patternCount,
+                          final int eigenBufferCount,
+                          final int matrixBufferCount,
+                          final int categoryCount,
+                          final int scaleBufferCount,
+                          final int threadCount) {
+
+        this.stateCount = stateCount;
+        this.patternCount = patternCount;
+        this.categoryCount = categoryCount;
+
+        rowLength = stateCount + 1; // padded with a column for gaps/missing states
+        matrixSize = categoryCount * stateCount * rowLength;
+        partialsSize = patternCount * categoryCount * stateCount;
+
+        int bufferCount = Math.max(1, eigenBufferCount);
+        cijk = new double[bufferCount][];
+        eigenValues = new double[bufferCount][];
+        eigenVectors = new double[bufferCount][];
+        inverseEigenVectors = new double[bufferCount][];
+        isComplex = new boolean[bufferCount];
+        categoryRates = new double[bufferCount][];
+        categoryWeights = new double[bufferCount][];
+        stateFrequencies = new double[bufferCount][];
+
+        patternWeights = new double[patternCount];
+        siteLogLikelihoods = new double[patternCount];
+
+        partials = new double[partialsBufferCount][];
+        tipStates = new int[Math.max(tipCount, compactBufferCount)][];
+        matrices = new double[matrixBufferCount][];
+        scaleBuffers = new double[scaleBufferCount][];
+        for (int i = 0; i < scaleBufferCount; i++) {
+            scaleBuffers[i] = new double[patternCount];
+        }
+
+        tmpMatrix = new double[stateCount * stateCount];
+        tmpExp = new double[stateCount];
+        tmpComplex = new double[stateCount * stateCount];
+        tmpDerivative = new double[stateCount * stateCount];
+
+        // divide the patterns into contiguous blocks, one per thread
+        int blockCount = Math.max(1, Math.min(threadCount, patternCount / MIN_PATTERNS_PER_THREAD));
+        blockStarts = new int[blockCount + 1];
+        for (int i = 0; i <= blockCount; i++) {
+            blockStarts[i] = (int) (((long) patternCount * i) / blockCount);
+        }
+        this.threadCount = blockCount;
+
+        if (blockCount > 1) {
+            executor = SharedThreadPool.getPool("JavaBeagleImpl", blockCount - 1);
+            blockTasks = new ArrayList<PatternBlockTask>();
+            for (int i = 0; i < blockCount; i++) {
+                blockTasks.add(new PatternBlockTask(i));
+            }
+        } else {
+            executor = null;
+            blockTasks = null;
+        }
+
+        partitionStarts = new int[]{0, patternCount};
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public ResourceDetails getResourceDetails() {
+        ResourceDetails resourceDetails = new ResourceDetails(0);
+        resourceDetails.setName("CPU (BEAST Java)");
+        resourceDetails.setDescription(threadCount + " thread" + (threadCount > 1 ? "s" : ""));
+        resourceDetails.setFlags(getFlags());
+        return resourceDetails;
+    }
+
+    private long getFlags() {
+        return BeagleFlag.PROCESSOR_CPU.getMask() |
+                BeagleFlag.PRECISION_DOUBLE.getMask() |
+                BeagleFlag.SCALING_MANUAL.getMask() |
+                BeagleFlag.SCALERS_LOG.getMask() |
+                BeagleFlag.EIGEN_REAL.getMask() |
+                BeagleFlag.EIGEN_COMPLEX.getMask() |
+                BeagleFlag.FRAMEWORK_CPU.getMask() |
+                BeagleFlag.THREADING_NONE.getMask();
+    }
+
+    /**
+     * Releases the buffers of this instance, which must not be used afterwards. The worker threads
+     * belong to the shared pool and are left for other instances.
+     */
+    public void finalize() throws Throwable {
+        super.finalize();
+        Arrays.fill(partials, null);
+        Arrays.fill(tipStates, null);
+        Arrays.fill(matrices, null);
+        Arrays.fill(scaleBuffers, null);
+    }
+
+    // **************************************************************
+    // Data setup
+    // **************************************************************
+
+    public void setPatternWeights(final double[] patternWeights) {
+        System.arraycopy(patternWeights, 0, this.patternWeights, 0, patternCount);
+    }
+
+    public void setPatternPartitions(int partitionCount, int[] patternPartitions) {
+        int[] starts = new int[partitionCount + 1];
+        int current = 0;
+        for (int i = 0; i < patternCount; i++) {
+            int partition = patternPartitions[i];
+            if (partition < current) {
+                throw new IllegalArgumentException("JavaBeagleImpl requires the patterns of each partition to be contiguous");
+            }
+            while (current < partition) {
+                current++;
+                starts[current] = i;
+            }
+        }
+        while (current < partitionCount) {
+            current++;
+            starts[current] = patternCount;
+        }
+        partitionStarts = starts;
+    }
+
+    public void setTipStates(int tipIndex, int[] inStates) {
+        if (tipStates[tipIndex] == null) {
+            tipStates[tipIndex] = new int[patternCount];
+        }
+        int[] states = tipStates[tipIndex];
+        for (int i = 0; i < patternCount; i++) {
+            // any ambiguous or missing state is mapped onto the padded column
+            states[i] = (inStates[i] < stateCount ? inStates[i] : stateCount);
+        }
+        partials[tipIndex] = null;
+    }
+
+    public void getTipStates(int tipIndex, int[] outStates) {
+        System.arraycopy(tipStates[tipIndex], 0, outStates, 0, patternCount);
+    }
+
+    public void setTipPartials(int tipIndex, double[] inPartials) {
+        double[] destination = getPartialsBuffer(tipIndex);
+        int v = 0;
+        for (int k = 0; k < patternCount; k++) {
+            for (int l = 0; l < categoryCount; l++) {
+                System.arraycopy(inPartials, k * stateCount, destination, v, stateCount);
+                v += stateCount;
+            }
+        }
+        if (tipIndex < tipStates.length) {
+            tipStates[tipIndex] = null;
+        }
+    }
+
+    public void setPartials(int bufferIndex, double[] inPartials) {
+        // inPartials are ordered category, pattern, state
+        double[] destination = getPartialsBuffer(bufferIndex);
+        for (int l = 0; l < categoryCount; l++) {
+            int u = l * patternCount * stateCount;
+            for (int k = 0; k < patternCount; k++) {
+                System.arraycopy(inPartials, u, destination, (k * categoryCount + l) * stateCount, stateCount);
+                u += stateCount;
+            }
+        }
+        if (bufferIndex < tipStates.length) {
+            tipStates[bufferIndex] = null;
+        }
+    }
+
+    public void getPartials(int bufferIndex, int scaleIndex, double[] outPartials) {
+        double[] source = partials[bufferIndex];
+        for (int l = 0; l < categoryCount; l++) {
+            int u = l * patternCount * stateCount;
+            for (int k = 0; k < patternCount; k++) {
+                int v = (k * categoryCount + l) * stateCount;
+                if (scaleIndex != Beagle.NONE) {
+                    double scale = Math.exp(scaleBuffers[scaleIndex][k]);
+                    for (int i = 0; i < stateCount; i++) {
+                        outPartials[u + i] = source[v + i] * scale;
+                    }
+                } else {
+                    System.arraycopy(source, v, outPartials, u, stateCount);
+                }
+                u += stateCount;
+            }
+        }
+    }
+
+    public void getLogScaleFactors(int scaleIndex, double[] outFactors) {
+        System.arraycopy(scaleBuffers[scaleIndex], 0, outFactors, 0, patternCount);
+    }
+
+    private double[] getPartialsBuffer(int bufferIndex) {
+        if (partials[bufferIndex] == null) {
+            partials[bufferIndex] = new double[partialsSize];
+        }
+        return partials[bufferIndex];
+    }
+
+    // **************************************************************
+    // Model setup
+    // **************************************************************
+
+    public void setEigenDecomposition(int eigenIndex, double[] inEigenVectors, double[] inInverseEigenVectors, double[] inEigenValues) {
+
+        eigenValues[eigenIndex] = copy(inEigenValues, eigenValues[eigenIndex]);
+
+        boolean complex = false;
+        if (inEigenValues.length >= 2 * stateCount) {
+            for (int k = 0; k < stateCount; k++) {
+                if (inEigenValues[stateCount + k] != 0.0) {
+                    complex = true;
+                    break;
+                }
+            }
+        }
+        isComplex[eigenIndex] = complex;
+
+        if (complex) {
+            eigenVectors[eigenIndex] = copy(inEigenVectors, eigenVectors[eigenIndex]);
+            inverseEigenVectors[eigenIndex] = copy(inInverseEigenVectors, inverseEigenVectors[eigenIndex]);
+        } else {
+            // precompute Cijk = V[i][k] * V^-1[k][j]
+            if (cijk[eigenIndex] == null) {
+                cijk[eigenIndex] = new double[stateCount * stateCount * stateCount];
+            }
+            double[] c = cijk[eigenIndex];
+            int l = 0;
+            for (int i = 0; i < stateCount; i++) {
+                for (int j = 0; j < stateCount; j++) {
+                    for (int k = 0; k < stateCount; k++) {
+                        c[l] = inEigenVectors[i * stateCount + k] * inInverseEigenVectors[k * stateCount + j];
+                        l++;
+                    }
+                }
+            }
+        }
+    }
+
+    public void setStateFrequencies(int stateFrequenciesIndex, double[] inStateFrequencies) {
+        stateFrequencies = ensureCapacity(stateFrequencies, stateFrequenciesIndex);
+        stateFrequencies[stateFrequenciesIndex] = copy(inStateFrequencies, stateFrequencies[stateFrequenciesIndex]);
+    }
+
+    public void setCategoryWeights(int categoryWeightsIndex, double[] inCategoryWeights) {
+        categoryWeights = ensureCapacity(categoryWeights, categoryWeightsIndex);
+        categoryWeights[categoryWeightsIndex] = copy(inCategoryWeights, categoryWeights[categoryWeightsIndex]);
+    }
+
+    public void setCategoryRates(double[] inCategoryRates) {
+        setCategoryRatesWithIndex(0, inCategoryRates);
+    }
+
+    public void setCategoryRatesWithIndex(int categoryRatesIndex, double[] inCategoryRates) {
+        categoryRates = ensureCapacity(categoryRates, categoryRatesIndex);
+        categoryRates[categoryRatesIndex] = copy(inCategoryRates, categoryRates[categoryRatesIndex]);
+    }
+
+    private static double[] copy(double[] source, double[] destination) {
+        if (destination == null || destination.length != source.length) {
+            destination = new double[source.length];
+        }
+        System.arraycopy(source, 0, destination, 0, source.length);
+        return destination;
+    }
+
+    private static double[][] ensureCapacity(double[][] buffers, int index) {
+        if (index < buffers.length) {
+            return buffers;
+        }
+        double[][] newBuffers = new double[index + 1][];
+        System.arraycopy(buffers, 0, newBuffers, 0, buffers.length);
+        return newBuffers;
+    }
+
+    // **************************************************************
+    // Transition matrices
+    // **************************************************************
+
+    public void convolveTransitionMatrices(int[] firstIndices, int[] secondIndices, int[] resultIndices, int matrixCount) {
+        for (int u = 0; u < matrixCount; u++) {
+            if (firstIndices[u] == resultIndices[u] || secondIndices[u] == resultIndices[u]) {
+                throw new IllegalArgumentException("Input and output transition matrices must be different");
+            }
+            double[] a = matrices[firstIndices[u]];
+            double[] b = matrices[secondIndices[u]];
+            double[] c = getMatrixBuffer(resultIndices[u]);
+
+            for (int l = 0; l < categoryCount; l++) {
+                int offset = l * stateCount * rowLength;
+                for (int i = 0; i < stateCount; i++) {
+                    int row = offset + i * rowLength;
+                    for (int j = 0; j < stateCount; j++) {
+                        double sum = 0.0;
+                        for (int k = 0; k < stateCount; k++) {
+                            sum += a[row + k] * b[offset + k * rowLength + j];
+                        }
+                        c[row + j] = sum;
+                    }
+                    c[row + stateCount] = 1.0;
+                }
+            }
+        }
+    }
+
+    public void updateTransitionMatrices(int eigenIndex, int[] probabilityIndices, int[] firstDerivativeIndices,
+                                         int[] secondDerivativeIndices, double[] edgeLengths, int count) {
+        for (int u = 0; u < count; u++) {
+            updateTransitionMatrix(eigenIndex, 0, probabilityIndices[u],
+                    (firstDerivativeIndices != null ? firstDerivativeIndices[u] : Beagle.NONE),
+                    (secondDerivativeIndices != null ? secondDerivativeIndices[u] : Beagle.NONE),
+                    edgeLengths[u]);
+        }
+    }
+
+    public void updateTransitionMatricesWithMultipleModels(int[] eigenIndices, int[] categoryRateIndices,
+                                                           int[] probabilityIndices, int[] firstDerivativeIndices,
+                                                           int[] secondDerivativeIndices, double[] edgeLengths, int count) {
+        for (int u = 0; u < count; u++) {
+            updateTransitionMatrix(eigenIndices[u], categoryRateIndices[u], probabilityIndices[u],
+                    (firstDerivativeIndices != null ? firstDerivativeIndices[u] : Beagle.NONE),
+                    (secondDerivativeIndices != null ? secondDerivativeIndices[u] : Beagle.NONE),
+                    edgeLengths[u]);
+        }
+    }
+
+    private void updateTransitionMatrix(int eigenIndex, int categoryRateIndex, int matrixIndex,
+                                        int firstDerivativeIndex, int secondDerivativeIndex, double edgeLength) {
+
+        double[] rates = categoryRates[categoryRateIndex];
+        double[] matrix = getMatrixBuffer(matrixIndex);
+        double[] firstDerivatives = (firstDerivativeIndex != Beagle.NONE ? getMatrixBuffer(firstDerivativeIndex) : null);
+        double[] secondDerivatives = (secondDerivativeIndex != Beagle.NONE ? getMatrixBuffer(secondDerivativeIndex) : null);
+
+        double[] lambda = eigenValues[eigenIndex];
+
+        for (int l = 0; l < categoryCount; l++) {
+            final double rate = rates[l];
+            final double distance = edgeLength * rate;
+            final int offset = l * stateCount * rowLength;
+
+            if (isComplex[eigenIndex]) {
+                complexTransitionProbabilities(eigenIndex, distance);
+                for (int i = 0; i < stateCount; i++) {
+                    System.arraycopy(tmpMatrix, i * stateCount, matrix, offset + i * rowLength, stateCount);
+                    matrix[offset + i * rowLength + stateCount] = 1.0;
+                }
+                if (firstDerivatives != null || secondDerivatives != null) {
+                    // d/dt exp(B t rate) = rate B exp(B t rate), with the block-diagonal B commuting with its exponential
+                    multiplyBlockEigenValues(eigenIndex, tmpComplex, tmpDerivative);
+                    if (firstDerivatives != null) {
+                        multiplyEigenVectors(eigenIndex, tmpDerivative, rate, firstDerivatives, offset);
+                    }
+                    if (secondDerivatives != null) {
+                        multiplyBlockEigenValues(eigenIndex, tmpDerivative, tmpComplex);
+                        multiplyEigenVectors(eigenIndex, tmpComplex, rate * rate, secondDerivatives, offset);
+                    }
+                }
+                continue;
+            }
+
+            for (int k = 0; k < stateCount; k++) {
+                tmpExp[k] = Math.exp(distance * lambda[k]);
+            }
+
+            double[] c = cijk[eigenIndex];
+            int n = 0;
+            for (int i = 0; i < stateCount; i++) {
+                int row = offset + i * rowLength;
+                for (int j = 0; j < stateCount; j++) {
+                    double sum = 0.0;
+                    double sum1 = 0.0;
+                    double sum2 = 0.0;
+                    for (int k = 0; k < stateCount; k++) {
+                        double x = c[n + k] * tmpExp[k];
+                        sum += x;
+                        if (firstDerivatives != null || secondDerivatives != null) {
+                            double d = x * lambda[k] * rate;
+                            sum1 += d;
+                            sum2 += d * lambda[k] * rate;
+                        }
+                    }
+                    n += stateCount;
+                    matrix[row + j] = (sum > 0.0 ? sum : 0.0);
+                    if (firstDerivatives != null) {
+                        firstDerivatives[row + j] = sum1;
+                    }
+                    if (secondDerivatives != null) {
+                        secondDerivatives[row + j] = sum2;
+                    }
+                }
+                matrix[row + stateCount] = 1.0;
+                if (firstDerivatives != null) {
+                    firstDerivatives[row + stateCount] = 0.0;
+                }
+                if (secondDerivatives != null) {
+                    secondDerivatives[row + stateCount] = 0.0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Exponentiates a real block-diagonal decomposition with 2x2 blocks for complex
+     * conjugate eigenvalue pairs (as in ComplexSubstitutionModel) into tmpMatrix.
+     */
+    private void complexTransitionProbabilities(int eigenIndex, double distance) {
+        double[] Evec = eigenVectors[eigenIndex];
+        double[] Ievc = inverseEigenVectors[eigenIndex];
+        double[] Eval = eigenValues[eigenIndex];
+
+        double[] iexp = tmpComplex;
+
+        for (int i = 0; i < stateCount; i++) {
+            double b = Eval[stateCount + i];
+            if (b == 0.0) {
+                double temp = Math.exp(distance * Eval[i]);
+                for (int j = 0; j < stateCount; j++) {
+                    iexp[i * stateCount + j] = Ievc[i * stateCount + j] * temp;
+                }
+            } else {
+                int i2 = i + 1;
+                double expat = Math.exp(distance * Eval[i]);
+                double expatcosbt = expat * Math.cos(distance * b);
+                double expatsinbt = expat * Math.sin(distance * b);
+                for (int j = 0; j < stateCount; j++) {
+                    iexp[i * stateCount + j] = expatcosbt * Ievc[i * stateCount + j] +
+                            expatsinbt * Ievc[i2 * stateCount + j];
+                    iexp[i2 * stateCount + j] = expatcosbt * Ievc[i2 * stateCount + j] -
+                            expatsinbt * Ievc[i * stateCount + j];
+                }
+                i++; // processed two conjugate rows
+            }
+        }
+
+        int u = 0;
+        for (int i = 0; i < stateCount; i++) {
+            for (int j = 0; j < stateCount; j++) {
+                double temp = 0.0;
+                for (int k = 0; k < stateCount; k++) {
+                    temp += Evec[i * stateCount + k] * iexp[k * stateCount + j];
+                }
+                tmpMatrix[u] = Math.abs(temp);
+                u++;
+            }
+        }
+    }
+
+    /**
+     * Multiplies source on the left by the block-diagonal eigenvalue matrix used by
+     * complexTransitionProbabilities, which has a 2x2 block (a, b; -b, a) for each conjugate pair.
+     */
+    private void multiplyBlockEigenValues(int eigenIndex, double[] source, double[] destination) {
+        double[] Eval = eigenValues[eigenIndex];
+        for (int i = 0; i < stateCount; i++) {
+            double a = Eval[i];
+            double b = Eval[stateCount + i];
+            if (b == 0.0) {
+                for (int j = 0; j < stateCount; j++) {
+                    destination[i * stateCount + j] = a * source[i * stateCount + j];
+                }
+            } else {
+                int i2 = i + 1;
+                for (int j = 0; j < stateCount; j++) {
+                    destination[i * stateCount + j] = a * source[i * stateCount + j] + b * source[i2 * stateCount + j];
+                    destination[i2 * stateCount + j] = a * source[i2 * stateCount + j] - b * source[i * stateCount + j];
+                }
+                i++; // processed two conjugate rows
+            }
+        }
+    }
+
+    /**
+     * Writes scale * Evec * source into the rows of a padded transition matrix buffer, with
+     * a zero in the padded column.
+     */
+    private void multiplyEigenVectors(int eigenIndex, double[] source, double scale, double[] destination, int offset) {
+        double[] Evec = eigenVectors[eigenIndex];
+        for (int i = 0; i < stateCount; i++) {
+            int row = offset + i * rowLength;
+            for (int j = 0; j < stateCount; j++) {
+                double temp = 0.0;
+                for (int k = 0; k < stateCount; k++) {
+                    temp += Evec[i * stateCount + k] * source[k * stateCount + j];
+                }
+                destination[row + j] = scale * temp;
+            }
+            destination[row + stateCount] = 0.0;
+        }
+    }
+
+    public void setTransitionMatrix(int matrixIndex, double[] inMatrix, double paddedValue) {
+        double[] matrix = getMatrixBuffer(matrixIndex);
+        int u = 0;
+        for (int l = 0; l < categoryCount; l++) {
+            for (int i = 0; i < stateCount; i++) {
+                int row = (l * stateCount + i) * rowLength;
+                System.arraycopy(inMatrix, u, matrix, row, stateCount);
+                matrix[row + stateCount] = paddedValue;
+                u += stateCount;
+            }
+        }
+    }
+
+    public void getTransitionMatrix(int matrixIndex, double[] outMatrix) {
+        double[] matrix = matrices[matrixIndex];
+        int u = 0;
+        for (int l = 0; l < categoryCount; l++) {
+            for (int i = 0; i < stateCount; i++) {
+                System.arraycopy(matrix, (l * stateCount + i) * rowLength, outMatrix, u, stateCount);
+                u += stateCount;
+            }
+        }
+    }
+
+    private double[] getMatrixBuffer(int matrixIndex) {
+        if (matrices[matrixIndex] == null) {
+            matrices[matrixIndex] = new double[matrixSize];
+        }
+        return matrices[matrixIndex];
+    }
+
+    // **************************************************************
+    // Partials
+    // **************************************************************
+
+    public void updatePartials(int[] operations, int operationCount, int cumulativeScaleIndex) {
+        computeOperations(operations, operationCount, Beagle.OPERATION_TUPLE_SIZE, cumulativeScaleIndex);
+    }
+
+    public void updatePartialsByPartition(int[] operations, int operationCount) {
+        computeOperations(operations, operationCount, Beagle.PARTITION_OPERATION_TUPLE_SIZE, Beagle.NONE);
+    }
+
+    private void computeOperations(int[] operations, int operationCount, int tupleSize, int cumulativeScaleIndex) {
+
+        // make sure all destination buffers exist before any threads start
+        for (int op = 0; op < operationCount; op++) {
+            getPartialsBuffer(operations[op * tupleSize]);
+        }
+
+        if (executor == null) {
+            computeOperations(operations, operationCount, tupleSize, cumulativeScaleIndex, 0, patternCount);
+            return;
+        }
+
+        for (PatternBlockTask task : blockTasks) {
+            task.setOperations(operations, operationCount, tupleSize, cumulativeScaleIndex);
+        }
+
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 1; i < blockTasks.size(); i++) {
+            futures.add(executor.submit(blockTasks.get(i)));
+        }
+
+        // the calling thread does the first block itself
+        blockTasks.get(0).call();
+
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Performs all the operations for patterns in [startPattern, endPattern). As patterns are independent,
+     * each block of patterns can be taken through the whole list of operations without synchronization.
+     */
+    private void computeOperations(int[] operations, int operationCount, int tupleSize, int cumulativeScaleIndex,
+                                   int startPattern, int endPattern) {
+
+        for (int op = 0; op < operationCount; op++) {
+            int x = op * tupleSize;
+
+            final int destinationIndex = operations[x];
+            final int writeScaleIndex = operations[x + 1];
+            final int readScaleIndex = operations[x + 2];
+            final int child1Index = operations[x + 3];
+            final int child1MatrixIndex = operations[x + 4];
+            final int child2Index = operations[x + 5];
+            final int child2MatrixIndex = operations[x + 6];
+
+            int start = startPattern;
+            int end = endPattern;
+            int cumulativeIndex = cumulativeScaleIndex;
+
+            if (tupleSize == Beagle.PARTITION_OPERATION_TUPLE_SIZE) {
+                int partition = operations[x + 7];
+                cumulativeIndex = operations[x + 8];
+                start = Math.max(start, partitionStarts[partition]);
+                end = Math.min(end, partitionStarts[partition + 1]);
+                if (start >= end) {
+                    continue;
+                }
+            }
+
+            double[] destination = partials[destinationIndex];
+            double[] matrix1 = matrices[child1MatrixIndex];
+            double[] matrix2 = matrices[child2MatrixIndex];
+
+            int[] states1 = (child1Index < tipStates.length ? tipStates[child1Index] : null);
+            int[] states2 = (child2Index < tipStates.length ? tipStates[child2Index] : null);
+
+            if (states1 != null && states2 != null) {
+                updateStatesStates(destination, states1, matrix1, states2, matrix2, start, end);
+            } else if (states1 != null) {
+                updateStatesPartials(destination, states1, matrix1, partials[child2Index], matrix2, start, end);
+            } else if (states2 != null) {
+                updateStatesPartials(destination, states2, matrix2, partials[child1Index], matrix1, start, end);
+            } else if (stateCount == 4) {
+                updatePartialsPartials4(destination, partials[child1Index], matrix1, partials[child2Index], matrix2, start, end);
+            } else if (stateCount == 20) {
+                updatePartialsPartials20(destination, partials[child1Index], matrix1, partials[child2Index], matrix2, start, end);
+            } else {
+                updatePartialsPartials(destination, partials[child1Index], matrix1, partials[child2Index], matrix2, start, end);
+            }
+
+            if (writeScaleIndex != Beagle.NONE) {
+                rescalePartials(destination, scaleBuffers[writeScaleIndex],
+                        (cumulativeIndex != Beagle.NONE ? scaleBuffers[cumulativeIndex] : null), start, end);
+            } else if (readScaleIndex != Beagle.NONE) {
+                applyScaleFactors(destination, scaleBuffers[readScaleIndex], start, end);
+            }
+        }
+    }
+
+    private void updateStatesStates(double[] destination, int[] states1, double[] matrix1,
+                                    int[] states2, double[] matrix2, int start, int end) {
+        int v = start * categoryCount * stateCount;
+        for (int k = start; k < end; k++) {
+            final int state1 = states1[k];
+            final int state2 = states2[k];
+            int w = 0;
+            for (int l = 0; l < categoryCount; l++) {
+                for (int i = 0; i < stateCount; i++) {
+                    destination[v] = matrix1[w + state1] * matrix2[w + state2];
+                    v++;
+                    w += rowLength;
+                }
+            }
+        }
+    }
+
+    private void updateStatesPartials(double[] destination, int[] states1, double[] matrix1,
+                                      double[] partials2, double[] matrix2, int start, int end) {
+        if (stateCount == 4) {
+            int v = start * categoryCount * 4;
+            for (int k = start; k < end; k++) {
+                final int state1 = states1[k];
+                int w = 0;
+                for (int l = 0; l < categoryCount; l++) {
+                    final double p0 = partials2[v];
+                    final double p1 = partials2[v + 1];
+                    final double p2 = partials2[v + 2];
+                    final double p3 = partials2[v + 3];
+
+                    destination[v] = matrix1[w + state1] *
+                            (matrix2[w] * p0 + matrix2[w + 1] * p1 + matrix2[w + 2] * p2 + matrix2[w + 3] * p3);
+                    destination[v + 1] = matrix1[w + 5 + state1] *
+                            (matrix2[w + 5] * p0 + matrix2[w + 6] * p1 + matrix2[w + 7] * p2 + matrix2[w + 8] * p3);
+                    destination[v + 2] = matrix1[w + 10 + state1] *
+                            (matrix2[w + 10] * p0 + matrix2[w + 11] * p1 + matrix2[w + 12] * p2 + matrix2[w + 13] * p3);
+                    destination[v + 3] = matrix1[w + 15 + state1] *
+                            (matrix2[w + 15] * p0 + matrix2[w + 16] * p1 + matrix2[w + 17] * p2 + matrix2[w + 18] * p3);
+
+                    v += 4;
+                    w += 20;
+                }
+            }
+            return;
+        }
+
+        if (stateCount == 20) {
+            int v = start * categoryCount * 20;
+            for (int k = start; k < end; k++) {
+                final int state1 = states1[k];
+                int w = 0;
+                for (int l = 0; l < categoryCount; l++) {
+                    for (int i = 0; i < 20; i++) {
+                        destination[v + i] = matrix1[w + state1] * innerProduct20(matrix2, w, partials2, v);
+                        w += 21;
+                    }
+                    v += 20;
+                }
+            }
+            return;
+        }
+
+        int v = start * categoryCount * stateCount;
+        for (int k = start; k < end; k++) {
+            final int state1 = states1[k];
+            int w = 0;
+            for (int l = 0; l < categoryCount; l++) {
+                for (int i = 0; i < stateCount; i++) {
+                    destination[v + i] = matrix1[w + state1] * innerProduct(matrix2, w, partials2, v);
+                    w += rowLength;
+                }
+                v += stateCount;
+            }
+        }
+    }
+
+    private void updatePartialsPartials4(double[] destination, double[] partials1, double[] matrix1,
+                                         double[] partials2, double[] matrix2, int start, int end) {
+        int v = start * categoryCount * 4;
+        for (int k = start; k < end; k++) {
+            int w = 0;
+            for (int l = 0; l < categoryCount; l++) {
+                final double p10 = partials1[v];
+                final double p11 = partials1[v + 1];
+                final double p12 = partials1[v + 2];
+                final double p13 = partials1[v + 3];
+
+                final double p20 = partials2[v];
+                final double p21 = partials2[v + 1];
+                final double p22 = partials2[v + 2];
+                final double p23 = partials2[v + 3];
+
+                destination[v] =
+                        (matrix1[w] * p10 + matrix1[w + 1] * p11 + matrix1[w + 2] * p12 + matrix1[w + 3] * p13) *
+                        (matrix2[w] * p20 + matrix2[w + 1] * p21 + matrix2[w + 2] * p22 + matrix2[w + 3] * p23);
+                destination[v + 1] =
+                        (matrix1[w + 5] * p10 + matrix1[w + 6] * p11 + matrix1[w + 7] * p12 + matrix1[w + 8] * p13) *
+                        (matrix2[w + 5] * p20 + matrix2[w + 6] * p21 + matrix2[w + 7] * p22 + matrix2[w + 8] * p23);
+                destination[v + 2] =
+                        (matrix1[w + 10] * p10 + matrix1[w + 11] * p11 + matrix1[w + 12] * p12 + matrix1[w + 13] * p13) *
+                        (matrix2[w + 10] * p20 + matrix2[w + 11] * p21 + matrix2[w + 12] * p22 + matrix2[w + 13] * p23);
+                destination[v + 3] =
+                        (matrix1[w + 15] * p10 + matrix1[w + 16] * p11 + matrix1[w + 17] * p12 + matrix1[w + 18] * p13) *
+                        (matrix2[w + 15] * p20 + matrix2[w + 16] * p21 + matrix2[w + 17] * p22 + matrix2[w + 18] * p23);
+
+                v += 4;
+                w += 20;
+            }
+        }
+    }
+
+    /**
+     * Amino acid partials: both children are taken through each matrix row together, with the
+     * fixed trip count of the inner product written out in blocks of four.
+     */
+    private void updatePartialsPartials20(double[] destination, double[] partials1, double[] matrix1,
+                                          double[] partials2, double[] matrix2, int start, int end) {
+        int v = start * categoryCount * 20;
+        for (int k = start; k < end; k++) {
+            int w = 0;
+            for (int l = 0; l < categoryCount; l++) {
+                for (int i = 0; i < 20; i++) {
+                    double sum10 = 0.0, sum11 = 0.0, sum12 = 0.0, sum13 = 0.0;
+                    double sum20 = 0.0, sum21 = 0.0, sum22 = 0.0, sum23 = 0.0;
+                    for (int j = 0; j < 20; j += 4) {
+                        sum10 += matrix1[w + j] * partials1[v + j];
+                        sum11 += matrix1[w + j + 1] * partials1[v + j + 1];
+                        sum12 += matrix1[w + j + 2] * partials1[v + j + 2];
+                        sum13 += matrix1[w + j + 3] * partials1[v + j + 3];
+                        sum20 += matrix2[w + j] * partials2[v + j];
+                        sum21 += matrix2[w + j + 1] * partials2[v + j + 1];
+                        sum22 += matrix2[w + j + 2] * partials2[v + j + 2];
+                        sum23 += matrix2[w + j + 3] * partials2[v + j + 3];
+                    }
+                    destination[v + i] = ((sum10 + sum11) + (sum12 + sum13)) * ((sum20 + sum21) + (sum22 + sum23));
+                    w += 21;
+                }
+                v += 20;
+            }
+        }
+    }
+
+    private void updatePartialsPartials(double[] destination, double[] partials1, double[] matrix1,
+                                        double[] partials2, double[] matrix2, int start, int end) {
+        int v = start * categoryCount * stateCount;
+        for (int k = start; k < end; k++) {
+            int w = 0;
+            for (int l = 0; l < categoryCount; l++) {
+                for (int i = 0; i < stateCount; i++) {
+                    destination[v + i] = innerProduct(matrix1, w, partials1, v) * innerProduct(matrix2, w, partials2, v);
+                    w += rowLength;
+                }
+                v += stateCount;
+            }
+        }
+    }
+
+    /**
+     * Inner product of a row of a transition matrix with a partials vector, unrolled by four
+     * (which covers amino acids and codons in the main loop).
+     */
+    private double innerProduct(double[] matrix, int w, double[] partials, int v) {
+        double sum0 = 0.0;
+        double sum1 = 0.0;
+        double sum2 = 0.0;
+        double sum3 = 0.0;
+        int j = 0;
+        for (; j <= stateCount - 4; j += 4) {
+            sum0 += matrix[w + j] * partials[v + j];
+            sum1 += matrix[w + j + 1] * partials[v + j + 1];
+            sum2 += matrix[w + j + 2] * partials[v + j + 2];
+            sum3 += matrix[w + j + 3] * partials[v + j + 3];
+        }
+        for (; j < stateCount; j++) {
+            sum0 += matrix[w + j] * partials[v + j];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    private static double innerProduct20(double[] matrix, int w, double[] partials, int v) {
+        double sum0 = 0.0;
+        double sum1 = 0.0;
+        double sum2 = 0.0;
+        double sum3 = 0.0;
+        for (int j = 0; j < 20; j += 4) {
+            sum0 += matrix[w + j] * partials[v + j];
+            sum1 += matrix[w + j + 1] * partials[v + j + 1];
+            sum2 += matrix[w + j + 2] * partials[v + j + 2];
+            sum3 += matrix[w + j + 3] * partials[v + j + 3];
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * Rescales only those patterns whose largest partial has fallen below the scaling threshold;
+     * all other patterns get a (log) scale factor of zero and are left untouched.
+     */
+    private void rescalePartials(double[] destination, double[] scaleFactors, double[] cumulativeScaleFactors,
+                                 int start, int end) {
+        final int blockSize = categoryCount * stateCount;
+        int v = start * blockSize;
+        for (int k = start; k < end; k++) {
+            double max = 0.0;
+            for (int i = 0; i < blockSize; i++) {
+                if (destination[v + i] > max) {
+                    max = destination[v + i];
+                }
+            }
+
+            if (max < SCALING_THRESHOLD && max > 0.0) {
+                final double oneOverMax = 1.0 / max;
+                for (int i = 0; i < blockSize; i++) {
+                    destination[v + i] *= oneOverMax;
+                }
+                final double logMax = Math.log(max);
+                scaleFactors[k] = logMax;
+                if (cumulativeScaleFactors != null) {
+                    cumulativeScaleFactors[k] += logMax;
+                }
+            } else {
+                scaleFactors[k] = 0.0;
+            }
+            v += blockSize;
+        }
+    }
+
+    private void applyScaleFactors(double[] destination, double[] scaleFactors, int start, int end) {
+        final int blockSize = categoryCount * stateCount;
+        int v = start * blockSize;
+        for (int k = start; k < end; k++) {
+            if (scaleFactors[k] != 0.0) {
+                final double scale = Math.exp(-scaleFactors[k]);
+                for (int i = 0; i < blockSize; i++) {
+                    destination[v + i] *= scale;
+                }
+            }
+            v += blockSize;
+        }
+    }
+
+    // **************************************************************
+    // Scale factors
+    // **************************************************************
+
+    public void accumulateScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        accumulateScaleFactors(scaleIndices, count, cumulativeScaleIndex, 0, patternCount, 1.0);
+    }
+
+    public void accumulateScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+        accumulateScaleFactors(scaleIndices, count, cumulativeScaleIndex,
+                partitionStarts[partitionIndex], partitionStarts[partitionIndex + 1], 1.0);
+    }
+
+    public void removeScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        accumulateScaleFactors(scaleIndices, count, cumulativeScaleIndex, 0, patternCount, -1.0);
+    }
+
+    public void removeScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+        accumulateScaleFactors(scaleIndices, count, cumulativeScaleIndex,
+                partitionStarts[partitionIndex], partitionStarts[partitionIndex + 1], -1.0);
+    }
+
+    private void accumulateScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex,
+                                        int start, int end, double sign) {
+        if (cumulativeScaleIndex == Beagle.NONE) {
+            return;
+        }
+        double[] cumulative = scaleBuffers[cumulativeScaleIndex];
+        for (int i = 0; i < count; i++) {
+            double[] scaleFactors = scaleBuffers[scaleIndices[i]];
+            for (int k = start; k < end; k++) {
+                cumulative[k] += sign * scaleFactors[k];
+            }
+        }
+    }
+
+    public void copyScaleFactors(int destScalingIndex, int srcScalingIndex) {
+        System.arraycopy(scaleBuffers[srcScalingIndex], 0, scaleBuffers[destScalingIndex], 0, patternCount);
+    }
+
+    public void resetScaleFactors(int cumulativeScaleIndex) {
+        resetScaleFactors(cumulativeScaleIndex, 0, patternCount);
+    }
+
+    public void resetScaleFactorsByPartition(int cumulativeScaleIndex, int partitionIndex) {
+        resetScaleFactors(cumulativeScaleIndex, partitionStarts[partitionIndex], partitionStarts[partitionIndex + 1]);
+    }
+
+    private void resetScaleFactors(int cumulativeScaleIndex, int start, int end) {
+        double[] cumulative = scaleBuffers[cumulativeScaleIndex];
+        for (int k = start; k < end; k++) {
+            cumulative[k] = 0.0;
+        }
+    }
+
+    // **************************************************************
+    // Root likelihoods
+    // **************************************************************
+
+    public void calculateRootLogLikelihoods(int[] bufferIndices, int[] categoryWeightsIndices, int[] stateFrequenciesIndices,
+                                            int[] cumulativeScaleIndices, int count, double[] outSumLogLikelihood) {
+        outSumLogLikelihood[0] = calculateRootLogLikelihoods(bufferIndices, categoryWeightsIndices,
+                stateFrequenciesIndices, cumulativeScaleIndices, 0, count, 0, patternCount);
+    }
+
+    public void calculateRootLogLikelihoodsByPartition(int[] bufferIndices, int[] categoryWeightsIndices,
+                                                       int[] stateFrequenciesIndices, int[] cumulativeScaleIndices,
+                                                       int[] partitionIndices, int partitionCount, int count,
+                                                       double[] outSumLogLikelihoodByPartition, double[] outSumLogLikelihood) {
+        double total = 0.0;
+        for (int p = 0; p < partitionCount; p++) {
+            int partition = partitionIndices[p];
+            // subsets for the same partition are stored contiguously, count per partition
+            double logL = calculateRootLogLikelihoods(bufferIndices, categoryWeightsIndices,
+                    stateFrequenciesIndices, cumulativeScaleIndices, p * count, count,
+                    partitionStarts[partition], partitionStarts[partition + 1]);
+            outSumLogLikelihoodByPartition[p] = logL;
+            total += logL;
+        }
+        outSumLogLikelihood[0] = total;
+    }
+
+    private double calculateRootLogLikelihoods(int[] bufferIndices, int[] categoryWeightsIndices, int[] stateFrequenciesIndices,
+                                               int[] cumulativeScaleIndices, int offset, int count, int start, int end) {
+
+        final int blockSize = categoryCount * stateCount;
+        double sumLogLikelihood = 0.0;
+
+        for (int k = start; k < end; k++) {
+            double logL = Double.NEGATIVE_INFINITY;
+
+            for (int subset = offset; subset < offset + count; subset++) {
+                final double[] rootPartials = partials[bufferIndices[subset]];
+                final double[] weights = categoryWeights[categoryWeightsIndices[subset]];
+                final double[] frequencies = stateFrequencies[stateFrequenciesIndices[subset]];
+
+                int v = k * blockSize;
+                double sum = 0.0;
+                for (int l = 0; l < categoryCount; l++) {
+                    double sumOverStates = 0.0;
+                    for (int i = 0; i < stateCount; i++) {
+                        sumOverStates += frequencies[i] * rootPartials[v + i];
+                    }
+                    sum += sumOverStates * weights[l];
+                    v += stateCount;
+                }
+
+                double subsetLogL = Math.log(sum);
+                if (cumulativeScaleIndices[subset] != Beagle.NONE) {
+                    subsetLogL += scaleBuffers[cumulativeScaleIndices[subset]][k];
+                }
+
+                if (count == 1) {
+                    logL = subsetLogL;
+                } else if (subsetLogL > Double.NEGATIVE_INFINITY) {
+                    // log(exp(a) + exp(b)) computed stably
+                    logL = (logL > subsetLogL ?
+                            logL + Math.log1p(Math.exp(subsetLogL - logL)) :
+                            subsetLogL + (logL == Double.NEGATIVE_INFINITY ? 0.0 : Math.log1p(Math.exp(logL - subsetLogL))));
+                }
+            }
+
+            siteLogLikelihoods[k] = logL;
+            sumLogLikelihood += logL * patternWeights[k];
+        }
+
+        return sumLogLikelihood;
+    }
+
+    public void getSiteLogLikelihoods(double[] outLogLikelihoods) {
+        System.arraycopy(siteLogLikelihoods, 0, outLogLikelihoods, 0, patternCount);
+    }
+
+    public InstanceDetails getDetails() {
+        InstanceDetails instanceDetails = new InstanceDetails();
+        instanceDetails.setResourceNumber(0);
+        instanceDetails.setResourceName("CPU (BEAST Java)");
+        instanceDetails.setImplementationName("JavaBeagleImpl");
+        instanceDetails.setFlags(getFlags());
+        return instanceDetails;
+    }
+
+    private class PatternBlockTask implements Callable<Object> {
+
+        PatternBlockTask(int block) {
+            this.startPattern = blockStarts[block];
+            this.endPattern = blockStarts[block + 1];
+        }
+
+        void setOperations(int[] operations, int operationCount, int tupleSize, int cumulativeScaleIndex) {
+            this.operations = operations;
+            this.operationCount = operationCount;
+            this.tupleSize = tupleSize;
+            this.cumulativeScaleIndex = cumulativeScaleIndex;
+        }
+
+        public Object call() {
+            computeOperations(operations, operationCount, tupleSize, cumulativeScaleIndex, startPattern, endPattern);
+            return null;
+        }
+
+        private final int startPattern;
+        private final int endPattern;
+
+        private int[] operations;
+        private int operationCount;
+        private int tupleSize;
+        private int cumulativeScaleIndex;
+    }
+
+    private final int stateCount;
+    private final int patternCount;
+    private final int categoryCount;
+    private final int rowLength;
+    private final int matrixSize;
+    private final int partialsSize;
+    private final int threadCount;
+
+    private final double[][] cijk;
+    private final double[][] eigenValues;
+    private final double[][] eigenVectors;
+    private final double[][] inverseEigenVectors;
+    private final boolean[] isComplex;
+
+    private double[][] categoryRates;
+    private double[][] categoryWeights;
+    private double[][] stateFrequencies;
+
+    private final double[] patternWeights;
+    private final double[] siteLogLikelihoods;
+
+    private final double[][] partials;
+    private final int[][] tipStates;
+    private final double[][] matrices;
+    private final double[][] scaleBuffers;
+
+    private final double[] tmpMatrix;
+    private final double[] tmpExp;
+    private final double[] tmpComplex;
+    private final double[] tmpDerivative;
+
+    private final int[] blockStarts;
+    private int[] partitionStarts;
+
+    private final ExecutorService executor;
+    private final List<PatternBlockTask> blockTasks;
+}
@@ -41,6 +41,9 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
                                    final BranchRateModel branchRateModel,
                                    final TraversalType traversalType) {
         super(treeModel, branchRateModel, traversalType);
+
+        onUpdatePath = new boolean[treeModel.getNodeCount()];
+        updatePathNodes = new int[treeModel.getNodeCount()];
     }
 
     @Override
@@ -48,6 +51,8 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
         branchOperations.clear();
         nodeOperations.clear();
 
+        markUpdatePaths(treeModel);
+
         switch (traversalType) {
 
             case POST_ORDER:
@@ -59,6 +64,8 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
             default:
                 assert false : "Unknown traversal type";
         }
+
+        clearUpdatePaths();
     }
 
     public final List<DataLikelihoodDelegate.BranchOperation> getBranchOperations() {
@@ -69,6 +76,38 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
         return nodeOperations;
     }
 
+    /**
+     * Marks the nodes on the paths from the updated nodes to the root so the traversals
+     * only descend into subtrees that contain an updated node. The work is then proportional
+     * to the affected paths rather than the size of the tree.
+     *
+     * @param tree tree
+     */
+    private void markUpdatePaths(final Tree tree) {
+        updatePathNodeCount = 0;
+
+        if (updateAllNodes) {
+            return;
+        }
+
+        for (int i = 0; i < updatedNodeCount; i++) {
+            NodeRef node = tree.getNode(updatedNodes[i]);
+            while (node != null && !onUpdatePath[node.getNumber()]) {
+                onUpdatePath[node.getNumber()] = true;
+                updatePathNodes[updatePathNodeCount] = node.getNumber();
+                updatePathNodeCount++;
+                node = tree.getParent(node);
+            }
+        }
+    }
+
+    private void clearUpdatePaths() {
+        for (int i = 0; i < updatePathNodeCount; i++) {
+            onUpdatePath[updatePathNodes[i]] = false;
+        }
+        updatePathNodeCount = 0;
+    }
+
     /**
      * Traverse the tree in post order.
      *
@@ -92,6 +131,11 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
 
         int nodeNum = node.getNumber();
 
+        // nothing below this node needs updating
+        if (!updateAllNodes && !onUpdatePath[nodeNum]) {
+            return false;
+        }
+
         // First update the transition probability matrix(ices) for this branch
         if (tree.getParent(node) != null && updateNode[nodeNum]) {
             addBranchUpdateOperation(tree, node);
@@ -163,6 +207,11 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
 
         int nodeNum = node.getNumber();
 
+        // nothing below this node needs updating
+        if (!updateAllNodes && !onUpdatePath[nodeNum]) {
+            return false;
+        }
+
         // First update the transition probability matrix(ices) for this branch
         if (tree.getParent(node) != null && updateNode[nodeNum]) {
             // @todo - at the moment a matrix is updated even if a branch length doesn't change
@@ -215,6 +264,10 @@ public final class LikelihoodTreeTraversal extends TreeTraversal {
     private final List<DataLikelihoodDelegate.BranchOperation> branchOperations = new ArrayList<DataLikelihoodDelegate.BranchOperation>();
     private final List<DataLikelihoodDelegate.NodeOperation> nodeOperations = new ArrayList<DataLikelihoodDelegate.NodeOperation>();
 
+    private final boolean[] onUpdatePath;
+    private final int[] updatePathNodes;
+    private int updatePathNodeCount = 0;
+
     private List<DataLikelihoodDelegate.BranchNodeOperation> savedWholeTreeBranchOperations;
     private List<DataLikelihoodDelegate.NodeOperation> savedWholeTreeNodeOperations;
 }
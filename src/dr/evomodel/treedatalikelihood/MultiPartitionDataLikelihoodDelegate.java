@@ -344,7 +344,7 @@ public class MultiPartitionDataLikelihoodDelegate extends AbstractModel implemen
 
             //TODO: check getBufferCount() calls with Daniel
             //TODO: should we multiple getBufferCount() by the number of partitions?
-            beagle = BeagleFactory.loadBeagleInstance(
+            beagle = JavaBeagleImpl.loadBeagleInstance(
                     tipCount,
                     partialBufferHelper[0].getBufferCount(),
                     compactPartialsCount,
@@ -363,7 +363,11 @@ public class MultiPartitionDataLikelihoodDelegate extends AbstractModel implemen
             ResourceDetails resourceDetails = null;
 
             if (instanceDetails != null) {
-                resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                if (beagle instanceof JavaBeagleImpl) {
+                    resourceDetails = ((JavaBeagleImpl) beagle).getResourceDetails();
+                } else {
+                    resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                }
                 if (resourceDetails != null) {
                     StringBuilder sb = new StringBuilder("  Using BEAGLE resource ");
                     sb.append(resourceDetails.getNumber()).append(": ");
@@ -30,21 +30,27 @@ import dr.evomodel.branchmodel.BranchModel;
 import dr.evomodel.substmodel.EigenDecomposition;
 import dr.evomodel.substmodel.SubstitutionModel;
 import dr.evolution.tree.Tree;
+import dr.inference.model.Model;
+import dr.inference.model.ModelListener;
 import dr.util.Timer;
 
 import java.io.Serializable;
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.List;
 
 /**
+ * The delegate listens to each of the substitution models so only the eigen decompositions of
+ * those that have changed are sent to BEAGLE. It also records what each transition matrix was
+ * last computed from (the branch length and the mapping of substitution models to the branch)
+ * so matrices are only recomputed, and convolved, when one of these or one of the models they
+ * use has changed. All the working arrays are allocated up front.
+ *
  * @author Andrew Rambaut
  * @author Filip Bielejec
  * @author Marc A. Suchard
  * @version $Id$
  */
-public final class SubstitutionModelDelegate implements EvolutionaryProcessDelegate, Serializable {
+public final class SubstitutionModelDelegate implements EvolutionaryProcessDelegate, ModelListener, Serializable {
     private static final boolean DEBUG = false;
     private static final boolean RUN_IN_SERIES = false;
     public static final boolean MEASURE_RUN_TIME = false;
@@ -67,7 +73,39 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
     private final BufferIndexHelper eigenBufferHelper;
     private final BufferIndexHelper matrixBufferHelper;
 
-    private Deque<Integer> availableBuffers = new ArrayDeque<Integer>();
+    // a stack of the spare buffers used for the matrices being convolved
+    private final int[] availableBuffers;
+    private int availableBufferCount = 0;
+
+    // which substitution models have changed since their eigen decomposition was last sent
+    private boolean[] substitutionModelChanged;
+    private boolean[] storedSubstitutionModelChanged;
+
+    // what the transition matrix of each branch was last computed from
+    private boolean[] matrixKnown;
+    private boolean[] storedMatrixKnown;
+    private double[] matrixEdgeLengths;
+    private double[] storedMatrixEdgeLengths;
+    private int[][] matrixOrders;
+    private int[][] storedMatrixOrders;
+    private double[][] matrixWeights;
+    private double[][] storedMatrixWeights;
+
+    // the matrices to compute for each eigen decomposition
+    private final int[][] probabilityIndices;
+    private final double[][] edgeLengths;
+    private final int[] counts;
+
+    // the pending convolutions, each a queue of buffers (from its head to its tail) where the
+    // last is the destination
+    private final int[][] convolutions;
+    private final int[] convolutionHeads;
+    private final int[] convolutionTails;
+    private int convolutionCount = 0;
+
+    private final int[] firstConvolutionBuffers;
+    private final int[] secondConvolutionBuffers;
+    private final int[] resultConvolutionBuffers;
 
     /**
      * A class which handles substitution models including epoch models where multiple
@@ -119,6 +157,7 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
             throw new RuntimeException("SubstitutionModelDelegate requires at least " + eigenCount + " extra buffers to convolve matrices");
         }
 
+        availableBuffers = new int[extraBufferCount];
         for (int i = 0; i < extraBufferCount; i++) {
             pushAvailableBuffer(i + matrixBufferHelper.getBufferCount());
         }
@@ -132,6 +171,37 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
                     + reserveBufferIndex);
         }
 
+        // all the eigen decompositions need sending to start with
+        substitutionModelChanged = new boolean[eigenCount];
+        storedSubstitutionModelChanged = new boolean[eigenCount];
+        Arrays.fill(substitutionModelChanged, true);
+        for (SubstitutionModel model : substitutionModelList) {
+            model.addModelListener(this);
+        }
+
+        matrixKnown = new boolean[nodeCount];
+        storedMatrixKnown = new boolean[nodeCount];
+        matrixEdgeLengths = new double[nodeCount];
+        storedMatrixEdgeLengths = new double[nodeCount];
+        matrixOrders = new int[nodeCount][];
+        storedMatrixOrders = new int[nodeCount][];
+        matrixWeights = new double[nodeCount][];
+        storedMatrixWeights = new double[nodeCount][];
+
+        // between each computation there can be at most one matrix for each branch plus one
+        // for each of the spare buffers
+        probabilityIndices = new int[eigenCount][nodeCount + extraBufferCount];
+        edgeLengths = new double[eigenCount][nodeCount + extraBufferCount];
+        counts = new int[eigenCount];
+
+        convolutions = new int[nodeCount][];
+        convolutionHeads = new int[nodeCount];
+        convolutionTails = new int[nodeCount];
+
+        firstConvolutionBuffers = new int[nodeCount];
+        secondConvolutionBuffers = new int[nodeCount];
+        resultConvolutionBuffers = new int[nodeCount];
+
     }// END: Constructor
 
     @Override
@@ -184,42 +254,62 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
     @Override
     public void updateSubstitutionModels(Beagle beagle, boolean flipBuffers) {
         for (int i = 0; i < eigenCount; i++) {
-            if (flipBuffers) {
-                eigenBufferHelper.flipOffset(i);
-            }
+            if (substitutionModelChanged[i]) {
+                if (flipBuffers) {
+                    eigenBufferHelper.flipOffset(i);
+                }
 
-            EigenDecomposition ed = substitutionModelList.get(i).getEigenDecomposition();
+                EigenDecomposition ed = substitutionModelList.get(i).getEigenDecomposition();
 
-            beagle.setEigenDecomposition(
-                    eigenBufferHelper.getOffsetIndex(i),
-                    ed.getEigenVectors(),
-                    ed.getInverseEigenVectors(),
-                    ed.getEigenValues());
+                beagle.setEigenDecomposition(
+                        eigenBufferHelper.getOffsetIndex(i),
+                        ed.getEigenVectors(),
+                        ed.getInverseEigenVectors(),
+                        ed.getEigenValues());
+
+                substitutionModelChanged[i] = false;
+
+                // the branches that use this model will need their matrices recomputing
+                for (int j = 0; j < nodeCount; j++) {
+                    if (matrixKnown[j] && usesModel(matrixOrders[j], i)) {
+                        matrixKnown[j] = false;
+                    }
+                }
+            }
         }
     }
 
     @Override
     public void updateTransitionMatrices(Beagle beagle, int[] branchIndices, double[] edgeLength, int updateCount, boolean flipBuffers) {
 
-        int[][] probabilityIndices = new int[eigenCount][updateCount];
-        double[][] edgeLengths = new double[eigenCount][updateCount];
-
-        int[] counts = new int[eigenCount];
-
-        List<Deque<Integer>> convolutionList = new ArrayList<Deque<Integer>>();
+        Arrays.fill(counts, 0);
+        convolutionCount = 0;
 
         for (int i = 0; i < updateCount; i++) {
 
-            BranchModel.Mapping mapping = branchModel.getBranchModelMapping(tree.getNode(branchIndices[i]));
+            final int branchIndex = branchIndices[i];
+
+            BranchModel.Mapping mapping = branchModel.getBranchModelMapping(tree.getNode(branchIndex));
             int[] order = mapping.getOrder();
             double[] weights = mapping.getWeights();
 
+            if (isMatrixKnown(branchIndex, order, weights, edgeLength[i])) {
+                // nothing this matrix depends on has changed since it was computed
+                continue;
+            }
+
+            matrixKnown[branchIndex] = true;
+            matrixEdgeLengths[branchIndex] = edgeLength[i];
+            matrixOrders[branchIndex] = order;
+            matrixWeights[branchIndex] = weights;
+
+            if (flipBuffers) {
+                matrixBufferHelper.flipOffset(branchIndex);
+            }
+
             if (order.length == 1) {
                 int k = order[0];
-                if (flipBuffers) {
-                    matrixBufferHelper.flipOffset(branchIndices[i]);
-                }
-                probabilityIndices[k][counts[k]] = matrixBufferHelper.getOffsetIndex(branchIndices[i]);
+                probabilityIndices[k][counts[k]] = matrixBufferHelper.getOffsetIndex(branchIndex);
                 edgeLengths[k][counts[k]] = edgeLength[i];
                 counts[k]++;
             } else {
@@ -230,17 +320,19 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
 
                 if (getAvailableBufferCount() < order.length) {
                     // too few buffers available, process what we have and continue...
-                    if (flipBuffers) { throw new UnsupportedOperationException("flipping not implemented for Epoch models"); }
-                    computeTransitionMatrices(beagle, probabilityIndices, edgeLengths, counts);
-                    convolveMatrices(beagle, convolutionList);
+                    computeTransitionMatrices(beagle);
+                    convolveMatrices(beagle);
 
                     // reset the counts
-                    for (int k = 0; k < eigenCount; k++) {
-                        counts[k] = 0;
-                    }
+                    Arrays.fill(counts, 0);
+                }
+
+                int[] bufferIndices = convolutions[convolutionCount];
+                if (bufferIndices == null || bufferIndices.length < order.length + 1) {
+                    bufferIndices = new int[order.length + 1];
+                    convolutions[convolutionCount] = bufferIndices;
                 }
 
-                Deque<Integer> bufferIndices = new ArrayDeque<Integer>();
                 for (int j = 0; j < order.length; j++) {
 
                     int buffer = popAvailableBuffer();
@@ -255,17 +347,19 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
                     edgeLengths[k][counts[k]] = weights[j] * edgeLength[i] / sum;
                     counts[k]++;
 
-                    bufferIndices.add(buffer);
+                    bufferIndices[j] = buffer;
                 }
-                bufferIndices.add(matrixBufferHelper.getOffsetIndex(branchIndices[i]));
+                bufferIndices[order.length] = matrixBufferHelper.getOffsetIndex(branchIndex);
 
-                convolutionList.add(bufferIndices);
+                convolutionHeads[convolutionCount] = 0;
+                convolutionTails[convolutionCount] = order.length + 1;
+                convolutionCount++;
             }// END: if convolution needed
 
         }// END: i loop
 
-        computeTransitionMatrices(beagle, probabilityIndices, edgeLengths, counts);
-        convolveMatrices(beagle, convolutionList);
+        computeTransitionMatrices(beagle);
+        convolveMatrices(beagle);
 
     }// END: updateTransitionMatrices
 
@@ -273,10 +367,46 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
     public void flipTransitionMatrices(int[] branchIndices, int updateCount) {
         for (int i = 0; i < updateCount; i++) {
             matrixBufferHelper.flipOffset(branchIndices[i]);
+            // the caller is computing this matrix itself
+            matrixKnown[branchIndices[i]] = false;
         }
     }
 
-    private void computeTransitionMatrices(Beagle beagle, int[][] probabilityIndices, double[][] edgeLengths, int[] counts) {
+    @Override
+    public void makeDirty() {
+        Arrays.fill(substitutionModelChanged, true);
+        Arrays.fill(matrixKnown, false);
+    }
+
+    /**
+     * @return true if the matrix for this branch has been computed with the same length and
+     * mapping and none of the substitution models it uses has changed since.
+     */
+    private boolean isMatrixKnown(int branchIndex, int[] order, double[] weights, double edgeLength) {
+        if (!matrixKnown[branchIndex] ||
+                matrixEdgeLengths[branchIndex] != edgeLength ||
+                !Arrays.equals(matrixOrders[branchIndex], order) ||
+                !Arrays.equals(matrixWeights[branchIndex], weights)) {
+            return false;
+        }
+        for (int k : order) {
+            if (substitutionModelChanged[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean usesModel(int[] order, int model) {
+        for (int k : order) {
+            if (k == model) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void computeTransitionMatrices(Beagle beagle) {
 
         Timer timer;
         if (MEASURE_RUN_TIME) {
@@ -317,7 +447,7 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
 
     }//END: computeTransitionMatrices
 
-    private void convolveMatrices(Beagle beagle, List<Deque<Integer>> convolutionList) {
+    private void convolveMatrices(Beagle beagle) {
 
         Timer timer;
         if (MEASURE_RUN_TIME) {
@@ -325,19 +455,17 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
             timer.start();
         }
 
-        while (convolutionList.size() > 0) {
-            int[] firstConvolutionBuffers = new int[nodeCount];
-            int[] secondConvolutionBuffers = new int[nodeCount];
-            int[] resultConvolutionBuffers = new int[nodeCount];
+        while (convolutionCount > 0) {
             int operationsCount = 0;
 
-            List<Deque<Integer>> empty = new ArrayList<Deque<Integer>>();
+            for (int c = 0; c < convolutionCount; c++) {
 
-            for (Deque<Integer> convolve : convolutionList) {
+                final int[] convolve = convolutions[c];
+                final int size = convolutionTails[c] - convolutionHeads[c];
 
-                if (convolve.size() > 3) {
-                    firstConvolutionBuffers[operationsCount] = convolve.pop();
-                    secondConvolutionBuffers[operationsCount] = convolve.pop();
+                if (size > 3) {
+                    firstConvolutionBuffers[operationsCount] = convolve[convolutionHeads[c]++];
+                    secondConvolutionBuffers[operationsCount] = convolve[convolutionHeads[c]++];
 
                     int buffer;
                     boolean done;
@@ -363,7 +491,7 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
 
                             if (operationsCount > 0) {
 
-                                convolveAndRelease(beagle, firstConvolutionBuffers, secondConvolutionBuffers, resultConvolutionBuffers, operationsCount);
+                                convolveAndRelease(beagle, operationsCount);
 
                                 // copy the uncompleted operation back down to the beginning of the operations list
                                 firstConvolutionBuffers[0] = firstConvolutionBuffers[operationsCount];
@@ -378,8 +506,8 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
                                 // only one partially setup operation so there would be none to free up
                                 // in this case we will use the reserve buffer
                                 resultConvolutionBuffers[operationsCount] = getReserveBuffer();
-                                convolveAndRelease(beagle, firstConvolutionBuffers, secondConvolutionBuffers, resultConvolutionBuffers, 1);
-                                convolve.push(getReserveBuffer());
+                                convolveAndRelease(beagle, 1);
+                                convolve[--convolutionHeads[c]] = getReserveBuffer();
                                 done = true; // break out of the do loop
                             }
                         }
@@ -389,22 +517,18 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
                         // if the buffer is still negative then the loop above will have used the reserve buffer
                         // to complete the convolution.
                         resultConvolutionBuffers[operationsCount] = buffer;
-                        convolve.push(buffer);
+                        convolve[--convolutionHeads[c]] = buffer;
                         operationsCount++;
                     }
 
-                } else if (convolve.size() == 3) {
-                    firstConvolutionBuffers[operationsCount] = convolve.pop();
-                    secondConvolutionBuffers[operationsCount] = convolve.pop();
-                    resultConvolutionBuffers[operationsCount] = convolve.pop();
+                } else if (size == 3) {
+                    firstConvolutionBuffers[operationsCount] = convolve[convolutionHeads[c]++];
+                    secondConvolutionBuffers[operationsCount] = convolve[convolutionHeads[c]++];
+                    resultConvolutionBuffers[operationsCount] = convolve[convolutionHeads[c]++];
                     operationsCount++;
                 } else {
                     throw new RuntimeException("Unexpected convolve list size");
                 }
-
-                if (convolve.size() == 0) {
-                    empty.add(convolve);
-                }
             }
 
             if (DEBUG) {
@@ -415,9 +539,23 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
                 System.out.println();
             }
 
-            convolveAndRelease(beagle, firstConvolutionBuffers, secondConvolutionBuffers, resultConvolutionBuffers, operationsCount);
-
-            convolutionList.removeAll(empty);
+            convolveAndRelease(beagle, operationsCount);
+
+            // drop the finished convolutions (keeping their arrays for reuse)
+            int remaining = 0;
+            for (int c = 0; c < convolutionCount; c++) {
+                if (convolutionTails[c] > convolutionHeads[c]) {
+                    if (c != remaining) {
+                        int[] tmp = convolutions[remaining];
+                        convolutions[remaining] = convolutions[c];
+                        convolutions[c] = tmp;
+                        convolutionHeads[remaining] = convolutionHeads[c];
+                        convolutionTails[remaining] = convolutionTails[c];
+                    }
+                    remaining++;
+                }
+            }
+            convolutionCount = remaining;
         }
 
         if (MEASURE_RUN_TIME) {
@@ -428,7 +566,7 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
 
     }// END: convolveTransitionMatrices
 
-    private void convolveAndRelease(Beagle beagle, int[] firstConvolutionBuffers, int[] secondConvolutionBuffers, int[] resultConvolutionBuffers, int operationsCount) {
+    private void convolveAndRelease(Beagle beagle, int operationsCount) {
 
         if (RUN_IN_SERIES) {
             if (operationsCount > 1) {
@@ -457,15 +595,16 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
         if (RUN_IN_SERIES) {
             return 0;
         } else {
-            return availableBuffers.size();
+            return availableBufferCount;
         }
     }
 
     private int popAvailableBuffer() {
-        if (availableBuffers.isEmpty()) {
+        if (availableBufferCount == 0) {
             return -1;
         }
-        return availableBuffers.pop();
+        availableBufferCount--;
+        return availableBuffers[availableBufferCount];
     }
 
     /**
@@ -477,19 +616,61 @@ public final class SubstitutionModelDelegate implements EvolutionaryProcessDeleg
     }
 
     private void pushAvailableBuffer(int index) {
-        availableBuffers.push(index);
+        availableBuffers[availableBufferCount] = index;
+        availableBufferCount++;
+    }
+
+    @Override
+    public void modelChangedEvent(Model model, Object object, int index) {
+        for (int i = 0; i < eigenCount; i++) {
+            if (substitutionModelList.get(i) == model) {
+                substitutionModelChanged[i] = true;
+            }
+        }
+    }
+
+    @Override
+    public void modelRestored(Model model) {
+        // the change flags are restored along with the buffers
     }
 
     @Override
     public void storeState() {
         eigenBufferHelper.storeState();
         matrixBufferHelper.storeState();
+
+        System.arraycopy(substitutionModelChanged, 0, storedSubstitutionModelChanged, 0, eigenCount);
+        System.arraycopy(matrixKnown, 0, storedMatrixKnown, 0, nodeCount);
+        System.arraycopy(matrixEdgeLengths, 0, storedMatrixEdgeLengths, 0, nodeCount);
+        System.arraycopy(matrixOrders, 0, storedMatrixOrders, 0, nodeCount);
+        System.arraycopy(matrixWeights, 0, storedMatrixWeights, 0, nodeCount);
     }
 
     @Override
     public void restoreState() {
         eigenBufferHelper.restoreState();
         matrixBufferHelper.restoreState();
+
+        // To restore all this stuff just swap the pointers...
+        boolean[] tmp1 = storedSubstitutionModelChanged;
+        storedSubstitutionModelChanged = substitutionModelChanged;
+        substitutionModelChanged = tmp1;
+
+        boolean[] tmp2 = storedMatrixKnown;
+        storedMatrixKnown = matrixKnown;
+        matrixKnown = tmp2;
+
+        double[] tmp3 = storedMatrixEdgeLengths;
+        storedMatrixEdgeLengths = matrixEdgeLengths;
+        matrixEdgeLengths = tmp3;
+
+        int[][] tmp4 = storedMatrixOrders;
+        storedMatrixOrders = matrixOrders;
+        matrixOrders = tmp4;
+
+        double[][] tmp5 = storedMatrixWeights;
+        storedMatrixWeights = matrixWeights;
+        matrixWeights = tmp5;
     }
 
 }// END: class
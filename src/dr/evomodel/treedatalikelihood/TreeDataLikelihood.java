@@ -105,6 +105,35 @@ public final class TreeDataLikelihood extends AbstractModelLikelihood implements
         return likelihoodDelegate;
     }
 
+    /**
+     * Returns the gradient of the log likelihood with respect to the length (rate times time)
+     * of the branch above each node, indexed by node number (the entry for the root is zero).
+     * Only available with a BEAGLE delegate.
+     *
+     * @return the gradient
+     */
+    public double[] getBranchLengthGradient() {
+        if (!(likelihoodDelegate instanceof BeagleDataLikelihoodDelegate)) {
+            throw new RuntimeException("Branch length gradients are only available for sequence data using BEAGLE");
+        }
+
+        // make sure the partials are those of the current state
+        getLogLikelihood();
+
+        final int nodeCount = treeModel.getNodeCount();
+        double[] branchLengths = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef node = treeModel.getNode(i);
+            if (!treeModel.isRoot(node)) {
+                branchLengths[i] = branchRateModel.getBranchRate(treeModel, node) * treeModel.getBranchLength(node);
+            }
+        }
+
+        double[] gradient = new double[nodeCount];
+        ((BeagleDataLikelihoodDelegate) likelihoodDelegate).getBranchLengthGradient(treeModel, branchLengths, gradient);
+        return gradient;
+    }
+
     // **************************************************************
     // Likelihood IMPLEMENTATION
     // **************************************************************
@@ -52,6 +52,7 @@ public abstract class TreeTraversal {
         this.traversalType = traversalType;
 
         updateNode = new boolean[treeModel.getNodeCount()];
+        updatedNodes = new int[treeModel.getNodeCount()];
         updateAllNodes();
     }
 
@@ -62,7 +63,14 @@ public abstract class TreeTraversal {
     }
 
     public final void setAllNodesUpdated() {
-        Arrays.fill(updateNode, false);
+        if (updateAllNodes) {
+            Arrays.fill(updateNode, false);
+        } else {
+            for (int i = 0; i < updatedNodeCount; i++) {
+                updateNode[updatedNodes[i]] = false;
+            }
+        }
+        updatedNodeCount = 0;
         updateAllNodes = false;
     }
 
@@ -72,20 +80,20 @@ public abstract class TreeTraversal {
     }
 
     public final void updateNode(final NodeRef node) {
-        updateNode[node.getNumber()] = true;
+        flagNode(node);
     }
 
     public final void updateNodeAndChildren(final NodeRef node) {
-        updateNode[node.getNumber()] = true;
+        flagNode(node);
 
         for (int i = 0; i < treeModel.getChildCount(node); i++) {
             final NodeRef child = treeModel.getChild(node, i);
-            updateNode[child.getNumber()] = true;
+            flagNode(child);
         }
     }
 
     public final void updateNodeAndDescendents(final NodeRef node) {
-        updateNode[node.getNumber()] = true;
+        flagNode(node);
 
         for (int i = 0; i < treeModel.getChildCount(node); i++) {
             final NodeRef child = treeModel.getChild(node, i);
@@ -94,7 +102,7 @@ public abstract class TreeTraversal {
     }
 
     public final void updateNodeAndAncestors(final NodeRef node) {
-        updateNode[node.getNumber()] = true;
+        flagNode(node);
 
         if (!treeModel.isRoot(node)) {
             final NodeRef parent = treeModel.getParent(node);
@@ -102,6 +110,15 @@ public abstract class TreeTraversal {
         }
     }
 
+    private void flagNode(final NodeRef node) {
+        final int nodeNum = node.getNumber();
+        if (!updateNode[nodeNum]) {
+            updateNode[nodeNum] = true;
+            updatedNodes[updatedNodeCount] = nodeNum;
+            updatedNodeCount++;
+        }
+    }
+
     protected final double computeBranchLength(final Tree tree, final NodeRef node) {
         final double branchRate;
 
@@ -126,6 +143,10 @@ public abstract class TreeTraversal {
     protected final boolean[] updateNode;
     protected boolean updateAllNodes;
 
+    // the nodes flagged since the last setAllNodesUpdated() (unless all nodes are to be updated)
+    protected final int[] updatedNodes;
+    protected int updatedNodeCount = 0;
+
     protected final TraversalType traversalType;
 }
 
@@ -0,0 +1,88 @@
+/*
+ * ClockRateGradient.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood.discrete;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+
+/**
+ * The gradient of a sequence likelihood with respect to an overall clock rate, that is a
+ * (one dimensional) parameter to which every branch rate is proportional, such as the
+ * rate of a strict clock.
+ */
+public class ClockRateGradient implements GradientWrtParameterProvider {
+
+    public ClockRateGradient(TreeDataLikelihood treeDataLikelihood, Parameter rateParameter) {
+        if (rateParameter.getDimension() != 1) {
+            throw new IllegalArgumentException("The clock rate parameter should have a single dimension");
+        }
+        this.treeDataLikelihood = treeDataLikelihood;
+        this.tree = treeDataLikelihood.getTree();
+        this.branchRateModel = treeDataLikelihood.getBranchRateModel();
+        this.rateParameter = rateParameter;
+    }
+
+    @Override
+    public Likelihood getLikelihood() {
+        return treeDataLikelihood;
+    }
+
+    @Override
+    public Parameter getParameter() {
+        return rateParameter;
+    }
+
+    @Override
+    public int getDimension() {
+        return 1;
+    }
+
+    @Override
+    public double[] getGradientLogDensity() {
+        double[] branchGradient = treeDataLikelihood.getBranchLengthGradient();
+
+        // each branch length is the branch rate (proportional to the clock rate) times its time
+        double value = 0.0;
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            if (!tree.isRoot(node)) {
+                value += branchGradient[i] * branchRateModel.getBranchRate(tree, node) * tree.getBranchLength(node);
+            }
+        }
+
+        return new double[] { value / rateParameter.getParameterValue(0) };
+    }
+
+    private final TreeDataLikelihood treeDataLikelihood;
+    private final Tree tree;
+    private final BranchRateModel branchRateModel;
+    private final Parameter rateParameter;
+}
@@ -0,0 +1,124 @@
+/*
+ * NodeHeightGradient.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood.discrete;
+
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.model.CompoundParameter;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The gradient of a sequence likelihood with respect to node heights (for example the
+ * parameter of all the internal node heights of a tree) so they can be updated jointly
+ * by Hamiltonian Monte Carlo. The branch length gradient is converted using the chain
+ * rule, assuming the branch rates do not themselves depend on the node heights.
+ */
+public class NodeHeightGradient implements GradientWrtParameterProvider {
+
+    public NodeHeightGradient(TreeDataLikelihood treeDataLikelihood, Parameter nodeHeightParameter) {
+        this.treeDataLikelihood = treeDataLikelihood;
+        this.tree = (TreeModel) treeDataLikelihood.getTree();
+        this.branchRateModel = treeDataLikelihood.getBranchRateModel();
+        this.nodeHeightParameter = nodeHeightParameter;
+
+        // the height parameters move between nodes when the root changes so the nodes
+        // are found from their parameters each time
+        if (nodeHeightParameter instanceof CompoundParameter) {
+            CompoundParameter compoundParameter = (CompoundParameter) nodeHeightParameter;
+            for (int i = 0; i < compoundParameter.getParameterCount(); i++) {
+                dimensions.put(compoundParameter.getParameter(i), i);
+            }
+        } else {
+            dimensions.put(nodeHeightParameter, 0);
+        }
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            Parameter parameter = ((TreeModel.Node) tree.getNode(i)).heightParameter;
+            if (dimensions.containsKey(parameter)) {
+                nodeCount++;
+            }
+        }
+        if (nodeCount != nodeHeightParameter.getDimension()) {
+            throw new IllegalArgumentException("Parameter " + nodeHeightParameter.getId() +
+                    " is not made up of the node heights of tree " + tree.getId());
+        }
+    }
+
+    @Override
+    public Likelihood getLikelihood() {
+        return treeDataLikelihood;
+    }
+
+    @Override
+    public Parameter getParameter() {
+        return nodeHeightParameter;
+    }
+
+    @Override
+    public int getDimension() {
+        return nodeHeightParameter.getDimension();
+    }
+
+    @Override
+    public double[] getGradientLogDensity() {
+        double[] branchGradient = treeDataLikelihood.getBranchLengthGradient();
+
+        double[] gradient = new double[getDimension()];
+
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            TreeModel.Node node = (TreeModel.Node) tree.getNode(i);
+            Integer dimension = dimensions.get(node.heightParameter);
+            if (dimension != null) {
+                // raising a node shortens the branch above it and lengthens those below it
+                double value = 0.0;
+                if (!tree.isRoot(node)) {
+                    value -= branchRateModel.getBranchRate(tree, node) * branchGradient[i];
+                }
+                for (int j = 0; j < tree.getChildCount(node); j++) {
+                    NodeRef child = tree.getChild(node, j);
+                    value += branchRateModel.getBranchRate(tree, child) * branchGradient[child.getNumber()];
+                }
+                gradient[dimension] = value;
+            }
+        }
+
+        return gradient;
+    }
+
+    private final TreeDataLikelihood treeDataLikelihood;
+    private final TreeModel tree;
+    private final BranchRateModel branchRateModel;
+    private final Parameter nodeHeightParameter;
+    private final Map<Parameter, Integer> dimensions = new IdentityHashMap<Parameter, Integer>();
+    private int nodeCount = 0;
+}
@@ -33,6 +33,7 @@ import dr.evomodel.branchmodel.EpochBranchModel;
 import dr.evomodel.branchmodel.HomogeneousBranchModel;
 import dr.evomodel.substmodel.MarkovModulatedSubstitutionModel;
 import dr.evomodel.treedatalikelihood.BufferIndexHelper;
+import dr.evomodel.treedatalikelihood.JavaBeagleImpl;
 import dr.evomodelxml.treelikelihood.BeagleTreeLikelihoodParser;
 import dr.evomodel.siteratemodel.GammaSiteRateModel;
 import dr.evomodel.siteratemodel.SiteRateModel;
@@ -318,7 +319,7 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
 
             instanceCount++;
 
-            beagle = BeagleFactory.loadBeagleInstance(
+            beagle = JavaBeagleImpl.loadBeagleInstance(
                     tipCount,
                     partialBufferHelper.getBufferCount(),
                     compactPartialsCount,
@@ -337,7 +338,11 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
             ResourceDetails resourceDetails = null;
 
             if (instanceDetails != null) {
-                resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                if (beagle instanceof JavaBeagleImpl) {
+                    resourceDetails = ((JavaBeagleImpl) beagle).getResourceDetails();
+                } else {
+                    resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                }
                 if (resourceDetails != null) {
                     StringBuilder sb = new StringBuilder("  Using BEAGLE resource ");
                     sb.append(resourceDetails.getNumber()).append(": ");
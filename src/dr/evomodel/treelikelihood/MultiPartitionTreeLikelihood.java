@@ -29,6 +29,7 @@ import beagle.*;
 import dr.evolution.tree.TreeUtils;
 import dr.evomodel.branchmodel.BranchModel;
 import dr.evomodel.treedatalikelihood.BufferIndexHelper;
+import dr.evomodel.treedatalikelihood.JavaBeagleImpl;
 import dr.evomodelxml.treelikelihood.BeagleTreeLikelihoodParser;
 import dr.evomodel.siteratemodel.SiteRateModel;
 import dr.evolution.alignment.AscertainedSitePatterns;
@@ -307,7 +308,7 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
 
             instanceCount++;
 
-            beagle = BeagleFactory.loadBeagleInstance(
+            beagle = JavaBeagleImpl.loadBeagleInstance(
                     tipCount,
                     partialBufferHelper.getBufferCount(),
                     compactPartialsCount,
@@ -326,7 +327,11 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
             ResourceDetails resourceDetails = null;
 
             if (instanceDetails != null) {
-                resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                if (beagle instanceof JavaBeagleImpl) {
+                    resourceDetails = ((JavaBeagleImpl) beagle).getResourceDetails();
+                } else {
+                    resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                }
                 if (resourceDetails != null) {
                     StringBuilder sb = new StringBuilder("  Using BEAGLE resource ");
                     sb.append(resourceDetails.getNumber()).append(": ");
@@ -30,6 +30,7 @@ import dr.evolution.tree.*;
 import dr.evomodel.tree.TreeLogger;
 import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.Loggable;
+import dr.inference.loggers.MCLogger;
 import dr.inference.loggers.TabDelimitedFormatter;
 import dr.inference.model.Likelihood;
 import dr.inference.model.Model;
@@ -355,6 +356,10 @@ public class TreeLoggerParser extends LoggerParser {
             logger.setTitle(title);
         }
 
+        if (xo.hasAttribute(FILE_NAME)) {
+            logger.setAsynchronous(Boolean.getBoolean(MCLogger.ASYNCHRONOUS_LOGGING));
+        }
+
         return logger;
     }
 
@@ -0,0 +1,75 @@
+/*
+ * ClockRateGradientParser.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodelxml.treedatalikelihood;
+
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.evomodel.treedatalikelihood.discrete.ClockRateGradient;
+import dr.inference.model.Parameter;
+import dr.xml.*;
+
+/**
+ */
+public class ClockRateGradientParser extends AbstractXMLObjectParser {
+
+    public static final String NAME = "clockRateGradient";
+
+    @Override
+    public String getParserName() {
+        return NAME;
+    }
+
+    @Override
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+        TreeDataLikelihood treeDataLikelihood = (TreeDataLikelihood) xo.getChild(TreeDataLikelihood.class);
+        Parameter parameter = (Parameter) xo.getChild(Parameter.class);
+
+        try {
+            return new ClockRateGradient(treeDataLikelihood, parameter);
+        } catch (IllegalArgumentException iae) {
+            throw new XMLParseException(iae.getMessage());
+        }
+    }
+
+    @Override
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            new ElementRule(TreeDataLikelihood.class),
+            new ElementRule(Parameter.class, "the clock rate"),
+    };
+
+    @Override
+    public String getParserDescription() {
+        return "Gradient of a sequence likelihood with respect to an overall clock rate";
+    }
+
+    @Override
+    public Class getReturnType() {
+        return ClockRateGradient.class;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * CachedQuantiles.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.distribution;
+
+/**
+ * Quantiles of a parametric distribution at a fixed vector of probabilities as its parameters change.
+ * For distributions with StandardizedQuantiles the standard quantiles are calculated once and only
+ * transformed for the current parameters. Those with WarmStartQuantiles invert their cdf starting from
+ * the quantiles last calculated; these are part of the state of the owning model, which should store
+ * and restore them along with its own state so a rejected move leaves no trace in later quantiles.
+ * Any others use their quantile function for each probability.
+ */
+public class CachedQuantiles {
+
+    public CachedQuantiles(ParametricDistributionModel distribution, double[] probabilities) {
+        this.distribution = distribution;
+        this.count = probabilities.length;
+        this.probabilities = new double[count];
+        System.arraycopy(probabilities, 0, this.probabilities, 0, count);
+
+        if (distribution instanceof StandardizedQuantiles) {
+            standardized = (StandardizedQuantiles) distribution;
+            standardQuantiles = new double[count];
+            for (int i = 0; i < count; i++) {
+                standardQuantiles[i] = standardized.getStandardQuantile(probabilities[i]);
+            }
+        } else {
+            standardized = null;
+            standardQuantiles = null;
+        }
+
+        if (standardized == null && distribution instanceof WarmStartQuantiles) {
+            warmStart = (WarmStartQuantiles) distribution;
+            previousQuantiles = new double[count];
+            storedPreviousQuantiles = new double[count];
+        } else {
+            warmStart = null;
+            previousQuantiles = null;
+            storedPreviousQuantiles = null;
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Fills quantiles with those of the distribution, for its current parameters, at each of the probabilities.
+     */
+    public void getQuantiles(double[] quantiles) {
+        if (standardized != null) {
+            standardized.transformStandardQuantiles(standardQuantiles, quantiles, count);
+        } else if (warmStart != null) {
+            warmStart.getQuantiles(probabilities, (hasPreviousQuantiles ? previousQuantiles : null), quantiles, count);
+            System.arraycopy(quantiles, 0, previousQuantiles, 0, count);
+            hasPreviousQuantiles = true;
+        } else {
+            for (int i = 0; i < count; i++) {
+                quantiles[i] = distribution.quantile(probabilities[i]);
+            }
+        }
+    }
+
+    public void storeState() {
+        if (warmStart != null) {
+            System.arraycopy(previousQuantiles, 0, storedPreviousQuantiles, 0, count);
+            storedHasPreviousQuantiles = hasPreviousQuantiles;
+        }
+    }
+
+    public void restoreState() {
+        if (warmStart != null) {
+            System.arraycopy(storedPreviousQuantiles, 0, previousQuantiles, 0, count);
+            hasPreviousQuantiles = storedHasPreviousQuantiles;
+        }
+    }
+
+    private final ParametricDistributionModel distribution;
+    private final int count;
+    private final double[] probabilities;
+
+    private final StandardizedQuantiles standardized;
+    private final double[] standardQuantiles;
+
+    private final WarmStartQuantiles warmStart;
+    private final double[] previousQuantiles;
+    private final double[] storedPreviousQuantiles;
+    private boolean hasPreviousQuantiles = false;
+    private boolean storedHasPreviousQuantiles = false;
+}
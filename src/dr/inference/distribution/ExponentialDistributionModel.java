@@ -42,7 +42,7 @@ import org.w3c.dom.Element;
  * @version $Id: ExponentialDistributionModel.java,v 1.12 2005/05/24 20:25:59 rambaut Exp $
  */
 
-public class ExponentialDistributionModel extends AbstractModel implements ParametricDistributionModel {
+public class ExponentialDistributionModel extends AbstractModel implements ParametricDistributionModel, StandardizedQuantiles {
 
     public static final String EXPONENTIAL_DISTRIBUTION_MODEL = "exponentialDistributionModel";
 
@@ -92,6 +92,21 @@ public class ExponentialDistributionModel extends AbstractModel implements Param
         return ExponentialDistribution.quantile(y, 1.0 / getMean()) + offset;
     }
 
+    // *****************************************************************
+    // Interface StandardizedQuantiles
+    // *****************************************************************
+
+    public double getStandardQuantile(double y) {
+        return Math.log(1.0 - y);
+    }
+
+    public void transformStandardQuantiles(double[] standardQuantiles, double[] quantiles, int count) {
+        final double lambda = 1.0 / getMean();
+        for (int i = 0; i < count; i++) {
+            quantiles[i] = -(1.0 / lambda) * standardQuantiles[i] + offset;
+        }
+    }
+
     public double mean() {
         return ExponentialDistribution.mean(1.0 / getMean()) + offset;
     }
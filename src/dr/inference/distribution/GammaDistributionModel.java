@@ -33,6 +33,7 @@ import dr.math.UnivariateFunction;
 import dr.math.distributions.GammaDistribution;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.GammaDistributionImpl;
+import org.apache.commons.math.special.Gamma;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -44,7 +45,7 @@ import org.w3c.dom.Element;
  * @version $Id: GammaDistributionModel.java,v 1.6 2005/05/24 20:25:59 rambaut Exp $
  */
 
-public class GammaDistributionModel extends AbstractModel implements ParametricDistributionModel {
+public class GammaDistributionModel extends AbstractModel implements ParametricDistributionModel, WarmStartQuantiles {
 
     public enum GammaParameterizationType {
         ShapeScale,
@@ -56,6 +57,9 @@ public class GammaDistributionModel extends AbstractModel implements ParametricD
     public static final String GAMMA_DISTRIBUTION_MODEL = "gammaDistributionModel";
     public static final String ONE_P_GAMMA_DISTRIBUTION_MODEL = "onePGammaDistributionModel";
 
+    private static final int MAX_INVERSION_ITERATIONS = 50;
+    private static final double INVERSION_EPSILON = 1E-15;
+
     /**
      * Construct a gamma distribution model with a default shape scale parameterization.
      */
@@ -148,6 +152,88 @@ public class GammaDistributionModel extends AbstractModel implements ParametricD
         return GammaDistribution.mean(getShape(), getScale()) + offset;
     }
 
+    // *****************************************************************
+    // Interface WarmStartQuantiles
+    // *****************************************************************
+
+    public void getQuantiles(double[] probabilities, double[] start, double[] quantiles, int count) {
+        final double shape = getShape();
+        final double scale = getScale();
+        final double logGammaShape = Gamma.logGamma(shape);
+
+        for (int i = 0; i < count; i++) {
+            double x = Double.NaN;
+            if (start != null && start[i] - offset > 0.0) {
+                x = invertUnitScale(probabilities[i], (start[i] - offset) / scale, shape, logGammaShape);
+            }
+            if (Double.isNaN(x)) {
+                // no start (or too far away to converge) so start from an approximation
+                x = invertUnitScale(probabilities[i], approximateUnitScaleQuantile(probabilities[i], shape),
+                        shape, logGammaShape);
+                if (Double.isNaN(x)) {
+                    // fall back on the bracketing solution
+                    quantiles[i] = quantile(probabilities[i]);
+                    continue;
+                }
+            }
+            quantiles[i] = x * scale + offset;
+        }
+    }
+
+    /**
+     * An approximation to the quantile of the gamma distribution with unit scale, close enough for a few
+     * Newton steps to converge: the Wilson-Hilferty approximation for shapes above 1 and the small and
+     * large value tails otherwise (as in Numerical Recipes, 3rd edition, section 6.2.1).
+     */
+    private static double approximateUnitScaleQuantile(double p, double shape) {
+        if (shape > 1.0) {
+            double pp = (p < 0.5 ? p : 1.0 - p);
+            double t = Math.sqrt(-2.0 * Math.log(pp));
+            double z = (2.30753 + t * 0.27061) / (1.0 + t * (0.99229 + t * 0.04481)) - t;
+            if (p < 0.5) {
+                z = -z;
+            }
+            return Math.max(1E-3, shape * Math.pow(1.0 - 1.0 / (9.0 * shape) - z / (3.0 * Math.sqrt(shape)), 3));
+        }
+        double t = 1.0 - shape * (0.253 + shape * 0.12);
+        if (p < t) {
+            return Math.pow(p / t, 1.0 / shape);
+        }
+        return 1.0 - Math.log(1.0 - (p - t) / (1.0 - t));
+    }
+
+    /**
+     * Newton-Raphson for the quantile of the gamma distribution with unit scale, on the log scale so it
+     * stays positive. The iterations carry on until the step is down to rounding error, so the quantile
+     * doesn't depend on the start beyond the last few bits.
+     *
+     * @return the quantile or NaN if it did not converge
+     */
+    private static double invertUnitScale(double p, double start, double shape, double logGammaShape) {
+        double y = Math.log(start);
+        for (int iteration = 0; iteration < MAX_INVERSION_ITERATIONS; iteration++) {
+            double x = Math.exp(y);
+            double difference;
+            try {
+                difference = Gamma.regularizedGammaP(shape, x, INVERSION_EPSILON, Integer.MAX_VALUE) - p;
+            } catch (MathException e) {
+                return Double.NaN;
+            }
+            // the derivative of the cdf with respect to log x is x * pdf(x)
+            double derivative = Math.exp(shape * y - x - logGammaShape);
+            if (!(derivative > 0.0) || Double.isNaN(difference)) {
+                return Double.NaN;
+            }
+
+            double step = Math.max(-1.0, Math.min(1.0, difference / derivative));
+            y -= step;
+            if (Math.abs(step) <= 1E-14 * Math.max(1.0, Math.abs(y))) {
+                return Math.exp(y);
+            }
+        }
+        return Double.NaN;
+    }
+
     public double variance() {
         return GammaDistribution.variance(getShape(), getScale());
     }
@@ -30,6 +30,7 @@ import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 import dr.inferencexml.distribution.LogNormalDistributionModelParser;
+import dr.math.ErrorFunction;
 import dr.math.UnivariateFunction;
 import dr.math.distributions.NormalDistribution;
 import org.w3c.dom.Document;
@@ -42,7 +43,7 @@ import org.w3c.dom.Element;
  * @version $Id: LogNormalDistributionModel.java,v 1.8 2005/05/24 20:25:59 rambaut Exp $
  */
 
-public class LogNormalDistributionModel extends AbstractModel implements ParametricDistributionModel {
+public class LogNormalDistributionModel extends AbstractModel implements ParametricDistributionModel, StandardizedQuantiles {
 
 
 
@@ -180,6 +181,23 @@ public class LogNormalDistributionModel extends AbstractModel implements Paramet
         return Math.exp(NormalDistribution.quantile(y, getM(), getStDev())) + offset;
     }
 
+    // *****************************************************************
+    // Interface StandardizedQuantiles
+    // *****************************************************************
+
+    public double getStandardQuantile(double y) {
+        // on the scale of the inverse error function so the transformation repeats NormalDistribution.quantile
+        return ErrorFunction.inverseErf(2.0 * y - 1.0);
+    }
+
+    public void transformStandardQuantiles(double[] standardQuantiles, double[] quantiles, int count) {
+        final double m = getM();
+        final double sd = getStDev();
+        for (int i = 0; i < count; i++) {
+            quantiles[i] = Math.exp(m + Math.sqrt(2.0) * sd * standardQuantiles[i]) + offset;
+        }
+    }
+
     /**
      * @return the mean of the distribution
      */
@@ -0,0 +1,47 @@
+/*
+ * StandardizedQuantiles.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.distribution;
+
+/**
+ * A distribution whose quantiles are a function, set by its current parameters, of the quantiles of a
+ * parameter free standard distribution (e.g., location-scale families and their transformations, such
+ * as the log normal). A vector of quantiles for fixed probabilities can then be cached on the standard
+ * scale and only transformed when the parameters change.
+ */
+public interface StandardizedQuantiles {
+
+    /**
+     * @param y the probability
+     * @return the quantile of the standard distribution, which does not depend on the parameters
+     */
+    double getStandardQuantile(double y);
+
+    /**
+     * Transforms standard quantiles to the quantiles of this distribution with its current parameters
+     * such that quantiles[i] == quantile(y[i]) where standardQuantiles[i] == getStandardQuantile(y[i]).
+     */
+    void transformStandardQuantiles(double[] standardQuantiles, double[] quantiles, int count);
+}
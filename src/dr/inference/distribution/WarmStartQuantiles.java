@@ -0,0 +1,41 @@
+/*
+ * WarmStartQuantiles.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.distribution;
+
+/**
+ * A distribution that can find a vector of quantiles by numerical inversion of its cdf starting from
+ * the quantiles for other (usually nearby) parameter values. The results should not depend on the
+ * starting values beyond the last few bits.
+ */
+public interface WarmStartQuantiles {
+
+    /**
+     * Fills quantiles[i] with quantile(probabilities[i]) for the current parameters.
+     *
+     * @param start the quantiles for earlier parameter values to start from, or null
+     */
+    void getQuantiles(double[] probabilities, double[] start, double[] quantiles, int count);
+}
@@ -0,0 +1,120 @@
+/*
+ * AsynchronousLogWriter.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs the formatting and writing of log lines on a background thread. Tasks are run in the
+ * order they are submitted. The queue is bounded so if the writer falls behind, the chain
+ * blocks on submission rather than accumulating an unbounded backlog. If a task fails, the
+ * writer goes on with the tasks after it and the error is thrown to the chain thread by the
+ * next call to submit or close.
+ */
+public class AsynchronousLogWriter {
+
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+
+    private static final Runnable STOP = new Runnable() {
+        public void run() {
+        }
+    };
+
+    private final BlockingQueue<Runnable> queue;
+    private final Thread thread;
+
+    private volatile Throwable failure = null;
+
+    public AsynchronousLogWriter(String name, int queueSize) {
+        queue = new ArrayBlockingQueue<Runnable>(queueSize);
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    Runnable task;
+                    try {
+                        task = queue.take();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    if (task == STOP) {
+                        return;
+                    }
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        // keep the first error for the chain thread and carry on with the later tasks
+                        if (failure == null) {
+                            failure = t;
+                        }
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a task, blocking while the queue is full.
+     */
+    public void submit(Runnable task) {
+        checkFailure();
+        if (!thread.isAlive()) {
+            throw new IllegalStateException("Log writer has been closed");
+        }
+        try {
+            queue.put(task);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while queuing log output");
+        }
+    }
+
+    /**
+     * Waits for all the queued tasks to be written and stops the writer thread.
+     */
+    public void close() {
+        if (thread.isAlive()) {
+            try {
+                queue.put(STOP);
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            Throwable t = failure;
+            failure = null;
+            throw new RuntimeException("Error writing log: " + t.getMessage(), t);
+        }
+    }
+}
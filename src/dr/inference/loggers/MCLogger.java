@@ -31,6 +31,8 @@ import java.io.PrintWriter;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * A class for a general purpose logger.
@@ -41,6 +43,11 @@ import java.util.List;
  */
 public class MCLogger implements Logger {
 
+    /**
+     * System property to request that file logs are formatted and written on a background thread
+     */
+    public static final String ASYNCHRONOUS_LOGGING = "log.asynchronous";
+
     /**
      * Output performance stats in this log
      */
@@ -115,6 +122,18 @@ public class MCLogger implements Logger {
         this.logEvery = logEvery;
     }
 
+    /**
+     * If set, the values of the columns are captured on the calling thread when logging but are formatted
+     * and written out by a background thread. Must be set before startLogging is called.
+     */
+    public void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
     public final void addFormatter(LogFormatter formatter) {
 
         formatters.add(formatter);
@@ -160,34 +179,116 @@ public class MCLogger implements Logger {
         return columns.get(index).getFormatted();
     }
 
-    protected void logHeading(String heading) {
+    protected void logHeading(final String heading) {
+        if (writer != null) {
+            writer.submit(new Runnable() {
+                public void run() {
+                    for (LogFormatter formatter : formatters) {
+                        formatter.logHeading(heading);
+                    }
+                }
+            });
+            return;
+        }
         for (LogFormatter formatter : formatters) {
             formatter.logHeading(heading);
         }
     }
 
-    protected void logLine(String line) {
+    protected void logLine(final String line) {
+        if (writer != null) {
+            writer.submit(new Runnable() {
+                public void run() {
+                    for (LogFormatter formatter : formatters) {
+                        formatter.logLine(line);
+                    }
+                }
+            });
+            return;
+        }
         for (LogFormatter formatter : formatters) {
             formatter.logLine(line);
         }
     }
 
-    protected void logLabels(String[] labels) {
+    protected void logLabels(final String[] labels) {
+        if (writer != null) {
+            writer.submit(new Runnable() {
+                public void run() {
+                    for (LogFormatter formatter : formatters) {
+                        formatter.logLabels(labels);
+                    }
+                }
+            });
+            return;
+        }
         for (LogFormatter formatter : formatters) {
             formatter.logLabels(labels);
         }
     }
 
-    protected void logValues(String[] values) {
+    protected void logValues(final String[] values) {
+        if (writer != null) {
+            writer.submit(new Runnable() {
+                public void run() {
+                    for (LogFormatter formatter : formatters) {
+                        formatter.logValues(values);
+                    }
+                }
+            });
+            return;
+        }
         for (LogFormatter formatter : formatters) {
             formatter.logValues(values);
         }
     }
 
+    /**
+     * Starts the background writer thread if this logger is asynchronous. Subclasses that override
+     * startLogging without calling it should call this first.
+     */
+    protected void startWriter() {
+        if (asynchronous && writer == null) {
+            writer = new AsynchronousLogWriter("log writer", AsynchronousLogWriter.DEFAULT_QUEUE_SIZE);
+
+            // recycled buffers for the captured column values, one more than can be queued
+            freeRows = new ArrayBlockingQueue<Row>(AsynchronousLogWriter.DEFAULT_QUEUE_SIZE + 1);
+            for (int i = 0; i < AsynchronousLogWriter.DEFAULT_QUEUE_SIZE + 1; i++) {
+                freeRows.add(new Row(getColumnCount()));
+            }
+            numberColumns = new NumberColumn[getColumnCount()];
+            for (int i = 0; i < numberColumns.length; i++) {
+                LogColumn column = getColumn(i);
+                if (column instanceof NumberColumn) {
+                    numberColumns[i] = (NumberColumn) column;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the background writer or null if this logger is writing synchronously (or has not started)
+     */
+    protected final AsynchronousLogWriter getWriter() {
+        return writer;
+    }
+
     public void startLogging() {
 
-        for (LogFormatter formatter : formatters) {
-            formatter.startLogging(title);
+        startWriter();
+
+        if (writer != null) {
+            writer.submit(new Runnable() {
+                public void run() {
+                    for (LogFormatter formatter : formatters) {
+                        formatter.startLogging(title);
+                    }
+                }
+            });
+        } else {
+            for (LogFormatter formatter : formatters) {
+                formatter.startLogging(title);
+            }
         }
 
         if (title != null) {
@@ -224,36 +325,52 @@ public class MCLogger implements Logger {
 
             final int columnCount = getColumnCount();
 
-            String[] values = new String[columnCount + (performanceReport ? 2 : 1)];
+            final String[] values = new String[columnCount + (performanceReport ? 2 : 1)];
 
             values[0] = Long.toString(state);
 
-            for (int i = 0; i < columnCount; i++) {
-                values[i + 1] = getColumnFormatted(i);
-            }
-
-            if (performanceReport) {
-                if (performanceReportStarted) {
-
-                    long time = System.currentTimeMillis();
-
-                    double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
-
-                    String hpm = formatter.format(hoursPerMillionStates);
-                    if (hpm.equals("0")) {
-                        // test cases can run fast :)
-                        hpm = formatter.format(1000 * hoursPerMillionStates);
-                        values[columnCount + 1] = hpm + " hours/billion states";
+            if (writer != null) {
+                // capture the numerical values now and leave the formatting to the writer thread
+                final Row row = takeRow();
+                for (int i = 0; i < columnCount; i++) {
+                    if (numberColumns[i] != null) {
+                        row.values[i] = numberColumns[i].getDoubleValue();
                     } else {
-                        values[columnCount + 1] = hpm + " hours/million states";
+                        values[i + 1] = getColumnFormatted(i);
+                    }
+                }
+                final String performance = (performanceReport ? getPerformance(state) : null);
+
+                writer.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < columnCount; i++) {
+                                if (numberColumns[i] != null) {
+                                    values[i + 1] = numberColumns[i].getFormatted(row.values[i]);
+                                }
+                            }
+                        } finally {
+                            freeRows.add(row);
+                        }
+                        if (performance != null) {
+                            values[columnCount + 1] = performance;
+                        }
+                        for (LogFormatter formatter : formatters) {
+                            formatter.logValues(values);
+                        }
                     }
+                });
+            } else {
+                for (int i = 0; i < columnCount; i++) {
+                    values[i + 1] = getColumnFormatted(i);
+                }
 
-                } else {
-                    values[columnCount + 1] = "-";
+                if (performanceReport) {
+                    values[columnCount + 1] = getPerformance(state);
                 }
-            }
 
-            logValues(values);
+                logValues(values);
+            }
         }
 
         if (performanceReport && !performanceReportStarted && state >= performanceReportDelay) {
@@ -262,13 +379,67 @@ public class MCLogger implements Logger {
 
     }
 
+    private String getPerformance(long state) {
+        if (performanceReportStarted) {
+
+            long time = System.currentTimeMillis();
+
+            double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
+
+            String hpm = formatter.format(hoursPerMillionStates);
+            if (hpm.equals("0")) {
+                // test cases can run fast :)
+                hpm = formatter.format(1000 * hoursPerMillionStates);
+                return hpm + " hours/billion states";
+            } else {
+                return hpm + " hours/million states";
+            }
+
+        } else {
+            return "-";
+        }
+    }
+
     public void stopLogging() {
 
-        for (LogFormatter formatter : formatters) {
-            formatter.stopLogging();
+        if (writer != null) {
+            writer.submit(new Runnable() {
+                public void run() {
+                    for (LogFormatter formatter : formatters) {
+                        formatter.stopLogging();
+                    }
+                }
+            });
+            // wait for everything to be written
+            writer.close();
+            writer = null;
+        } else {
+            for (LogFormatter formatter : formatters) {
+                formatter.stopLogging();
+            }
         }
     }
 
+    private Row takeRow() {
+        try {
+            return freeRows.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while logging");
+        }
+    }
+
+    /**
+     * A preallocated buffer for the captured values of a logged state
+     */
+    private static class Row {
+        Row(int columnCount) {
+            values = new double[columnCount];
+        }
+
+        final double[] values;
+    }
+
     private String title = null;
 
     private ArrayList<LogColumn> columns = new ArrayList<LogColumn>();
@@ -291,4 +462,9 @@ public class MCLogger implements Logger {
 
     private final NumberFormat formatter = NumberFormat.getNumberInstance();
 
+    private boolean asynchronous = false;
+    private AsynchronousLogWriter writer = null;
+    private BlockingQueue<Row> freeRows = null;
+    private NumberColumn[] numberColumns = null;
+
 }
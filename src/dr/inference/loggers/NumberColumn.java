@@ -101,6 +101,23 @@ public abstract class NumberColumn extends LogColumn.Abstract {
 	public int getDecimalPlaces() { return dp; }
 	
 
+    /**
+     * Returns the given value formatted and padded as getFormatted() would for the current value.
+     * This allows the value to be captured on one thread and formatted on another, so columns
+     * should change their formatting by overriding formatValue rather than getFormattedValue.
+     */
+    public String getFormatted(double value) {
+        StringBuffer buffer = new StringBuffer(formatValue(value));
+
+        if (getMinimumWidth() > 0) {
+            while (buffer.length() < getMinimumWidth()) {
+                buffer.append(' ');
+            }
+        }
+
+        return buffer.toString();
+    }
+
     public String formatValue(double value) {
        if (dp < 0 && sf < 0) {
 			// return it at full precision
@@ -34,6 +34,7 @@ import dr.inference.operators.*;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
@@ -69,13 +70,34 @@ public final class MarkovChain implements Serializable {
 
     private double evaluationTestThreshold = EVALUATION_TEST_THRESHOLD;
 
+    // delayed acceptance: a cheap density used to screen proposals before the full likelihood is evaluated
+    private final Likelihood firstStageLikelihood;
+    private double currentFirstStageScore;
+    private final long[] firstStageRejectCounts;
+
 
     public MarkovChain(Likelihood likelihood,
                        OperatorSchedule schedule, Acceptor acceptor,
                        long fullEvaluationCount, int minOperatorCountForFullEvaluation, double evaluationTestThreshold,
                        boolean useCoercion) {
+        this(likelihood, null, schedule, acceptor, fullEvaluationCount, minOperatorCountForFullEvaluation,
+                evaluationTestThreshold, useCoercion);
+    }
+
+    /**
+     * @param firstStageLikelihood if not null, proposals are first accepted or rejected using this (cheap)
+     *                             density and the full likelihood is only evaluated for those that pass.
+     *                             A second acceptance step corrects for the difference so the chain still
+     *                             targets the full likelihood (delayed acceptance; Christen & Fox 2005).
+     */
+    public MarkovChain(Likelihood likelihood, Likelihood firstStageLikelihood,
+                       OperatorSchedule schedule, Acceptor acceptor,
+                       long fullEvaluationCount, int minOperatorCountForFullEvaluation, double evaluationTestThreshold,
+                       boolean useCoercion) {
 
         currentLength = 0;
+        this.firstStageLikelihood = firstStageLikelihood;
+        this.firstStageRejectCounts = (firstStageLikelihood != null ? new long[schedule.getOperatorCount()] : null);
         this.likelihood = likelihood;
         this.schedule = schedule;
         this.acceptor = acceptor;
@@ -87,6 +109,10 @@ public final class MarkovChain implements Serializable {
 
         Likelihood.CONNECTED_LIKELIHOOD_SET.add(likelihood);
         Likelihood.CONNECTED_LIKELIHOOD_SET.addAll(likelihood.getLikelihoodSet());
+        if (firstStageLikelihood != null) {
+            Likelihood.CONNECTED_LIKELIHOOD_SET.add(firstStageLikelihood);
+            Likelihood.CONNECTED_LIKELIHOOD_SET.addAll(firstStageLikelihood.getLikelihoodSet());
+        }
 
         for (Likelihood l : Likelihood.FULL_LIKELIHOOD_SET) {
             if (!Likelihood.CONNECTED_LIKELIHOOD_SET.contains(l)) {
@@ -107,6 +133,9 @@ public final class MarkovChain implements Serializable {
         for (int i = 0; i < schedule.getOperatorCount(); i++) {
             schedule.getOperator(i).reset();
         }
+        if (firstStageRejectCounts != null) {
+            Arrays.fill(firstStageRejectCounts, 0);
+        }
     }
 
     /**
@@ -119,10 +148,21 @@ public final class MarkovChain implements Serializable {
         likelihood.makeDirty();
         currentScore = evaluate(likelihood);
 
+        if (firstStageLikelihood != null) {
+            firstStageLikelihood.makeDirty();
+            currentFirstStageScore = evaluate(firstStageLikelihood);
+        }
+
         long currentState = currentLength;
 
         final Model currentModel = likelihood.getModel();
 
+        // a first stage density that is not part of the full likelihood keeps its own cached state
+        // so it is stored, restored and accepted along with the full model (which is harmless if it
+        // is part of it, as a model is only stored once before it is restored or accepted)
+        final Model firstStageModel = (firstStageLikelihood != null && firstStageLikelihood.getModel() != currentModel ?
+                firstStageLikelihood.getModel() : null);
+
         if (currentState == 0) {
             initialScore = currentScore;
             bestScore = currentScore;
@@ -158,6 +198,7 @@ public final class MarkovChain implements Serializable {
         //int otfcounter = onTheFlyOperatorWeights > 0 ? onTheFlyOperatorWeights : 0;
 
         double[] logr = {0.0};
+        double[] secondStageLogr = {0.0};
 
         boolean usingFullEvaluation = true;
         // set ops count in mcmc element instead
@@ -193,6 +234,9 @@ public final class MarkovChain implements Serializable {
             if (currentModel != null) {
                 currentModel.storeModelState();
             }
+            if (firstStageModel != null) {
+                firstStageModel.storeModelState();
+            }
 
             // assert Profiler.stopProfile("Store");
 
@@ -240,8 +284,19 @@ public final class MarkovChain implements Serializable {
             double score = Double.NaN;
             double deviation = Double.NaN;
 
+            double firstStageScore = Double.NaN;
+            boolean firstStageAccept = true;
+            if (operatorSucceeded && firstStageLikelihood != null && !(mcmcOperator instanceof GibbsOperator)) {
+                // delayed acceptance: screen the proposal with the cheap density first
+                firstStageScore = evaluate(firstStageLikelihood);
+                firstStageAccept = acceptor.accept(currentFirstStageScore, firstStageScore, hastingsRatio, logr);
+                if (!firstStageAccept) {
+                    firstStageRejectCounts[op] += 1;
+                }
+            }
+
             //    System.err.print("" + currentState + ": ");
-            if (operatorSucceeded) {
+            if (operatorSucceeded && firstStageAccept) {
 
                 // The new model is proposed
                 // assert Profiler.startProfile("Evaluate");
@@ -324,7 +379,16 @@ public final class MarkovChain implements Serializable {
                     fireBestModel(currentState, currentModel);
                 }
 
-                accept = mcmcOperator instanceof GibbsOperator || acceptor.accept(oldScore, score, hastingsRatio, logr);
+                if (mcmcOperator instanceof GibbsOperator) {
+                    accept = true;
+                } else if (firstStageLikelihood != null) {
+                    // the second stage corrects for the first stage density so the full likelihood is the target
+                    // (the Hastings ratio has already been accounted for in the first stage)
+                    accept = acceptor.accept(oldScore - currentFirstStageScore, score - firstStageScore, 0.0, secondStageLogr);
+                    logr[0] += secondStageLogr[0];
+                } else {
+                    accept = acceptor.accept(oldScore, score, hastingsRatio, logr);
+                }
 
                 deviation = score - oldScore;
             }
@@ -338,8 +402,16 @@ public final class MarkovChain implements Serializable {
 
                 mcmcOperator.accept(deviation);
                 currentModel.acceptModelState();
+                if (firstStageModel != null) {
+                    firstStageModel.acceptModelState();
+                }
                 currentScore = score;
 
+                if (firstStageLikelihood != null) {
+                    currentFirstStageScore = (mcmcOperator instanceof GibbsOperator ?
+                            evaluate(firstStageLikelihood) : firstStageScore);
+                }
+
             } else {
                 if (DEBUG) {
                     System.out.println("** Move rejected: new score = " + score
@@ -351,6 +423,9 @@ public final class MarkovChain implements Serializable {
                 // assert Profiler.startProfile("Restore");
 
                 currentModel.restoreModelState();
+                if (firstStageModel != null) {
+                    firstStageModel.restoreModelState();
+                }
 
                 if (usingFullEvaluation) {
                     // This is a test that the state is correctly restored. The
@@ -363,6 +438,20 @@ public final class MarkovChain implements Serializable {
                     final String d2 = likelihood instanceof CompoundLikelihood ?
                             ((CompoundLikelihood) likelihood).getDiagnosis() : "";
 
+                    if (firstStageLikelihood != null) {
+                        firstStageLikelihood.makeDirty();
+                        final double testFirstStageScore = evaluate(firstStageLikelihood);
+                        if (Math.abs(testFirstStageScore - currentFirstStageScore) > evaluationTestThreshold) {
+                            Logger.getLogger("error").severe("State "+currentState+": First stage density was not correctly restored after reject step.\n"
+                                    + "First stage before: " + currentFirstStageScore
+                                    + " First stage after: " + testFirstStageScore
+                                    + "\n" + "Operator: " + mcmcOperator
+                                    + " " + mcmcOperator.getOperatorName()
+                                    + "\n\n");
+                            fullEvaluationError = true;
+                        }
+                    }
+
                     if (Math.abs(testScore - oldScore) > evaluationTestThreshold) {
 
 
@@ -435,6 +524,18 @@ public final class MarkovChain implements Serializable {
         return acceptor;
     }
 
+    public Likelihood getFirstStageLikelihood() {
+        return firstStageLikelihood;
+    }
+
+    /**
+     * @return the number of proposals by each operator (in schedule order) that were rejected by the
+     * first stage of delayed acceptance, or null if delayed acceptance is not being used.
+     */
+    public long[] getFirstStageRejectCounts() {
+        return firstStageRejectCounts;
+    }
+
     public double getInitialScore() {
         return initialScore;
     }
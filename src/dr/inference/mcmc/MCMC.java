@@ -74,7 +74,7 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
         MCMCCriterion criterion = new MCMCCriterion();
         criterion.setTemperature(options.getTemperature());
 
-        mc = new MarkovChain(likelihood, schedule, criterion,
+        mc = new MarkovChain(likelihood, firstStageLikelihood, schedule, criterion,
                 options.getFullEvaluationCount(), options.minOperatorCountForFullEvaluation(),
                 options.getEvaluationTestThreshold(),
                 options.useCoercion());
@@ -277,13 +277,15 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
             }
             // OperatorAnalysisPrinter class can do the job now
             if (showOperatorAnalysis) {
-                OperatorAnalysisPrinter.showOperatorAnalysis(System.out, getOperatorSchedule(), options.useCoercion());
+                OperatorAnalysisPrinter.showOperatorAnalysis(System.out, getOperatorSchedule(), options.useCoercion(),
+                        mc.getFirstStageRejectCounts());
             }
 
             if (operatorAnalysisFile != null) {
                 try {
                     PrintStream out = new PrintStream(new FileOutputStream(operatorAnalysisFile));
-                    OperatorAnalysisPrinter.showOperatorAnalysis(out, getOperatorSchedule(), options.useCoercion());
+                    OperatorAnalysisPrinter.showOperatorAnalysis(out, getOperatorSchedule(), options.useCoercion(),
+                            mc.getFirstStageRejectCounts());
                     out.flush();
                     out.close();
                 } catch (IOException e) {
@@ -367,7 +369,12 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
 
 
     //PRIVATE METHODS *****************************************
-    protected long getCoercionDelay() {
+
+    /**
+     * @return the number of states to run with the tuning of the operators switched off before
+     * it is switched on or -1 if there is none
+     */
+    public long getCoercionDelay() {
 
         long delay = options.getCoercionDelay();
         if (delay < 0) {
@@ -395,6 +402,16 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
         this.operatorAnalysisFile = operatorAnalysisFile;
     }
 
+    /**
+     * Sets a cheap density used to screen proposals before the full likelihood is evaluated
+     * (delayed acceptance). Must be called before init.
+     *
+     * @param firstStageLikelihood the first stage density
+     */
+    public void setFirstStageLikelihood(Likelihood firstStageLikelihood) {
+        this.firstStageLikelihood = firstStageLikelihood;
+    }
+
     public String getId() {
         return id;
     }
@@ -410,6 +427,7 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
     protected boolean stopping = false;
     protected boolean showOperatorAnalysis = true;
     protected File operatorAnalysisFile = null;
+    protected Likelihood firstStageLikelihood = null;
     protected final dr.util.Timer timer = new dr.util.Timer();
     protected long currentState = 0;
     //private int stepsPerReport = 1000;
@@ -26,13 +26,19 @@
 package dr.inference.mcmc;
 
 import com.sun.tools.javac.util.Options;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.Logger;
 import dr.inference.loggers.MCLogger;
 import dr.inference.markovchain.MarkovChain;
 import dr.inference.markovchain.MarkovChainListener;
 import dr.inference.model.Model;
+import dr.inference.model.Parameter;
 import dr.inference.model.PathLikelihood;
+import dr.inference.model.Variable;
 import dr.inference.operators.*;
+import dr.math.MathUtils;
 import dr.util.Author;
 import dr.util.Citable;
 import dr.util.Citation;
@@ -41,9 +47,7 @@ import dr.xml.*;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.BetaDistributionImpl;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 
 /**
  * @author Andrew Rambaut
@@ -99,27 +103,363 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
         scheme.init();
         ((CombinedOperatorSchedule) schedule).reset();
         for (pathParameter = scheme.nextPathParameter(); pathParameter >= 0; pathParameter = scheme.nextPathParameter()) {
-            pathLikelihood.setPathParameter(pathParameter);
             reportIteration(pathParameter, chainLength, burnin, scheme.pathSteps, scheme.step);
 
-            for (int i = 0; i < schedule.getOperatorCount(); ++i) {
-                MCMCOperator operator = schedule.getOperator(i);
-                if (operator instanceof PathDependentOperator) {
-                    ((PathDependentOperator)operator).setPathParameter(pathParameter);
-                }
+            runPathStep(pathParameter, 1, mc.getCurrentLength());
+        }
+    }
+
+    /**
+     * Runs the chain at one point on the path: burninCount periods of burnin followed by the
+     * samples which are numbered from firstState.
+     */
+    private void runPathStep(double pathParameter, int burninCount, long firstState) {
+        this.pathParameter = pathParameter;
+        pathLikelihood.setPathParameter(pathParameter);
+
+        for (int i = 0; i < schedule.getOperatorCount(); ++i) {
+            MCMCOperator operator = schedule.getOperator(i);
+            if (operator instanceof PathDependentOperator) {
+                ((PathDependentOperator)operator).setPathParameter(pathParameter);
             }
+        }
 
-            long cl = mc.getCurrentLength();
+        for (int i = 0; i < burninCount; i++) {
             mc.setCurrentLength(0);
             mc.runChain(burnin, false/*, 0*/);
-            mc.setCurrentLength(cl);
-            mc.runChain(chainLength, false);
+        }
+        mc.setCurrentLength(firstState);
+        mc.runChain(chainLength, false);
+
+        if (SHOW_OPERATOR_ANALYSIS) {
+            OperatorAnalysisPrinter.showOperatorAnalysis(System.out, schedule, false);
+        }
+        ((CombinedOperatorSchedule) schedule).reset();
+    }
+
+    /**
+     * Runs contiguous segments of the path concurrently, each in its own copy of the model. Each
+     * segment starts from the state the chain is currently in (with a longer burnin for its first
+     * step) and then each subsequent step starts from the last state of the previous one, as in the
+     * serial scheme. The samples are buffered and written to the loggers in path order once all the
+     * segments are finished so the log file is the same as that of a serial run.
+     */
+    public void integrateInParallel(Integrator scheme) {
+        setDefaultBurnin();
+
+        final List<Double> path = new ArrayList<Double>();
+        scheme.init();
+        for (double p = scheme.nextPathParameter(); p >= 0; p = scheme.nextPathParameter()) {
+            path.add(p);
+        }
+        final int totalSteps = scheme.pathSteps;
+        final int segmentCount = Math.min(threadCount, path.size());
 
-            if (SHOW_OPERATOR_ANALYSIS) {
-            	OperatorAnalysisPrinter.showOperatorAnalysis(System.out, schedule, false);
+        final MarginalLikelihoodEstimator[] estimators = createReplicas(segmentCount);
+
+        // rows[step][logger] holds the samples logged at each step
+        final List<String[]>[][] rows = new List[path.size()][loggers.size()];
+        for (int step = 0; step < path.size(); step++) {
+            for (int i = 0; i < loggers.size(); i++) {
+                rows[step][i] = new ArrayList<String[]>();
             }
-            ((CombinedOperatorSchedule) schedule).reset();
         }
+
+        final List<List<LogFormatter>> formatters = new ArrayList<List<LogFormatter>>();
+        for (MCLogger logger : loggers) {
+            formatters.add(logger.getFormatters());
+        }
+
+        // each segment draws from its own random stream, derived from this seed and the index of the
+        // segment, so that a run can be reproduced from its seed however the threads are scheduled
+        final long seed = MathUtils.nextLong();
+
+        Thread[] threads = new Thread[segmentCount];
+        final Throwable[] failures = new Throwable[segmentCount];
+        for (int k = 0; k < segmentCount; k++) {
+            final MarginalLikelihoodEstimator estimator = estimators[k];
+            final int segment = k;
+            final int firstStep = (k * path.size()) / segmentCount;
+            final int lastStep = ((k + 1) * path.size()) / segmentCount;
+
+            threads[k] = new Thread(new Runnable() {
+                public void run() {
+                    MathUtils.bindRandomStream(MathUtils.createRandomStream(seed, segment));
+                    try {
+                        estimator.setDefaultBurnin();
+
+                        final StepLogBuffer[] buffers = new StepLogBuffer[estimator.loggers.size()];
+                        for (int i = 0; i < buffers.length; i++) {
+                            buffers[i] = new StepLogBuffer();
+                            estimator.loggers.get(i).setFormatters(Collections.<LogFormatter>singletonList(buffers[i]));
+                        }
+                        if (estimator != MarginalLikelihoodEstimator.this) {
+                            estimator.mc.addMarkovChainListener(estimator.chainListener);
+                        }
+                        ((CombinedOperatorSchedule) estimator.schedule).reset();
+
+                        for (int step = firstStep; step < lastStep; step++) {
+                            for (int i = 0; i < buffers.length; i++) {
+                                buffers[i].rows = rows[step][i];
+                            }
+                            reportIteration(path.get(step), chainLength, burnin, totalSteps, step + 1);
+
+                            // the first step of each segment (other than the first) starts a long way from
+                            // where the chain has been so give it twice the burnin
+                            int burninCount = (step == firstStep && segment > 0 ? 2 : 1);
+                            estimator.runPathStep(path.get(step), burninCount, burnin + (step * chainLength));
+                        }
+
+                        if (estimator != MarginalLikelihoodEstimator.this) {
+                            estimator.mc.removeMarkovChainListener(estimator.chainListener);
+                        }
+                    } catch (Throwable t) {
+                        failures[segment] = t;
+                    } finally {
+                        MathUtils.bindRandomStream(null);
+                    }
+                }
+            }, "path segment " + (k + 1));
+            threads[k].start();
+        }
+
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ie) {
+                    // DO NOTHING
+                }
+            }
+        }
+
+        for (int i = 0; i < loggers.size(); i++) {
+            loggers.get(i).setFormatters(formatters.get(i));
+        }
+
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                throw new RuntimeException("Error running path segment: " + failure.getMessage(), failure);
+            }
+        }
+
+        for (int step = 0; step < path.size(); step++) {
+            for (int i = 0; i < loggers.size(); i++) {
+                for (String[] values : rows[step][i]) {
+                    for (LogFormatter formatter : formatters.get(i)) {
+                        formatter.logValues(values);
+                    }
+                }
+            }
+        }
+
+        // carry on from the end of the path as the serial scheme would
+        MarginalLikelihoodEstimator last = estimators[segmentCount - 1];
+        if (last != this) {
+            copyModelState(last, this);
+        }
+        mc.setCurrentLength(burnin + (path.size() * chainLength));
+    }
+
+    private MarginalLikelihoodEstimator[] createReplicas(int count) {
+        MarginalLikelihoodEstimator[] estimators = new MarginalLikelihoodEstimator[count];
+        estimators[0] = this;
+        for (int k = 1; k < count; k++) {
+            try {
+                estimators[k] = replicaFactory.createReplica();
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to create a copy of the model: " + e.getMessage(), e);
+            }
+            if (estimators[k] == null || estimators[k].loggers.size() != loggers.size()) {
+                throw new RuntimeException("The copy of the model does not match the original");
+            }
+            copyModelState(this, estimators[k]);
+        }
+        return estimators;
+    }
+
+    /**
+     * Copies the values of the parameters and the trees from one estimator's model to an
+     * identically constructed one, along with the tuning of the operators.
+     */
+    private static void copyModelState(MarginalLikelihoodEstimator source, MarginalLikelihoodEstimator destination) {
+        List<Model> sourceModels = new ArrayList<Model>();
+        List<Parameter> sourceParameters = new ArrayList<Parameter>();
+        collectModels(source.pathLikelihood.getModel(), sourceModels, sourceParameters,
+                Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+
+        List<Model> destinationModels = new ArrayList<Model>();
+        List<Parameter> destinationParameters = new ArrayList<Parameter>();
+        collectModels(destination.pathLikelihood.getModel(), destinationModels, destinationParameters,
+                Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+
+        if (sourceModels.size() != destinationModels.size() || sourceParameters.size() != destinationParameters.size()) {
+            throw new RuntimeException("The copy of the model does not match the original");
+        }
+
+        for (int i = 0; i < sourceParameters.size(); i++) {
+            Parameter from = sourceParameters.get(i);
+            Parameter to = destinationParameters.get(i);
+            if (from.getDimension() != to.getDimension()) {
+                to.setDimension(from.getDimension());
+            }
+            for (int j = 0; j < from.getDimension(); j++) {
+                to.setParameterValueQuietly(j, from.getParameterValue(j));
+            }
+            to.fireParameterChangedEvent();
+        }
+
+        // the trees are done last as some of the parameters (such as the root height) are views on
+        // the nodes of the tree
+        for (int i = 0; i < sourceModels.size(); i++) {
+            if (sourceModels.get(i) instanceof TreeModel) {
+                copyTree((TreeModel) sourceModels.get(i), (TreeModel) destinationModels.get(i));
+            }
+        }
+
+        for (int i = 0; i < source.schedule.getOperatorCount(); i++) {
+            MCMCOperator from = source.schedule.getOperator(i);
+            MCMCOperator to = destination.schedule.getOperator(i);
+            if (from instanceof CoercableMCMCOperator && to instanceof CoercableMCMCOperator) {
+                ((CoercableMCMCOperator) to).setCoercableParameter(((CoercableMCMCOperator) from).getCoercableParameter());
+            }
+        }
+
+        destination.pathLikelihood.makeDirty();
+    }
+
+    private static void collectModels(Model model, List<Model> models, List<Parameter> parameters, Set<Object> visited) {
+        if (!visited.add(model)) {
+            return;
+        }
+        models.add(model);
+        if (model instanceof TreeModel) {
+            // the node parameters are numbered by the shape of the starting tree so they are
+            // copied node by node in copyTree
+            return;
+        }
+        for (int i = 0; i < model.getVariableCount(); i++) {
+            Variable variable = model.getVariable(i);
+            if (variable instanceof Parameter && visited.add(variable)) {
+                parameters.add((Parameter) variable);
+            }
+        }
+        for (int i = 0; i < model.getModelCount(); i++) {
+            collectModels(model.getModel(i), models, parameters, visited);
+        }
+    }
+
+    private static void copyTree(TreeModel source, TreeModel destination) {
+        int nodeCount = source.getNodeCount();
+
+        // the tips are numbered according to the starting tree of each copy so match them by
+        // taxon (the internal nodes can take any numbering)
+        int[] nodeMap = new int[nodeCount];
+        Map<String, Integer> tipNumbers = new HashMap<String, Integer>();
+        for (int i = 0; i < destination.getExternalNodeCount(); i++) {
+            NodeRef tip = destination.getExternalNode(i);
+            tipNumbers.put(destination.getNodeTaxon(tip).getId(), tip.getNumber());
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef node = source.getNode(i);
+            if (source.isExternal(node)) {
+                Integer number = tipNumbers.get(source.getNodeTaxon(node).getId());
+                if (number == null) {
+                    throw new RuntimeException("The copy of the tree does not have the taxon " + source.getNodeTaxon(node).getId());
+                }
+                nodeMap[i] = number;
+            } else {
+                nodeMap[i] = i;
+            }
+        }
+
+        int[] parents = new int[nodeCount];
+        double[] heights = new double[nodeCount];
+        int[] childOrder = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef node = source.getNode(i);
+            NodeRef parent = source.getParent(node);
+            int j = nodeMap[i];
+            heights[j] = source.getNodeHeight(node);
+            if (parent == null) {
+                parents[j] = -1;
+                childOrder[j] = -1;
+            } else {
+                parents[j] = nodeMap[parent.getNumber()];
+                childOrder[j] = (source.getChild(parent, 0) == node ? 0 : 1);
+            }
+        }
+        destination.beginTreeEdit();
+        destination.adoptTreeStructure(parents, heights, childOrder);
+        destination.endTreeEdit();
+
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef from = source.getNode(i);
+            NodeRef to = destination.getNode(nodeMap[i]);
+            if (source.hasRates() && source.getParent(from) != null) {
+                destination.setNodeRate(to, source.getNodeRate(from));
+            }
+            if (source.hasNodeTraits()) {
+                for (Map.Entry<String, Parameter> entry : source.getTraitMap(from).entrySet()) {
+                    destination.setMultivariateTrait(to, entry.getKey(), entry.getValue().getParameterValues());
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the samples logged at a step of the path.
+     */
+    private static class StepLogBuffer implements LogFormatter {
+        List<String[]> rows;
+
+        public void startLogging(String title) {
+        }
+
+        public void logHeading(String heading) {
+        }
+
+        public void logLine(String line) {
+        }
+
+        public void logLabels(String[] labels) {
+        }
+
+        public void logValues(String[] values) {
+            rows.add(values);
+        }
+
+        public void stopLogging() {
+        }
+    }
+
+    /**
+     * Creates independent copies of the estimator, with their own models, for running segments
+     * of the path in parallel.
+     */
+    public interface ReplicaFactory {
+        MarginalLikelihoodEstimator createReplica() throws Exception;
+    }
+
+    /**
+     * @param factory the source of the copies of this estimator needed to run segments of the path
+     *                in parallel (without one the path is run serially)
+     */
+    public void setReplicaFactory(ReplicaFactory factory) {
+        replicaFactory = factory;
+    }
+
+    /**
+     * @param prerunLength the number of states to run each of the samplers for before the path
+     * @param samplers     the samplers that bring the model to equilibrium
+     */
+    public void setPrerun(long prerunLength, List<MCMC> samplers) {
+        this.prerunLength = prerunLength;
+        this.prerunSamplers = samplers;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
     }
 
     public abstract class Integrator {
@@ -315,7 +655,21 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
 
     public void run() {
 
+        // equilibrate before the path (the copies of the model made to run segments in parallel
+        // are never run so they skip this and start from the state it leaves)
+        for (MCMC mcmc : prerunSamplers) {
+            java.util.logging.Logger.getLogger("dr.inference").info("Path Sampling Marginal Likelihood Estimator:\n\tEquilibrating chain " + mcmc.getId() + " for " + prerunLength + " iterations.");
+            for (Logger log : mcmc.getLoggers()) { // Stop the loggers, so nothing gets written to normal output
+                log.stopLogging();
+            }
+            mcmc.getMarkovChain().runChain(prerunLength, false);
+        }
+
         for (MCLogger logger : loggers) {
+            if (threadCount > 1) {
+                // the samples are written directly to the formatters once all the steps are done
+                logger.setAsynchronous(false);
+            }
             logger.startLogging();
         }
         mc.addMarkovChainListener(chainListener);
@@ -337,32 +691,43 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
                 throw new RuntimeException("Illegal path scheme");
         }*/
 
+        Integrator integrator;
         switch (scheme) {
             case FIXED:
-                integrate(new FixedThetaRun(fixedRunValues));
+                integrator = new FixedThetaRun(fixedRunValues);
                 break;
             case LINEAR:
-                integrate(new LinearIntegrator(pathSteps));
+                integrator = new LinearIntegrator(pathSteps);
                 break;
             case GEOMETRIC:
-                integrate(new GeometricIntegrator(pathSteps));
+                integrator = new GeometricIntegrator(pathSteps);
                 break;
             case ONE_SIDED_BETA:
-                integrate(new BetaIntegrator(1.0, betaFactor, pathSteps));
+                integrator = new BetaIntegrator(1.0, betaFactor, pathSteps);
                 break;
             case BETA:
-                integrate(new BetaIntegrator(alphaFactor, betaFactor, pathSteps));
+                integrator = new BetaIntegrator(alphaFactor, betaFactor, pathSteps);
                 break;
             case BETA_QUANTILE:
-                integrate(new BetaQuantileIntegrator(alphaFactor, pathSteps));
+                integrator = new BetaQuantileIntegrator(alphaFactor, pathSteps);
                 break;
             case SIGMOID:
-                integrate(new SigmoidIntegrator(alphaFactor, pathSteps));
+                integrator = new SigmoidIntegrator(alphaFactor, pathSteps);
                 break;
             default:
                 throw new RuntimeException("Illegal path scheme");
         }
 
+        if (threadCount > 1 && replicaFactory != null) {
+            integrateInParallel(integrator);
+        } else {
+            if (threadCount > 1) {
+                java.util.logging.Logger.getLogger("dr.inference").warning(
+                        "Copies of the model cannot be made so the path steps will be run one at a time.");
+            }
+            integrate(integrator);
+        }
+
         mc.removeMarkovChainListener(chainListener);
     }
 
@@ -568,18 +933,13 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
             }
 
             CombinedOperatorSchedule os = new CombinedOperatorSchedule();
+            List<MCMC> samplers = new ArrayList<MCMC>();
 
             XMLObject mcmcXML = xo.getChild(MCMC);
             for (int i = 0; i < mcmcXML.getChildCount(); ++i) {
                 if (mcmcXML.getChild(i) instanceof MCMC) {
                     MCMC mcmc = (MCMC) mcmcXML.getChild(i);
-                    if (prerunLength > 0) {
-                        java.util.logging.Logger.getLogger("dr.inference").info("Path Sampling Marginal Likelihood Estimator:\n\tEquilibrating chain " + mcmc.getId() + " for " + prerunLength + " iterations.");
-                        for (Logger log : mcmc.getLoggers()) { // Stop the loggers, so nothing gets written to normal output
-                            log.stopLogging();
-                        }
-                        mcmc.getMarkovChain().runChain(prerunLength, false);
-                    }
+                    samplers.add(mcmc);
                     if (xo.getChild(OperatorSchedule.class) != null) {
                     	os.addOperatorSchedule((OperatorSchedule)xo.getChild(OperatorSchedule.class));
                     } else {
@@ -598,6 +958,13 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
             if (!xo.getAttribute(SPAWN, true))
                 mle.setSpawnable(false);
 
+            if (prerunLength > 0) {
+                mle.setPrerun(prerunLength, samplers);
+            }
+
+            int threadCount = xo.getAttribute(THREADS, Integer.getInteger(THREADS_PROPERTY, 1));
+            mle.setThreadCount(threadCount);
+
             if (xo.hasAttribute(ALPHA)) {
                 mle.setAlphaFactor(xo.getAttribute(ALPHA, 0.5));
             }
@@ -619,7 +986,8 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
             java.util.logging.Logger.getLogger("dr.inference").info("\nCreating the Marginal Likelihood Estimator chain:" +
                     "\n  chainLength=" + chainLength +
                     "\n  pathSteps=" + pathSteps +
-                    "\n  pathScheme=" + scheme.getText() + alphaBetaText); //+
+                    "\n  pathScheme=" + scheme.getText() + alphaBetaText +
+                    (threadCount > 1 ? "\n  running " + threadCount + " segments of the path in parallel" : "")); //+
                     //"\n  If you use these results, please cite:" +
                     //"\n    Guy Baele, Philippe Lemey, Trevor Bedford, Andrew Rambaut, Marc A. Suchard, and Alexander V. Alekseyenko." +
                     //"\n    2012. Improving the accuracy of demographic and molecular clock model comparison while accommodating " +
@@ -659,6 +1027,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
                 AttributeRule.newDoubleArrayRule(FIXED_VALUE, true),
                 AttributeRule.newDoubleRule(ALPHA, true),
                 AttributeRule.newDoubleRule(BETA, true),
+                AttributeRule.newIntegerRule(THREADS, true),
                 new ElementRule(MCMC,
                         new XMLSyntaxRule[]{new ElementRule(MCMC.class, 1, Integer.MAX_VALUE)}, false),
                 //new ElementRule(MCMC.class),
@@ -734,6 +1103,12 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
 
     private final PathLikelihood pathLikelihood;
 
+    private int threadCount = 1;
+    private ReplicaFactory replicaFactory = null;
+
+    private long prerunLength = 0;
+    private List<MCMC> prerunSamplers = Collections.emptyList();
+
     public static final String MARGINAL_LIKELIHOOD_ESTIMATOR = "marginalLikelihoodEstimator";
     public static final String CHAIN_LENGTH = "chainLength";
     public static final String PATH_STEPS = "pathSteps";
@@ -749,6 +1124,8 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
     public static final String BETA = "beta";
     public static final String PRERUN = "prerun";
     public static final String PRINT_OPERATOR_ANALYSIS = "printOperatorAnalysis";
+    public static final String THREADS = "threads";
+    public static final String THREADS_PROPERTY = "mle.threads";
     
     private static boolean SHOW_OPERATOR_ANALYSIS = false;
 }
\ No newline at end of file
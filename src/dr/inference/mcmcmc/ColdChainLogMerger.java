@@ -0,0 +1,134 @@
+/*
+ * ColdChainLogMerger.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.mcmcmc;
+
+import java.io.*;
+
+/**
+ * Merges the log (or tree) files written by the replicas of an MCMCMC analysis run in separate
+ * processes (see MCMCMCWorker). Each replica only logs the states in which it was the cold chain,
+ * so the samples of the cold chain are recovered by interleaving the files in order of state number.
+ * The header is taken from the first file.
+ */
+public class ColdChainLogMerger {
+
+    private ColdChainLogMerger() {
+    }
+
+    /**
+     * @param rankFiles  the files written by each replica
+     * @param mergedFile the file to write
+     * @param isTreeFile whether these are NEXUS tree files rather than tab delimited logs
+     * @return the number of samples written
+     */
+    public static long merge(File[] rankFiles, File mergedFile, boolean isTreeFile) throws IOException {
+        BufferedReader[] readers = new BufferedReader[rankFiles.length];
+        String[] lines = new String[rankFiles.length];
+        long[] states = new long[rankFiles.length];
+
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(mergedFile)));
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = new BufferedReader(new FileReader(rankFiles[i]));
+
+                // the header up to the first sample
+                String line = readers[i].readLine();
+                while (line != null && getState(line, isTreeFile) < 0) {
+                    if (i == 0) {
+                        writer.println(line);
+                    }
+                    line = readers[i].readLine();
+                }
+                lines[i] = line;
+                states[i] = (line != null ? getState(line, isTreeFile) : -1);
+            }
+
+            long sampleCount = 0;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < readers.length; i++) {
+                    if (lines[i] != null && (next < 0 || states[i] < states[next])) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+
+                writer.println(lines[next]);
+                sampleCount++;
+
+                // skip anything that isn't a sample, such as the end of a tree file
+                String line = readers[next].readLine();
+                while (line != null && getState(line, isTreeFile) < 0) {
+                    line = readers[next].readLine();
+                }
+                lines[next] = line;
+                states[next] = (line != null ? getState(line, isTreeFile) : -1);
+            }
+
+            if (isTreeFile) {
+                writer.println("End;");
+            }
+            return sampleCount;
+
+        } finally {
+            writer.close();
+            for (BufferedReader reader : readers) {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the state number of a sample line or -1 if the line isn't a sample
+     */
+    private static long getState(String line, boolean isTreeFile) {
+        String text = line;
+        if (isTreeFile) {
+            String trimmed = line.trim();
+            if (!trimmed.regionMatches(true, 0, "tree ", 0, 5)) {
+                return -1;
+            }
+            int start = trimmed.indexOf("STATE_");
+            if (start < 0) {
+                return -1;
+            }
+            text = trimmed.substring(start + 6);
+        }
+
+        int end = 0;
+        while (end < text.length() && Character.isDigit(text.charAt(end))) {
+            end++;
+        }
+        if (end == 0 || end > 18) {
+            return -1;
+        }
+        return Long.parseLong(text.substring(0, end));
+    }
+}
@@ -25,7 +25,6 @@
 
 package dr.inference.mcmcmc;
 
-import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.Logger;
 import dr.inference.loggers.MCLogger;
 import dr.inference.markovchain.MarkovChain;
@@ -43,7 +42,7 @@ import dr.math.MathUtils;
 import dr.util.NumberFormatter;
 
 import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.CyclicBarrier;
 
 /**
  * An MCMC analysis that estimates parameters of a probabilistic model.
@@ -89,6 +88,12 @@ public class MCMCMC implements Runnable {
             schedules[i] = mcmcs[i].getOperatorSchedule();
         }
 
+        replicaExchange = new ReplicaExchange(mcmcmcOptions);
+        if (replicaExchange.getAdaptationLength() < 0) {
+            // the temperatures are adapted for the same burn-in as the operators
+            replicaExchange.setAdaptationLength(mcmcOptions.getCoercionDelay());
+        }
+
         chains = new MarkovChain[mcmcs.length];
 
         chains[0] = mcmcs[0].getMarkovChain();
@@ -117,15 +122,20 @@ public class MCMCMC implements Runnable {
 //            }
 //        }
 
+        // the destinations of the loggers move between chains as the temperatures are swapped
+        // so the output must be written synchronously to keep it in order.
+        for (MCLogger[] loggers : mcLoggers) {
+            for (MCLogger logger : loggers) {
+                logger.setAsynchronous(false);
+            }
+        }
+
         MCLogger[] coldChainLoggers = mcLoggers[coldChain];
-        List<LogFormatter>[] logFormatters = new List[coldChainLoggers.length];
 
         for (int i = 0; i < coldChainLoggers.length; i++) {
-            // Start the logging for the cold chain
+            // Start the logging for the cold chain. The formatters (destinations) of these
+            // loggers are handed on to whichever chain is cold.
             coldChainLoggers[i].startLogging();
-
-            // Now get the formatters (destinations) for the cold chains coldChainLoggers
-            logFormatters[i] = coldChainLoggers[i].getFormatters();
         }
 
         // Set the other chains to have null log formatters...
@@ -139,93 +149,106 @@ public class MCMCMC implements Runnable {
 
         chains[coldChain].addMarkovChainListener(chainListener);
 
-        MCMCMCRunner[] threads = new MCMCMCRunner[chains.length];
-        for (int i = 0; i < chains.length; i++) {
-            threads[i] = new MCMCMCRunner(chains[i], mcmcmcOptions.getSwapChainsEvery(), getChainLength(), false);
-            threads[i].start();
-        }
-
-        while (chains[coldChain].getCurrentLength() < getChainLength()) {
-
-            // wait for all the threads to complete their alloted chain length
-            boolean allDone;
-            do {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    //
-                }
-
-                allDone = true;
-                for (int i = 0; i < chains.length; i++) {
-                    if (!threads[i].isChainDone()) {
-                        allDone = false;
+        // each chain draws from its own random stream, and the exchanges from another, so that a
+        // run can be reproduced from its seed whatever order the threads happen to run in.
+        final long seed = MathUtils.getSeed();
+        final MathUtils.RandomStream exchangeStream = MathUtils.createRandomStream(seed, chains.length);
+
+        // all the chains wait at the barrier after each block of states and the last to arrive
+        // exchanges the temperatures while the others are stopped.
+        CyclicBarrier barrier = new CyclicBarrier(chains.length, new Runnable() {
+            public void run() {
+                if (getFailure(runners) != null) {
+                    // a chain has failed so stop the others rather than wait for it forever
+                    for (MCMCMCRunner runner : runners) {
+                        runner.stopRunning();
+                    }
+                } else if (!stopping && chains[coldChain].getCurrentLength() < getChainLength()) {
+                    MathUtils.RandomStream chainStream = MathUtils.bindRandomStream(exchangeStream);
+                    try {
+                        exchangeTemperatures();
+                    } finally {
+                        MathUtils.bindRandomStream(chainStream);
                     }
                 }
-            } while (!allDone);
-
-            if (chains[coldChain].getCurrentLength() < getChainLength()) {
-                int oldColdChain = coldChain;
-
-                // attempt to swap two chains' temperatures
-                coldChain = swapChainTemperatures();
-
-                // if the cold chain was involved in a swap then we need to change the
-                // listener that does the logging and the destinations for the coldChainLoggers.
-                if (coldChain != oldColdChain) {
+            }
+        });
 
-                    chains[oldColdChain].removeMarkovChainListener(chainListener);
+        runners = new MCMCMCRunner[chains.length];
+        for (int i = 0; i < chains.length; i++) {
+            runners[i] = new MCMCMCRunner(chains[i], mcmcmcOptions.getSwapChainsEvery(), getChainLength(), false, barrier,
+                    MathUtils.createRandomStream(seed, i));
+            runners[i].start();
+        }
 
-                    // Set the new cold chain's loggers with the formatters (destinations) of
-                    // the original cold chain
-                    for (int i = 0; i < mcLoggers[coldChain].length; i++) {
-                        mcLoggers[coldChain][i].setFormatters(logFormatters[i]);
-                    }
+        joinRunners(runners);
+        rethrowFailure(runners);
 
-                    // Set the old cold chain to have null log formatters...
-                    for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
-                        mcLoggers[oldColdChain][i].setFormatters(Collections.EMPTY_LIST);
-                    }
+        currentState = chains[coldChain].getCurrentLength();
 
-                    chains[coldChain].addMarkovChainListener(chainListener);
+        finish();
 
-                }
+        timer.stop();
+    }
 
-                for (int i = 0; i < chains.length; i++) {
-                    threads[i].continueChain();
+    private void joinRunners(Thread[] threads) {
+        // wait for all threads collected to die
+        for (Thread thread : threads) {
+            // wait doggedly for thread to die
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ie) {
+                    // DO NOTHING
                 }
             }
-
         }
+    }
 
-        finish();
+    private static Throwable getFailure(MCMCMCRunner[] runners) {
+        for (MCMCMCRunner runner : runners) {
+            if (runner.getFailure() != null) {
+                return runner.getFailure();
+            }
+        }
+        return null;
+    }
 
-        timer.stop();
+    /**
+     * Throws the first failure of any of the chains in the thread that is running the analysis.
+     */
+    private static void rethrowFailure(MCMCMCRunner[] runners) {
+        Throwable failure = getFailure(runners);
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException("A chain failed: " + failure.getMessage(), failure);
+        }
     }
 
     private void runChains(long length, boolean disableCoerce) {
 
-        Thread[] threads = new Thread[chains.length];
+        MCMCMCRunner[] threads = new MCMCMCRunner[chains.length];
         for (int i = 0; i < chains.length; i++) {
             threads[i] = new MCMCMCRunner(chains[i], length, length, false);
             threads[i].start();
         }
 
-        // wait for all threads collected to die
-        for (int i = 0; i < chains.length; i++) {
-            // wait doggedly for thread to die
-            while (threads[i].isAlive()) {
-                try {
-                    threads[i].join();
-                } catch (InterruptedException ie) {
-                    // DO NOTHING
-                }
-            }
-
-        }
+        joinRunners(threads);
+        rethrowFailure(threads);
     }
 
-    private int swapChainTemperatures() {
+    /**
+     * Called while all the chains are waiting at the barrier.
+     */
+    private void exchangeTemperatures() {
+
+        double[] scores = new double[chains.length];
+        for (int i = 0; i < chains.length; i++) {
+            scores[i] = chains[i].getCurrentScore();
+        }
 
         if(DEBUG){
             System.out.print("Current scores: ");
@@ -234,7 +257,7 @@ public class MCMCMC implements Runnable {
                 if(i==coldChain){
                     System.out.print("[");
                 }
-                System.out.print(chains[i].getCurrentScore());
+                System.out.print(scores[i]);
                 if(i==coldChain){
                     System.out.print("]");
                 }
@@ -242,66 +265,70 @@ public class MCMCMC implements Runnable {
             System.out.println();
         }
 
-        int newColdChain = coldChain;
+        int[] partners = replicaExchange.exchange(scores, chains[coldChain].getCurrentLength());
 
-        int index1 = MathUtils.nextInt(chains.length);
-        int index2 = MathUtils.nextInt(chains.length);
-        while (index1 == index2) {
-            index2 = MathUtils.nextInt(chains.length);
+        for (int index1 = 0; index1 < chains.length; index1++) {
+            int index2 = partners[index1];
+            if (index2 > index1) {
+                if(DEBUG){
+                    System.out.println("Swapping chain "+index1+" and chain "+index2);
+                }
+                swapOperatorTuning(schedules[index1], schedules[index2]);
+            }
         }
 
-        double score1 = chains[index1].getCurrentScore();
-        MCMCCriterion acceptor1 = ((MCMCCriterion) chains[index1].getAcceptor());
-        double temperature1 = acceptor1.getTemperature();
-        double score2 = chains[index2].getCurrentScore();
-        MCMCCriterion acceptor2 = ((MCMCCriterion) chains[index2].getAcceptor());
-        double temperature2 = acceptor2.getTemperature();
+        // the temperatures may have changed by adaptation even if no chains swapped
+        for (int i = 0; i < chains.length; i++) {
+            ((MCMCCriterion) chains[i].getAcceptor()).setTemperature(replicaExchange.getTemperature(i));
+        }
 
-        double logRatio = ((score2 - score1) * temperature1) + ((score1 - score2) * temperature2);
-        boolean swap = (Math.log(MathUtils.nextDouble()) < logRatio);
+        int oldColdChain = coldChain;
+        coldChain = replicaExchange.getColdReplica();
 
-        if (swap) {
-            if(DEBUG){
-                System.out.println("Swapping chain "+index1+" and chain "+index2);
-            }
+        // if the cold chain was involved in a swap then we need to change the
+        // listener that does the logging and the destinations for the coldChainLoggers.
+        if (coldChain != oldColdChain) {
 
-            acceptor1.setTemperature(temperature2);
-            acceptor2.setTemperature(temperature1);
+            chains[oldColdChain].removeMarkovChainListener(chainListener);
 
-            OperatorSchedule schedule1 = schedules[index1];
-            OperatorSchedule schedule2 = schedules[index2];
+            // Set the new cold chain's loggers with the formatters (destinations) of
+            // the original cold chain
+            for (int i = 0; i < mcLoggers[coldChain].length; i++) {
+                mcLoggers[coldChain][i].setFormatters(mcLoggers[oldColdChain][i].getFormatters());
+            }
 
-            for (int i = 0; i < schedule1.getOperatorCount(); i++) {
-                MCMCOperator operator1 = schedule1.getOperator(i);
-                MCMCOperator operator2 = schedule2.getOperator(i);
+            // Set the old cold chain to have null log formatters...
+            for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
+                mcLoggers[oldColdChain][i].setFormatters(Collections.EMPTY_LIST);
+            }
 
-                long tmp = operator1.getAcceptCount();
-                operator1.setAcceptCount(operator2.getAcceptCount());
-                operator2.setAcceptCount(tmp);
+            chains[coldChain].addMarkovChainListener(chainListener);
+        }
+    }
 
-                tmp = operator1.getRejectCount();
-                operator1.setRejectCount(operator2.getRejectCount());
-                operator2.setRejectCount(tmp);
+    private void swapOperatorTuning(OperatorSchedule schedule1, OperatorSchedule schedule2) {
+        for (int i = 0; i < schedule1.getOperatorCount(); i++) {
+            MCMCOperator operator1 = schedule1.getOperator(i);
+            MCMCOperator operator2 = schedule2.getOperator(i);
 
-                double tmp2 = operator1.getSumDeviation();
-                operator1.setSumDeviation(operator2.getSumDeviation());
-                operator2.setSumDeviation(tmp2);
+            long tmp = operator1.getAcceptCount();
+            operator1.setAcceptCount(operator2.getAcceptCount());
+            operator2.setAcceptCount(tmp);
 
-                if (operator1 instanceof CoercableMCMCOperator) {
-                    tmp2 = ((CoercableMCMCOperator) operator1).getCoercableParameter();
-                    ((CoercableMCMCOperator) operator1).setCoercableParameter(((CoercableMCMCOperator) operator2).getCoercableParameter());
-                    ((CoercableMCMCOperator) operator2).setCoercableParameter(tmp2);
-                }
-            }
+            tmp = operator1.getRejectCount();
+            operator1.setRejectCount(operator2.getRejectCount());
+            operator2.setRejectCount(tmp);
 
-            if (index1 == coldChain) {
-                newColdChain = index2;
-            } else if (index2 == coldChain) {
-                newColdChain = index1;
+            double tmp2 = operator1.getSumDeviation();
+            operator1.setSumDeviation(operator2.getSumDeviation());
+            operator2.setSumDeviation(tmp2);
+
+            if (operator1 instanceof CoercableMCMCOperator) {
+                tmp2 = ((CoercableMCMCOperator) operator1).getCoercableParameter();
+                ((CoercableMCMCOperator) operator1).setCoercableParameter(((CoercableMCMCOperator) operator2).getCoercableParameter());
+                ((CoercableMCMCOperator) operator2).setCoercableParameter(tmp2);
             }
         }
-
-        return newColdChain;
     }
 
     private void resetChains() {
@@ -327,6 +354,8 @@ public class MCMCMC implements Runnable {
         System.out.println();
         System.out.println("Time taken: " + timer.toString());
 
+        replicaExchange.showSwapAnalysis(System.out);
+
         if (showOperatorAnalysis) {
             System.out.println();
             System.out.println("Operator analysis");
@@ -472,6 +501,12 @@ public class MCMCMC implements Runnable {
      * Requests that the MCMC chain stop prematurely.
      */
     public void pleaseStop() {
+        stopping = true;
+        if (runners != null) {
+            for (MCMCMCRunner runner : runners) {
+                runner.stopRunning();
+            }
+        }
         for (MarkovChain chain : chains) {
             chain.pleaseStop();
         }
@@ -494,5 +529,9 @@ public class MCMCMC implements Runnable {
     private final MCLogger[][] mcLoggers;
     private final OperatorSchedule[] schedules;
     private int coldChain;
+
+    private final ReplicaExchange replicaExchange;
+    private MCMCMCRunner[] runners = null;
+    private volatile boolean stopping = false;
 }
 
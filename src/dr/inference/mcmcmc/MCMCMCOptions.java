@@ -38,9 +38,64 @@ package dr.inference.mcmcmc;
  */
 public class MCMCMCOptions {
 
+    /**
+     * How the pairs of chains that attempt to exchange temperatures are chosen.
+     */
+    public enum SwapScheme {
+        /**
+         * a single pair of chains, chosen at random from all the chains
+         */
+        RANDOM("random"),
+        /**
+         * every chain, paired with its neighbour in the temperature ladder, alternating
+         * between the even and odd rungs of the ladder
+         */
+        EVEN_ODD("evenodd");
+
+        SwapScheme(String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+
+        public static SwapScheme parse(String name) {
+            for (SwapScheme scheme : values()) {
+                if (scheme.name.equalsIgnoreCase(name)) {
+                    return scheme;
+                }
+            }
+            throw new IllegalArgumentException("Unknown swap scheme: " + name);
+        }
+
+        private final String name;
+    }
+
     public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery) {
+        this(temperatures, swapChainsEvery, SwapScheme.RANDOM, 0.0);
+    }
+
+    /**
+     * @param targetSwapRate if greater than zero, the temperature ladder is adapted so that neighbouring
+     *                       chains exchange temperatures at this rate
+     */
+    public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery,
+                         final SwapScheme swapScheme, final double targetSwapRate) {
+        this(temperatures, swapChainsEvery, swapScheme, targetSwapRate, -1);
+    }
+
+    /**
+     * @param adaptationLength the number of states over which the temperature ladder is adapted, after
+     *                         which it is fixed, or -1 for the pre-burnin of the chains
+     */
+    public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery,
+                         final SwapScheme swapScheme, final double targetSwapRate, final long adaptationLength) {
         this.temperatures = temperatures;
         this.swapChainsEvery = swapChainsEvery;
+        this.swapScheme = swapScheme;
+        this.targetSwapRate = targetSwapRate;
+        this.adaptationLength = adaptationLength;
     }
 
 
@@ -52,6 +107,28 @@ public class MCMCMCOptions {
         return swapChainsEvery;
     }
 
+    public SwapScheme getSwapScheme() {
+        return swapScheme;
+    }
+
+    public double getTargetSwapRate() {
+        return targetSwapRate;
+    }
+
+    public boolean isAdaptingTemperatures() {
+        return targetSwapRate > 0.0;
+    }
+
+    /**
+     * @return the number of states over which the temperatures are adapted or -1 for the pre-burnin of the chains
+     */
+    public long getAdaptationLength() {
+        return adaptationLength;
+    }
+
     private final double[] temperatures;
     private final int swapChainsEvery;
+    private final SwapScheme swapScheme;
+    private final double targetSwapRate;
+    private final long adaptationLength;
 }
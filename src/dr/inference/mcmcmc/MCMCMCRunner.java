@@ -26,8 +26,15 @@
 package dr.inference.mcmcmc;
 
 import dr.inference.markovchain.MarkovChain;
+import dr.math.MathUtils;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
 
 /**
+ * Runs one of the chains of an MCMCMC analysis in blocks of states, waiting at a barrier
+ * between blocks so that temperatures can be exchanged while all the chains are stopped.
+ *
  * @author rambaut
  *         Date: Jan 5, 2005
  *         Time: 5:05:59 PM
@@ -35,55 +42,90 @@ import dr.inference.markovchain.MarkovChain;
 public class MCMCMCRunner extends Thread {
 
     public MCMCMCRunner(MarkovChain markovChain, long length, long totalLength, boolean disableCoerce) {
+        this(markovChain, length, totalLength, disableCoerce, null, null);
+    }
+
+    /**
+     * @param barrier a barrier shared by all the chains which is awaited after each block of states
+     *                (may be null)
+     * @param randomStream the random stream this chain draws from (may be null to use the shared one)
+     */
+    public MCMCMCRunner(MarkovChain markovChain, long length, long totalLength, boolean disableCoerce,
+                        CyclicBarrier barrier, MathUtils.RandomStream randomStream) {
 
         this.markovChain = markovChain;
         this.length = length;
         this.totalLength = totalLength;
         this.disableCoerce = disableCoerce;
+        this.barrier = barrier;
+        this.randomStream = randomStream;
+    }
+
+    public void run() {
+        if (randomStream != null) {
+            MathUtils.bindRandomStream(randomStream);
+        }
+        try {
+            runBlocks();
+        } catch (Throwable t) {
+            failure = t;
+            if (barrier != null) {
+                // arrive at the barrier once more so the other chains finish their current block
+                // and are released, after which they are stopped (see MCMCMC)
+                try {
+                    barrier.await();
+                } catch (InterruptedException e) {
+                    // the others are released when the barrier breaks
+                } catch (BrokenBarrierException e) {
+                    // the others have been released already
+                }
+            }
+        } finally {
+            MathUtils.bindRandomStream(null);
+        }
     }
 
-	public void run() {
+    private void runBlocks() {
         long i = 0;
-        while (i < totalLength) {
-            markovChain.runChain(length, disableCoerce/*, 0*/);
+        while (i < totalLength && !stopped) {
+            markovChain.runChain(Math.min(length, totalLength - i), disableCoerce/*, 0*/);
 
             i += length;
 
-	        chainDone();
-
-	        if (i < totalLength) {
-		        while (isChainDone()) {
-			        try {
-				        synchronized(this) {
-					        wait();
-				        }
-			        } catch (InterruptedException e) {
-				        // continue...
-			        }
-		        }
-	        }
+            if (barrier != null) {
+                try {
+                    barrier.await();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (BrokenBarrierException e) {
+                    // another chain has failed
+                    return;
+                }
+            }
         }
-	}
-
-	private synchronized void chainDone() {
-		chainDone = true;
-	}
-
-	public synchronized boolean isChainDone() {
-		return chainDone;
-	}
+    }
 
-    public synchronized void continueChain() {
-        this.chainDone = false;
-	    notify();
+    /**
+     * Requests that this runner stops after the current block of states
+     */
+    public void stopRunning() {
+        stopped = true;
     }
 
+    /**
+     * @return the exception or error that stopped this chain or null if it didn't fail
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
 
-	private final MarkovChain markovChain;
-	private final long length;
+    private final MarkovChain markovChain;
+    private final long length;
     private final long totalLength;
     private final boolean disableCoerce;
+    private final CyclicBarrier barrier;
+    private final MathUtils.RandomStream randomStream;
 
-	private boolean chainDone;
+    private volatile boolean stopped = false;
+    private volatile Throwable failure = null;
 }
-
@@ -0,0 +1,134 @@
+/*
+ * MCMCMCServer.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.mcmcmc;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Coordinates an MCMCMC analysis in which each chain (replica) runs in its own process
+ * (see MCMCMCWorker). After each block of states every replica sends its current score
+ * and the server replies with its new temperature, so the states of the chains never
+ * have to leave their processes.
+ *
+ * The protocol on each connection is: the worker sends its rank (int) and its pre-burnin (long)
+ * and receives its initial temperature (double) and whether it is the cold chain (boolean). Then,
+ * after each block of states, it sends its score (double), the state it has reached (long) and
+ * whether it has finished (boolean) and receives its new temperature, whether it is cold and
+ * whether to continue. Unless the options give an adaptation length, the temperatures are only
+ * adapted during the pre-burnin.
+ */
+public class MCMCMCServer implements Runnable {
+
+    public MCMCMCServer(MCMCMCOptions options) throws IOException {
+        this.replicaExchange = new ReplicaExchange(options);
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @return the (loopback) port that workers should connect to
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void run() {
+        final int replicaCount = replicaExchange.getReplicaCount();
+
+        Socket[] sockets = new Socket[replicaCount];
+        DataInputStream[] inputs = new DataInputStream[replicaCount];
+        DataOutputStream[] outputs = new DataOutputStream[replicaCount];
+
+        try {
+            for (int i = 0; i < replicaCount; i++) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                int rank = input.readInt();
+                if (rank < 0 || rank >= replicaCount || sockets[rank] != null) {
+                    throw new IOException("Unexpected replica rank: " + rank);
+                }
+                final long preBurnin = input.readLong();
+                if (rank == 0 && replicaExchange.getAdaptationLength() < 0) {
+                    replicaExchange.setAdaptationLength(preBurnin);
+                }
+                sockets[rank] = socket;
+                inputs[rank] = input;
+                outputs[rank] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                outputs[rank].writeDouble(replicaExchange.getTemperature(rank));
+                outputs[rank].writeBoolean(replicaExchange.getColdReplica() == rank);
+                outputs[rank].flush();
+            }
+            serverSocket.close();
+
+            double[] scores = new double[replicaCount];
+            long state = 0;
+            boolean finished = false;
+            while (!finished) {
+                for (int i = 0; i < replicaCount; i++) {
+                    scores[i] = inputs[i].readDouble();
+                    // the replicas run the same blocks so they are all at the same state
+                    state = inputs[i].readLong();
+                    if (inputs[i].readBoolean()) {
+                        finished = true;
+                    }
+                }
+
+                if (!finished) {
+                    replicaExchange.exchange(scores, state);
+                }
+
+                for (int i = 0; i < replicaCount; i++) {
+                    outputs[i].writeDouble(replicaExchange.getTemperature(i));
+                    outputs[i].writeBoolean(replicaExchange.getColdReplica() == i);
+                    outputs[i].writeBoolean(!finished);
+                    outputs[i].flush();
+                }
+            }
+
+            replicaExchange.showSwapAnalysis(System.out);
+
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error communicating with chain processes: " + ioe.getMessage(), ioe);
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+    }
+
+    private final ReplicaExchange replicaExchange;
+    private final ServerSocket serverSocket;
+}
@@ -0,0 +1,171 @@
+/*
+ * MCMCMCWorker.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.mcmcmc;
+
+import dr.inference.loggers.Logger;
+import dr.inference.loggers.MCLogger;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCCriterion;
+import dr.inference.model.Model;
+import dr.inference.operators.OperatorAnalysisPrinter;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Runs one chain (replica) of an MCMCMC analysis in this process, exchanging its score and
+ * temperature with an MCMCMCServer after each block of states. The chain only writes to its
+ * loggers while it is the cold chain so the samples of the cold chain are the union of the
+ * log files of all the replicas (ordered by state number). BeastMain merges them when all the
+ * replicas have finished (see ColdChainLogMerger).
+ *
+ * As the operators stay with the replicas, their tuning is not exchanged with the temperatures
+ * as it is when the chains share a process.
+ */
+public class MCMCMCWorker implements Runnable {
+
+    public MCMCMCWorker(MCMC mcmc, int port, int rank, int swapChainsEvery) {
+        this.mcmc = mcmc;
+        this.port = port;
+        this.rank = rank;
+        this.swapChainsEvery = swapChainsEvery;
+
+        Logger[] loggers = mcmc.getLoggers();
+        mcLoggers = new MCLogger[loggers.length];
+        for (int i = 0; i < loggers.length; i++) {
+            mcLoggers[i] = (MCLogger) loggers[i];
+        }
+    }
+
+    public void run() {
+        final MarkovChain chain = mcmc.getMarkovChain();
+        final MCMCCriterion acceptor = (MCMCCriterion) chain.getAcceptor();
+        final long chainLength = mcmc.getChainLength();
+        // as in MCMC.chain, the operators aren't tuned until the chain has run for this many states
+        final long coercionDelay = mcmc.getCoercionDelay();
+
+        Socket socket = null;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            output.writeInt(rank);
+            output.writeLong(coercionDelay);
+            output.flush();
+            acceptor.setTemperature(input.readDouble());
+            isCold = input.readBoolean();
+
+            for (MCLogger logger : mcLoggers) {
+                logger.startLogging();
+            }
+            chain.addMarkovChainListener(chainListener);
+
+            boolean running = true;
+            while (running) {
+                final long currentLength = chain.getCurrentLength();
+                long length = Math.min(swapChainsEvery, chainLength - currentLength);
+                final boolean disableCoerce = currentLength < coercionDelay;
+                if (disableCoerce) {
+                    // all the replicas end the block at the same state so they stay in step
+                    length = Math.min(length, coercionDelay - currentLength);
+                }
+                chain.runChain(length, disableCoerce);
+
+                output.writeDouble(chain.getCurrentScore());
+                output.writeLong(chain.getCurrentLength());
+                output.writeBoolean(stopping || chain.getCurrentLength() >= chainLength);
+                output.flush();
+
+                acceptor.setTemperature(input.readDouble());
+                isCold = input.readBoolean();
+                running = input.readBoolean();
+            }
+
+            chain.removeMarkovChainListener(chainListener);
+
+            for (MCLogger logger : mcLoggers) {
+                if (isCold) {
+                    logger.log(chain.getCurrentLength());
+                }
+                logger.stopLogging();
+            }
+
+            if (isCold) {
+                OperatorAnalysisPrinter.showOperatorAnalysis(System.out, mcmc.getOperatorSchedule(), true);
+            }
+
+        } catch (IOException ioe) {
+            throw new RuntimeException("Error communicating with the MCMCMC server: " + ioe.getMessage(), ioe);
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests that the chain stop prematurely (the other replicas are stopped at the next exchange).
+     */
+    public void pleaseStop() {
+        stopping = true;
+        mcmc.getMarkovChain().pleaseStop();
+    }
+
+    private final MarkovChainListener chainListener = new MarkovChainListener() {
+
+        public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+            if (isCold) {
+                for (MCLogger logger : mcLoggers) {
+                    logger.log(state);
+                }
+            }
+        }
+
+        public void bestState(long state, MarkovChain markovChain, Model bestModel) {
+        }
+
+        public void finished(long chainLength, MarkovChain markovChain) {
+        }
+    };
+
+    private final MCMC mcmc;
+    private final int port;
+    private final int rank;
+    private final int swapChainsEvery;
+    private final MCLogger[] mcLoggers;
+
+    private boolean isCold = false;
+    private volatile boolean stopping = false;
+}
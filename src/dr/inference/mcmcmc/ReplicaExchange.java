@@ -0,0 +1,248 @@
+/*
+ * ReplicaExchange.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.mcmcmc;
+
+import dr.math.MathUtils;
+import dr.util.NumberFormatter;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The temperature exchange step of Metropolis-coupled MCMC. This only needs the current score
+ * of each replica (chain) and decides which replicas exchange temperatures so it can be used
+ * whether the replicas are running in threads or in separate processes.
+ *
+ * The replicas are kept in a ladder ordered by temperature (the cold chain is at the bottom).
+ * If a target swap rate is given then the gaps between the rungs of the ladder are adapted
+ * (with a diminishing step size) so that neighbouring replicas exchange at that rate. The
+ * adaptation stops after the burn-in, so the samples after it come from a fixed ladder.
+ */
+public class ReplicaExchange {
+
+    private static final double ADAPTATION_RATE = 0.5;
+    private static final double ADAPTATION_DECAY = 0.6;
+
+    public ReplicaExchange(MCMCMCOptions options) {
+        this.swapScheme = options.getSwapScheme();
+        this.targetSwapRate = options.getTargetSwapRate();
+        this.adaptationLength = options.getAdaptationLength();
+
+        final double[] chainTemperatures = options.getChainTemperatures();
+        replicaCount = chainTemperatures.length;
+        temperatures = new double[replicaCount];
+        System.arraycopy(chainTemperatures, 0, temperatures, 0, replicaCount);
+
+        // order the replicas from coldest (temperature 1) to hottest
+        Integer[] order = new Integer[replicaCount];
+        for (int i = 0; i < replicaCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(temperatures[i2], temperatures[i1]);
+            }
+        });
+        replicaAtRung = new int[replicaCount];
+        for (int k = 0; k < replicaCount; k++) {
+            replicaAtRung[k] = order[k];
+        }
+
+        swapAttempts = new long[replicaCount - 1];
+        swapAccepts = new long[replicaCount - 1];
+
+        if (targetSwapRate > 0.0) {
+            logGaps = new double[replicaCount - 1];
+            for (int k = 0; k < replicaCount - 1; k++) {
+                double gap = (1.0 / temperatures[replicaAtRung[k + 1]]) - (1.0 / temperatures[replicaAtRung[k]]);
+                if (gap <= 0.0) {
+                    throw new IllegalArgumentException("Chain temperatures must all be different to adapt them");
+                }
+                logGaps[k] = Math.log(gap);
+            }
+        } else {
+            logGaps = null;
+        }
+    }
+
+    /**
+     * Sets the number of states over which the ladder is adapted if it wasn't given in the options.
+     */
+    public void setAdaptationLength(long adaptationLength) {
+        this.adaptationLength = adaptationLength;
+    }
+
+    public long getAdaptationLength() {
+        return adaptationLength;
+    }
+
+    /**
+     * Attempts to exchange the temperatures of replicas given their current (untempered) scores.
+     *
+     * @param scores the current score of each replica
+     * @param state  the state the replicas have reached, the ladder is only adapted before the
+     *               adaptation length (if that has been set)
+     * @return the replica each replica exchanged temperatures with (or -1 for those that didn't)
+     */
+    public int[] exchange(double[] scores, long state) {
+        adapting = (logGaps != null && (adaptationLength < 0 || state < adaptationLength));
+
+        int[] partners = new int[replicaCount];
+        Arrays.fill(partners, -1);
+
+        if (swapScheme == MCMCMCOptions.SwapScheme.EVEN_ODD) {
+            for (int k = (int) (round % 2); k < replicaCount - 1; k += 2) {
+                attemptSwap(replicaAtRung[k], replicaAtRung[k + 1], scores, partners);
+            }
+        } else {
+            int index1 = MathUtils.nextInt(replicaCount);
+            int index2 = MathUtils.nextInt(replicaCount);
+            while (index1 == index2) {
+                index2 = MathUtils.nextInt(replicaCount);
+            }
+            attemptSwap(index1, index2, scores, partners);
+        }
+        round++;
+
+        return partners;
+    }
+
+    private void attemptSwap(int index1, int index2, double[] scores, int[] partners) {
+        final double score1 = scores[index1];
+        final double score2 = scores[index2];
+        final double temperature1 = temperatures[index1];
+        final double temperature2 = temperatures[index2];
+
+        double logRatio = ((score2 - score1) * temperature1) + ((score1 - score2) * temperature2);
+        boolean swap = (Math.log(MathUtils.nextDouble()) < logRatio);
+
+        final int rung1 = getRung(index1);
+        final int rung2 = getRung(index2);
+        final int lowerRung = Math.min(rung1, rung2);
+        final boolean neighbours = Math.abs(rung1 - rung2) == 1;
+
+        if (neighbours) {
+            swapAttempts[lowerRung]++;
+            if (swap) {
+                swapAccepts[lowerRung]++;
+            }
+        }
+
+        if (swap) {
+            temperatures[index1] = temperature2;
+            temperatures[index2] = temperature1;
+            replicaAtRung[rung1] = index2;
+            replicaAtRung[rung2] = index1;
+            partners[index1] = index2;
+            partners[index2] = index1;
+        }
+
+        if (neighbours && adapting) {
+            // Robbins-Monro update of the gap between these rungs using the swap probability
+            double swapProbability = logRatio >= 0.0 ? 1.0 : Math.exp(logRatio);
+            double gain = ADAPTATION_RATE / Math.pow(swapAttempts[lowerRung], ADAPTATION_DECAY);
+            logGaps[lowerRung] += gain * (swapProbability - targetSwapRate);
+            updateTemperatures();
+        }
+    }
+
+    private void updateTemperatures() {
+        double inverseTemperature = 1.0;
+        temperatures[replicaAtRung[0]] = 1.0;
+        for (int k = 0; k < replicaCount - 1; k++) {
+            inverseTemperature += Math.exp(logGaps[k]);
+            temperatures[replicaAtRung[k + 1]] = 1.0 / inverseTemperature;
+        }
+    }
+
+    private int getRung(int replica) {
+        for (int k = 0; k < replicaCount; k++) {
+            if (replicaAtRung[k] == replica) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("Unknown replica: " + replica);
+    }
+
+    public int getReplicaCount() {
+        return replicaCount;
+    }
+
+    public double getTemperature(int replica) {
+        return temperatures[replica];
+    }
+
+    /**
+     * @return the replica currently at temperature 1
+     */
+    public int getColdReplica() {
+        return replicaAtRung[0];
+    }
+
+    /**
+     * Writes the temperature ladder and the swap rates between neighbouring rungs
+     *
+     * @param out the print stream to write to
+     */
+    public void showSwapAnalysis(PrintStream out) {
+        NumberFormatter formatter = new NumberFormatter(8);
+
+        out.println();
+        out.println("Chain swap analysis (" + swapScheme + (logGaps != null ? ", adapted to " + targetSwapRate +
+                (adaptationLength >= 0 ? " for " + adaptationLength + " states" : "") : "") + ")");
+        out.println(formatter.formatToFieldWidth("Rung", 8) +
+                formatter.formatToFieldWidth("Temperature", 14) +
+                formatter.formatToFieldWidth("Attempts", 11) +
+                formatter.formatToFieldWidth("Pr(swap)", 11));
+        for (int k = 0; k < replicaCount; k++) {
+            String rates = "";
+            if (k < replicaCount - 1) {
+                double rate = swapAttempts[k] > 0 ? (double) swapAccepts[k] / swapAttempts[k] : 0.0;
+                rates = formatter.formatToFieldWidth(Long.toString(swapAttempts[k]), 10) + " " +
+                        formatter.formatToFieldWidth(formatter.formatDecimal(rate, 4), 11);
+            }
+            out.println(formatter.formatToFieldWidth(Integer.toString(k), 8) +
+                    formatter.formatToFieldWidth(formatter.formatDecimal(temperatures[replicaAtRung[k]], 6), 14) +
+                    rates);
+        }
+        out.println();
+    }
+
+    private final MCMCMCOptions.SwapScheme swapScheme;
+    private final double targetSwapRate;
+    private long adaptationLength;
+    private boolean adapting = false;
+    private final int replicaCount;
+
+    private final double[] temperatures;
+    private final int[] replicaAtRung;
+    private final double[] logGaps;
+
+    private final long[] swapAttempts;
+    private final long[] swapAccepts;
+    private long round = 0;
+}
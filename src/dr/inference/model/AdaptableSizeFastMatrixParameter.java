@@ -1,7 +1,6 @@
 package dr.inference.model;
 
 import dr.inference.loggers.LogColumn;
-import dr.inference.loggers.NumberColumn;
 
 /**
  * Created by max on 4/6/16.
@@ -146,7 +145,7 @@ public class AdaptableSizeFastMatrixParameter extends FastMatrixParameter {
         return bigMatrixColumn;
     }
 
-    private class ASFMPColumn extends NumberColumn {
+    private class ASFMPColumn extends LogColumn.Abstract {
 
         public ASFMPColumn(String label) {
             super(label);
@@ -157,7 +156,7 @@ public class AdaptableSizeFastMatrixParameter extends FastMatrixParameter {
             for (int i = 0; i <getRowDimension() ; i++) {
                 fullMatrix += " { ";
                 for (int j = 0; j < getColumnDimension(); j++) {
-                    fullMatrix += formatValue(getParameterValue(i,j));
+                    fullMatrix += Double.toString(getParameterValue(i,j));
                     if(j != getColumnDimension() - 1){
                         fullMatrix += ", ";
                     }
@@ -170,11 +169,6 @@ public class AdaptableSizeFastMatrixParameter extends FastMatrixParameter {
             fullMatrix += "}";
             return fullMatrix;
         }
-
-        @Override
-        public double getDoubleValue() {
-            return 0;
-        }
     }
 
 
@@ -65,14 +65,15 @@ public class CompoundLikelihood implements Likelihood, Reportable {
             threadCount = 0;
         }
 
-        if (threadCount > 0) {
-            pool = Executors.newFixedThreadPool(threadCount);
-        } else if (threadCount < 0) {
-            // create a cached thread pool which should create one thread per likelihood...
-            pool = Executors.newCachedThreadPool();
-        } else {
-            // don't use a threadpool (i.e., compute serially)
-            pool = null;
+        // the components are evaluated by the shared work-stealing pool rather than a pool for each
+        // compound likelihood (the size of which is set globally)
+        parallel = (threadCount != 0 && lateLikelihoods.size() > 1);
+
+        if (parallel) {
+            // the callers listen to the component models so they are only made if the pool is used
+            for (Likelihood likelihood : lateLikelihoods) {
+                likelihoodCallers.add(new LikelihoodCaller(likelihood, this.likelihoods.indexOf(likelihood)));
+            }
         }
 
         if (EVALUATION_TIMERS) {
@@ -86,7 +87,7 @@ public class CompoundLikelihood implements Likelihood, Reportable {
 
     public CompoundLikelihood(Collection<Likelihood> likelihoods) {
 
-        pool = null;
+        parallel = false;
         threadCount = 0;
 
         int i = 0;
@@ -121,6 +122,8 @@ public class CompoundLikelihood implements Likelihood, Reportable {
             for (Likelihood l : ((CompoundLikelihood)likelihood).getLikelihoods()) {
                 addLikelihood(l, index, addToPool);
             }
+            // its components are now evaluated by this compound likelihood's callers
+            ((CompoundLikelihood) likelihood).releaseCallers();
             
         } else {
         	
@@ -139,10 +142,6 @@ public class CompoundLikelihood implements Likelihood, Reportable {
                 	
                     // late likelihood list is used to evaluate them if the thread pool is not being used...
                     lateLikelihoods.add(likelihood);
-
-                    if (addToPool) {
-                        likelihoodCallers.add(new LikelihoodCaller(likelihood, index));
-                    }
                 }
 
             } else {
@@ -153,6 +152,17 @@ public class CompoundLikelihood implements Likelihood, Reportable {
         
     }//END: addLikelihood
 
+    /**
+     * Removes the callers from the component models and evaluates the components serially from now on.
+     */
+    private void releaseCallers() {
+        for (LikelihoodCaller caller : likelihoodCallers) {
+            caller.release();
+        }
+        likelihoodCallers.clear();
+        parallel = false;
+    }
+
     public Set<Likelihood> getLikelihoodSet() {
         Set<Likelihood> set = new HashSet<Likelihood>();
         for (Likelihood l : likelihoods) {
@@ -175,7 +185,7 @@ public class CompoundLikelihood implements Likelihood, Reportable {
     }
 
     public List<Callable<Double>> getLikelihoodCallers() {
-        return likelihoodCallers;
+        return new ArrayList<Callable<Double>>(likelihoodCallers);
     }
 
     // **************************************************************
@@ -197,23 +207,25 @@ public class CompoundLikelihood implements Likelihood, Reportable {
             return Double.NEGATIVE_INFINITY;
         }
 
-        if (pool == null) {
+        if (!parallel) {
             // Single threaded
             logLikelihood += evaluateLikelihoods(lateLikelihoods);
         } else {
 
-            try {
-                List<Future<Double>> results = pool.invokeAll(likelihoodCallers);
-
-                for (Future<Double> result : results) {
-                    double logL = result.get();
-                    logLikelihood += logL;
+            // only the components whose models have changed are sent to the pool, the rest
+            // should just return their stored values
+            dirtyCallers.clear();
+            for (LikelihoodCaller caller : likelihoodCallers) {
+                caller.dispatched = caller.isDirty();
+                if (caller.dispatched) {
+                    dirtyCallers.add(caller);
                 }
+            }
 
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (ExecutionException e) {
-                e.printStackTrace();
+            LikelihoodScheduler.evaluate(dirtyCallers);
+
+            for (LikelihoodCaller caller : likelihoodCallers) {
+                logLikelihood += caller.getLogLikelihood();
             }
         }
 
@@ -264,6 +276,9 @@ public class CompoundLikelihood implements Likelihood, Reportable {
         for( Likelihood likelihood : likelihoods ) {
             likelihood.makeDirty();
         }
+        for (LikelihoodCaller caller : likelihoodCallers) {
+            caller.makeDirty();
+        }
     }
 
     public boolean evaluateEarly() {
@@ -476,7 +491,7 @@ public class CompoundLikelihood implements Likelihood, Reportable {
 
     private final int threadCount;
 
-    private final ExecutorService pool;
+    private boolean parallel;
 
     private final ArrayList<Likelihood> likelihoods = new ArrayList<Likelihood>();
     private final CompoundModel compoundModel = new CompoundModel("compoundModel");
@@ -484,31 +499,84 @@ public class CompoundLikelihood implements Likelihood, Reportable {
     private final ArrayList<Likelihood> earlyLikelihoods = new ArrayList<Likelihood>();
     private final ArrayList<Likelihood> lateLikelihoods = new ArrayList<Likelihood>();
 
-    private final List<Callable<Double>> likelihoodCallers = new ArrayList<Callable<Double>>();
+    private final List<LikelihoodCaller> likelihoodCallers = new ArrayList<LikelihoodCaller>();
+    private final List<LikelihoodCaller> dirtyCallers = new ArrayList<LikelihoodCaller>();
 
-    class LikelihoodCaller implements Callable<Double> {
+    /**
+     * Evaluates a component likelihood in the shared pool. It listens to the component's model so
+     * that components that haven't changed since they were last evaluated aren't dispatched.
+     */
+    class LikelihoodCaller extends LikelihoodScheduler.Task implements Callable<Double>, ModelListener {
 
         public LikelihoodCaller(Likelihood likelihood, int index) {
             this.likelihood = likelihood;
             this.index = index;
+            if (likelihood.getModel() != null) {
+                likelihood.getModel().addModelListener(this);
+            }
         }
 
         public Double call() throws Exception {
+            return evaluate();
+        }
+
+        @Override
+        protected double evaluate() {
             if (DEBUG_PARALLEL_EVALUATION) {
                 System.err.print("Invoking thread #" + index + " for " + likelihood.getId() + ": ");
             }
             if (EVALUATION_TIMERS) {
                 long time = System.nanoTime();
-                double logL = likelihood.getLogLikelihood();
+                logLikelihood = likelihood.getLogLikelihood();
                 evaluationTimes[index] += System.nanoTime() - time;
                 evaluationCounts[index] ++;
-                return logL;
+            } else {
+                logLikelihood = likelihood.getLogLikelihood();
+            }
+            // without a model there is no way of knowing when it changes
+            dirty = (likelihood.getModel() == null);
+            return logLikelihood;
+        }
+
+        /**
+         * @return the log likelihood, just evaluated in the pool or asked for now if the component was clean
+         */
+        double getLogLikelihood() {
+            if (!dispatched) {
+                // the likelihood should have its value to hand (possibly restored after a rejected move)
+                logLikelihood = likelihood.getLogLikelihood();
             }
-            return likelihood.getLogLikelihood();
+            return logLikelihood;
+        }
+
+        boolean isDirty() {
+            return dirty;
+        }
+
+        void release() {
+            if (likelihood.getModel() != null) {
+                likelihood.getModel().removeModelListener(this);
+            }
+        }
+
+        void makeDirty() {
+            dirty = true;
+        }
+
+        public void modelChangedEvent(Model model, Object object, int index) {
+            dirty = true;
+        }
+
+        public void modelRestored(Model model) {
+            dirty = true;
         }
 
         private final Likelihood likelihood;
         private final int index;
+
+        private volatile boolean dirty = true;
+        private boolean dispatched = false;
+        private double logLikelihood;
     }
 
     public static final boolean DEBUG_PARALLEL_EVALUATION = false;
@@ -0,0 +1,145 @@
+/*
+ * LikelihoodScheduler.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A single, process-wide work-stealing pool for evaluating likelihood components in parallel.
+ * All compound likelihoods share it so nested compound likelihoods don't multiply the number
+ * of threads: a component that is itself evaluated in parallel forks its tasks into the same
+ * pool and helps run them while it waits. Tasks are started in order of their average past
+ * evaluation time so the most expensive ones are not left until last.
+ */
+public final class LikelihoodScheduler {
+
+    /**
+     * System property giving the number of threads in the pool (default is the number of processors)
+     */
+    public static final String POOL_SIZE = "likelihood.pool.size";
+
+    private static ForkJoinPool pool = null;
+
+    private LikelihoodScheduler() {
+        // no instances
+    }
+
+    public static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            int poolSize = Runtime.getRuntime().availableProcessors();
+            if (System.getProperty(POOL_SIZE) != null) {
+                poolSize = Integer.parseInt(System.getProperty(POOL_SIZE));
+            }
+            pool = new ForkJoinPool(Math.max(poolSize, 1));
+        }
+        return pool;
+    }
+
+    /**
+     * Evaluates the given tasks in parallel and returns the sum of their results (in the order given).
+     */
+    public static double evaluate(final List<? extends Task> tasks) {
+        if (tasks.size() == 0) {
+            return 0.0;
+        }
+
+        for (Task task : tasks) {
+            task.reinitialize();
+        }
+
+        if (tasks.size() == 1) {
+            // not worth a trip to the pool
+            return tasks.get(0).invoke();
+        }
+
+        final List<Task> ordered = new ArrayList<Task>(tasks);
+        Collections.sort(ordered, COST_COMPARATOR);
+
+        ForkJoinPool pool = getPool();
+        if (ForkJoinTask.getPool() == pool) {
+            // already running in the pool (a nested compound likelihood) so fork from here
+            ForkJoinTask.invokeAll(ordered);
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(ordered);
+                }
+            });
+        }
+
+        double sum = 0.0;
+        for (Task task : tasks) {
+            sum += task.getRawResult();
+        }
+        return sum;
+    }
+
+    private static final Comparator<Task> COST_COMPARATOR = new Comparator<Task>() {
+        public int compare(Task task1, Task task2) {
+            return Double.compare(cost(task2), cost(task1));
+        }
+
+        private double cost(Task task) {
+            // tasks that have never been timed go first
+            return task.evaluationCount == 0 ? Double.POSITIVE_INFINITY : task.getAverageTime();
+        }
+    };
+
+    /**
+     * A reusable task that evaluates one likelihood component and keeps a record of how long it takes.
+     */
+    public static abstract class Task extends RecursiveTask<Double> {
+
+        @Override
+        protected final Double compute() {
+            long time = System.nanoTime();
+            double result = evaluate();
+            totalTime += System.nanoTime() - time;
+            evaluationCount++;
+            return result;
+        }
+
+        protected abstract double evaluate();
+
+        /**
+         * @return the mean evaluation time in nanoseconds (0 if never evaluated)
+         */
+        public double getAverageTime() {
+            return evaluationCount == 0 ? 0.0 : (double) totalTime / evaluationCount;
+        }
+
+        private long totalTime = 0;
+        private int evaluationCount = 0;
+    }
+}
@@ -645,6 +645,10 @@ public interface Parameter extends Statistic, Variable<Double> {
                 bounds = null;
                 addBounds(low, high);
             }
+
+            // the journal refers to the old values so the next store must copy them all
+            clearChanges();
+            allChanged = true;
         }
 
         /**
@@ -661,6 +665,7 @@ public interface Parameter extends Statistic, Variable<Double> {
             newValues[index] = value;
             System.arraycopy(values, index, newValues, index + 1, n - index);
             values = newValues;
+            allChanged = true;
             fireParameterChangedEvent(index, Parameter.ChangeType.ADDED);
         }
 
@@ -680,12 +685,14 @@ public interface Parameter extends Statistic, Variable<Double> {
             System.arraycopy(values, 0, newValues, 0, index);
             System.arraycopy(values, index, newValues, index - 1, n - index);
             values = newValues;
+            allChanged = true;
             fireParameterChangedEvent(index, Parameter.ChangeType.REMOVED);
             return value;
         }
 
 
         public void setParameterValue(int i, double val) {
+            logChange(i);
             values[i] = val;
             fireParameterChangedEvent(i, Parameter.ChangeType.VALUE_CHANGED);
         }
@@ -697,9 +704,21 @@ public interface Parameter extends Statistic, Variable<Double> {
          * @param value the value to set
          */
         public void setParameterValueQuietly(int dim, double value) {
+            logChange(dim);
             values[dim] = value;
         }
 
+        /**
+         * Sets all the values of the parameter without firing a changed event.
+         *
+         * @param values the values to set
+         * @param offset the position in values of the first one
+         */
+        public void setAllParameterValuesQuietly(double[] values, int offset) {
+            allChanged = true;
+            System.arraycopy(values, offset, this.values, 0, this.values.length);
+        }
+
 
         /**
          * Sets the values of the parameter and notify that all values of the parameter have changed.
@@ -708,25 +727,81 @@ public interface Parameter extends Statistic, Variable<Double> {
          * @param val to value to set
          */
         public void setParameterValueNotifyChangedAll(int i, double val) {
+            logChange(i);
             values[i] = val;
             fireParameterChangedEvent(-1, Parameter.ChangeType.ALL_VALUES_CHANGED);
         }
 
+        /**
+         * Once the values have been stored, records the first change to each value so that store
+         * and restore only need to copy those. If more than a quarter of the values change the
+         * whole array is copied instead.
+         */
+        private void logChange(int i) {
+            if (storedValues == null || allChanged || changed[i]) {
+                return;
+            }
+            if (changeCount == changedIndices.length) {
+                allChanged = true;
+                return;
+            }
+            changed[i] = true;
+            changedIndices[changeCount] = i;
+            changeCount++;
+        }
+
+        private void clearChanges() {
+            for (int k = 0; k < changeCount; k++) {
+                changed[changedIndices[k]] = false;
+            }
+            changeCount = 0;
+            allChanged = false;
+        }
+
         protected final void storeValues() {
             // no need to pay a price in a very common call for one-time rare usage
             //hasBeenStored = true;
             if (storedValues == null || storedValues.length != values.length) {
                 storedValues = new double[values.length];
+                changed = new boolean[values.length];
+                changedIndices = new int[values.length / 4 + 1];
+                changeCount = 0;
+                allChanged = true;
             }
-            System.arraycopy(values, 0, storedValues, 0, storedValues.length);
+
+            if (allChanged) {
+                System.arraycopy(values, 0, storedValues, 0, storedValues.length);
+            } else {
+                for (int k = 0; k < changeCount; k++) {
+                    final int i = changedIndices[k];
+                    storedValues[i] = values[i];
+                }
+            }
+            clearChanges();
         }
 
         protected final void restoreValues() {
 
-            //swap the arrays
-            double[] temp = storedValues;
-            storedValues = values;
-            values = temp;
+            if (allChanged) {
+                //swap the arrays
+                double[] temp = storedValues;
+                storedValues = values;
+                values = temp;
+                if (changed.length != values.length) {
+                    changed = new boolean[values.length];
+                    changedIndices = new int[values.length / 4 + 1];
+                    changeCount = 0;
+                }
+                // the stored values are now those that were rejected so must all be copied on the next store
+                clearChanges();
+                allChanged = true;
+            } else {
+                for (int k = 0; k < changeCount; k++) {
+                    final int i = changedIndices[k];
+                    values[i] = storedValues[i];
+                }
+                clearChanges();
+            }
 
             //if (storedValues != null) {
             //	System.arraycopy(storedValues, 0, values, 0, values.length);
@@ -734,7 +809,7 @@ public interface Parameter extends Statistic, Variable<Double> {
         }
 
         /**
-         * Nothing to do
+         * Nothing to do (any values changed since the store are copied by the next one)
          */
         protected final void acceptValues() {
         }
@@ -746,6 +821,7 @@ public interface Parameter extends Statistic, Variable<Double> {
                 throw new RuntimeException("The two parameters don't have the same number of dimensions");
             }
 
+            allChanged = true;
             for (int i = 0, n = getDimension(); i < n; i++) {
                 values[i] = source.getParameterValue(i);
             }
@@ -755,6 +831,13 @@ public interface Parameter extends Statistic, Variable<Double> {
 
         private double[] storedValues;
 
+        // the values changed since the last store or restore (a journal of the first write to each)
+        private boolean[] changed;
+        private int[] changedIndices;
+        private int changeCount = 0;
+        // too many (or structural) changes to journal so store and restore copy the whole array
+        private boolean allChanged = true;
+
         // same as !storedValues && !bounds
         //private boolean hasBeenStored = false;
         private Bounds<Double> bounds = null;
@@ -29,8 +29,6 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
 import dr.evomodel.treelikelihood.BeagleTreeLikelihood;
 import dr.util.NumberFormatter;
@@ -98,99 +96,35 @@ public class ThreadedCompoundLikelihood implements Likelihood {
 
 	public double getLogLikelihood() {
 
-		double logLikelihood = 0.0;
-
-		boolean knownLikelihoods = true;
-		for (Likelihood likelihood : likelihoods) {
-			if (!((BeagleTreeLikelihood)likelihood).isLikelihoodKnown()) {
-				knownLikelihoods = false;
-				break;
-			} else {
-				logLikelihood += likelihood.getLogLikelihood();
+		// only the likelihoods that need recalculating are sent to the shared pool
+		dirtyCallers.clear();
+		for (LikelihoodCaller caller : likelihoodCallers) {
+			caller.dispatched = !((BeagleTreeLikelihood) caller.likelihood).isLikelihoodKnown();
+			if (caller.dispatched) {
+				dirtyCallers.add(caller);
 			}
 		}
-		
-		if (knownLikelihoods) {
-
-			if (DEBUG) {
-				//System.err.println("BTLs are known; total logLikelihood = " + logLikelihood);
-				//double check if the total loglikelihood will be identical by recalculating
-				double backupLikelihood = logLikelihood;
-				logLikelihood = 0.0;
-
-				if (threads == null) {
-					// first call so setup a thread for each likelihood...
-					threads = new LikelihoodThread[likelihoodCallers.size()];
-					for (int i = 0; i < threads.length; i++) {
-						// and start them running...
-						threads[i] = new LikelihoodThread();
-						threads[i].start();
-					}
-				}
 
-				for (int i = 0; i < threads.length; i++) {
-					// set the caller which will be called in each thread
-					threads[i].setCaller(likelihoodCallers.get(i));
-				}
+		LikelihoodScheduler.evaluate(dirtyCallers);
 
-				for (LikelihoodThread thread : threads) {
-					// now wait for the results to be set...
-					Double result = thread.getResult();
-					while (result == null) {
-						result = thread.getResult();
-					}
-					logLikelihood += result;
-				}
+		double logLikelihood = 0.0;
+		for (LikelihoodCaller caller : likelihoodCallers) {
+			logLikelihood += caller.getLogLikelihood();
+		}
 
-				if (backupLikelihood != logLikelihood) {
-					//System.err.println("Likelihood recalculation does not return stored likelihood");
-					throw new RuntimeException("Likelihood recalculation does not return stored likelihood");
-				}
-			}
-		} else {
-			//System.err.println("BTLs are not known: recalculate");
-
-			logLikelihood = 0.0;
-
-			//double start = System.nanoTime();
-			//System.err.println("TCL getLogLikelihood()");
-
-			if (threads == null) {
-				//System.err.println("threads == null");
-				// first call so setup a thread for each likelihood...
-				threads = new LikelihoodThread[likelihoodCallers.size()];
-				//System.err.println("LikelihoodThreads: " + threads.length);
-				for (int i = 0; i < threads.length; i++) {
-					// and start them running...
-					threads[i] = new LikelihoodThread();
-					threads[i].start();
-				}
+		if (DEBUG && dirtyCallers.isEmpty()) {
+			//double check if the total loglikelihood will be identical by recalculating
+			double backupLikelihood = logLikelihood;
+			for (LikelihoodCaller caller : likelihoodCallers) {
+				caller.dispatched = true;
 			}
+			logLikelihood = LikelihoodScheduler.evaluate(likelihoodCallers);
 
-			//double setStart = System.nanoTime();
-			for (int i = 0; i < threads.length; i++) {
-				// set the caller which will be called in each thread
-				threads[i].setCaller(likelihoodCallers.get(i));
+			if (backupLikelihood != logLikelihood) {
+				throw new RuntimeException("Likelihood recalculation does not return stored likelihood");
 			}
-			//double setEnd = System.nanoTime();
-			//System.err.println("setting callers: " + (setEnd - setStart));
-
-			//start = System.nanoTime();
-			for (LikelihoodThread thread : threads) {
-				//double testone = System.nanoTime();
-				// now wait for the results to be set...
-				Double result = thread.getResult();
-				while (result == null) {
-					result = thread.getResult();
-				}
-				logLikelihood += result;
-				//double testtwo = System.nanoTime();
-				//System.err.println(thread.getName() + " - result = " + result + ": " + (testtwo - testone));
-			}
-			//end = System.nanoTime();
-			//double end = System.nanoTime();
-			//System.err.println("TCL total time: " + (end - start));
 		}
+
 		return logLikelihood; // * weightFactor;
 
 	}
@@ -299,78 +233,36 @@ public class ThreadedCompoundLikelihood implements Likelihood {
 		return id;
 	}
 
-	private LikelihoodThread[] threads;
-
 	private final ArrayList<Likelihood> likelihoods = new ArrayList<Likelihood>();
 	private final CompoundModel compoundModel = new CompoundModel("compoundModel");
 
 	private final List<LikelihoodCaller> likelihoodCallers = new ArrayList<LikelihoodCaller>();
+	private final List<LikelihoodCaller> dirtyCallers = new ArrayList<LikelihoodCaller>();
 
 	private double weightFactor = 1.0;
 
-	class LikelihoodCaller {
+	class LikelihoodCaller extends LikelihoodScheduler.Task {
 
 		public LikelihoodCaller(Likelihood likelihood) {
 			this.likelihood = likelihood;
 		}
 
-		public double call() {
-			return likelihood.getLogLikelihood();
-		}
-
-		private final Likelihood likelihood;
-	}
-
-	class LikelihoodThread extends Thread {
-
-		public LikelihoodThread() {
+		@Override
+		protected double evaluate() {
+			logLikelihood = likelihood.getLogLikelihood();
+			return logLikelihood;
 		}
 
-		public void setCaller(LikelihoodCaller caller) {
-			lock.lock();
-			resultAvailable = false;
-			try {
-				this.caller = caller;
-				condition.signal();
-			} finally {
-				lock.unlock();
+		double getLogLikelihood() {
+			if (!dispatched) {
+				logLikelihood = likelihood.getLogLikelihood();
 			}
+			return logLikelihood;
 		}
 
-		/**
-		 * Main run loop
-		 */
-		 public void run() {
-			while (true) {
-				lock.lock();
-				try {
-					while( caller == null)
-						condition.await();
-					result = caller.call(); // SLOW
-					resultAvailable = true;
-					caller = null;
-				} catch (InterruptedException e){
-
-				} finally {
-					lock.unlock();
-				}
-			}
-		 }
-
-		 public Double getResult() {
-			 Double returnValue = null;
-			 if (!lock.isLocked() && resultAvailable)  { // thread is not busy and completed
-				 resultAvailable = false; // TODO need to lock before changing resultAvailable?
-				 returnValue = result;
-			 }
-			 return returnValue;
-		 }
-
-		 private LikelihoodCaller caller = null;
-		 private Double result = Double.NaN;
-		 private boolean resultAvailable = false;
-		 private final ReentrantLock lock = new ReentrantLock();
-		 private final Condition condition = lock.newCondition();
+		private final Likelihood likelihood;
+		private boolean dispatched = false;
+		private double logLikelihood;
 	}
 
 	public boolean isUsed() {
@@ -230,6 +230,8 @@ public class MultiDimensionalScalingLikelihood extends AbstractModelLikelihood i
             System.err.println("Attempting to use a native MDS core with flag: " + computeMode + "; may the force be with you ....");
             core = new MassivelyParallelMDSImpl();
             flags = computeMode;
+        } else if (System.getProperty(MultiThreadedMDSImpl.THREAD_COUNT_PROPERTY) != null) {
+            core = new MultiThreadedMDSImpl();
         } else {
             core = new MultiDimensionalScalingCoreImpl();
         }
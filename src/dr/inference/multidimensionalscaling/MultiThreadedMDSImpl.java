@@ -0,0 +1,571 @@
+/*
+ * MultiThreadedMDSImpl.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.multidimensionalscaling;
+
+import dr.math.distributions.NormalDistribution;
+import dr.util.SharedThreadPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * MultiThreadedMDSImpl - a pure Java MDS core for machines without the native library. The locations,
+ * observations and increments are held in flat row-major arrays. When locations move only the rows
+ * (and columns) of the increments for those locations are recalculated and a full recalculation
+ * visits each pair once in square tiles. In both cases the work is split across a pool of threads.
+ *
+ * Selected by setting the mds.java.thread.count property to the number of threads (0 for the number
+ * of cores) when no native flags are given in the mds.required.flags property.
+ * Partial sums are always added in the same order so the results only depend on the thread count.
+ *
+ * @version $Id$
+ */
+public class MultiThreadedMDSImpl implements MultiDimensionalScalingCore {
+
+    public static final String THREAD_COUNT_PROPERTY = "mds.java.thread.count";
+
+    private static final int TILE_SIZE = 64;
+    private static final int MIN_PAIRS_PER_THREAD = 4096;
+
+    private static int getDefaultThreadCount() {
+        String t = System.getProperty(THREAD_COUNT_PROPERTY);
+        if (t != null) {
+            try {
+                int threadCount = Integer.parseInt(t.trim());
+                if (threadCount > 0) {
+                    return threadCount;
+                }
+            } catch (NumberFormatException nfe) {
+                System.err.println("Invalid entry '" + t + "' in " + THREAD_COUNT_PROPERTY);
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public MultiThreadedMDSImpl() {
+        this(getDefaultThreadCount());
+    }
+
+    public MultiThreadedMDSImpl(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    @Override
+    public void initialize(int embeddingDimension, int locationCount, long flags) {
+        this.embeddingDimension = embeddingDimension;
+        this.locationCount = locationCount;
+        this.observationCount = (locationCount * (locationCount - 1)) / 2;
+
+        isLeftTruncated = (flags & MultiDimensionalScalingCore.LEFT_TRUNCATION) != 0;
+
+        observations = new double[locationCount * locationCount];
+        increments = new double[locationCount * locationCount];
+        locations = new double[locationCount * embeddingDimension];
+        storedLocations = new double[locationCount * embeddingDimension];
+
+        updatedRows = new int[locationCount];
+        isUpdatedRow = new boolean[locationCount];
+        updatedRowCount = 0;
+        updatedRowIncrements = new double[locationCount];
+
+        storedRows = new int[locationCount];
+        isStoredRow = new boolean[locationCount];
+        storedRowCount = 0;
+        storedRowIncrements = new double[locationCount];
+
+        incrementsKnown = false;
+        sumOfIncrementsKnown = false;
+        recalculatedSinceStore = true;
+
+        // the upper triangle of tiles, including the diagonal ones
+        int tileCount = (locationCount + TILE_SIZE - 1) / TILE_SIZE;
+        tileStarts = new int[(tileCount * (tileCount + 1)) / 2][2];
+        int k = 0;
+        for (int i = 0; i < tileCount; i++) {
+            for (int j = i; j < tileCount; j++) {
+                tileStarts[k][0] = i * TILE_SIZE;
+                tileStarts[k][1] = j * TILE_SIZE;
+                k++;
+            }
+        }
+
+        if (threadCount > 1) {
+            executor = SharedThreadPool.getPool("MultiThreadedMDSImpl", threadCount);
+            tasks = new ArrayList<WorkerTask>();
+            for (int i = 0; i < threadCount; i++) {
+                tasks.add(new WorkerTask(i));
+            }
+        }
+    }
+
+    @Override
+    public void setPairwiseData(double[] observations) {
+        if (observations.length != (locationCount * locationCount)) {
+            throw new RuntimeException("Observation data is not the correct dimension");
+        }
+        System.arraycopy(observations, 0, this.observations, 0, observations.length);
+    }
+
+    @Override
+    public double[] getPairwiseData() {
+        double[] data = new double[locationCount * locationCount];
+        System.arraycopy(observations, 0, data, 0, data.length);
+        return data;
+    }
+
+    @Override
+    public void setParameters(double[] parameters) {
+        precision = parameters[0];
+
+        // Handle truncations
+        if (isLeftTruncated) {
+            incrementsKnown = false;
+            sumOfIncrementsKnown = false;
+        }
+    }
+
+    @Override
+    public void updateLocation(int locationIndex, double[] location) {
+        if (locationIndex != -1) {
+            if (location.length != embeddingDimension) {
+                throw new RuntimeException("Location is not the correct dimension");
+            }
+
+            System.arraycopy(location, 0, locations, locationIndex * embeddingDimension, embeddingDimension);
+
+            if (!isUpdatedRow[locationIndex]) {
+                isUpdatedRow[locationIndex] = true;
+                updatedRows[updatedRowCount] = locationIndex;
+                updatedRowCount++;
+            }
+        } else {
+            if (location.length != embeddingDimension * locationCount) {
+                throw new RuntimeException("Location is the not correct dimension");
+            }
+
+            System.arraycopy(location, 0, locations, 0, locations.length);
+            incrementsKnown = false;
+        }
+
+        sumOfIncrementsKnown = false;
+    }
+
+    @Override
+    public double calculateLogLikelihood() {
+        if (!sumOfIncrementsKnown) {
+            updateIncrements();
+        }
+
+        double logLikelihood = 0.5 * (Math.log(precision) - Math.log(2 * Math.PI)) * observationCount;
+
+        if (isLeftTruncated) {
+            logLikelihood -= sumOfIncrements; // If truncated, then values on difference scale
+        } else {
+            logLikelihood -= 0.5 * precision * sumOfIncrements;
+        }
+
+        return logLikelihood;
+    }
+
+    @Override
+    public void storeState() {
+        if (!sumOfIncrementsKnown) {
+            // so the stored sum matches the stored increments
+            updateIncrements();
+        }
+
+        // Handle residuals
+        storedSumOfIncrements = sumOfIncrements;
+        clearStoredRows();
+        recalculatedSinceStore = !incrementsKnown;
+
+        // Handle locations
+        System.arraycopy(locations, 0, storedLocations, 0, locations.length);
+
+        // Handle precision
+        storedPrecision = precision;
+    }
+
+    @Override
+    public void restoreState() {
+        // Handle residuals
+        sumOfIncrements = storedSumOfIncrements;
+        sumOfIncrementsKnown = true;
+
+        if (recalculatedSinceStore) {
+            incrementsKnown = false;
+        } else {
+            // put back the rows and columns of the moved locations, last stored first, as a
+            // row stored later may hold the already changed value of a pair with an earlier one
+            for (int k = storedRowCount - 1; k >= 0; k--) {
+                int i = storedRows[k];
+                int offset = k * locationCount;
+                System.arraycopy(storedRowIncrements, offset, increments, i * locationCount, locationCount);
+                for (int j = 0; j < locationCount; j++) {
+                    increments[j * locationCount + i] = storedRowIncrements[offset + j];
+                }
+            }
+        }
+        clearStoredRows();
+        clearUpdatedRows();
+
+        // Handle locations
+        double[] tmp1 = storedLocations;
+        storedLocations = locations;
+        locations = tmp1;
+
+        // Handle precision
+        precision = storedPrecision;
+    }
+
+    @Override
+    public void acceptState() {
+        // the increments are kept symmetric so there is nothing to do
+    }
+
+    @Override
+    public void getGradient(double[] gradient) {
+        if (gradient.length != locationCount * embeddingDimension) {
+            throw new RuntimeException("Gradient is not the correct dimension");
+        }
+
+        this.gradient = gradient;
+        if (executor == null || locationCount * locationCount < 2 * MIN_PAIRS_PER_THREAD) {
+            computeGradient(0, locationCount);
+        } else {
+            runTasks(WorkerTask.GRADIENT);
+        }
+        this.gradient = null;
+    }
+
+    @Override
+    public void makeDirty() {
+        sumOfIncrementsKnown = false;
+        incrementsKnown = false;
+    }
+
+    private void updateIncrements() {
+        if (!incrementsKnown) {
+            computeSumOfIncrements();
+        } else if (updatedRowCount > 0) {
+            updateSumOfIncrements();
+        }
+        clearUpdatedRows();
+        sumOfIncrementsKnown = true;
+    }
+
+    private void computeSumOfIncrements() {
+        if (executor == null || observationCount < 2 * MIN_PAIRS_PER_THREAD) {
+            sumOfIncrements = 0.0;
+            for (int[] tile : tileStarts) {
+                sumOfIncrements += computeTile(tile[0], tile[1]);
+            }
+        } else {
+            sumOfIncrements = runTasks(WorkerTask.FULL);
+        }
+
+        incrementsKnown = true;
+        recalculatedSinceStore = true;
+    }
+
+    private void updateSumOfIncrements() {
+        final int n = locationCount;
+
+        if (updatedRowIncrements.length < updatedRowCount * n) {
+            updatedRowIncrements = new double[updatedRowCount * n];
+        }
+        if (storedRowIncrements.length < (storedRowCount + updatedRowCount) * n) {
+            double[] tmp = new double[(storedRowCount + updatedRowCount) * n];
+            System.arraycopy(storedRowIncrements, 0, tmp, 0, storedRowCount * n);
+            storedRowIncrements = tmp;
+        }
+
+        // keep the current rows to calculate the change and, the first time
+        // a row changes after a store, to restore from
+        for (int k = 0; k < updatedRowCount; k++) {
+            int i = updatedRows[k];
+            System.arraycopy(increments, i * n, updatedRowIncrements, k * n, n);
+            if (!isStoredRow[i]) {
+                System.arraycopy(increments, i * n, storedRowIncrements, storedRowCount * n, n);
+                isStoredRow[i] = true;
+                storedRows[storedRowCount] = i;
+                storedRowCount++;
+            }
+        }
+
+        double delta;
+        if (executor == null || updatedRowCount * n < 2 * MIN_PAIRS_PER_THREAD) {
+            delta = computeRows(0, updatedRowCount * n);
+        } else {
+            delta = runTasks(WorkerTask.ROWS);
+        }
+
+        // keep the matrix symmetric
+        for (int k = 0; k < updatedRowCount; k++) {
+            int i = updatedRows[k];
+            for (int j = 0; j < n; j++) {
+                increments[j * n + i] = increments[i * n + j];
+            }
+        }
+
+        sumOfIncrements += delta;
+    }
+
+    /**
+     * Calculates the increments for the pairs in a tile of the upper triangle, writing both
+     * halves of the matrix, and returns the sum over the pairs (counting each once).
+     */
+    private double computeTile(int rowStart, int columnStart) {
+        final int n = locationCount;
+        final int rowEnd = Math.min(rowStart + TILE_SIZE, n);
+        final int columnEnd = Math.min(columnStart + TILE_SIZE, n);
+        final double oneOverSd = Math.sqrt(precision);
+        final double scale = 0.5 * precision;
+
+        double sum = 0.0;
+        for (int i = rowStart; i < rowEnd; i++) {
+            // the diagonal increments are zero
+            int j = (rowStart == columnStart ? i + 1 : columnStart);
+            if (rowStart == columnStart) {
+                increments[i * n + i] = computeIncrement(i, i, oneOverSd, scale);
+                sum += 0.5 * increments[i * n + i];
+            }
+            for (; j < columnEnd; j++) {
+                double increment = computeIncrement(i, j, oneOverSd, scale);
+                increments[i * n + j] = increment;
+                increments[j * n + i] = increment;
+                sum += increment;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Recalculates a range of the updated rows, indexed as updatedRow * locationCount + column,
+     * and returns the change in the sum. The rows are only written here; the columns are
+     * written afterwards.
+     */
+    private double computeRows(int start, int end) {
+        final int n = locationCount;
+        final double oneOverSd = Math.sqrt(precision);
+        final double scale = 0.5 * precision;
+
+        double delta = 0.0;
+        for (int index = start; index < end; index++) {
+            int k = index / n;
+            int i = updatedRows[k];
+            int j = index % n;
+
+            double increment = computeIncrement(i, j, oneOverSd, scale);
+            increments[i * n + j] = increment;
+
+            // pairs of moved locations are only counted once
+            if (!isUpdatedRow[j] || j >= i) {
+                delta += increment - updatedRowIncrements[index];
+            }
+        }
+        return delta;
+    }
+
+    private void computeGradient(int rowStart, int rowEnd) {
+        final int d = embeddingDimension;
+        final double oneOverSd = Math.sqrt(precision);
+
+        for (int i = rowStart; i < rowEnd; i++) {
+            for (int k = 0; k < d; k++) {
+                gradient[i * d + k] = 0.0;
+            }
+
+            for (int j = 0; j < locationCount; j++) {
+                if (i != j) {
+                    double distance = calculateDistance(i, j);
+                    if (distance > 0.0) {
+                        double residual = distance - observations[i * locationCount + j];
+                        double derivative = precision * residual;
+                        if (isLeftTruncated) {
+                            double x = distance * oneOverSd;
+                            derivative += oneOverSd * Math.exp(NormalDistribution.logPdf(x, 0.0, 1.0)
+                                    - NormalDistribution.standardCDF(x, true));
+                        }
+                        derivative /= distance;
+                        for (int k = 0; k < d; k++) {
+                            gradient[i * d + k] -= derivative * (locations[i * d + k] - locations[j * d + k]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private double computeIncrement(int i, int j, double oneOverSd, double scale) {
+        double distance = calculateDistance(i, j);
+        double residual = distance - observations[i * locationCount + j];
+        double increment = residual * residual;
+        if (isLeftTruncated) {
+            increment = scale * increment;
+            if (i != j) {
+                increment += computeTruncation(distance, oneOverSd);
+            }
+        }
+        return increment;
+    }
+
+    private double calculateDistance(int i, int j) {
+        final int d = embeddingDimension;
+        double sum = 0.0;
+        for (int k = 0; k < d; k++) {
+            double difference = locations[i * d + k] - locations[j * d + k];
+            sum += difference * difference;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private double computeTruncation(double mean, double oneOverSd) {
+        return NormalDistribution.standardCDF(mean * oneOverSd, true);
+    }
+
+    private void clearUpdatedRows() {
+        for (int k = 0; k < updatedRowCount; k++) {
+            isUpdatedRow[updatedRows[k]] = false;
+        }
+        updatedRowCount = 0;
+    }
+
+    private void clearStoredRows() {
+        for (int k = 0; k < storedRowCount; k++) {
+            isStoredRow[storedRows[k]] = false;
+        }
+        storedRowCount = 0;
+    }
+
+    /**
+     * Runs a task on each thread (the calling thread does the first) and returns the sum of
+     * their results, added in thread order.
+     */
+    private double runTasks(int type) {
+        for (WorkerTask task : tasks) {
+            task.type = type;
+        }
+
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int i = 1; i < tasks.size(); i++) {
+            futures.add(executor.submit(tasks.get(i)));
+        }
+
+        tasks.get(0).call();
+
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        double sum = 0.0;
+        for (WorkerTask task : tasks) {
+            sum += task.result;
+        }
+        return sum;
+    }
+
+    private class WorkerTask implements Callable<Object> {
+
+        static final int FULL = 0;
+        static final int ROWS = 1;
+        static final int GRADIENT = 2;
+
+        WorkerTask(int index) {
+            this.index = index;
+        }
+
+        public Object call() {
+            result = 0.0;
+            switch (type) {
+                case FULL:
+                    // the tiles are dealt out in turn as those near the diagonal are smaller
+                    for (int k = index; k < tileStarts.length; k += threadCount) {
+                        result += computeTile(tileStarts[k][0], tileStarts[k][1]);
+                    }
+                    break;
+                case ROWS:
+                    long work = (long) updatedRowCount * locationCount;
+                    result = computeRows((int) (work * index / threadCount), (int) (work * (index + 1) / threadCount));
+                    break;
+                case GRADIENT:
+                    computeGradient(locationCount * index / threadCount, locationCount * (index + 1) / threadCount);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown task type");
+            }
+            return null;
+        }
+
+        private final int index;
+        private int type;
+        private double result;
+    }
+
+    private final int threadCount;
+    private ExecutorService executor = null;
+    private List<WorkerTask> tasks;
+
+    private int embeddingDimension;
+    private boolean isLeftTruncated = false;
+    private int locationCount;
+    private int observationCount;
+    private double precision;
+    private double storedPrecision;
+
+    private double[] observations;
+    private double[] locations;
+    private double[] storedLocations;
+
+    private boolean incrementsKnown = false;
+    private boolean sumOfIncrementsKnown = false;
+    private boolean recalculatedSinceStore = true;
+    private double[] increments;
+
+    private int[][] tileStarts;
+
+    private int[] updatedRows;
+    private boolean[] isUpdatedRow;
+    private int updatedRowCount;
+    private double[] updatedRowIncrements;
+
+    private int[] storedRows;
+    private boolean[] isStoredRow;
+    private int storedRowCount;
+    private double[] storedRowIncrements;
+
+    private double sumOfIncrements;
+    private double storedSumOfIncrements;
+
+    private double[] gradient;
+}
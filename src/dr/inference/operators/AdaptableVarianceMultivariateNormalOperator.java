@@ -34,8 +34,7 @@ import dr.inference.model.CompoundParameter;
 import dr.inference.model.MatrixParameter;
 import dr.inference.model.Parameter;
 import dr.math.MathUtils;
-import dr.math.matrixAlgebra.CholeskyDecomposition;
-import dr.math.matrixAlgebra.IllegalDimension;
+import dr.math.matrixAlgebra.LowRankCovariance;
 import dr.math.matrixAlgebra.SymmetricMatrix;
 import dr.util.Transform;
 import dr.xml.AbstractXMLObjectParser;
@@ -61,6 +60,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
     public static final String FORM_XTX = "formXtXInverse";
     public static final String COEFFICIENT = "coefficient";
     public static final String SKIP_RANK_CHECK = "skipRankCheck";
+    public static final String RANK = "rank";
 
     public static final String TRANSFORM = "transform";
     public static final String TYPE = "type";
@@ -79,15 +79,29 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
     private double[] oldMeans, newMeans;
 
     final double[][] matrix;
-    private double[][] empirical;
-    private double[][] cholesky;
+
+    // the symmetric and lower triangular matrices are packed by rows, see index(i, j)
+    private double[] empirical;
+    private double[] cholesky;
+
+    // with a rank given the empirical covariance is a diagonal plus low rank estimate and
+    // proposals are the sum of independent draws for its part and that of the initial matrix
+    private final LowRankCovariance lowRankEmpirical;
+    private final double[] matrixStandardDeviations;
+    private boolean useEmpirical = false;
 
     // temporary storage, allocated once.
     private double[] epsilon;
-    private double[][] proposal;
+    private double[] proposal;
 
     public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double scaleFactor, double[][] inMatrix,
                                                        double weight, double beta, int initial, int burnin, int every, CoercionMode mode, boolean isVarianceMatrix, boolean skipRankCheck) {
+        this(parameter, transformations, transformationSizes, scaleFactor, inMatrix, weight, beta, initial, burnin, every, mode, isVarianceMatrix, skipRankCheck, 0);
+    }
+
+    public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double scaleFactor, double[][] inMatrix,
+                                                       double weight, double beta, int initial, int burnin, int every, CoercionMode mode, boolean isVarianceMatrix, boolean skipRankCheck,
+                                                       int rank) {
 
         super(mode);
         this.scaleFactor = scaleFactor;
@@ -103,12 +117,18 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
         this.initial = initial;
         this.burnin = burnin;
         this.every = every;
-        this.empirical = new double[dim][dim];
         this.oldMeans = new double[dim];
         this.newMeans = new double[dim];
 
         this.epsilon = new double[dim];
-        this.proposal = new double[dim][dim];
+
+        if (rank > 0) {
+            this.lowRankEmpirical = new LowRankCovariance(dim, rank);
+        } else {
+            this.lowRankEmpirical = null;
+            this.empirical = new double[(dim * (dim + 1)) / 2];
+            this.proposal = new double[(dim * (dim + 1)) / 2];
+        }
 
         if (!skipRankCheck) {
             SingularValueDecomposition svd = new SingularValueDecomposition(new DenseDoubleMatrix2D(inMatrix));
@@ -131,16 +151,84 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
             System.err.println();
         }*/
 
-        try {
-            cholesky = (new CholeskyDecomposition(matrix)).getL();
-        } catch (IllegalDimension illegalDimension) {
-            throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
+        if (matrix.length != dim || matrix[0].length != dim) {
+            throw new RuntimeException("Variance matrix in AdaptableVarianceMultivariateNormalOperator is not of the parameter's dimension");
+        }
+
+        // a diagonal initial matrix (as the parser makes) needs no more than its standard deviations
+        // when its draws are added to those of the low rank estimate
+        boolean isDiagonal = true;
+        for (int i = 0; i < dim && isDiagonal; i++) {
+            for (int j = 0; j < dim; j++) {
+                if (i != j && matrix[i][j] != 0.0) {
+                    isDiagonal = false;
+                    break;
+                }
+            }
+        }
+
+        if (lowRankEmpirical != null && isDiagonal) {
+            matrixStandardDeviations = new double[dim];
+            for (int i = 0; i < dim; i++) {
+                matrixStandardDeviations[i] = Math.sqrt(Math.max(matrix[i][i], 0.0));
+            }
+        } else {
+            matrixStandardDeviations = null;
+            cholesky = new double[(dim * (dim + 1)) / 2];
+            for (int i = 0; i < dim; i++) {
+                for (int j = 0; j <= i; j++) {
+                    cholesky[index(i, j)] = matrix[i][j];
+                }
+            }
+            decompose(cholesky, cholesky, dim);
         }
     }
 
     public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double scaleFactor,
                                                        MatrixParameter varMatrix, double weight, double beta, int initial, int burnin, int every, CoercionMode mode, boolean isVariance, boolean skipRankCheck) {
-        this(parameter, transformations, transformationSizes, scaleFactor, varMatrix.getParameterAsMatrix(), weight, beta, initial, burnin, every, mode, isVariance, skipRankCheck);
+        this(parameter, transformations, transformationSizes, scaleFactor, varMatrix, weight, beta, initial, burnin, every, mode, isVariance, skipRankCheck, 0);
+    }
+
+    public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double scaleFactor,
+                                                       MatrixParameter varMatrix, double weight, double beta, int initial, int burnin, int every, CoercionMode mode, boolean isVariance, boolean skipRankCheck,
+                                                       int rank) {
+        this(parameter, transformations, transformationSizes, scaleFactor, varMatrix.getParameterAsMatrix(), weight, beta, initial, burnin, every, mode, isVariance, skipRankCheck, rank);
+    }
+
+    /**
+     * The position of element (i, j), j <= i, of a symmetric or lower triangular matrix packed by rows.
+     */
+    private static int index(int i, int j) {
+        return ((i * (i + 1)) >> 1) + j;
+    }
+
+    /**
+     * Cholesky decomposition, A = LL', of a packed symmetric matrix into a packed lower triangular
+     * one, in the same order of operations as CholeskyDecomposition. A and L may be the same array.
+     */
+    private static void decompose(double[] A, double[] L, int n) {
+        for (int j = 0; j < n; j++) {
+            final int rowj = index(j, 0);
+            double d = 0.0;
+            for (int k = 0; k < j; k++) {
+                final int rowk = index(k, 0);
+                double s = 0.0;
+                for (int i = 0; i < k; i++) {
+                    s += L[rowk + i] * L[rowj + i];
+                }
+                L[rowj + k] = s = (A[rowj + k] - s) / L[rowk + k];
+                d = d + s * s;
+            }
+            d = A[rowj + j] - d;
+            L[rowj + j] = Math.sqrt(Math.max(d, 0.0));
+        }
+    }
+
+    private double getEmpirical(int i, int j) {
+        if (lowRankEmpirical != null) {
+            return lowRankEmpirical.getCovariance(i, j);
+        }
+        return (j <= i ? empirical[index(i, j)] : empirical[index(j, i)]);
     }
 
     private double[][] formXtXInverse(double[][] X) {
@@ -252,12 +340,15 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
                         newMeans[i] = ((oldMeans[i] * (updates - 1)) + transformedX[i]) / updates;
                     }
 
-                    if (updates > 1) {
-                        //here we can simply use the double[][] matrix
+                    if (lowRankEmpirical != null) {
+                        lowRankEmpirical.addSample(transformedX);
+                    } else if (updates > 1) {
+                        //only the lower triangle of the packed matrix, element (i, j) being that above at (j, i)
+                        int k = 0;
                         for (int i = 0; i < dim; i++) {
-                            for (int j = i; j < dim; j++) {
-                                empirical[i][j] = calculateCovariance(updates, empirical[i][j], transformedX, i, j);
-                                empirical[j][i] = empirical[i][j];
+                            for (int j = 0; j <= i; j++) {
+                                empirical[k] = calculateCovariance(updates, empirical[k], transformedX, j, i);
+                                k++;
                             }
                         }
                     }
@@ -274,7 +365,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
                         System.err.println("Empirical covariance matrix:");
                         for (int i = 0; i < dim; i++) {
                             for (int j = 0; j < dim; j++) {
-                                System.err.print(empirical[i][j] + " ");
+                                System.err.print(getEmpirical(i, j) + " ");
                             }
                             System.err.println();
                         }
@@ -299,11 +390,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
                     newMeans[i] = 0.0;
                 }
 
-                for (int i = 0; i < dim; i++) {
-                    for (int j = 0; j < dim; j++) {
-                        empirical[i][j] = 0.0;
-                    }
-                }
+                resetEmpirical();
 
             }
 
@@ -322,12 +409,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
                 newMeans[i] = 0.0;
             }
 
-            for (int i = 0; i < dim; i++) {
-                for (int j = 0; j < dim; j++) {
-                    empirical[i][j] = 0.0;
-                    proposal[i][j] = matrix[i][j];
-                }
-            }
+            resetEmpirical();
 
         }
 
@@ -345,19 +427,20 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
                 // TODO: For speed, it may not be necessary to update decomposition each and every iteration
                 //double start = System.nanoTime();
 
-                // double[][] proposal = new double[dim][dim];
-                for (int i = 0; i < dim; i++) {
-                    for (int j = i; j < dim; j++) { // symmetric matrix
-                        proposal[j][i] = proposal[i][j] = (1 - beta) * // constantFactor *  /* auto-tuning using scaleFactor */
-                                empirical[i][j] + beta * matrix[i][j];
+                useEmpirical = true;
+
+                if (lowRankEmpirical == null) {
+                    int k = 0;
+                    for (int i = 0; i < dim; i++) {
+                        for (int j = 0; j <= i; j++) { // symmetric matrix
+                            proposal[k] = (1 - beta) * // constantFactor *  /* auto-tuning using scaleFactor */
+                                    empirical[k] + beta * matrix[i][j];
+                            k++;
+                        }
                     }
-                }
 
-                // not necessary for first test phase, but will need to be performed when covariance matrix is being updated
-                try {
-                    cholesky = (new CholeskyDecomposition(proposal)).getL();
-                } catch (IllegalDimension illegalDimension) {
-                    throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
+                    // not necessary for first test phase, but will need to be performed when covariance matrix is being updated
+                    decompose(proposal, cholesky, dim);
                 }
 
                 //double end = System.nanoTime();
@@ -390,11 +473,19 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
             logJacobian += transformations[i].getLogJacobian(x[i]) - transformations[i].getLogJacobian(parameter.getParameterValue(i));
         }*/
 
-        for (int i = 0; i < dim; i++) {
-            for (int j = i; j < dim; j++) {
-                transformedX[i] += cholesky[j][i] * epsilon[j];
-                // caution: decomposition returns lower triangular
+        if (lowRankEmpirical == null) {
+            for (int i = 0; i < dim; i++) {
+                for (int j = i; j < dim; j++) {
+                    transformedX[i] += cholesky[index(j, i)] * epsilon[j];
+                    // caution: decomposition returns lower triangular
+                }
             }
+        } else if (!useEmpirical) {
+            addMatrixDeviate(transformedX, 1.0);
+        } else {
+            // (1 - beta) * empirical + beta * matrix as the sum of independent draws
+            addMatrixDeviate(transformedX, Math.sqrt(beta));
+            lowRankEmpirical.addDeviate(transformedX, scaleFactor * Math.sqrt(1 - beta));
         }
 
         if (DEBUG) {
@@ -477,6 +568,33 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
 
     }
 
+    /**
+     * Adds epsilon, scaled, times the square root of the initial matrix to x.
+     */
+    private void addMatrixDeviate(double[] x, double scale) {
+        if (matrixStandardDeviations != null) {
+            for (int i = 0; i < dim; i++) {
+                x[i] += scale * matrixStandardDeviations[i] * epsilon[i];
+            }
+        } else {
+            for (int i = 0; i < dim; i++) {
+                for (int j = i; j < dim; j++) {
+                    x[i] += scale * cholesky[index(j, i)] * epsilon[j];
+                }
+            }
+        }
+    }
+
+    private void resetEmpirical() {
+        if (lowRankEmpirical != null) {
+            lowRankEmpirical.reset();
+        } else {
+            for (int k = 0; k < empirical.length; k++) {
+                empirical[k] = 0.0;
+            }
+        }
+    }
+
     public String toString() {
         return AVMVN_OPERATOR + "(" + parameter.getParameterName() + ")";
     }
@@ -524,21 +642,33 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
                 }
             }
             //set covariance matrix based on provided samples, but take into account transformation(s)
-            for (int i = 0; i < dim; i++) {
-                for (int j = i; j < dim; j++) {
-                    for (int k = 0; k < lowestNumberOfSamples; k++) {
-                        empirical[i][j] += transformations[i].transform(parameterSamples.get(i).get(k))*transformations[i].transform(parameterSamples.get(j).get(k));
+            if (lowRankEmpirical != null) {
+                double[] sample = new double[dim];
+                lowRankEmpirical.reset();
+                for (int k = 0; k < lowestNumberOfSamples; k++) {
+                    for (int i = 0; i < dim; i++) {
+                        sample[i] = transformations[i].transform(parameterSamples.get(i).get(k));
+                    }
+                    lowRankEmpirical.addSample(sample);
+                }
+            } else {
+                for (int i = 0; i < dim; i++) {
+                    for (int j = i; j < dim; j++) {
+                        double covariance = empirical[index(j, i)];
+                        for (int k = 0; k < lowestNumberOfSamples; k++) {
+                            covariance += transformations[i].transform(parameterSamples.get(i).get(k))*transformations[i].transform(parameterSamples.get(j).get(k));
+                        }
+                        covariance /= (double)lowestNumberOfSamples;
+                        covariance -= newMeans[i]*newMeans[j];
+                        empirical[index(j, i)] = covariance;
                     }
-                    empirical[i][j] /= (double)lowestNumberOfSamples;
-                    empirical[i][j] -= newMeans[i]*newMeans[j];
-                    empirical[j][i] = empirical[i][j];
                 }
             }
             if (DEBUG) {
                 System.err.println();
                 for (int i = 0; i < dim; i++) {
                     for (int j = 0; j < dim; j++) {
-                        System.err.print(empirical[i][j] + "  ");
+                        System.err.print(getEmpirical(i, j) + "  ");
                     }
                     System.err.println();
                 }
@@ -557,7 +687,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
             output += "\nVariance-covariance matrix:\n";
             for (int i = 0; i < dim; i++) {
                 for (int j = 0; j < dim; j++) {
-                    output += empirical[i][j] + " ";
+                    output += getEmpirical(i, j) + " ";
                 }
                 output += "\n";
             }
@@ -840,8 +970,17 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
 
             boolean skipRankCheck = xo.getAttribute(SKIP_RANK_CHECK, false);
 
+            int rank = xo.getAttribute(RANK, 0);
+            if (rank < 0) {
+                throw new XMLParseException("rank must be positive (or zero for a full rank covariance matrix)");
+            }
+            if (2 * rank >= dim) {
+                // a full rank covariance matrix is no more expensive
+                rank = 0;
+            }
+
             return new AdaptableVarianceMultivariateNormalOperator(parameter, transformations, transformationSizes, scaleFactor, varMatrix, weight, beta, initial, burnin, every,
-                    mode, !formXtXInverse, skipRankCheck);
+                    mode, !formXtXInverse, skipRankCheck, rank);
         }
 
         //************************************************************************
@@ -871,6 +1010,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractCoercab
                 AttributeRule.newBooleanRule(AUTO_OPTIMIZE, true),
                 AttributeRule.newBooleanRule(FORM_XTX, true),
                 AttributeRule.newBooleanRule(SKIP_RANK_CHECK, true),
+                AttributeRule.newIntegerRule(RANK, true),
                 new ElementRule(Parameter.class, 0, Integer.MAX_VALUE),
                 new ElementRule(Transform.ParsedTransform.class, 0, Integer.MAX_VALUE)
         };
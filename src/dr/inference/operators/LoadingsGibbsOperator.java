@@ -368,6 +368,8 @@ public class LoadingsGibbsOperator extends SimpleMCMCOperator implements GibbsOp
             }
             
             try {
+                // each row draws from its own stream so the result doesn't depend on the threads
+                drawStreamSeed = MathUtils.nextLong();
                 pool.invokeAll(drawCallers);
                 LFM.getLoadings().fireParameterChangedEvent();
             } catch (InterruptedException e) {
@@ -470,13 +472,19 @@ public class LoadingsGibbsOperator extends SimpleMCMCOperator implements GibbsOp
             if (DEBUG_PARALLEL_EVALUATION) {
                 System.err.print("Invoking thread #" + i + " for "  + ": ");
             }
-            drawI(i, precision, midMean, mean);
+            MathUtils.RandomStream previous = MathUtils.bindRandomStream(MathUtils.createRandomStream(drawStreamSeed, i));
+            try {
+                drawI(i, precision, midMean, mean);
+            } finally {
+                MathUtils.bindRandomStream(previous);
+            }
             return null;
         }
 
     }
 
     private final List<Callable<Double>> drawCallers = new ArrayList<Callable<Double>>();
+    private long drawStreamSeed;
 
     private final ExecutorService pool;
 }
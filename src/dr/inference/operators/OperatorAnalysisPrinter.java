@@ -50,6 +50,18 @@ public class OperatorAnalysisPrinter {
      * @param out the print stream to write operator analysis to
      */
     public static void showOperatorAnalysis(PrintStream out, OperatorSchedule schedule, boolean useCoercion) {
+        showOperatorAnalysis(out, schedule, useCoercion, null);
+    }
+
+    /**
+     * Writes ano operator analysis to the provided print stream
+     *
+     * @param out the print stream to write operator analysis to
+     * @param firstStageRejectCounts the number of proposals by each operator rejected by the first stage of
+     *                               delayed acceptance (if not null the acceptance rates of each stage are shown)
+     */
+    public static void showOperatorAnalysis(PrintStream out, OperatorSchedule schedule, boolean useCoercion,
+                                            long[] firstStageRejectCounts) {
         out.println();
         out.println("Operator analysis");
         out.println(formatter.formatToFieldWidth("Operator", 50) +
@@ -58,6 +70,8 @@ public class OperatorAnalysisPrinter {
                 formatter.formatToFieldWidth("Time", 9) +
                 formatter.formatToFieldWidth("Time/Op", 9) +
                 formatter.formatToFieldWidth("Pr(accept)", 11) +
+                (firstStageRejectCounts != null ?
+                        formatter.formatToFieldWidth("Pr(stage1)", 11) + formatter.formatToFieldWidth("Pr(stage2)", 11) : "") +
                 (useCoercion ? "" : " Performance suggestion"));
 
         for (int i = 0; i < schedule.getOperatorCount(); i++) {
@@ -72,6 +86,7 @@ public class OperatorAnalysisPrinter {
                                     + formattedTimeString(op)
                                     + formattedTimePerOpString(op)
                                     + formattedProbString(jointOp)
+                                    + formattedStageProbString(jointOp, firstStageRejectCounts, i)
                                     + (useCoercion ? "" : formattedDiagnostics(jointOp, MCMCOperator.Utils.getAcceptanceProbability(jointOp)))
                     );
                 }
@@ -82,6 +97,7 @@ public class OperatorAnalysisPrinter {
                                 + formattedTimeString(op)
                                 + formattedTimePerOpString(op)
                                 + formattedProbString(op)
+                                + formattedStageProbString(op, firstStageRejectCounts, i)
                                 + (useCoercion ? "" : formattedDiagnostics(op, MCMCOperator.Utils.getAcceptanceProbability(op)))
                 );
             }
@@ -122,6 +138,19 @@ public class OperatorAnalysisPrinter {
         return formatter.formatToFieldWidth(formatter.formatDecimal(acceptanceProb, 4), 11) + " ";
     }
 
+    private static String formattedStageProbString(MCMCOperator op, long[] firstStageRejectCounts, int index) {
+        if (firstStageRejectCounts == null) {
+            return "";
+        }
+        // proposals that pass the first stage are the ones for which the full likelihood was evaluated
+        final long count = op.getCount();
+        final long passed = count - firstStageRejectCounts[index];
+        final double firstStageProb = count > 0 ? (double) passed / count : 0.0;
+        final double secondStageProb = passed > 0 ? (double) op.getAcceptCount() / passed : 0.0;
+        return formatter.formatToFieldWidth(formatter.formatDecimal(firstStageProb, 4), 11) + " " +
+                formatter.formatToFieldWidth(formatter.formatDecimal(secondStageProb, 4), 11) + " ";
+    }
+
     private static String formattedDiagnostics(MCMCOperator op, double acceptanceProb) {
 
         String message = "good";
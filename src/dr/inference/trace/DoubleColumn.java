@@ -0,0 +1,114 @@
+/*
+ * DoubleColumn.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+import java.nio.DoubleBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * The values of a numerical trace stored as primitive doubles, either in a growable array on
+ * the heap or in a (read only) buffer such as a memory mapped region of a file. It is a
+ * List<Double> so it can stand in for the boxed list that Trace used to keep.
+ */
+public class DoubleColumn extends AbstractList<Double> implements RandomAccess {
+
+    private static final int INITIAL_CAPACITY = 1000;
+
+    /**
+     * Creates an empty column on the heap
+     */
+    public DoubleColumn() {
+        this.values = new double[INITIAL_CAPACITY];
+        this.buffer = null;
+    }
+
+    /**
+     * Creates a read only column over the given buffer (from its position to its limit)
+     */
+    public DoubleColumn(DoubleBuffer buffer) {
+        this.values = null;
+        this.buffer = buffer.slice();
+        this.size = this.buffer.limit();
+    }
+
+    public double getDouble(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return values != null ? values[index] : buffer.get(index);
+    }
+
+    public void addDouble(double value) {
+        if (values == null) {
+            throw new UnsupportedOperationException("This column is read only");
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, values.length + (values.length >> 1));
+        }
+        values[size] = value;
+        size++;
+        modCount++;
+    }
+
+    /**
+     * Copies the values to an array
+     */
+    public void getDoubles(int fromIndex, double[] destination, int offset, int length) {
+        if (values != null) {
+            System.arraycopy(values, fromIndex, destination, offset, length);
+        } else {
+            DoubleBuffer view = buffer.duplicate();
+            view.position(fromIndex);
+            view.get(destination, offset, length);
+        }
+    }
+
+    public boolean isReadOnly() {
+        return values == null;
+    }
+
+    @Override
+    public Double get(int index) {
+        return getDouble(index);
+    }
+
+    @Override
+    public boolean add(Double value) {
+        addDouble(value);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private double[] values;
+    private final DoubleBuffer buffer;
+    private int size = 0;
+}
@@ -24,11 +24,14 @@
  */
 package dr.inference.trace;
 
+import dr.util.BoundedOrderedExecutor;
+
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.StringTokenizer;
-import java.util.TreeMap;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * A class that stores a set of traces from a single chain
@@ -40,6 +43,24 @@ import java.util.TreeMap;
 
 public class LogFileTraces extends AbstractTraceList {
 
+    /**
+     * System property giving the number of threads used to parse log files (default is the number of processors)
+     */
+    public static final String THREADS = "trace.threads";
+
+    /**
+     * System property which, if true, keeps a binary copy of each log file that has been read
+     * (in a sidecar file with the BINARY_CACHE_SUFFIX) and memory maps this instead of parsing
+     * the log again. The copy is rewritten if the log file has changed.
+     */
+    public static final String BINARY_CACHE = "trace.binary.cache";
+    public static final String BINARY_CACHE_SUFFIX = ".bin";
+
+    private static final int ROWS_PER_CHUNK = 2000;
+
+    private static final int CACHE_MAGIC = 0x42545243; // "BTRC"
+    private static final int CACHE_VERSION = 1;
+
     public LogFileTraces(String name, File file) {
         this.name = name;
         this.file = file;
@@ -137,7 +158,7 @@ public class LogFileTraces extends AbstractTraceList {
     }
 
     public double getStateValue(int trace, int index) {
-        return (Double) getTrace(trace).getValue(index + (int) (getBurnIn() / stepSize));
+        return getTrace(trace).getDoubleValue(index + (int) (getBurnIn() / stepSize));
     }
 
     /**
@@ -150,7 +171,7 @@ public class LogFileTraces extends AbstractTraceList {
     public void getStateValues(int nState, double[] destination, int offset) {
         final int index1 = nState + (int) (getBurnIn() / stepSize);
         for (int k = 0; k < destination.length; ++k) {
-            destination[k] = (Double) getTrace(k + offset).getValue(index1);
+            destination[k] = getTrace(k + offset).getDoubleValue(index1);
         }
     }
 
@@ -202,9 +223,18 @@ public class LogFileTraces extends AbstractTraceList {
      * @throws IOException
      */
     public void loadTraces(File file) throws TraceException, IOException {
+        final boolean useCache = Boolean.getBoolean(BINARY_CACHE);
+        if (useCache && readBinaryCache(file)) {
+            return;
+        }
+
         final Reader reader = new FileReader(file);
         loadTraces(reader);
         reader.close();
+
+        if (useCache) {
+            writeBinaryCache(file);
+        }
     }
 
     /**
@@ -277,40 +307,30 @@ public class LogFileTraces extends AbstractTraceList {
 
         long num_samples = 0;
 
+        // the first row is read on its own as its values decide the types of the traces
         String line = reader.readLine();
         tokens = reader.getStringTokenizer(line);
         String lastLine = line;
-        while (tokens != null && tokens.hasMoreTokens()) {
+        if (tokens != null && tokens.hasMoreTokens()) {
 
             String stateString = tokens.nextToken();
-            long state = 0;
+            long state;
 
             try {
-                try {
-                    // Changed this to parseDouble because LAMARC uses scientific notation for the state number
-                    state = (long) Double.parseDouble(stateString);
-                } catch (NumberFormatException nfe) {
-                    throw new TraceException("Unable to parse state number in column 1 (Line " +
-                            reader.getLineNumber() + ")");
-                }
-
-                if (num_samples < 1) {
-                    // MrBayes puts 1 as the first state, BEAST puts 0
-                    // In order to get the same gap between subsequent samples,
-                    // we force this to 0.
-                    if (state == 1) state = 0;
-                }
-                num_samples += 1;
-
-                if (!addState(state, num_samples)) {
-                    throw new TraceException("State " + state + " is not consistent with previous spacing (Line " +
-                            reader.getLineNumber() + ")");
-                }
-
+                // Changed this to parseDouble because LAMARC uses scientific notation for the state number
+                state = (long) Double.parseDouble(stateString);
             } catch (NumberFormatException nfe) {
-                throw new TraceException("State " + state + ":Expected real value in column " + reader.getLineNumber());
+                throw new TraceException("Unable to parse state number in column 1 (Line " +
+                        reader.getLineNumber() + ")");
             }
 
+            // MrBayes puts 1 as the first state, BEAST puts 0
+            // In order to get the same gap between subsequent samples,
+            // we force this to 0.
+            if (state == 1) state = 0;
+            num_samples += 1;
+            addState(state, num_samples);
+
             for (int i = 0; i < traceCount; i++) {
                 if (tokens.hasMoreTokens()) {
                     String value = tokens.nextToken();
@@ -318,7 +338,6 @@ public class LogFileTraces extends AbstractTraceList {
                     if (state == 0) assignTraceTypeAccordingValue(i, value);
 
                     try {
-//                        values[i] = Double.parseDouble(tokens.nextToken());
                         addParsedValue(i, value);
                     } catch (NumberFormatException nfe) {
                         throw new TraceException("State " + state + ": Expected correct data type " +
@@ -330,11 +349,10 @@ public class LogFileTraces extends AbstractTraceList {
                     throw new TraceException("State " + state + ": missing values at line " + reader.getLineNumber());
                 }
             }
-            // used to keep the last valid line
-            lastLine = line;
-//            tokens = reader.tokenizeLine();
-            line = reader.readLine();
-            tokens = reader.getStringTokenizer(line);
+
+            // the rest are parsed in chunks (in parallel if there is more than one thread)
+            // and added to the traces in order
+            lastLine = readRows(reader, num_samples, lastLine);
         }
 
         if (num_samples == 0)
@@ -350,6 +368,338 @@ public class LogFileTraces extends AbstractTraceList {
         validateTraceType(lastLine);
         validateUniqueValues();
     }
+
+    /**
+     * Reads the remaining rows of the log in chunks which are parsed by a pool of threads.
+     *
+     * @return the last line read
+     */
+    private String readRows(final TrimLineReader reader, long num_samples, String lastLine) throws TraceException, IOException {
+        final int traceCount = getTraceCount();
+        final boolean[] isNumber = new boolean[traceCount];
+        for (int i = 0; i < traceCount; i++) {
+            isNumber[i] = getTrace(i).getTraceType().isNumber();
+        }
+
+        int threadCount = Integer.getInteger(THREADS, Runtime.getRuntime().availableProcessors());
+        BoundedOrderedExecutor<ParsedRows> executor = new BoundedOrderedExecutor<ParsedRows>("log-parser", threadCount);
+
+        try {
+            boolean reading = true;
+            while (reading || !executor.isEmpty()) {
+                while (reading && !executor.isFull()) {
+                    final String[] lines = new String[ROWS_PER_CHUNK];
+                    final int firstLineNumber = reader.getLineNumber() + 1;
+                    int count = 0;
+                    while (count < ROWS_PER_CHUNK) {
+                        String line = reader.readLine();
+                        if (line == null || line.length() == 0) {
+                            reading = false;
+                            break;
+                        }
+                        lines[count] = line;
+                        count++;
+                    }
+                    if (count == 0) {
+                        break;
+                    }
+                    final int rowCount = count;
+                    executor.submit(new Callable<ParsedRows>() {
+                        public ParsedRows call() throws TraceException {
+                            return parseRows(lines, rowCount, firstLineNumber, isNumber);
+                        }
+                    });
+                }
+
+                if (!executor.isEmpty()) {
+                    ParsedRows rows = executor.take(TraceException.class);
+
+                    for (int j = 0; j < rows.count; j++) {
+                        num_samples += 1;
+                        if (!addState(rows.states[j], num_samples)) {
+                            throw new TraceException("State " + rows.states[j] + " is not consistent with previous spacing (Line " +
+                                    (rows.firstLineNumber + j) + ")");
+                        }
+                    }
+                    for (int i = 0; i < traceCount; i++) {
+                        Trace trace = getTrace(i);
+                        if (isNumber[i]) {
+                            DoubleColumn column = (DoubleColumn) trace.values;
+                            double[] values = rows.numbers[i];
+                            for (int j = 0; j < rows.count; j++) {
+                                column.addDouble(values[j]);
+                            }
+                        } else {
+                            String[] values = rows.strings[i];
+                            for (int j = 0; j < rows.count; j++) {
+                                trace.add(values[j]);
+                            }
+                        }
+                    }
+                    lastLine = rows.lastLine;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return lastLine;
+    }
+
+    private static ParsedRows parseRows(String[] lines, int count, int firstLineNumber, boolean[] isNumber) throws TraceException {
+        final int traceCount = isNumber.length;
+        ParsedRows rows = new ParsedRows(count, firstLineNumber, isNumber);
+
+        for (int j = 0; j < count; j++) {
+            final int lineNumber = firstLineNumber + j;
+            StringTokenizer tokens = new StringTokenizer(lines[j], "\t");
+
+            long state;
+            try {
+                state = (long) Double.parseDouble(tokens.nextToken());
+            } catch (NumberFormatException nfe) {
+                throw new TraceException("Unable to parse state number in column 1 (Line " + lineNumber + ")");
+            }
+            rows.states[j] = state;
+
+            for (int i = 0; i < traceCount; i++) {
+                if (!tokens.hasMoreTokens()) {
+                    throw new TraceException("State " + state + ": missing values at line " + lineNumber);
+                }
+                String value = tokens.nextToken();
+                if (isNumber[i]) {
+                    try {
+                        rows.numbers[i][j] = Double.parseDouble(value);
+                    } catch (NumberFormatException nfe) {
+                        throw new TraceException("State " + state + ": Expected correct data type " +
+                                "(Double, Integer or String) in column " + (i + 1) +
+                                " (Line " + lineNumber + ")");
+                    }
+                } else {
+                    rows.strings[i][j] = value;
+                }
+            }
+        }
+        rows.lastLine = lines[count - 1];
+        return rows;
+    }
+
+    /**
+     * A chunk of rows parsed into columns
+     */
+    private static class ParsedRows {
+        ParsedRows(int count, int firstLineNumber, boolean[] isNumber) {
+            this.count = count;
+            this.firstLineNumber = firstLineNumber;
+            states = new long[count];
+            numbers = new double[isNumber.length][];
+            strings = new String[isNumber.length][];
+            for (int i = 0; i < isNumber.length; i++) {
+                if (isNumber[i]) {
+                    numbers[i] = new double[count];
+                } else {
+                    strings[i] = new String[count];
+                }
+            }
+        }
+
+        final int count;
+        final int firstLineNumber;
+        final long[] states;
+        final double[][] numbers;
+        final String[][] strings;
+        String lastLine;
+    }
+
+    /**
+     * Writes the traces as columns of doubles (or of indices into a table of values for
+     * categorical traces) so they can be memory mapped by readBinaryCache.
+     */
+    private void writeBinaryCache(File file) {
+        final File cacheFile = new File(file.getPath() + BINARY_CACHE_SUFFIX);
+        final File tempFile = new File(file.getPath() + BINARY_CACHE_SUFFIX + ".tmp");
+        final int valueCount = getTraceCount() > 0 ? getTrace(0).getValueCount() : 0;
+
+        try {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeLong(file.length());
+            header.writeLong(file.lastModified());
+            header.writeLong(firstState);
+            header.writeLong(secondState);
+            header.writeLong(lastState);
+            header.writeLong(stepSize);
+            header.writeInt(getTraceCount());
+            header.writeInt(valueCount);
+
+            List<Map<String, Integer>> categories = new ArrayList<Map<String, Integer>>();
+            for (Trace trace : traces) {
+                header.writeUTF(trace.getName());
+                header.writeUTF(trace.getTraceType().name());
+                Map<String, Integer> indices = null;
+                if (!trace.getTraceType().isNumber()) {
+                    indices = new LinkedHashMap<String, Integer>();
+                    for (int j = 0; j < valueCount; j++) {
+                        String value = trace.getValue(j).toString();
+                        if (!indices.containsKey(value)) {
+                            indices.put(value, indices.size());
+                        }
+                    }
+                    header.writeInt(indices.size());
+                    for (String value : indices.keySet()) {
+                        header.writeUTF(value);
+                    }
+                }
+                categories.add(indices);
+            }
+            header.close();
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(CACHE_VERSION);
+                out.writeInt(headerBytes.size());
+                headerBytes.writeTo(out);
+                pad(out, 12 + headerBytes.size());
+
+                for (int i = 0; i < traces.size(); i++) {
+                    Trace trace = traces.get(i);
+                    Map<String, Integer> indices = categories.get(i);
+                    if (indices == null) {
+                        for (int j = 0; j < valueCount; j++) {
+                            out.writeDouble(trace.getDoubleValue(j));
+                        }
+                    } else {
+                        for (int j = 0; j < valueCount; j++) {
+                            out.writeInt(indices.get(trace.getValue(j).toString()));
+                        }
+                        pad(out, 4L * valueCount);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+
+            if (!tempFile.renameTo(cacheFile)) {
+                cacheFile.delete();
+                if (!tempFile.renameTo(cacheFile)) {
+                    throw new IOException("unable to rename " + tempFile);
+                }
+            }
+        } catch (IOException ioe) {
+            tempFile.delete();
+            System.err.println("Unable to write binary copy of log file, " + cacheFile + ": " + ioe.getMessage());
+        }
+    }
+
+    private static void pad(DataOutputStream out, long length) throws IOException {
+        for (long i = length; i % 8 != 0; i++) {
+            out.writeByte(0);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Memory maps the binary copy of the log file if it exists and is up to date.
+     *
+     * @return true if the traces were loaded
+     */
+    private boolean readBinaryCache(File file) {
+        final File cacheFile = new File(file.getPath() + BINARY_CACHE_SUFFIX);
+        if (!cacheFile.exists()) {
+            return false;
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+            try {
+                if (raf.readInt() != CACHE_MAGIC || raf.readInt() != CACHE_VERSION) {
+                    return false;
+                }
+                byte[] headerBytes = new byte[raf.readInt()];
+                raf.readFully(headerBytes);
+                DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+
+                if (header.readLong() != file.length() || header.readLong() != file.lastModified()) {
+                    // the log file has changed since the copy was made
+                    return false;
+                }
+                long first = header.readLong();
+                long second = header.readLong();
+                long last = header.readLong();
+                long step = header.readLong();
+                int traceCount = header.readInt();
+                int valueCount = header.readInt();
+
+                FileChannel channel = raf.getChannel();
+                long offset = align(12 + headerBytes.length);
+
+                List<Trace> mapped = new ArrayList<Trace>();
+                for (int i = 0; i < traceCount; i++) {
+                    String traceName = header.readUTF();
+                    TraceType type = TraceType.valueOf(header.readUTF());
+                    if (type.isNumber()) {
+                        DoubleBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, 8L * valueCount).asDoubleBuffer();
+                        mapped.add(new Trace<Double>(traceName, type, new DoubleColumn(buffer)));
+                        offset += 8L * valueCount;
+                    } else {
+                        String[] table = new String[header.readInt()];
+                        for (int j = 0; j < table.length; j++) {
+                            table[j] = header.readUTF();
+                        }
+                        IntBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * valueCount).asIntBuffer();
+                        mapped.add(new Trace<String>(traceName, type, new CategoricalColumn(buffer, table)));
+                        offset += align(4L * valueCount);
+                    }
+                }
+                if (offset != channel.size()) {
+                    return false;
+                }
+
+                traces.clear();
+                traces.addAll(mapped);
+                for (Trace trace : mapped) {
+                    tracesType.put(trace.getName(), trace.getTraceType());
+                }
+                firstState = first;
+                secondState = second;
+                lastState = last;
+                stepSize = step;
+                burnIn = lastState / 10;
+                return true;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+    }
+
+    /**
+     * The values of a categorical trace as indices into a table of the distinct values
+     */
+    private static class CategoricalColumn extends AbstractList<String> implements RandomAccess {
+        CategoricalColumn(IntBuffer indices, String[] table) {
+            this.indices = indices;
+            this.table = table;
+        }
+
+        public String get(int index) {
+            return table[indices.get(index)];
+        }
+
+        public int size() {
+            return indices.limit();
+        }
+
+        private final IntBuffer indices;
+        private final String[] table;
+    }
+
     public static final int MIN_SAMPLE = 5; // used in StatisticsModel
 
     private final int MAX_UNIQUE_VALUE = 200;
@@ -477,7 +827,7 @@ public class LogFileTraces extends AbstractTraceList {
 
     private Trace createTrace(String name, TraceType traceType) {
         if (traceType.isNumber()) {
-            return new Trace<Double>(name, traceType);
+            return new Trace<Double>(name, traceType, new DoubleColumn());
         } else {
             return new Trace<String>(name, TraceType.CATEGORICAL);
         }
@@ -0,0 +1,434 @@
+/*
+ * ReplicateLogCombiner.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Combines the log (or tree) files of independent replicate chains of the same model into a
+ * single file while the chains are still running. Each call to update reads whatever complete
+ * lines the chains have written since the last call, drops the states before the burnin and
+ * appends the rest, with the states renumbered, to the combined file. For log files the means are
+ * accumulated as the samples are read and an evenly spaced subsample of each chain, at most
+ * MAX_RETAINED_SAMPLES long, is kept so the convergence of the chains can be checked (see getRHat
+ * and getESS) as they go without holding the whole run in memory.
+ */
+public class ReplicateLogCombiner {
+
+    /**
+     * The largest number of samples per chain used by the diagnostics reported while the chains
+     * are running (the final ones use all of those retained).
+     */
+    private static final int MAX_PROGRESS_SAMPLES = 1000;
+
+    /**
+     * The largest number of samples kept for each chain. When it is reached every other sample is
+     * dropped and only every other one of those that follow is kept.
+     */
+    private static final int MAX_RETAINED_SAMPLES = 10000;
+
+    /**
+     * @param chainFiles   the files written by each chain
+     * @param combinedFile the file to write
+     * @param isTreeFile   whether these are NEXUS tree files rather than tab delimited logs
+     * @param burnin       the number of states to discard from the start of each chain
+     * @param logEvery     the number of states between samples
+     */
+    public ReplicateLogCombiner(File[] chainFiles, File combinedFile, boolean isTreeFile,
+                                long burnin, long logEvery) throws IOException {
+        this.isTreeFile = isTreeFile;
+        this.burnin = burnin;
+        this.logEvery = logEvery;
+
+        chains = new ChainFile[chainFiles.length];
+        for (int i = 0; i < chains.length; i++) {
+            chains[i] = new ChainFile(chainFiles[i]);
+        }
+
+        writer = new PrintWriter(new BufferedWriter(new FileWriter(combinedFile)));
+    }
+
+    public int getChainCount() {
+        return chains.length;
+    }
+
+    /**
+     * @return the number of samples written to the combined file
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the number of samples after the burnin read from the given chain
+     */
+    public int getSampleCount(int chain) {
+        return chains[chain].sampleCount;
+    }
+
+    /**
+     * @return the number of samples of the given chain kept for the diagnostics
+     */
+    public int getRetainedSampleCount(int chain) {
+        return chains[chain].values.size();
+    }
+
+    /**
+     * Reads any lines the chains have added and appends those after the burnin to the combined file.
+     */
+    public void update() throws IOException {
+        for (int i = 0; i < chains.length; i++) {
+            if (i > 0 && !headerWritten) {
+                // the header is taken from the first chain so nothing else can be written before it
+                break;
+            }
+            for (String line : chains[i].readLines()) {
+                if (isTreeFile) {
+                    processTreeLine(i, line);
+                } else {
+                    processLogLine(i, line);
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads anything the chains have added since the last update and closes the combined file.
+     */
+    public void finish() throws IOException {
+        update();
+        if (isTreeFile && headerWritten) {
+            writer.println("End;");
+        }
+        writer.close();
+    }
+
+    public int getColumnCount() {
+        return columnNames.size();
+    }
+
+    public String getColumnName(int column) {
+        return columnNames.get(column);
+    }
+
+    /**
+     * @return whether the column takes more than one value after the burnin
+     */
+    public boolean isVarying(int column) {
+        return varying != null && varying[column];
+    }
+
+    public double getMean(int column) {
+        return (valueCount > 0 ? sums[column] / valueCount : Double.NaN);
+    }
+
+    /**
+     * @param progress if true, use at most MAX_PROGRESS_SAMPLES evenly spaced samples of each chain
+     * @return the effective sample size of the column summed over the chains
+     */
+    public double getESS(int column, boolean progress) {
+        double ess = 0.0;
+        for (ChainFile chain : chains) {
+            int thin = getThinning(chain.values.size(), progress);
+            List<Double> values = new ArrayList<Double>();
+            for (int k = 0; k < chain.values.size(); k += thin) {
+                values.add(chain.values.get(k)[column]);
+            }
+            if (values.size() > 1) {
+                TraceCorrelation<Double> correlation =
+                        new TraceCorrelation<Double>(values, TraceType.REAL, logEvery * chain.stride * thin);
+                ess += correlation.getESS();
+            }
+        }
+        return ess;
+    }
+
+    /**
+     * @param progress if true, use at most MAX_PROGRESS_SAMPLES evenly spaced samples of each chain
+     * @return the potential scale reduction factor of the column over the chains (using the same
+     * samples from each) or NaN if there are fewer than two chains with two samples
+     */
+    public double getRHat(int column, boolean progress) {
+        // the strides are powers of two so the longest is a multiple of the others
+        int length = Integer.MAX_VALUE;
+        int stride = 1;
+        for (ChainFile chain : chains) {
+            length = Math.min(length, chain.sampleCount);
+            stride = Math.max(stride, chain.stride);
+        }
+
+        int count = (length + stride - 1) / stride;
+        int thin = stride * getThinning(count, progress);
+        double[][] values = new double[chains.length][(length + thin - 1) / thin];
+        for (int i = 0; i < chains.length; i++) {
+            for (int k = 0; k < values[i].length; k++) {
+                values[i][k] = chains[i].values.get(k * thin / chains[i].stride)[column];
+            }
+        }
+        return getRHat(values);
+    }
+
+    /**
+     * The potential scale reduction factor of Gelman and Rubin (1992, Stat Sci 7: 457-472).
+     *
+     * @param values the samples of each chain, all of the same length
+     */
+    public static double getRHat(double[][] values) {
+        final int m = values.length;
+        if (m < 2 || values[0].length < 2) {
+            return Double.NaN;
+        }
+        final int n = values[0].length;
+
+        double[] means = new double[m];
+        double grandMean = 0.0;
+        double within = 0.0;
+        for (int i = 0; i < m; i++) {
+            double sum = 0.0;
+            for (int k = 0; k < n; k++) {
+                sum += values[i][k];
+            }
+            means[i] = sum / n;
+            grandMean += means[i] / m;
+
+            double ss = 0.0;
+            for (int k = 0; k < n; k++) {
+                ss += (values[i][k] - means[i]) * (values[i][k] - means[i]);
+            }
+            within += ss / (n - 1) / m;
+        }
+
+        double between = 0.0;
+        for (int i = 0; i < m; i++) {
+            between += (means[i] - grandMean) * (means[i] - grandMean);
+        }
+        between /= (m - 1); // this is B / n
+
+        if (within == 0.0) {
+            return (between == 0.0 ? 1.0 : Double.POSITIVE_INFINITY);
+        }
+        double pooled = (n - 1.0) / n * within + between;
+        return Math.sqrt(pooled / within);
+    }
+
+    private static int getThinning(int sampleCount, boolean progress) {
+        if (progress && sampleCount > MAX_PROGRESS_SAMPLES) {
+            return (sampleCount + MAX_PROGRESS_SAMPLES - 1) / MAX_PROGRESS_SAMPLES;
+        }
+        return 1;
+    }
+
+    private void processLogLine(int chain, String line) {
+        if (line.trim().length() == 0) {
+            return;
+        }
+
+        if (line.startsWith("#") || !Character.isDigit(line.charAt(0))) {
+            // comments and column labels
+            if (chain == 0 && !headerWritten) {
+                writer.println(line);
+                if (!line.startsWith("#")) {
+                    String[] labels = line.split("\t");
+                    for (int j = 1; j < labels.length; j++) {
+                        columnNames.add(labels[j]);
+                    }
+                    headerWritten = true;
+                }
+            }
+            return;
+        }
+
+        int tab = line.indexOf('\t');
+        if (tab < 0) {
+            return;
+        }
+        long state = Long.parseLong(line.substring(0, tab));
+        if (state < burnin) {
+            return;
+        }
+
+        String[] fields = line.split("\t");
+        double[] values = new double[columnNames.size()];
+        for (int j = 0; j < values.length; j++) {
+            try {
+                values[j] = (j + 1 < fields.length ? Double.parseDouble(fields[j + 1]) : Double.NaN);
+            } catch (NumberFormatException nfe) {
+                values[j] = Double.NaN;
+            }
+        }
+        accumulate(values);
+        chains[chain].add(values);
+
+        writer.print(sampleCount * logEvery);
+        writer.println(line.substring(tab));
+        sampleCount++;
+    }
+
+    private void accumulate(double[] values) {
+        if (sums == null) {
+            sums = new double[values.length];
+            firstValues = new double[values.length];
+            varying = new boolean[values.length];
+            Arrays.fill(firstValues, Double.NaN);
+        }
+        for (int j = 0; j < values.length; j++) {
+            sums[j] += values[j];
+            if (Double.isNaN(firstValues[j])) {
+                firstValues[j] = values[j];
+            } else if (values[j] != firstValues[j] && !Double.isNaN(values[j])) {
+                varying[j] = true;
+            }
+        }
+        valueCount++;
+    }
+
+    private void processTreeLine(int chain, String line) {
+        String trimmed = line.trim();
+        boolean isTree = trimmed.regionMatches(true, 0, "tree ", 0, 5);
+
+        if (!isTree) {
+            // the header up to the first tree, including any translate block, is taken from the first chain
+            if (chain == 0 && !headerWritten) {
+                writer.println(line);
+            }
+            return;
+        }
+        headerWritten = true;
+
+        int start = trimmed.indexOf("STATE_");
+        if (start < 0) {
+            return;
+        }
+        start += 6;
+        int end = start;
+        while (end < trimmed.length() && Character.isDigit(trimmed.charAt(end))) {
+            end++;
+        }
+        long state = Long.parseLong(trimmed.substring(start, end));
+        if (state < burnin) {
+            return;
+        }
+        chains[chain].sampleCount++;
+
+        writer.print("tree STATE_");
+        writer.print(sampleCount * logEvery);
+        writer.println(trimmed.substring(end));
+        sampleCount++;
+    }
+
+    /**
+     * A file being written by a chain, read a complete line at a time as it grows.
+     */
+    private static class ChainFile {
+
+        ChainFile(File file) {
+            this.file = file;
+        }
+
+        List<String> readLines() throws IOException {
+            List<String> lines = new ArrayList<String>();
+            if (!file.exists()) {
+                return lines;
+            }
+
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                long length = input.length();
+                if (length <= position) {
+                    return lines;
+                }
+                byte[] bytes = new byte[(int) Math.min(length - position, Integer.MAX_VALUE)];
+                input.seek(position);
+                input.readFully(bytes);
+
+                int lineStart = 0;
+                for (int k = 0; k < bytes.length; k++) {
+                    if (bytes[k] == '\n') {
+                        int lineEnd = (k > lineStart && bytes[k - 1] == '\r' ? k - 1 : k);
+                        lines.add(new String(bytes, lineStart, lineEnd - lineStart, "UTF-8"));
+                        lineStart = k + 1;
+                    }
+                }
+                // anything after the last new line is read again next time
+                position += lineStart;
+            } finally {
+                input.close();
+            }
+            return lines;
+        }
+
+        /**
+         * Keeps every stride-th sample, halving those kept when there are too many.
+         */
+        void add(double[] sample) {
+            if (sampleCount % stride == 0) {
+                if (values.size() == MAX_RETAINED_SAMPLES) {
+                    int k = 0;
+                    for (int l = 0; l < values.size(); l += 2) {
+                        values.set(k, values.get(l));
+                        k++;
+                    }
+                    values.subList(k, values.size()).clear();
+                    stride *= 2;
+                }
+                if (sampleCount % stride == 0) {
+                    values.add(sample);
+                }
+            }
+            sampleCount++;
+        }
+
+        private final File file;
+        private long position = 0;
+
+        /**
+         * The samples at 0, stride, 2 * stride... after the burnin.
+         */
+        final List<double[]> values = new ArrayList<double[]>();
+        int stride = 1;
+        int sampleCount = 0;
+    }
+
+    private final boolean isTreeFile;
+    private final long burnin;
+    private final long logEvery;
+
+    private final ChainFile[] chains;
+    private final PrintWriter writer;
+
+    private final List<String> columnNames = new ArrayList<String>();
+    private boolean headerWritten = false;
+    private long sampleCount = 0;
+
+    private double[] sums = null;
+    private double[] firstValues = null;
+    private boolean[] varying = null;
+    private long valueCount = 0;
+}
@@ -56,6 +56,14 @@ public class Trace<T> { // TODO get rid of generic to make things easy
         setTraceType(traceType);
     }
 
+    /**
+     * @param values the list to keep the values in (such as a DoubleColumn for numerical traces)
+     */
+    public Trace(String name, TraceType traceType, List<T> values) {
+        this(name, traceType);
+        this.values = values;
+    }
+
 //    public Trace(String name, T[] valuesArray) {
 //        this(name);
 ////        List<T> newVL = Arrays.asList(valuesArray);
@@ -89,6 +97,16 @@ public class Trace<T> { // TODO get rid of generic to make things easy
         return values.get(index);
     }
 
+    /**
+     * @return the value at index as a double (without boxing if the values are in a DoubleColumn)
+     */
+    public double getDoubleValue(int index) {
+        if (values instanceof DoubleColumn) {
+            return ((DoubleColumn) values).getDouble(index);
+        }
+        return ((Number) values.get(index)).doubleValue();
+    }
+
     public double[] getRange() { // Double => bounds; Integer and String => unique values
 
         if (getValueCount() < 1) throw new IllegalArgumentException("Cannot find values in trace " + getName());
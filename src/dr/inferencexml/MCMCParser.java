@@ -87,6 +87,13 @@ public class MCMCParser extends AbstractXMLObjectParser {
 
         likelihood.setUsed();
 
+        Likelihood firstStageLikelihood = null;
+        if (xo.hasChildNamed(FIRST_STAGE)) {
+            firstStageLikelihood = (Likelihood) xo.getElementFirstChild(FIRST_STAGE);
+            firstStageLikelihood.setUsed();
+            mcmc.setFirstStageLikelihood(firstStageLikelihood);
+        }
+
         if (Boolean.valueOf(System.getProperty("show_warnings", "false"))) {
 
             // check that all models, parameters and likelihoods are being used
@@ -133,7 +140,9 @@ public class MCMCParser extends AbstractXMLObjectParser {
                 "\n  chainLength=" + options.getChainLength() +
                 "\n  autoOptimize=" + options.useCoercion() +
                 (options.useCoercion() ? "\n  autoOptimize delayed for " + options.getCoercionDelay() + " steps" : "") +
-                (options.getFullEvaluationCount() == 0 ? "\n  full evaluation test off" : "")
+                (options.getFullEvaluationCount() == 0 ? "\n  full evaluation test off" : "") +
+                (firstStageLikelihood != null ? "\n  delayed acceptance using first stage, " +
+                        (firstStageLikelihood.getId() != null ? firstStageLikelihood.getId() : firstStageLikelihood.getClass().getSimpleName()) : "")
         );
 
         mcmc.init(options, likelihood, opsched, loggerArray);
@@ -188,6 +197,9 @@ public class MCMCParser extends AbstractXMLObjectParser {
             AttributeRule.newStringRule(OPERATOR_ANALYSIS, true),
             new ElementRule(OperatorSchedule.class),
             new ElementRule(Likelihood.class),
+            new ElementRule(FIRST_STAGE, new XMLSyntaxRule[]{
+                    new ElementRule(Likelihood.class)
+            }, "A cheap approximation to the posterior used to screen proposals (delayed acceptance)", true),
             new ElementRule(Logger.class, 1, Integer.MAX_VALUE),
     };
 
@@ -204,6 +216,7 @@ public class MCMCParser extends AbstractXMLObjectParser {
     public static final String TEMPERATURE = "temperature";
     public static final String SPAWN = "spawn";
     public static final String OPERATOR_ANALYSIS = "operatorAnalysis";
+    public static final String FIRST_STAGE = "firstStage";
 
 
 }
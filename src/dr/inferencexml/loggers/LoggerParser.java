@@ -90,6 +90,11 @@ public class LoggerParser extends AbstractXMLObjectParser {
         // added a performance measurement delay to avoid the full evaluation period.
         final MCLogger logger = new MCLogger(formatter, logEvery, performanceReport, 10000);
 
+        if (xo.hasAttribute(FILE_NAME)) {
+            // only file logs are written asynchronously so the screen log stays in step with other output
+            logger.setAsynchronous(Boolean.getBoolean(MCLogger.ASYNCHRONOUS_LOGGING));
+        }
+
         String title = null;
         if (xo.hasAttribute(TITLE)) {
             title = xo.getStringAttribute(TITLE);
@@ -27,6 +27,7 @@ package dr.math;
 
 import java.text.NumberFormat;
 import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dr.util.NumberFormatter;
 
@@ -54,6 +55,16 @@ public class MathUtils {
 	 */
 	private static final MersenneTwisterFast random = MersenneTwisterFast.DEFAULT_INSTANCE;
 
+	/**
+	 * Random streams bound to individual threads (see bindRandomStream). The static methods
+	 * below draw from the stream bound to the calling thread without synchronization and only
+	 * fall back to the shared instance above if there isn't one.
+	 */
+	private static final ThreadLocal<RandomStream> boundStreams = new ThreadLocal<RandomStream>();
+
+	// the number of threads with a bound stream so the thread local needn't be looked up if there are none
+	private static final AtomicInteger boundStreamCount = new AtomicInteger(0);
+
 	// Chooses one category if a cumulative probability distribution is given
 	public static int randomChoice(double[] cf) {
 
@@ -168,12 +179,84 @@ public class MathUtils {
 
 	}
 
-	// ===================== (Synchronized) Static access methods to the private random instance ===========
+	// ===================== Random streams for individual threads ===========
+
+	/**
+	 * Binds a random stream to the current thread so that all the static methods in this class
+	 * draw from it, unsynchronized, instead of from the shared instance. Passing null unbinds the
+	 * current stream. The stream should only be used by this thread while it is bound.
+	 *
+	 * @param stream the stream to bind or null
+	 * @return the stream that was previously bound to this thread (or null) so it can be put back
+	 */
+	public static RandomStream bindRandomStream(RandomStream stream) {
+		RandomStream previous = boundStreams.get();
+		if (stream != null) {
+			boundStreams.set(stream);
+			if (previous == null) {
+				boundStreamCount.incrementAndGet();
+			}
+		} else if (previous != null) {
+			boundStreams.remove();
+			boundStreamCount.decrementAndGet();
+		}
+		return previous;
+	}
+
+	/**
+	 * Creates the random stream with the given index for a seed. The stream's own seed is derived
+	 * from the seed and the index alone, so for a given seed each chain or thread that is given
+	 * the same index draws the same sequence whatever threads the work is spread across.
+	 *
+	 * @param seed  the seed of the analysis
+	 * @param index the index of the chain, thread or task the stream is for
+	 */
+	public static RandomStream createRandomStream(long seed, long index) {
+		return new RandomStream(new MersenneTwisterFast(deriveStreamSeed(seed, index)));
+	}
+
+	/**
+	 * Derives well separated, non-zero seeds for streams from a single seed using the
+	 * SplitMix64 mixing function (the Mersenne Twister only uses 32 bits of its seed).
+	 */
+	static long deriveStreamSeed(long seed, long index) {
+		long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+		int streamSeed = (int) (z ^ (z >>> 32));
+		return (streamSeed != 0 ? streamSeed : 1);
+	}
+
+	private static MersenneTwisterFast getBoundStream() {
+		if (boundStreamCount.get() == 0) {
+			return null;
+		}
+		RandomStream stream = boundStreams.get();
+		return (stream != null ? stream.generator : null);
+	}
+
+	/**
+	 * An independent random stream that can be bound to a thread with bindRandomStream.
+	 */
+	public static final class RandomStream {
+		private RandomStream(MersenneTwisterFast generator) {
+			this.generator = generator;
+		}
+
+		private final MersenneTwisterFast generator;
+	}
+
+	// ===================== Static access methods to the bound stream or the (synchronized) private random instance ===========
 
 	/**
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static long getSeed() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.getSeed();
+		}
 		synchronized (random) {
 			return random.getSeed();
 		}
@@ -183,6 +266,11 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static void setSeed(long seed) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			stream.setSeed(seed);
+			return;
+		}
 		synchronized (random) {
 			random.setSeed(seed);
 		}
@@ -192,6 +280,10 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static byte nextByte() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextByte();
+		}
 		synchronized (random) {
 			return random.nextByte();
 		}
@@ -201,6 +293,10 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static boolean nextBoolean() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextBoolean();
+		}
 		synchronized (random) {
 			return random.nextBoolean();
 		}
@@ -210,6 +306,11 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static void nextBytes(byte[] bs) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			stream.nextBytes(bs);
+			return;
+		}
 		synchronized (random) {
 			random.nextBytes(bs);
 		}
@@ -219,6 +320,10 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static char nextChar() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextChar();
+		}
 		synchronized (random) {
 			return random.nextChar();
 		}
@@ -228,6 +333,10 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static double nextGaussian() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextGaussian();
+		}
 		synchronized (random) {
 			return random.nextGaussian();
 		}
@@ -237,6 +346,10 @@ public class MathUtils {
 	//Variance = alpha / (lambda*lambda)
 
 	public static double nextGamma(double alpha, double lambda) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextGamma(alpha, lambda);
+		}
 		synchronized (random) {
 			return random.nextGamma(alpha, lambda);
 		}
@@ -258,6 +371,10 @@ public class MathUtils {
 	 * @return a pseudo random double precision floating point number in [01)
 	 */
 	public static double nextDouble() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextDouble();
+		}
 		synchronized (random) {
 			return random.nextDouble();
 		}
@@ -274,26 +391,32 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static double nextExponential(double lambda) {
-		synchronized (random) {
-			return -1.0 * Math.log(1 - random.nextDouble()) / lambda;
-		}
+		return -1.0 * Math.log(1 - nextDouble()) / lambda;
 	}
 
 	/**
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static double nextInverseGaussian(double mu, double lambda) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return nextInverseGaussian(stream, mu, lambda);
+		}
 		synchronized (random) {
-			/* CODE TAKEN FROM WIKIPEDIA. TESTING DONE WITH RESULTS GENERATED IN R AND LOOK COMPARABLE */
-			double v = random.nextGaussian();   // sample from a normal distribution with a mean of 0 and 1 standard deviation
-			double y = v * v;
-			double x = mu + (mu * mu * y) / (2 * lambda) - (mu / (2 * lambda)) * Math.sqrt(4 * mu * lambda * y + mu * mu * y * y);
-			double test = MathUtils.nextDouble();  // sample from a uniform distribution between 0 and 1
-			if (test <= (mu) / (mu + x)) {
-				return x;
-			} else {
-				return (mu * mu) / x;
-			}
+			return nextInverseGaussian(random, mu, lambda);
+		}
+	}
+
+	private static double nextInverseGaussian(MersenneTwisterFast generator, double mu, double lambda) {
+		/* CODE TAKEN FROM WIKIPEDIA. TESTING DONE WITH RESULTS GENERATED IN R AND LOOK COMPARABLE */
+		double v = generator.nextGaussian();   // sample from a normal distribution with a mean of 0 and 1 standard deviation
+		double y = v * v;
+		double x = mu + (mu * mu * y) / (2 * lambda) - (mu / (2 * lambda)) * Math.sqrt(4 * mu * lambda * y + mu * mu * y * y);
+		double test = generator.nextDouble();  // sample from a uniform distribution between 0 and 1
+		if (test <= (mu) / (mu + x)) {
+			return x;
+		} else {
+			return (mu * mu) / x;
 		}
 	}
 
@@ -302,6 +425,10 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static float nextFloat() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextFloat();
+		}
 		synchronized (random) {
 			return random.nextFloat();
 		}
@@ -311,6 +438,10 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static long nextLong() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextLong();
+		}
 		synchronized (random) {
 			return random.nextLong();
 		}
@@ -320,6 +451,10 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static short nextShort() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextShort();
+		}
 		synchronized (random) {
 			return random.nextShort();
 		}
@@ -329,6 +464,10 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static int nextInt() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextInt();
+		}
 		synchronized (random) {
 			return random.nextInt();
 		}
@@ -338,6 +477,10 @@ public class MathUtils {
 	 * Access a default instance of this class, access is synchronized
 	 */
 	public static int nextInt(int n) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.nextInt(n);
+		}
 		synchronized (random) {
 			return random.nextInt(n);
 		}
@@ -356,6 +499,11 @@ public class MathUtils {
 	 * Shuffles an array.
 	 */
 	public static void shuffle(int[] array) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			stream.shuffle(array);
+			return;
+		}
 		synchronized (random) {
 			random.shuffle(array);
 		}
@@ -365,6 +513,11 @@ public class MathUtils {
 	 * Shuffles an array. Shuffles numberOfShuffles times
 	 */
 	public static void shuffle(int[] array, int numberOfShuffles) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			stream.shuffle(array, numberOfShuffles);
+			return;
+		}
 		synchronized (random) {
 			random.shuffle(array, numberOfShuffles);
 		}
@@ -376,6 +529,10 @@ public class MathUtils {
 	 * @param l length of the array required.
 	 */
 	public static int[] shuffled(int l) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.shuffled(l);
+		}
 		synchronized (random) {
 			return random.shuffled(l);
 		}
@@ -383,18 +540,31 @@ public class MathUtils {
 
 
 	public static int[] sampleIndicesWithReplacement(int length) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return sampleIndicesWithReplacement(stream, length);
+		}
 		synchronized (random) {
-			int[] result = new int[length];
-			for (int i = 0; i < length; i++)
-				result[i] = random.nextInt(length);
-			return result;
+			return sampleIndicesWithReplacement(random, length);
 		}
 	}
 
+	private static int[] sampleIndicesWithReplacement(MersenneTwisterFast generator, int length) {
+		int[] result = new int[length];
+		for (int i = 0; i < length; i++)
+			result[i] = generator.nextInt(length);
+		return result;
+	}
+
 	/**
 	 * Permutes an array.
 	 */
 	public static void permute(int[] array) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			stream.permute(array);
+			return;
+		}
 		synchronized (random) {
 			random.permute(array);
 		}
@@ -406,6 +576,10 @@ public class MathUtils {
 	 * @param l length of the array required.
 	 */
 	public static int[] permuted(int l) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.permuted(l);
+		}
 		synchronized (random) {
 			return random.permuted(l);
 		}
@@ -451,12 +625,21 @@ public class MathUtils {
 	}
 
 	public static int[] getRandomState() {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			return stream.getRandomState();
+		}
 		synchronized (random) {
 			return random.getRandomState();
 		}
 	}
 
 	public static void setRandomState(int[] rngState) {
+		final MersenneTwisterFast stream = getBoundStream();
+		if (stream != null) {
+			stream.setRandomState(rngState);
+			return;
+		}
 		synchronized (random) {
 			random.setRandomState(rngState);
 		}
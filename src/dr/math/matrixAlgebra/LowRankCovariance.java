@@ -0,0 +1,254 @@
+/*
+ * LowRankCovariance.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.math.matrixAlgebra;
+
+import cern.colt.matrix.DoubleMatrix1D;
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import cern.colt.matrix.linalg.EigenvalueDecomposition;
+import dr.math.MathUtils;
+
+/**
+ * A streaming, diagonal plus low rank, estimate of the sample covariance of a sequence of vectors.
+ * The means and variances are kept exactly. The off-diagonal structure is kept as a Frequent
+ * Directions sketch (Liberty 2013, KDD; Ghashami et al. 2016, SIAM J Comput) of at most 2 * rank
+ * centered samples, which is shrunk back to rank rows whenever it fills. The part of each variance
+ * the sketch does not explain is added back on the diagonal.
+ * <p/>
+ * Adding a sample costs O(dim * rank) amortized and drawing a normal deviate with the estimated
+ * covariance costs O(dim * rank), without ever forming or factorizing a dim x dim matrix.
+ */
+public class LowRankCovariance {
+
+    public LowRankCovariance(int dim, int rank) {
+        if (rank < 1 || rank >= dim) {
+            throw new IllegalArgumentException("The rank must be between 1 and " + (dim - 1));
+        }
+
+        this.dim = dim;
+        this.rank = rank;
+        this.sketchRows = 2 * rank;
+
+        mean = new double[dim];
+        sumOfSquares = new double[dim];
+        row = new double[dim];
+
+        sketch = new double[sketchRows * dim];
+        shrunkSketch = new double[sketchRows * dim];
+        sketchDiagonal = new double[dim];
+        gram = new DenseDoubleMatrix2D(sketchRows, sketchRows);
+        z = new double[sketchRows];
+
+        reset();
+    }
+
+    public void reset() {
+        count = 0;
+        rowCount = 0;
+        for (int i = 0; i < dim; i++) {
+            mean[i] = 0.0;
+            sumOfSquares[i] = 0.0;
+            sketchDiagonal[i] = 0.0;
+        }
+    }
+
+    public int getDimension() {
+        return dim;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public int getSampleCount() {
+        return count;
+    }
+
+    public double getMean(int i) {
+        return mean[i];
+    }
+
+    /**
+     * Adds a sample, updating the means and variances and adding the centered sample to the sketch.
+     */
+    public void addSample(double[] x) {
+        count++;
+
+        // the sum of squares increases by (n - 1) / n * (x - oldMean)^2 so the sketch
+        // gets the centered sample scaled by the square root of that
+        final double weight = Math.sqrt((count - 1.0) / count);
+        for (int i = 0; i < dim; i++) {
+            double u = x[i] - mean[i];
+            mean[i] += u / count;
+            sumOfSquares[i] += u * (x[i] - mean[i]);
+            row[i] = weight * u;
+        }
+
+        if (count == 1) {
+            return;
+        }
+
+        if (rowCount == sketchRows) {
+            shrink();
+        }
+
+        System.arraycopy(row, 0, sketch, rowCount * dim, dim);
+        for (int i = 0; i < dim; i++) {
+            sketchDiagonal[i] += row[i] * row[i];
+        }
+        rowCount++;
+    }
+
+    /**
+     * @return the estimated variance of element i, which is the sample variance
+     */
+    public double getVariance(int i) {
+        return (count > 1 ? sumOfSquares[i] / (count - 1) : 0.0);
+    }
+
+    /**
+     * @return the estimated covariance of elements i and j
+     */
+    public double getCovariance(int i, int j) {
+        if (i == j) {
+            return getVariance(i);
+        }
+        if (count < 2) {
+            return 0.0;
+        }
+        double sum = 0.0;
+        for (int a = 0; a < rowCount; a++) {
+            sum += sketch[a * dim + i] * sketch[a * dim + j];
+        }
+        return sum / (count - 1);
+    }
+
+    /**
+     * Adds scale times a draw from a multivariate normal with mean zero and the estimated
+     * covariance to x. Nothing is added until there are at least two samples.
+     */
+    public void addDeviate(double[] x, double scale) {
+        if (count < 2) {
+            return;
+        }
+
+        final double s = scale / Math.sqrt(count - 1);
+
+        // the unexplained variance on the diagonal
+        for (int i = 0; i < dim; i++) {
+            double residual = sumOfSquares[i] - sketchDiagonal[i];
+            if (residual > 0.0) {
+                x[i] += s * Math.sqrt(residual) * MathUtils.nextGaussian();
+            }
+        }
+
+        // and the sketch, B'z
+        for (int a = 0; a < rowCount; a++) {
+            z[a] = s * MathUtils.nextGaussian();
+        }
+        for (int a = 0; a < rowCount; a++) {
+            final double za = z[a];
+            final int offset = a * dim;
+            for (int i = 0; i < dim; i++) {
+                x[i] += za * sketch[offset + i];
+            }
+        }
+    }
+
+    /**
+     * Rotates the sketch onto its principal directions and subtracts the (rank + 1)th largest squared
+     * singular value from all of them, leaving at most rank non-zero rows.
+     */
+    private void shrink() {
+        for (int a = 0; a < sketchRows; a++) {
+            for (int b = a; b < sketchRows; b++) {
+                double sum = 0.0;
+                for (int i = 0; i < dim; i++) {
+                    sum += sketch[a * dim + i] * sketch[b * dim + i];
+                }
+                gram.setQuick(a, b, sum);
+                gram.setQuick(b, a, sum);
+            }
+        }
+
+        EigenvalueDecomposition eigen = new EigenvalueDecomposition(gram);
+        DoubleMatrix1D values = eigen.getRealEigenvalues(); // in ascending order
+        DoubleMatrix2D vectors = eigen.getV();
+
+        final double delta = Math.max(values.getQuick(sketchRows - rank - 1), 0.0);
+
+        for (int i = 0; i < dim; i++) {
+            sketchDiagonal[i] = 0.0;
+        }
+
+        int newRowCount = 0;
+        for (int r = 0; r < rank; r++) {
+            int e = sketchRows - 1 - r;
+            double value = values.getQuick(e);
+            if (value <= delta) {
+                break;
+            }
+            double scale = Math.sqrt((value - delta) / value);
+
+            int offset = newRowCount * dim;
+            for (int i = 0; i < dim; i++) {
+                shrunkSketch[offset + i] = 0.0;
+            }
+            for (int a = 0; a < sketchRows; a++) {
+                double v = scale * vectors.getQuick(a, e);
+                for (int i = 0; i < dim; i++) {
+                    shrunkSketch[offset + i] += v * sketch[a * dim + i];
+                }
+            }
+            for (int i = 0; i < dim; i++) {
+                sketchDiagonal[i] += shrunkSketch[offset + i] * shrunkSketch[offset + i];
+            }
+            newRowCount++;
+        }
+
+        double[] tmp = sketch;
+        sketch = shrunkSketch;
+        shrunkSketch = tmp;
+        rowCount = newRowCount;
+    }
+
+    private final int dim;
+    private final int rank;
+    private final int sketchRows;
+
+    private int count;
+    private final double[] mean;
+    private final double[] sumOfSquares;
+    private final double[] row;
+
+    private double[] sketch;
+    private double[] shrunkSketch;
+    private int rowCount;
+    private final double[] sketchDiagonal;
+
+    private final DoubleMatrix2D gram;
+    private final double[] z;
+}
@@ -0,0 +1,180 @@
+/*
+ * BoundedOrderedExecutor.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs a stream of tasks on a pool of daemon threads and hands back their results in the order the
+ * tasks were submitted. The producer keeps submitting while the executor is not full (twice as many
+ * tasks as threads are kept in flight, enough to keep the workers busy without reading too far
+ * ahead) and takes the oldest result before submitting more. With a single thread the tasks are
+ * run on the calling thread as they are submitted.
+ *
+ * @version $Id$
+ */
+public class BoundedOrderedExecutor<T> {
+
+    /**
+     * @param name        the name given to the worker threads
+     * @param threadCount the number of worker threads; 1 or less runs the tasks on the calling thread
+     */
+    public BoundedOrderedExecutor(String name, int threadCount) {
+        maxPending = Math.max(threadCount, 1) * 2;
+        if (threadCount > 1) {
+            executor = Executors.newFixedThreadPool(threadCount, SharedThreadPool.createThreadFactory(name));
+        } else {
+            executor = null;
+        }
+    }
+
+    /**
+     * @return true if no more tasks should be submitted until a result has been taken
+     */
+    public boolean isFull() {
+        return pending.size() >= maxPending;
+    }
+
+    /**
+     * @return true if there are no results left to take
+     */
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public void submit(Callable<T> task) {
+        if (executor != null) {
+            pending.add(executor.submit(task));
+        } else {
+            FutureTask<T> future = new FutureTask<T>(task);
+            future.run();
+            pending.add(future);
+        }
+    }
+
+    /**
+     * Takes the result of the oldest task, waiting for it if necessary. A runtime exception or
+     * error thrown by the task is rethrown as it is; any other exception is wrapped in a
+     * RuntimeException.
+     *
+     * @return the result of the oldest task that hasn't been taken
+     */
+    public T take() {
+        try {
+            return get();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * As take() but an exception of the given type thrown by the task is rethrown as it is.
+     */
+    public <E extends Exception> T take(Class<E> exceptionType) throws E {
+        try {
+            return get();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            if (exceptionType.isInstance(e)) {
+                throw exceptionType.cast(e);
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * As take() but an exception of either of the given types thrown by the task is rethrown as it is.
+     */
+    public <E1 extends Exception, E2 extends Exception> T take(Class<E1> exceptionType1, Class<E2> exceptionType2)
+            throws E1, E2 {
+        try {
+            return get();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            if (exceptionType1.isInstance(e)) {
+                throw exceptionType1.cast(e);
+            }
+            if (exceptionType2.isInstance(e)) {
+                throw exceptionType2.cast(e);
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Stops the workers and discards any results that haven't been taken.
+     */
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        pending.clear();
+    }
+
+    /**
+     * @return the result of the oldest task
+     * @throws Exception the checked exception thrown by the task (runtime exceptions and errors are
+     *                   thrown directly)
+     */
+    private T get() throws Exception {
+        if (pending.isEmpty()) {
+            throw new IllegalStateException("No tasks have been submitted");
+        }
+        try {
+            return pending.removeFirst().get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for a task", ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final Deque<Future<T>> pending = new ArrayDeque<Future<T>>();
+}
@@ -0,0 +1,86 @@
+/*
+ * SharedThreadPool.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide pools of daemon worker threads shared by all the instances of a computational core.
+ * There is one pool per name. When an instance asks for more threads than the pool has, the pool
+ * itself is grown, so instances created earlier share the extra threads and no pool is ever
+ * abandoned.
+ *
+ * @version $Id$
+ */
+public final class SharedThreadPool {
+
+    private static final Map<String, ThreadPoolExecutor> pools = new HashMap<String, ThreadPoolExecutor>();
+
+    private SharedThreadPool() {
+    }
+
+    /**
+     * @param name        the name of the pool, also used for its threads
+     * @param threadCount the number of threads needed
+     * @return the named pool with at least threadCount threads
+     */
+    public static synchronized ExecutorService getPool(final String name, int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("A thread pool needs at least one thread");
+        }
+        ThreadPoolExecutor pool = pools.get(name);
+        if (pool == null) {
+            pool = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), createThreadFactory(name));
+            pools.put(name, pool);
+        } else if (pool.getCorePoolSize() < threadCount) {
+            // the maximum has to be raised first so it is never below the core size
+            pool.setMaximumPoolSize(threadCount);
+            pool.setCorePoolSize(threadCount);
+        }
+        return pool;
+    }
+
+    /**
+     * @param name the name given to each thread
+     * @return a factory for daemon threads, so idle workers never keep the JVM alive
+     */
+    public static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -139,7 +139,13 @@ public class XMLParser {
         if (e.getTagName().equals("beast")) {
 
             concurrent = false;
-            return convert(e, target, null, false, true);
+            File previousLogDirectory = LOG_DIRECTORY.get();
+            LOG_DIRECTORY.set(logDirectory);
+            try {
+                return convert(e, target, null, false, true);
+            } finally {
+                LOG_DIRECTORY.set(previousLogDirectory);
+            }
 
         } else {
             throw new dr.xml.XMLParseException("Unknown root document element, " + e.getTagName());
@@ -163,7 +169,13 @@ public class XMLParser {
         if (e.getTagName().equals("beast")) {
 
             concurrent = false;
-            root = (XMLObject) convert(e, null, null, run, true);
+            File previousLogDirectory = LOG_DIRECTORY.get();
+            LOG_DIRECTORY.set(logDirectory);
+            try {
+                root = (XMLObject) convert(e, null, null, run, true);
+            } finally {
+                LOG_DIRECTORY.set(previousLogDirectory);
+            }
 
         } else {
             throw new dr.xml.XMLParseException("Unknown root document element, " + e.getTagName());
@@ -357,7 +369,7 @@ public class XMLParser {
                     }
                 } else if (obj instanceof Runnable && !concurrent) {
 
-                    executingRunnable();
+                    executingRunnable(obj);
 
                     if (obj instanceof Spawnable && !((Spawnable) obj).getSpawnable()) {
                         ((Spawnable) obj).run();
@@ -379,6 +391,25 @@ public class XMLParser {
         // do nothing - for overriding by subclasses
     }
 
+    /**
+     * Called just before an object is run, for subclasses that need to configure it.
+     *
+     * @param runnable the object about to be run
+     */
+    protected void executingRunnable(Object runnable) {
+        executingRunnable();
+    }
+
+    /**
+     * Sets a directory in which the log files of the objects created by this parser are written,
+     * whatever directory their file names give. Input files are still read from where they are.
+     *
+     * @param logDirectory the directory or null to use the file names as they are
+     */
+    public void setLogDirectory(File logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
     public Map<Pair<String, String>, List<Citation>> getCitationStore() {
         return citationStore;
     }
@@ -459,6 +490,12 @@ public class XMLParser {
     }
 
     public static File getLogFile(XMLObject xo, String attributeName) throws XMLParseException {
+        final File logDirectory = LOG_DIRECTORY.get();
+        if (logDirectory != null) {
+            // this parser has its own directory for log files (see setLogDirectory)
+            return new File(logDirectory, getFileHandle(xo, attributeName).getName());
+        }
+
         final File logFile = getFileHandle(xo, attributeName);
         boolean allowOverwrite = false;
 
@@ -589,6 +626,13 @@ public class XMLParser {
     private final Map<Pair<String, String>, List<Citation>> citationStore = new LinkedHashMap<Pair<String, String>, List<Citation>>();
     private boolean concurrent = false;
     private XMLObject root = null;
+    private File logDirectory = null;
+
+    /**
+     * The log directory of the parser that is parsing on this thread (the objects' parsers find
+     * their files through static methods)
+     */
+    private static final ThreadLocal<File> LOG_DIRECTORY = new ThreadLocal<File>();
 
     private boolean verbose = false;
 
@@ -0,0 +1,155 @@
+package test.dr.app.beagle.tools;
+
+import dr.app.beagle.tools.Partition;
+import dr.app.beagle.tools.StreamingSequenceSimulator;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the streamed FASTA file doesn't depend on the number of threads and is laid out as
+ * SimpleAlignment writes the same sequences.
+ */
+public class StreamingSequenceSimulatorTest extends TestCase {
+
+    // blocks of about a hundred sites so each partition is simulated in several
+    private static final int BLOCK_BYTES = 700;
+
+    private static final String NEWICK = "((((A:0.1,B:0.2):0.05,C:0.3):0.1,(D:0.25,E:0.05):0.2):0.1,(F:0.4,G:0.35):0.15);";
+
+    public StreamingSequenceSimulatorTest(String name) {
+        super(name);
+    }
+
+    public void testThreads() throws Exception {
+        String expected = simulate(1);
+        assertEquals(expected, simulate(3));
+    }
+
+    public void testSimpleAlignmentLayout() throws Exception {
+        String fasta = simulate(3);
+
+        // the sequences read back from the file and written out by SimpleAlignment
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        alignment.setReportCountStatistics(false);
+        BufferedReader reader = new BufferedReader(new StringReader(fasta));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(">")) {
+                Sequence sequence = new Sequence(new Taxon(line.substring(1).trim()), reader.readLine());
+                sequence.setDataType(Nucleotides.INSTANCE);
+                alignment.addSequence(sequence);
+            }
+        }
+        reader.close();
+        assertEquals(7, alignment.getSequenceCount());
+        assertEquals(1500, alignment.getSiteCount());
+
+        // as the console app prints the alignment
+        alignment.setOutputType(SimpleAlignment.OutputType.FASTA);
+        assertEquals(alignment.toString() + "\n", fasta);
+    }
+
+    /**
+     * Simulates a partition of the first thousand sites and two of alternate sites after them.
+     */
+    private String simulate(int threadCount) throws Exception {
+        MathUtils.setSeed(666);
+
+        Tree tree = new NewickImporter(NEWICK).importTree(null);
+        List<Partition> partitions = new ArrayList<Partition>();
+        partitions.add(createPartition(new TreeModel(tree), 2.0, 0, 999, 1));
+        partitions.add(createPartition(new TreeModel(tree), 10.0, 1000, 1498, 2));
+        partitions.add(createPartition(new TreeModel(tree), 5.0, 1001, 1499, 2));
+
+        File file = File.createTempFile("simulated", ".fasta");
+        file.deleteOnExit();
+        new StreamingSequenceSimulator(partitions, threadCount, BLOCK_BYTES).simulate(file);
+
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        input.readFully(bytes);
+        input.close();
+        file.delete();
+        return new String(bytes, "UTF-8");
+    }
+
+    private Partition createPartition(TreeModel treeModel, double kappa, int from, int to, int every) {
+        FrequencyModel freqModel = new FrequencyModel(Nucleotides.INSTANCE,
+                new Parameter.Default(new double[]{0.1, 0.2, 0.3, 0.4}));
+        HKY hky = new HKY(new Parameter.Default(kappa), freqModel);
+
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("siteModel", 0.5, 4);
+        return new JavaPartition(treeModel, hky, siteRateModel, freqModel, from, to, every);
+    }
+
+    /**
+     * A partition with a strict clock whose transition probabilities are computed by the substitution
+     * model rather than BEAGLE, so the simulator can be tested without the native library.
+     */
+    private static class JavaPartition extends Partition {
+
+        JavaPartition(TreeModel treeModel, SubstitutionModel substitutionModel, GammaSiteRateModel siteRateModel,
+                      FrequencyModel freqModel, int from, int to, int every) {
+            super(treeModel, new HomogeneousBranchModel(substitutionModel), siteRateModel,
+                    new DefaultBranchRateModel(), freqModel, from, to, every);
+            this.substitutionModel = substitutionModel;
+        }
+
+        public void loadBeagleInstance() {
+        }
+
+        public double[][][] getCumulativeTransitionProbabilities() {
+            TreeModel tree = getTreeModel();
+            double[] categoryRates = getSiteRateModel().getCategoryRates();
+            int stateCount = getDataType().getStateCount();
+
+            double[][][] probabilities = new double[tree.getNodeCount()][][];
+            for (int i = 0; i < tree.getNodeCount(); i++) {
+                NodeRef node = tree.getNode(i);
+                if (tree.isRoot(node)) {
+                    continue;
+                }
+                double length = tree.getNodeHeight(tree.getParent(node)) - tree.getNodeHeight(node);
+                probabilities[i] = new double[categoryRates.length][stateCount * stateCount];
+                for (int c = 0; c < categoryRates.length; c++) {
+                    double[] matrix = probabilities[i][c];
+                    substitutionModel.getTransitionProbabilities(length * categoryRates[c], matrix);
+                    for (int j = 0; j < matrix.length; j += stateCount) {
+                        for (int k = 1; k < stateCount; k++) {
+                            matrix[j + k] += matrix[j + k - 1];
+                        }
+                    }
+                }
+            }
+            return probabilities;
+        }
+
+        private final SubstitutionModel substitutionModel;
+    }
+
+    public static Test suite() {
+        return new TestSuite(StreamingSequenceSimulatorTest.class);
+    }
+}
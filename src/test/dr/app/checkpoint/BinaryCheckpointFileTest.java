@@ -0,0 +1,269 @@
+package test.dr.app.checkpoint;
+
+import dr.app.checkpoint.BeastCheckpointer;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Units;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.speciation.BirthDeathGernhard08Model;
+import dr.evomodel.speciation.SpeciationLikelihood;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.mcmc.MCMCCriterion;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.operators.CoercableMCMCOperator;
+import dr.inference.operators.CoercionMode;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.inference.state.Factory;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Checks that the binary checkpoint file gives back the parameters, trees, operators and random
+ * number state that were saved, that full and delta records load the same state and that a
+ * damaged final record is skipped in favour of the one before it. Without a file name the
+ * periodic dumps all go to one file so that deltas can be appended to it.
+ */
+public class BinaryCheckpointFileTest extends TestCase {
+
+    private static final int SAVE_COUNT = 8;
+
+    private File directory;
+    private TreeModel treeModel;
+    private Parameter birthRate;
+    private MarkovChain markovChain;
+
+    public BinaryCheckpointFileTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        directory = File.createTempFile("checkpoint", "");
+        directory.delete();
+        directory.mkdir();
+
+        NewickImporter importer = new NewickImporter("(((A:1.0,B:1.0):1.0,C:2.0):1.0,(D:1.5,E:1.5):1.5);");
+        treeModel = new TreeModel("treeModel", importer.importTree(null));
+
+        birthRate = new Parameter.Default("birthRate", 2.0, 0.0, Double.MAX_VALUE);
+        Parameter deathRate = new Parameter.Default("deathRate", 0.5, 0.0, 1.0);
+        BirthDeathGernhard08Model speciationModel = new BirthDeathGernhard08Model(birthRate, deathRate, null,
+                BirthDeathGernhard08Model.TreeType.TIMESONLY, Units.Type.YEARS);
+        Likelihood likelihood = new SpeciationLikelihood(treeModel, speciationModel, "speciation");
+
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        schedule.addOperator(new SubtreeSlideOperator(treeModel, 1.0, 1.0, true, false, false, false,
+                CoercionMode.COERCION_ON));
+        schedule.addOperator(new ScaleOperator(birthRate, 0.75, CoercionMode.COERCION_ON, 1.0));
+
+        markovChain = new MarkovChain(likelihood, schedule, new MCMCCriterion(), 0, 0, 0.0, true);
+    }
+
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+        System.clearProperty(BeastCheckpointer.SAVE_STATE_FILE);
+        System.clearProperty(BeastCheckpointer.LOAD_STATE_FILE);
+        System.clearProperty(BeastCheckpointer.SAVE_STATE_BINARY);
+        System.clearProperty(BeastCheckpointer.SAVE_STATE_FULL_EVERY);
+        System.clearProperty(BeastCheckpointer.SAVE_STATE_EVERY);
+        System.clearProperty("file.name.prefix");
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws IOException {
+        File deltaFile = new File(directory, "delta.state");
+        File fullFile = new File(directory, "full.state");
+
+        // with three deltas between snapshots the last two saves are a full record and deltas
+        BeastCheckpointer deltaCheckpointer = createCheckpointer(deltaFile, 3);
+        // a full snapshot every time
+        BeastCheckpointer fullCheckpointer = createCheckpointer(fullFile, 0);
+
+        String[] saved = new String[SAVE_COUNT];
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            move(i);
+            saved[i] = describe();
+            assertTrue(deltaCheckpointer.saveState(markovChain, i, -100.0 - i));
+            assertTrue(fullCheckpointer.saveState(markovChain, i, -100.0 - i));
+        }
+        // the delta file holds the last snapshot and the deltas that follow it
+        assertTrue(deltaFile.length() > fullFile.length());
+
+        checkLoad(deltaFile, SAVE_COUNT - 1, saved[SAVE_COUNT - 1]);
+        checkLoad(fullFile, SAVE_COUNT - 1, saved[SAVE_COUNT - 1]);
+    }
+
+    public void testDamagedFinalRecord() throws IOException {
+        File file = new File(directory, "delta.state");
+        BeastCheckpointer checkpointer = createCheckpointer(file, 3);
+
+        String[] saved = new String[SAVE_COUNT];
+        long[] lengths = new long[SAVE_COUNT];
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            move(i);
+            saved[i] = describe();
+            assertTrue(checkpointer.saveState(markovChain, i, -100.0 - i));
+            lengths[i] = file.length();
+        }
+        long last = lengths[SAVE_COUNT - 1];
+        long previous = lengths[SAVE_COUNT - 2];
+        assertTrue("the last record should be a delta", last > previous);
+
+        // a corrupted byte in the middle of the last record fails its checksum
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        long position = (previous + last) / 2;
+        out.seek(position);
+        int value = out.read();
+        out.seek(position);
+        out.write(value ^ 0xFF);
+        out.close();
+        checkLoad(file, SAVE_COUNT - 2, saved[SAVE_COUNT - 2]);
+
+        // a record that was only partly written is ignored
+        out = new RandomAccessFile(file, "rw");
+        out.setLength(last - 5);
+        out.close();
+        checkLoad(file, SAVE_COUNT - 2, saved[SAVE_COUNT - 2]);
+
+        // as is one cut off inside its header
+        out = new RandomAccessFile(file, "rw");
+        out.setLength(previous + 2);
+        out.close();
+        checkLoad(file, SAVE_COUNT - 2, saved[SAVE_COUNT - 2]);
+    }
+
+    public void testDumpEveryWithoutFileName() throws IOException {
+        // as with -dump_every and -dump_binary but no -save_dump
+        System.setProperty(BeastCheckpointer.SAVE_STATE_EVERY, "1");
+        System.setProperty(BeastCheckpointer.SAVE_STATE_BINARY, "true");
+        System.setProperty(BeastCheckpointer.SAVE_STATE_FULL_EVERY, "3");
+        System.setProperty("file.name.prefix", directory.getPath() + File.separator);
+        new BeastCheckpointer();
+        MarkovChainListener[] listeners = Factory.INSTANCE.getStateSaverChainListeners();
+        assertEquals(1, listeners.length);
+
+        File file = new File(directory, BeastCheckpointer.DEFAULT_BINARY_STATE_FILE);
+        String[] saved = new String[SAVE_COUNT];
+        long[] lengths = new long[SAVE_COUNT];
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            move(i);
+            saved[i] = describe();
+            listeners[0].currentState(i + 1, markovChain, null);
+            lengths[i] = file.length();
+        }
+
+        // every dump goes to the one file and the deltas are appended to it
+        assertEquals(1, directory.listFiles().length);
+        for (int i = 1; i < SAVE_COUNT; i++) {
+            if (i % 4 == 0) {
+                assertTrue("a full snapshot should replace the deltas", lengths[i] < lengths[i - 1]);
+            } else {
+                assertTrue("a delta should be appended", lengths[i] > lengths[i - 1]);
+            }
+        }
+
+        checkLoad(file, SAVE_COUNT, markovChain.getCurrentScore(), saved[SAVE_COUNT - 1]);
+    }
+
+    private BeastCheckpointer createCheckpointer(File file, int fullEvery) {
+        System.setProperty(BeastCheckpointer.SAVE_STATE_FILE, file.getPath());
+        System.setProperty(BeastCheckpointer.SAVE_STATE_BINARY, "true");
+        System.setProperty(BeastCheckpointer.SAVE_STATE_FULL_EVERY, Integer.toString(fullEvery));
+        return new BeastCheckpointer();
+    }
+
+    private void checkLoad(File file, long expectedState, String expected) {
+        checkLoad(file, expectedState, -100.0 - expectedState, expected);
+    }
+
+    private void checkLoad(File file, long expectedState, double expectedLnL, String expected) {
+        // move everything away from the saved state before loading
+        move(SAVE_COUNT);
+        MathUtils.setSeed(1);
+        assertFalse(expected.equals(describe()));
+
+        System.setProperty(BeastCheckpointer.LOAD_STATE_FILE, file.getPath());
+        double[] lnL = new double[1];
+        long state = new BeastCheckpointer().loadState(markovChain, lnL);
+
+        assertEquals(expectedState, state);
+        assertEquals(expectedLnL, lnL[0], 0.0);
+        assertEquals(expected, describe());
+    }
+
+    /**
+     * Changes the tree, some of the parameter values and the operator counts and tuning.
+     */
+    private void move(int round) {
+        OperatorSchedule schedule = markovChain.getSchedule();
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            MCMCOperator operator = schedule.getOperator(i);
+            if (i == 0 || round % 2 == 0) {
+                try {
+                    operator.operate();
+                } catch (Exception e) {
+                    // an operator may fail on some moves; the state just stays as it was
+                }
+            }
+            operator.setAcceptCount(10 * round + i);
+            operator.setRejectCount(20 * round + i);
+            if (operator instanceof CoercableMCMCOperator) {
+                ((CoercableMCMCOperator) operator).setCoercableParameter(0.1 * round + i);
+            }
+        }
+        treeModel.acceptModelState();
+        birthRate.acceptParameterValues();
+    }
+
+    private String describe() {
+        StringBuilder sb = new StringBuilder();
+
+        for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+            sb.append(parameter.getParameterName()).append(Arrays.toString(parameter.getParameterValues()));
+        }
+
+        sb.append(" | root ").append(treeModel.getRoot().getNumber());
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            NodeRef node = treeModel.getNode(i);
+            NodeRef parent = treeModel.getParent(node);
+            sb.append(" ").append(i).append(":").append(parent == null ? -1 : parent.getNumber());
+            sb.append(":").append(treeModel.getNodeHeight(node));
+        }
+
+        OperatorSchedule schedule = markovChain.getSchedule();
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            MCMCOperator operator = schedule.getOperator(i);
+            sb.append(" | ").append(operator.getOperatorName());
+            sb.append(" ").append(operator.getAcceptCount()).append(" ").append(operator.getRejectCount());
+            if (operator instanceof CoercableMCMCOperator) {
+                sb.append(" ").append(((CoercableMCMCOperator) operator).getCoercableParameter());
+            }
+        }
+
+        sb.append(" | ").append(Arrays.toString(MathUtils.getRandomState()));
+        return sb.toString();
+    }
+
+    public static Test suite() {
+        return new TestSuite(BinaryCheckpointFileTest.class);
+    }
+}
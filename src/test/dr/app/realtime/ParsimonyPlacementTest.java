@@ -0,0 +1,78 @@
+package test.dr.app.realtime;
+
+import dr.app.realtime.ParsimonyPlacement;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+import dr.evolution.util.Taxon;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Checks that a new taxon is placed by the changes it shares with a clade rather than next to the
+ * taxon it differs least from.
+ */
+public class ParsimonyPlacementTest extends TestCase {
+
+    public ParsimonyPlacementTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        tree = new NewickImporter("((A:1,B:1):1,(C:1,D:1):1);").importTree(null);
+
+        // E shares the changes at the first three sites with C and D but C and D each have
+        // many changes of their own, so E differs least from A and B
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        alignment.addSequence(new Sequence(new Taxon("A"), "AAAAAAAAAAAAAAA"));
+        alignment.addSequence(new Sequence(new Taxon("B"), "AAAAAAAAAAAAAAA"));
+        alignment.addSequence(new Sequence(new Taxon("C"), "TTTGGGGGGAAAAAA"));
+        alignment.addSequence(new Sequence(new Taxon("D"), "TTTAAAAAACCCCCC"));
+        alignment.addSequence(new Sequence(new Taxon("E"), "TTTAAAAAAAAAAAA"));
+        alignment.addSequence(new Sequence(new Taxon("F"), "AAAAAAAAAAAAAAA"));
+        placement = new ParsimonyPlacement(new SitePatterns(alignment, null, 0, -1, 1, false));
+    }
+
+    public void testSharedChanges() {
+        NodeRef node = placement.findBestBranch(tree, new Taxon("E"), getTip("A"));
+
+        // along the branch above C and D or above either of them
+        Set<String> below = new TreeSet<String>(TreeUtils.getDescendantLeaves(tree, node));
+        assertTrue(below.toString(), new TreeSet<String>(Arrays.asList("C", "D")).containsAll(below));
+    }
+
+    public void testKeepsStart() {
+        // F is identical to A and B so no branch is better than the one it started from
+        NodeRef start = getTip("A");
+        assertSame(start, placement.findBestBranch(tree, new Taxon("F"), start));
+    }
+
+    private NodeRef getTip(String id) {
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            NodeRef node = tree.getExternalNode(i);
+            if (tree.getNodeTaxon(node).getId().equals(id)) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException(id);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ParsimonyPlacementTest.class);
+    }
+
+    private Tree tree;
+    private ParsimonyPlacement placement;
+}
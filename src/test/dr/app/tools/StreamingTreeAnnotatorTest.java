@@ -0,0 +1,230 @@
+package test.dr.app.tools;
+
+import dr.app.tools.StreamingTreeAnnotator;
+import dr.app.tools.TreeAnnotator;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that the streaming tree annotator writes the same summary tree as TreeAnnotator when there
+ * are fewer trees than values kept for the medians and HPD intervals, with one thread and several,
+ * and that the medians and HPD intervals stay close to the exact ones when there are more.
+ */
+public class StreamingTreeAnnotatorTest extends TestCase {
+
+    private static final int TREE_COUNT = 400;
+    private static final int BURNIN = 40;
+    private static final String[] TAXA = {"A", "B", "C", "D", "E", "F", "G"};
+    private static final String[] LOCATIONS = {"north", "south", "east"};
+
+    public StreamingTreeAnnotatorTest(String name) {
+        super(name);
+    }
+
+    public void testMedianHeights() throws Exception {
+        checkSameAsTreeAnnotator(TreeAnnotator.HeightsSummary.MEDIAN_HEIGHTS);
+    }
+
+    public void testMeanHeights() throws Exception {
+        checkSameAsTreeAnnotator(TreeAnnotator.HeightsSummary.MEAN_HEIGHTS);
+    }
+
+    public void testCommonAncestorHeights() throws Exception {
+        checkSameAsTreeAnnotator(TreeAnnotator.HeightsSummary.CA_HEIGHTS);
+    }
+
+    public void testThinnedSample() throws Exception {
+        // enough trees that the values of the common clades are thinned
+        final int treeCount = 3 * StreamingTreeAnnotator.DEFAULT_SAMPLE_SIZE;
+        File input = writeTrees(treeCount);
+
+        File expected = createTempFile(".tree");
+        new TreeAnnotator(BURNIN, -1, TreeAnnotator.HeightsSummary.MEDIAN_HEIGHTS, 0.0, new double[]{0.8},
+                TreeAnnotator.Target.MAX_CLADE_CREDIBILITY, null, input.getPath(), expected.getPath());
+        Map<String, Map<String, Object>> expectedNodes = readNodeAttributes(expected);
+
+        File output = createTempFile(".tree");
+        new StreamingTreeAnnotator(BURNIN, -1, TreeAnnotator.HeightsSummary.MEDIAN_HEIGHTS, 0.0, new double[]{0.8},
+                false, TreeAnnotator.Target.MAX_CLADE_CREDIBILITY, null, input.getPath(), output.getPath(), 3,
+                StreamingTreeAnnotator.DEFAULT_SAMPLE_SIZE);
+        Map<String, Map<String, Object>> nodes = readNodeAttributes(output);
+
+        assertEquals(expectedNodes.keySet(), nodes.keySet());
+        boolean thinned = false;
+        for (String clade : expectedNodes.keySet()) {
+            Map<String, Object> expectedAttributes = expectedNodes.get(clade);
+            Map<String, Object> attributes = nodes.get(clade);
+            for (String name : new String[]{"height", "rate"}) {
+                Object[] range = (Object[]) expectedAttributes.get(name + "_range");
+                if (range == null) {
+                    continue;
+                }
+                // the thinned sample is evenly spread over the values so its quantiles are within
+                // a few standard errors of the exact ones
+                double tolerance = 0.05 * (((Number) range[1]).doubleValue() - ((Number) range[0]).doubleValue());
+                assertEquals(clade + " " + name + "_median",
+                        ((Number) expectedAttributes.get(name + "_median")).doubleValue(),
+                        ((Number) attributes.get(name + "_median")).doubleValue(), tolerance);
+                Object[] expectedHPD = (Object[]) expectedAttributes.get(name + "_95%_HPD");
+                Object[] hpd = (Object[]) attributes.get(name + "_95%_HPD");
+                for (int i = 0; i < 2; i++) {
+                    assertEquals(clade + " " + name + "_95%_HPD",
+                            ((Number) expectedHPD[i]).doubleValue(), ((Number) hpd[i]).doubleValue(), tolerance);
+                }
+            }
+            Number posterior = (Number) expectedAttributes.get("posterior");
+            if (posterior != null && posterior.doubleValue() * (treeCount - BURNIN) > StreamingTreeAnnotator.DEFAULT_SAMPLE_SIZE) {
+                thinned = true;
+            }
+        }
+        assertTrue(thinned);
+    }
+
+    private void checkSameAsTreeAnnotator(TreeAnnotator.HeightsSummary heights) throws Exception {
+        File input = writeTrees(TREE_COUNT);
+
+        File expected = createTempFile(".tree");
+        new TreeAnnotator(BURNIN, -1, heights, 0.0, new double[]{0.8},
+                TreeAnnotator.Target.MAX_CLADE_CREDIBILITY, null, input.getPath(), expected.getPath());
+        Map<String, String> expectedNodes = describeNodes(expected);
+
+        for (int threads : new int[]{1, 3}) {
+            File output = createTempFile(".tree");
+            new StreamingTreeAnnotator(BURNIN, -1, heights, 0.0, new double[]{0.8}, false,
+                    TreeAnnotator.Target.MAX_CLADE_CREDIBILITY, null, input.getPath(), output.getPath(), threads,
+                    StreamingTreeAnnotator.DEFAULT_SAMPLE_SIZE);
+            Map<String, String> nodes = describeNodes(output);
+            assertEquals(expectedNodes.keySet(), nodes.keySet());
+            for (String clade : expectedNodes.keySet()) {
+                assertEquals(threads + " threads, clade " + clade, expectedNodes.get(clade), nodes.get(clade));
+            }
+        }
+    }
+
+    /**
+     * Writes trees whose topologies are drawn at random with a numerical and a discrete trait.
+     */
+    private File writeTrees(int treeCount) throws IOException {
+        Random random = new Random(666);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("#NEXUS\n\nBegin taxa;\n\tDimensions ntax=").append(TAXA.length).append(";\n\tTaxlabels");
+        for (String taxon : TAXA) {
+            sb.append(" ").append(taxon);
+        }
+        sb.append(";\nEnd;\n\nBegin trees;\n\tTranslate\n");
+        for (int i = 0; i < TAXA.length; i++) {
+            sb.append("\t\t").append(i + 1).append(" ").append(TAXA[i]).append(i < TAXA.length - 1 ? ",\n" : "\n\t\t;\n");
+        }
+
+        for (int tree = 0; tree < treeCount; tree++) {
+            // the clades and heights of the nodes still to be joined
+            List<String> clades = new ArrayList<String>();
+            List<Double> heights = new ArrayList<Double>();
+            for (int i = 0; i < TAXA.length; i++) {
+                clades.add(Integer.toString(i + 1));
+                heights.add(0.0);
+            }
+            double height = 0.0;
+            while (clades.size() > 1) {
+                // the first taxa tend to be joined first so some clades are much more common than others
+                int first = Math.min(random.nextInt(clades.size()), random.nextInt(clades.size()));
+                String left = clades.remove(first);
+                double leftHeight = heights.remove(first);
+                int second = Math.min(random.nextInt(clades.size()), random.nextInt(clades.size()));
+                String right = clades.remove(second);
+                double rightHeight = heights.remove(second);
+
+                height += random.nextDouble();
+                clades.add(0, "(" + annotate(left, height - leftHeight, random) + ","
+                        + annotate(right, height - rightHeight, random) + ")");
+                heights.add(0, height);
+            }
+            sb.append("tree STATE_").append(tree * 1000).append(" = [&R] ").append(clades.get(0))
+                    .append("[&rate=").append(drawRate(random)).append(",location=\"north\"];\n");
+        }
+        sb.append("End;\n");
+
+        File file = createTempFile(".trees");
+        Writer writer = new FileWriter(file);
+        writer.write(sb.toString());
+        writer.close();
+        return file;
+    }
+
+    private String annotate(String clade, double length, Random random) {
+        return clade + "[&rate=" + drawRate(random) + ",location=\"" + LOCATIONS[random.nextInt(LOCATIONS.length)]
+                + "\"]:" + length;
+    }
+
+    /**
+     * @return a rate with a unimodal (lognormal) distribution so that its HPD interval is well defined
+     */
+    private static double drawRate(Random random) {
+        return Math.exp(0.5 * random.nextGaussian());
+    }
+
+    private File createTempFile(String suffix) throws IOException {
+        File file = File.createTempFile("annotator", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * @return the height and the attributes, in order of their names, of each node of the
+     *         annotated tree keyed by the taxa below it
+     */
+    private Map<String, String> describeNodes(File file) throws Exception {
+        Tree tree = new NexusImporter(new FileReader(file)).importNextTree();
+        Map<String, String> nodes = new TreeMap<String, String>();
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            Set<String> taxa = new TreeSet<String>(TreeUtils.getDescendantLeaves(tree, node));
+            StringBuilder sb = new StringBuilder();
+            sb.append("height=").append(tree.getNodeHeight(node));
+            Set<String> names = new TreeSet<String>();
+            Iterator<String> iter = tree.getNodeAttributeNames(node);
+            while (iter != null && iter.hasNext()) {
+                names.add(iter.next());
+            }
+            for (String name : names) {
+                Object value = tree.getNodeAttribute(node, name);
+                sb.append(" ").append(name).append("=");
+                sb.append(value instanceof Object[] ? Arrays.toString((Object[]) value) : value);
+            }
+            nodes.put(taxa.toString(), sb.toString());
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the attributes of each node of the annotated tree keyed by the taxa below it
+     */
+    private Map<String, Map<String, Object>> readNodeAttributes(File file) throws Exception {
+        Tree tree = new NexusImporter(new FileReader(file)).importNextTree();
+        Map<String, Map<String, Object>> nodes = new TreeMap<String, Map<String, Object>>();
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            Map<String, Object> attributes = new HashMap<String, Object>();
+            Iterator<String> iter = tree.getNodeAttributeNames(node);
+            while (iter != null && iter.hasNext()) {
+                String name = iter.next();
+                attributes.put(name, tree.getNodeAttribute(node, name));
+            }
+            nodes.put(new TreeSet<String>(TreeUtils.getDescendantLeaves(tree, node)).toString(), attributes);
+        }
+        return nodes;
+    }
+
+    public static Test suite() {
+        return new TestSuite(StreamingTreeAnnotatorTest.class);
+    }
+}
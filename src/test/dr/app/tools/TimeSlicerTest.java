@@ -0,0 +1,156 @@
+package test.dr.app.tools;
+
+import dr.app.tools.TimeSlicer;
+import dr.geo.contouring.ContourMode;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the time slicer writes the same slices and the same contoured summaries whether the
+ * trees are analyzed on one thread or several.
+ */
+public class TimeSlicerTest extends TestCase {
+
+    private static final int TREE_COUNT = 230;
+    private static final int TAXON_COUNT = 8;
+    private static final double[] SLICE_HEIGHTS = {0.5, 1.5, 3.0};
+
+    public TimeSlicerTest(String name) {
+        super(name);
+    }
+
+    public void tearDown() throws Exception {
+        System.clearProperty(TimeSlicer.THREADS);
+        super.tearDown();
+    }
+
+    public void testSlices() throws Exception {
+        File input = writeTrees();
+        File output = createTempFile(".txt");
+        String expected = runTimeSlicer(input, output, 1, false);
+        assertTrue(expected.length() > 0);
+        assertEquals(expected, runTimeSlicer(input, output, 3, false));
+    }
+
+    public void testSummary() throws Exception {
+        File input = writeTrees();
+        // the file name is written in the summary so both go to the same file
+        File output = createTempFile(".kml");
+        String expected = runTimeSlicer(input, output, 1, true);
+        assertTrue(expected.contains("Polygon"));
+        assertEquals(expected, runTimeSlicer(input, output, 3, true));
+    }
+
+    private String runTimeSlicer(File input, File output, int threads, boolean summaryOnly) throws IOException {
+        System.setProperty(TimeSlicer.THREADS, Integer.toString(threads));
+        TimeSlicer timeSlicer = new TimeSlicer(input.getPath(), 30, 1, new String[]{"location"}, SLICE_HEIGHTS,
+                false, true, 0.0, ContourMode.SNYDER, TimeSlicer.SliceMode.BRANCHES, true, false,
+                TimeSlicer.Normalization.LENGTH, false, false, null, false, TimeSlicer.BranchSet.ALL, null, 50,
+                -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, null, "rate");
+
+        timeSlicer.output(output.getPath(), summaryOnly, true, false, true, false, TimeSlicer.OutputFormat.KML,
+                new double[]{0.8}, null, null);
+
+        StringBuilder sb = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(output));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sb.append(line).append("\n");
+        }
+        reader.close();
+        return sb.toString();
+    }
+
+    /**
+     * Writes random trees with a two dimensional location at every node which diffuses down the tree.
+     */
+    private File writeTrees() throws IOException {
+        Random random = new Random(666);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("#NEXUS\n\nBegin taxa;\n\tDimensions ntax=").append(TAXON_COUNT).append(";\n\tTaxlabels");
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            sb.append(" t").append(i);
+        }
+        sb.append(";\nEnd;\n\nBegin trees;\n");
+
+        for (int tree = 0; tree < TREE_COUNT; tree++) {
+            List<Node> nodes = new ArrayList<Node>();
+            for (int i = 0; i < TAXON_COUNT; i++) {
+                nodes.add(new Node("t" + i, 0.0));
+            }
+            double height = 0.0;
+            while (nodes.size() > 1) {
+                Node left = nodes.remove(random.nextInt(nodes.size()));
+                Node right = nodes.remove(random.nextInt(nodes.size()));
+                height += random.nextDouble();
+                Node parent = new Node(null, height);
+                parent.left = left;
+                parent.right = right;
+                nodes.add(parent);
+            }
+            Node root = nodes.get(0);
+            root.latitude = random.nextGaussian();
+            root.longitude = random.nextGaussian();
+            sb.append("tree STATE_").append(tree * 1000).append(" = [&R] ");
+            write(root, random, sb);
+            sb.append(";\n");
+        }
+        sb.append("End;\n");
+
+        File file = createTempFile(".trees");
+        Writer writer = new FileWriter(file);
+        writer.write(sb.toString());
+        writer.close();
+        return file;
+    }
+
+    private void write(Node node, Random random, StringBuilder sb) {
+        if (node.left != null) {
+            sb.append("(");
+            for (Node child : new Node[]{node.left, node.right}) {
+                double length = node.height - child.height;
+                double sd = Math.sqrt(length);
+                child.latitude = node.latitude + random.nextGaussian() * sd;
+                child.longitude = node.longitude + random.nextGaussian() * sd;
+                write(child, random, sb);
+                sb.append(":").append(length);
+                sb.append(child == node.left ? "," : ")");
+            }
+        } else {
+            sb.append(node.taxon);
+        }
+        sb.append("[&rate=").append(0.5 + random.nextDouble())
+                .append(",location={").append(node.latitude).append(",").append(node.longitude).append("}]");
+    }
+
+    private File createTempFile(String suffix) throws IOException {
+        File file = File.createTempFile("timeslicer", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static class Node {
+        Node(String taxon, double height) {
+            this.taxon = taxon;
+            this.height = height;
+        }
+
+        final String taxon;
+        final double height;
+        Node left;
+        Node right;
+        double latitude;
+        double longitude;
+    }
+
+    public static Test suite() {
+        return new TestSuite(TimeSlicerTest.class);
+    }
+}
@@ -0,0 +1,116 @@
+package test.dr.evolution;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.distance.DistanceMatrix;
+import dr.evolution.distance.F84DistanceMatrix;
+import dr.evolution.distance.JukesCantorDistanceMatrix;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Random;
+
+/**
+ * Checks that distances calculated one row at a time agree with the full distance matrix, including
+ * distances that have been set rather than calculated.
+ */
+public class DistanceMatrixRowTest extends TestCase {
+
+    public DistanceMatrixRowTest(String name) {
+        super(name);
+    }
+
+    public void testRows() {
+        final int taxonCount = 10;
+        final int siteCount = 500;
+        final String states = "ACGT-";
+
+        Random random = new Random(1234);
+
+        // mutate a common ancestor so that the distances stay finite
+        char[] ancestor = new char[siteCount];
+        for (int i = 0; i < siteCount; i++) {
+            ancestor[i] = states.charAt(random.nextInt(4));
+        }
+
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int j = 0; j < taxonCount; j++) {
+            char[] sequence = ancestor.clone();
+            for (int i = 0; i < siteCount; i++) {
+                if (random.nextDouble() < 0.1) {
+                    sequence[i] = states.charAt(random.nextInt(states.length()));
+                }
+            }
+            alignment.addSequence(new Sequence(new Taxon("taxon" + j), new String(sequence)));
+        }
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, false);
+
+        DistanceMatrix[] rowMatrices = new DistanceMatrix[]{
+                new DistanceMatrix(patterns), new JukesCantorDistanceMatrix(patterns), new F84DistanceMatrix(patterns)
+        };
+        DistanceMatrix[] fullMatrices = new DistanceMatrix[]{
+                new DistanceMatrix(patterns), new JukesCantorDistanceMatrix(patterns), new F84DistanceMatrix(patterns)
+        };
+
+        for (int k = 0; k < rowMatrices.length; k++) {
+            // rows in a scrambled order so that later rows reuse the cached ones
+            for (int i = taxonCount - 1; i >= 0; i -= 2) {
+                checkRow(rowMatrices[k], fullMatrices[k], i);
+            }
+            for (int i = 0; i < taxonCount; i += 2) {
+                checkRow(rowMatrices[k], fullMatrices[k], i);
+            }
+        }
+    }
+
+    public void testSetElements() {
+        Taxa taxa = new Taxa();
+        for (int j = 0; j < 4; j++) {
+            taxa.addTaxon(new Taxon("taxon" + j));
+        }
+
+        // distances that are given rather than calculated from patterns
+        DistanceMatrix given = new DistanceMatrix(taxa);
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                given.setElement(i, j, i == j ? 0.0 : i + j);
+            }
+        }
+        double[] row = given.getRow(2);
+        for (int j = 0; j < 4; j++) {
+            assertEquals(given.getElement(2, j), row[j], 0.0);
+        }
+    }
+
+    public void testOverwrittenElement() {
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        alignment.addSequence(new Sequence(new Taxon("taxon0"), "ACGTACGTAC"));
+        alignment.addSequence(new Sequence(new Taxon("taxon1"), "ACGTACGTAA"));
+        alignment.addSequence(new Sequence(new Taxon("taxon2"), "ACGTACTTAA"));
+        DistanceMatrix matrix = new DistanceMatrix(new SitePatterns(alignment, null, 0, -1, 1, false));
+
+        // an element set after the patterns replaces the calculated distance
+        matrix.setElement(1, 2, 0.75);
+        assertEquals(0.75, matrix.getRow(1)[2], 0.0);
+        assertEquals(matrix.getElement(1, 0), matrix.getRow(1)[0], 0.0);
+    }
+
+    private void checkRow(DistanceMatrix rowMatrix, DistanceMatrix fullMatrix, int row) {
+        double[] distances = rowMatrix.getRow(row);
+        assertEquals(fullMatrix.getColumnCount(), distances.length);
+        for (int j = 0; j < distances.length; j++) {
+            assertEquals(fullMatrix.getElement(row, j), distances[j], 1E-12);
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(DistanceMatrixRowTest.class);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * ParallelTreeImporterTest.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evolution;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.io.ParallelTreeImporter;
+import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checks that ParallelTreeImporter reads the same trees as NexusImporter and NewickImporter.
+ */
+public class ParallelTreeImporterTest extends TestCase {
+
+    private static final int TREE_COUNT = 500;
+
+    public ParallelTreeImporterTest(String name) {
+        super(name);
+    }
+
+    public void tearDown() throws Exception {
+        System.clearProperty(ParallelTreeImporter.THREADS);
+        super.tearDown();
+    }
+
+    public void testNexus() throws Exception {
+        File file = writeNexusFile();
+
+        for (String threads : new String[]{"1", "3"}) {
+            System.setProperty(ParallelTreeImporter.THREADS, threads);
+            assertEquals(describe(new NexusImporter(new FileReader(file))),
+                    describe(new ParallelTreeImporter(file)));
+            assertEquals(describe(new NexusImporter(new FileReader(file), true)),
+                    describe(new ParallelTreeImporter(file, true)));
+        }
+    }
+
+    public void testTreePositions() throws Exception {
+        File file = writeNexusFile();
+
+        ParallelTreeImporter importer = new ParallelTreeImporter(file, false, 3);
+        List<String> trees = new ArrayList<String>();
+        List<Long> positions = new ArrayList<Long>();
+        while (importer.hasTree()) {
+            trees.add(describe(importer.importNextTree()));
+            positions.add(importer.getTreePosition());
+        }
+        assertEquals(TREE_COUNT, trees.size());
+
+        // read some of them again, out of order, with a new importer
+        ParallelTreeImporter reader = new ParallelTreeImporter(file, false, 1);
+        for (int i = TREE_COUNT - 1; i >= 0; i -= 37) {
+            assertEquals(trees.get(i), describe(reader.importTreeAt(positions.get(i))));
+        }
+    }
+
+    public void testClose() throws Exception {
+        File file = writeNexusFile();
+
+        ParallelTreeImporter importer = new ParallelTreeImporter(file, false, 3);
+        assertNotNull(importer.importNextTree());
+        long position = importer.getTreePosition();
+        importer.close();
+
+        // the mapped file has been let go so the importer can't be used again
+        try {
+            importer.importTreeAt(position);
+            fail("Read a tree after the importer was closed");
+        } catch (IOException ioe) {
+            // expected
+        }
+        try {
+            importer.hasTree();
+            fail("Read a tree after the importer was closed");
+        } catch (IOException ioe) {
+            // expected
+        }
+    }
+
+    private File writeNexusFile() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("#NEXUS\n[ a comment; with a semicolon ]\n");
+        sb.append("Begin taxa;\n\tDimensions ntax=4;\n\tTaxlabels A B 'C;d' D;\nEnd;\n\n");
+        sb.append("Begin trees;\n\tTranslate\n\t\t1 A,\n\t\t2 B,\n\t\t3 'C;d',\n\t\t4 D\n\t\t;\n");
+        for (int i = 0; i < TREE_COUNT; i++) {
+            sb.append("tree STATE_").append(i * 1000).append(" [&lnP=").append(-100.0 - i * 0.125)
+                    .append("] = [&R] ((1[&rate=").append(i % 7).append("]:").append(0.5 + i % 3)
+                    .append(",3:1.25)[&rate=0.5,set={1,2}]:").append(1.0 / (i + 1))
+                    .append(",(2:0.75,4:").append(i % 5 + 0.5).append("):1.0);\n");
+        }
+        sb.append("End;\n");
+        return writeFile(sb.toString(), ".trees");
+    }
+
+    public void testNewick() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < TREE_COUNT; i++) {
+            sb.append("((A:").append(i % 4 + 1).append(",B:2):1,'C d':").append(1.0 / (i + 1)).append(");\n");
+        }
+        File file = writeFile(sb.toString(), ".tre");
+
+        System.setProperty(ParallelTreeImporter.THREADS, "3");
+        assertEquals(describe(new NewickImporter(new FileReader(file))), describe(new ParallelTreeImporter(file)));
+    }
+
+    private File writeFile(String text, String suffix) throws IOException {
+        File file = File.createTempFile("trees", suffix);
+        file.deleteOnExit();
+        Writer writer = new FileWriter(file);
+        writer.write(text);
+        writer.close();
+        return file;
+    }
+
+    private List<String> describe(TreeImporter importer) throws Exception {
+        List<String> trees = new ArrayList<String>();
+        while (importer.hasTree()) {
+            trees.add(describe(importer.importNextTree()));
+        }
+        assertEquals(TREE_COUNT, trees.size());
+        return trees;
+    }
+
+    private String describe(Tree tree) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(tree.getId()).append(" ").append(TreeUtils.newick(tree));
+        appendAttributes(sb, tree.getAttributeNames(), tree, null);
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            sb.append(" | ").append(tree.getNodeHeight(node));
+            if (tree.isExternal(node)) {
+                sb.append(" ").append(tree.getNodeTaxon(node).getId());
+            }
+            appendAttributes(sb, tree.getNodeAttributeNames(node), tree, node);
+        }
+        return sb.toString();
+    }
+
+    private void appendAttributes(StringBuilder sb, Iterator<String> names, Tree tree, NodeRef node) {
+        while (names != null && names.hasNext()) {
+            String name = names.next();
+            Object value = (node == null ? tree.getAttribute(name) : tree.getNodeAttribute(node, name));
+            sb.append(" ").append(name).append("=");
+            if (value instanceof Object[]) {
+                sb.append(java.util.Arrays.toString((Object[]) value));
+            } else {
+                sb.append(value);
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(ParallelTreeImporterTest.class);
+    }
+}
@@ -0,0 +1,86 @@
+package test.dr.evolution;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxon;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that compressing an alignment into unique site patterns gives the patterns in
+ * order of first occurrence with the correct weights and site to pattern mapping.
+ */
+public class SitePatternsTest extends TestCase {
+
+    public SitePatternsTest(String name) {
+        super(name);
+    }
+
+    public void testPatternCompression() {
+        final int taxonCount = 12;
+        final int siteCount = 3000;
+        final String states = "ACGT-";
+
+        Random random = new Random(1234);
+
+        // draw the sites from a small pool of columns so that there are many duplicates
+        char[][] pool = new char[200][taxonCount];
+        for (char[] column : pool) {
+            for (int j = 0; j < taxonCount; j++) {
+                column[j] = states.charAt(random.nextInt(random.nextBoolean() ? 1 : states.length()));
+            }
+        }
+
+        StringBuilder[] sequences = new StringBuilder[taxonCount];
+        for (int j = 0; j < taxonCount; j++) {
+            sequences[j] = new StringBuilder();
+        }
+        for (int i = 0; i < siteCount; i++) {
+            char[] column = pool[random.nextInt(pool.length)];
+            for (int j = 0; j < taxonCount; j++) {
+                sequences[j].append(column[j]);
+            }
+        }
+
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int j = 0; j < taxonCount; j++) {
+            alignment.addSequence(new Sequence(new Taxon("taxon" + j), sequences[j].toString()));
+        }
+
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, false);
+
+        // the expected result by a linear search over previously seen patterns
+        List<int[]> expectedPatterns = new ArrayList<int[]>();
+        List<Double> expectedWeights = new ArrayList<Double>();
+        for (int i = 0; i < siteCount; i++) {
+            int[] pattern = alignment.getSitePattern(i);
+            int index = -1;
+            for (int k = 0; k < expectedPatterns.size(); k++) {
+                if (Arrays.equals(expectedPatterns.get(k), pattern)) {
+                    index = k;
+                    break;
+                }
+            }
+            if (index < 0) {
+                index = expectedPatterns.size();
+                expectedPatterns.add(pattern);
+                expectedWeights.add(0.0);
+            }
+            expectedWeights.set(index, expectedWeights.get(index) + 1.0);
+            assertEquals(index, patterns.getPatternIndex(i));
+        }
+
+        assertEquals(expectedPatterns.size(), patterns.getPatternCount());
+        for (int k = 0; k < expectedPatterns.size(); k++) {
+            assertTrue(Arrays.equals(expectedPatterns.get(k), patterns.getPattern(k)));
+            assertEquals(expectedWeights.get(k), patterns.getPatternWeight(k), 0.0);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * TreeIntervalsTest.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evolution;
+
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.coalescent.TreeIntervals;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashSet;
+
+/**
+ * Checks that intervals which are updated as nodes move are the same as
+ * those calculated from scratch.
+ */
+public class TreeIntervalsTest extends TestCase {
+
+    private static final int TAXON_COUNT = 200;
+    private static final int MOVE_COUNT = 500;
+
+    public TreeIntervalsTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + i));
+        }
+        ConstantPopulation demo = new ConstantPopulation(Units.Type.YEARS);
+        demo.setN0(10.0);
+        tree = new FlexibleTree(new CoalescentSimulator().simulateTree(taxa, demo));
+    }
+
+    public void testReportedChanges() {
+        TreeIntervals intervals = new TreeIntervals(tree);
+        intervals.getIntervalCount();
+
+        for (int i = 0; i < MOVE_COUNT; i++) {
+            intervals.setNodeChanged(moveNode());
+            checkIntervals(intervals);
+        }
+    }
+
+    public void testUnreportedChanges() {
+        TreeIntervals intervals = new TreeIntervals(tree);
+        intervals.getIntervalCount();
+
+        for (int i = 0; i < MOVE_COUNT; i++) {
+            // several moves at once
+            for (int j = 0; j <= i % 5; j++) {
+                moveNode();
+            }
+            intervals.setIntervalsUnknown();
+            checkIntervals(intervals);
+        }
+    }
+
+    public void testStoreRestore() {
+        TreeIntervals intervals = new TreeIntervals(tree);
+        intervals.getIntervalCount();
+
+        for (int i = 0; i < MOVE_COUNT; i++) {
+            intervals.storeState();
+
+            NodeRef node = pickNode();
+            double height = tree.getNodeHeight(node);
+            moveNode(node);
+            intervals.setNodeChanged(node);
+            checkIntervals(intervals);
+
+            if (i % 2 == 0) {
+                tree.setNodeHeight(node, height);
+                intervals.restoreState();
+                checkIntervals(intervals);
+            }
+        }
+    }
+
+    private NodeRef pickNode() {
+        NodeRef node;
+        do {
+            node = tree.getInternalNode(MathUtils.nextInt(tree.getInternalNodeCount()));
+        } while (tree.isRoot(node));
+        return node;
+    }
+
+    private NodeRef moveNode() {
+        NodeRef node = pickNode();
+        moveNode(node);
+        return node;
+    }
+
+    private void moveNode(NodeRef node) {
+        double lower = Math.max(tree.getNodeHeight(tree.getChild(node, 0)), tree.getNodeHeight(tree.getChild(node, 1)));
+        double upper = tree.getNodeHeight(tree.getParent(node));
+        tree.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+    }
+
+    private void checkIntervals(TreeIntervals intervals) {
+        TreeIntervals expected = new TreeIntervals(tree);
+
+        assertEquals(expected.getIntervalCount(), intervals.getIntervalCount());
+        for (int i = 0; i < expected.getIntervalCount(); i++) {
+            assertEquals(expected.getInterval(i), intervals.getInterval(i), 0.0);
+            assertEquals(expected.getLineageCount(i), intervals.getLineageCount(i));
+            // the order of the (zero length) intervals between tips of the same age is arbitrary
+            if (expected.getInterval(i) > 0.0) {
+                assertEquals(new HashSet(expected.getLineages(i)), new HashSet(intervals.getLineages(i)));
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(TreeIntervalsTest.class);
+    }
+
+    private FlexibleTree tree;
+}
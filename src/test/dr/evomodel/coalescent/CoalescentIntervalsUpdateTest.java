@@ -0,0 +1,210 @@
+/*
+ * CoalescentIntervalsUpdateTest.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evomodel.coalescent;
+
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.CoalescentLikelihood;
+import dr.evomodel.coalescent.ConstantPopulationModel;
+import dr.evomodel.coalescent.GMRFSkyrideLikelihood;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the coalescent likelihoods, which update their intervals as nodes move, give
+ * the same values as when the intervals are built from scratch, including after rejected moves.
+ */
+public class CoalescentIntervalsUpdateTest extends TestCase {
+
+    private static final int TAXON_COUNT = 50;
+    private static final int MOVE_COUNT = 500;
+    private static final double TOLERANCE = 1E-10;
+
+    public CoalescentIntervalsUpdateTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + i));
+        }
+        ConstantPopulation demo = new ConstantPopulation(Units.Type.YEARS);
+        demo.setN0(10.0);
+        FlexibleTree tree = new FlexibleTree(new CoalescentSimulator().simulateTree(taxa, demo));
+
+        // make some of the tips younger so there are sampling intervals
+        for (int i = 0; i < tree.getExternalNodeCount(); i += 3) {
+            NodeRef tip = tree.getExternalNode(i);
+            tree.setNodeHeight(tip, MathUtils.nextDouble() * 0.5 * tree.getNodeHeight(tree.getParent(tip)));
+        }
+
+        treeModel = new TreeModel("tree", tree);
+    }
+
+    public void testCoalescentLikelihood() throws Exception {
+        ConstantPopulationModel demoModel = new ConstantPopulationModel(new Parameter.Default(10.0), Units.Type.YEARS);
+        CoalescentLikelihood likelihood = new CoalescentLikelihood(treeModel, null, null, demoModel);
+
+        for (int i = 0; i < MOVE_COUNT; i++) {
+            likelihood.storeModelState();
+            proposeMove();
+            checkCoalescentLikelihood(likelihood, demoModel);
+
+            if (MathUtils.nextBoolean()) {
+                likelihood.restoreModelState();
+                checkCoalescentLikelihood(likelihood, demoModel);
+            } else {
+                likelihood.acceptModelState();
+            }
+        }
+    }
+
+    public void testGMRFSkyrideLikelihood() {
+        Parameter popSize = new Parameter.Default(TAXON_COUNT - 1, 1.0);
+        for (int i = 0; i < popSize.getDimension(); i++) {
+            popSize.setParameterValue(i, MathUtils.nextGaussian());
+        }
+        Parameter precision = new Parameter.Default(2.0);
+        Parameter lambda = new Parameter.Default(1.0);
+        GMRFSkyrideLikelihood likelihood = new GMRFSkyrideLikelihood(treeModel, popSize, null, precision, lambda,
+                null, null, true, true);
+
+        for (int i = 0; i < MOVE_COUNT; i++) {
+            likelihood.storeModelState();
+            proposeMove();
+            checkGMRFSkyrideLikelihood(likelihood);
+
+            if (MathUtils.nextBoolean()) {
+                likelihood.restoreModelState();
+                checkGMRFSkyrideLikelihood(likelihood);
+            } else {
+                likelihood.acceptModelState();
+            }
+        }
+
+        GMRFSkyrideLikelihood expected = new GMRFSkyrideLikelihood(new FlexibleTree(treeModel), popSize, null,
+                precision, lambda, null, null, true, true);
+        assertEquals(expected.getLogLikelihood(), likelihood.getLogLikelihood(), TOLERANCE);
+    }
+
+    private void checkCoalescentLikelihood(CoalescentLikelihood likelihood, ConstantPopulationModel demoModel)
+            throws Exception {
+        // including all the taxa as a subtree makes the intervals be collected from scratch
+        CoalescentLikelihood expected = new CoalescentLikelihood(new FlexibleTree(treeModel), taxa, null, demoModel);
+
+        assertEquals(expected.getLogLikelihood(), likelihood.getLogLikelihood(), TOLERANCE);
+    }
+
+    private void checkGMRFSkyrideLikelihood(GMRFSkyrideLikelihood likelihood) {
+        likelihood.getLogLikelihood();
+
+        int intervalCount = likelihood.getIntervalCount();
+        double[] intervals = new double[intervalCount];
+        int[] lineageCounts = new int[intervalCount];
+        for (int i = 0; i < intervalCount; i++) {
+            intervals[i] = likelihood.getInterval(i);
+            lineageCounts[i] = likelihood.getLineageCount(i);
+        }
+
+        // collect and sort the node heights from scratch
+        likelihood.setupIntervals();
+
+        assertEquals(likelihood.getIntervalCount(), intervalCount);
+        for (int i = 0; i < intervalCount; i++) {
+            assertEquals(likelihood.getInterval(i), intervals[i], TOLERANCE);
+            assertEquals(likelihood.getLineageCount(i), lineageCounts[i]);
+        }
+    }
+
+    /**
+     * Moves the height of a node or exchanges a node with its uncle.
+     */
+    private void proposeMove() {
+        NodeRef node;
+        do {
+            node = treeModel.getNode(MathUtils.nextInt(treeModel.getNodeCount()));
+        } while (treeModel.isRoot(node));
+
+        if (MathUtils.nextInt(4) == 0) {
+            exchangeWithUncle(node);
+        } else {
+            double lower = 0.0;
+            for (int i = 0; i < treeModel.getChildCount(node); i++) {
+                lower = Math.max(lower, treeModel.getNodeHeight(treeModel.getChild(node, i)));
+            }
+            double upper = treeModel.getNodeHeight(treeModel.getParent(node));
+            treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+        }
+    }
+
+    private void exchangeWithUncle(NodeRef node) {
+        NodeRef parent = treeModel.getParent(node);
+        if (treeModel.isRoot(parent)) {
+            return;
+        }
+        NodeRef grandParent = treeModel.getParent(parent);
+        NodeRef uncle = getOtherChild(treeModel, grandParent, parent);
+        if (treeModel.getNodeHeight(uncle) >= treeModel.getNodeHeight(parent)) {
+            return;
+        }
+
+        treeModel.beginTreeEdit();
+        treeModel.removeChild(parent, node);
+        treeModel.removeChild(grandParent, uncle);
+        treeModel.addChild(parent, uncle);
+        treeModel.addChild(grandParent, node);
+        treeModel.endTreeEdit();
+    }
+
+    private static NodeRef getOtherChild(Tree tree, NodeRef parent, NodeRef child) {
+        if (tree.getChild(parent, 0) == child) {
+            return tree.getChild(parent, 1);
+        }
+        return tree.getChild(parent, 0);
+    }
+
+    public static Test suite() {
+        return new TestSuite(CoalescentIntervalsUpdateTest.class);
+    }
+
+    private Taxa taxa;
+    private TreeModel treeModel;
+}
@@ -0,0 +1,183 @@
+/*
+ * GMRFPrecisionMatrixTest.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evomodel.coalescent;
+
+import dr.evomodel.coalescent.GMRFPrecisionMatrix;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import no.uib.cipr.matrix.BandCholesky;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.SymmTridiagMatrix;
+import no.uib.cipr.matrix.UpperSPDBandMatrix;
+import no.uib.cipr.matrix.UpperTriangBandMatrix;
+
+import java.util.Random;
+
+/**
+ * Compares the primitive GMRF precision matrix factorization and solves with those of MTJ.
+ */
+public class GMRFPrecisionMatrixTest extends TestCase {
+
+    private static final int DIMENSION = 25;
+    private static final double TOLERANCE = 1E-10;
+
+    public GMRFPrecisionMatrixTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        random = new Random(666);
+
+        // a time-aware first order random walk
+        double[] offDiagonal = new double[DIMENSION - 1];
+        double[] diagonal = new double[DIMENSION];
+        for (int i = 0; i < DIMENSION - 1; i++) {
+            offDiagonal[i] = -2.0 / (0.1 + random.nextDouble());
+        }
+        for (int i = 1; i < DIMENSION - 1; i++) {
+            diagonal[i] = -(offDiagonal[i] + offDiagonal[i - 1]);
+        }
+        diagonal[0] = -offDiagonal[0];
+        diagonal[DIMENSION - 1] = -offDiagonal[DIMENSION - 2];
+
+        weights = new SymmTridiagMatrix(diagonal, offDiagonal);
+    }
+
+    public void testFactorAndSolve() {
+        checkFactorAndSolve(2.5, 1.0);
+        checkFactorAndSolve(0.7, 0.4);
+    }
+
+    private void checkFactorAndSolve(double precision, double lambda) {
+        GMRFPrecisionMatrix matrix = new GMRFPrecisionMatrix(DIMENSION);
+        matrix.setScaledWeights(weights, precision, lambda);
+
+        double[] extra = new double[DIMENSION];
+        double[] b = new double[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            extra[i] = random.nextDouble() * 3.0;
+            b[i] = random.nextGaussian();
+        }
+
+        // the reference, as the block update operators used to do it
+        UpperSPDBandMatrix qw = new UpperSPDBandMatrix(getScaledWeights(precision, lambda), 1);
+        double[] x = new double[DIMENSION];
+        double[] y = new double[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            x[i] = random.nextGaussian();
+        }
+        DenseVector qx = new DenseVector(DIMENSION);
+        qw.mult(new DenseVector(x), qx);
+        matrix.multiply(x, y);
+        for (int i = 0; i < DIMENSION; i++) {
+            assertEquals(qx.get(i), y[i], TOLERANCE);
+        }
+        assertEquals(new DenseVector(x).dot(qx), matrix.getQuadraticForm(x), TOLERANCE);
+
+        for (int i = 0; i < DIMENSION; i++) {
+            qw.set(i, i, qw.get(i, i) + extra[i]);
+        }
+        BandCholesky cholesky = new BandCholesky(DIMENSION, 1, true);
+        cholesky.factor(qw.copy());
+        UpperTriangBandMatrix u = cholesky.getU();
+
+        assertTrue(matrix.factor(extra));
+
+        double logDeterminant = 0.0;
+        for (int i = 0; i < DIMENSION; i++) {
+            logDeterminant += Math.log(u.get(i, i));
+        }
+        assertEquals(logDeterminant, matrix.getLogGeneralizedDeterminant(), TOLERANCE);
+
+        DenseVector temp = new DenseVector(DIMENSION);
+        DenseVector expected = new DenseVector(DIMENSION);
+        u.transSolve(new DenseVector(b), temp);
+        u.solve(temp, expected);
+        matrix.solve(b, y);
+        for (int i = 0; i < DIMENSION; i++) {
+            assertEquals(expected.get(i), y[i], TOLERANCE);
+        }
+
+        u.solve(new DenseVector(b), expected);
+        matrix.backSolve(b, y);
+        for (int i = 0; i < DIMENSION; i++) {
+            assertEquals(expected.get(i), y[i], TOLERANCE);
+        }
+
+        qw.mult(new DenseVector(x), qx);
+        assertEquals(new DenseVector(x).dot(qx), matrix.getFactoredQuadraticForm(x), TOLERANCE);
+    }
+
+    public void testFindMode() {
+        GMRFPrecisionMatrix matrix = new GMRFPrecisionMatrix(DIMENSION);
+        matrix.setScaledWeights(weights, 3.0, 1.0);
+
+        double[] data1 = new double[DIMENSION];
+        double[] data2 = new double[DIMENSION];
+        double[] offset = new double[DIMENSION];
+        double[] start = new double[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            data1[i] = 1.0;
+            data2[i] = Math.exp(1.0 + random.nextDouble());
+            offset[i] = 0.1 * random.nextGaussian();
+        }
+
+        double[] mode = new double[DIMENSION];
+        int iterations = matrix.findMode(data1, data2, offset, start, mode, 200, 1E-8);
+        assertTrue(iterations > 0 && iterations <= 200);
+
+        // the gradient of the log density vanishes at the mode
+        double[] q = new double[DIMENSION];
+        double[] difference = new double[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            difference[i] = mode[i] - offset[i];
+        }
+        matrix.multiply(difference, q);
+        for (int i = 0; i < DIMENSION; i++) {
+            assertEquals(0.0, -q[i] - data1[i] + data2[i] * Math.exp(-mode[i]), 1E-7);
+        }
+    }
+
+    private SymmTridiagMatrix getScaledWeights(double precision, double lambda) {
+        SymmTridiagMatrix a = weights.copy();
+        for (int i = 0; i < DIMENSION - 1; i++) {
+            a.set(i, i, precision * (1 - lambda + lambda * a.get(i, i)));
+            a.set(i + 1, i, a.get(i + 1, i) * precision * lambda);
+        }
+        a.set(DIMENSION - 1, DIMENSION - 1, precision * (1 - lambda + lambda * a.get(DIMENSION - 1, DIMENSION - 1)));
+        return a;
+    }
+
+    public static Test suite() {
+        return new TestSuite(GMRFPrecisionMatrixTest.class);
+    }
+
+    private Random random;
+    private SymmTridiagMatrix weights;
+}
@@ -0,0 +1,77 @@
+package test.dr.evomodel.tree;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.Tree;
+import dr.evomodel.operators.ExchangeOperator;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.operators.CoercionMode;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that restoring a TreeModel after topology moves gives back the stored links, heights
+ * and parameter objects of every node when only the changed nodes are stored.
+ */
+public class TreeModelStoreTest extends TestCase {
+
+    private static final int ROUNDS = 2000;
+
+    public TreeModelStoreTest(String name) {
+        super(name);
+    }
+
+    public void testStoreRestore() throws Exception {
+        MathUtils.setSeed(666);
+
+        NewickImporter importer = new NewickImporter(
+                "((((A:1.0,B:1.0):1.0,C:2.0):1.0,(D:1.5,E:1.5):1.5):1.0,((F:0.5,G:0.5):2.5,H:3.0):1.0);");
+        Tree tree = importer.importTree(null);
+        TreeModel treeModel = new TreeModel("treeModel", tree);
+
+        SimpleMCMCOperator[] operators = new SimpleMCMCOperator[]{
+                new ExchangeOperator(ExchangeOperator.NARROW, treeModel, 1.0),
+                new ExchangeOperator(ExchangeOperator.WIDE, treeModel, 1.0),
+                new SubtreeSlideOperator(treeModel, 1.0, 1.0, true, false, false, false, CoercionMode.COERCION_OFF)
+        };
+
+        for (int round = 0; round < ROUNDS; round++) {
+            String stored = describe(treeModel);
+            treeModel.storeModelState();
+
+            int moves = 1 + MathUtils.nextInt(3);
+            for (int i = 0; i < moves; i++) {
+                operators[MathUtils.nextInt(operators.length)].doOperation();
+            }
+
+            if (MathUtils.nextBoolean()) {
+                treeModel.restoreModelState();
+                assertEquals(stored, describe(treeModel));
+            } else {
+                treeModel.acceptModelState();
+            }
+        }
+    }
+
+    private String describe(TreeModel treeModel) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(treeModel.getRoot().getNumber());
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            TreeModel.Node node = (TreeModel.Node) treeModel.getNode(i);
+            sb.append(" | ").append(node.getNumber());
+            sb.append(" ").append(node.parent != null ? node.parent.getNumber() : -1);
+            sb.append(" ").append(node.leftChild != null ? node.leftChild.getNumber() : -1);
+            sb.append(" ").append(node.rightChild != null ? node.rightChild.getNumber() : -1);
+            sb.append(" ").append(treeModel.getNodeHeight(node));
+            sb.append(" ").append(System.identityHashCode(node.heightParameter));
+        }
+        return sb.toString();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TreeModelStoreTest.class);
+    }
+}
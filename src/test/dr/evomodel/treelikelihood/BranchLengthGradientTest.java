@@ -0,0 +1,158 @@
+/*
+ * BranchLengthGradientTest.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evomodel.treelikelihood;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.evomodel.branchratemodel.StrictClockBranchRates;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treedatalikelihood.BeagleDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.evomodel.treedatalikelihood.discrete.ClockRateGradient;
+import dr.evomodel.treedatalikelihood.discrete.NodeHeightGradient;
+import dr.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.inference.model.Parameter;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Random;
+
+/**
+ * Compares the node height and clock rate gradients of a sequence likelihood with
+ * finite differences.
+ */
+public class BranchLengthGradientTest extends TestCase {
+
+    private static final int SITE_COUNT = 300;
+    private static final double DELTA = 1E-6;
+    private static final double TOLERANCE = 1E-4;
+
+    public BranchLengthGradientTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NewickImporter importer = new NewickImporter(
+                "((((A:0.1,B:0.2):0.15,C:0.3):0.2,(D:0.05,E:0.1):0.45):0.1,((F:0.3,G:0.2):0.1,H:0.25):0.35);");
+        treeModel = new TreeModel("treeModel", importer.importTree(null));
+
+        Random random = new Random(666);
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int k = 0; k < SITE_COUNT; k++) {
+                // mostly conserved with some gaps and ambiguities
+                sb.append(random.nextDouble() < 0.7 ? "ACGT".charAt(k % 4) : "ACGT-R".charAt(random.nextInt(6)));
+            }
+            Sequence sequence = new Sequence(sb.toString());
+            sequence.setTaxon(new Taxon(treeModel.getTaxonId(i)));
+            alignment.addSequence(sequence);
+        }
+
+        FrequencyModel frequencies = new FrequencyModel(Nucleotides.INSTANCE, new double[]{0.1, 0.3, 0.2, 0.4});
+        HKY hky = new HKY(2.0, frequencies);
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("siteModel", 0.5, 4, 0.1);
+
+        rate = new Parameter.Default(0.8);
+
+        BeagleDataLikelihoodDelegate delegate = new BeagleDataLikelihoodDelegate(treeModel,
+                new SitePatterns(alignment, null, 0, -1, 1, true), new HomogeneousBranchModel(hky), siteRateModel,
+                false, PartialsRescalingScheme.DEFAULT, true);
+        likelihood = new TreeDataLikelihood(delegate, treeModel, new StrictClockBranchRates(rate));
+    }
+
+    public void testNodeHeightGradient() {
+        Parameter heights = treeModel.createNodeHeightsParameter(true, true, false);
+        NodeHeightGradient gradientProvider = new NodeHeightGradient(likelihood, heights);
+
+        double[] gradient = gradientProvider.getGradientLogDensity();
+        assertEquals(heights.getDimension(), gradient.length);
+
+        for (int i = 0; i < heights.getDimension(); i++) {
+            double height = heights.getParameterValue(i);
+
+            heights.setParameterValue(i, height + DELTA);
+            double upper = likelihood.getLogLikelihood();
+            heights.setParameterValue(i, height - DELTA);
+            double lower = likelihood.getLogLikelihood();
+            heights.setParameterValue(i, height);
+
+            double expected = (upper - lower) / (2 * DELTA);
+            assertEquals(expected, gradient[i], TOLERANCE * Math.max(1.0, Math.abs(expected)));
+        }
+    }
+
+    public void testTipHeightGradient() {
+        NodeRef tip = treeModel.getExternalNode(2);
+        Parameter height = treeModel.getLeafHeightParameter(tip);
+        double[] gradient = new NodeHeightGradient(likelihood, height).getGradientLogDensity();
+
+        double value = height.getParameterValue(0);
+        height.setParameterValue(0, value + DELTA);
+        double upper = likelihood.getLogLikelihood();
+        height.setParameterValue(0, value - DELTA);
+        double lower = likelihood.getLogLikelihood();
+        height.setParameterValue(0, value);
+
+        double expected = (upper - lower) / (2 * DELTA);
+        assertEquals(expected, gradient[0], TOLERANCE * Math.max(1.0, Math.abs(expected)));
+    }
+
+    public void testClockRateGradient() {
+        double[] gradient = new ClockRateGradient(likelihood, rate).getGradientLogDensity();
+
+        double value = rate.getParameterValue(0);
+        rate.setParameterValue(0, value + DELTA);
+        double upper = likelihood.getLogLikelihood();
+        rate.setParameterValue(0, value - DELTA);
+        double lower = likelihood.getLogLikelihood();
+        rate.setParameterValue(0, value);
+
+        double expected = (upper - lower) / (2 * DELTA);
+        assertEquals(expected, gradient[0], TOLERANCE * Math.max(1.0, Math.abs(expected)));
+    }
+
+    public static Test suite() {
+        return new TestSuite(BranchLengthGradientTest.class);
+    }
+
+    private TreeModel treeModel;
+    private Parameter rate;
+    private TreeDataLikelihood likelihood;
+}
@@ -0,0 +1,194 @@
+/*
+ * EpochLikelihoodTest.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evomodel.treelikelihood;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxon;
+import dr.evomodel.branchmodel.EpochBranchModel;
+import dr.evomodel.branchratemodel.StrictClockBranchRates;
+import dr.evomodel.siteratemodel.GammaSiteRateModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treedatalikelihood.BeagleDataLikelihoodDelegate;
+import dr.evomodel.treedatalikelihood.TreeDataLikelihood;
+import dr.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that a TreeDataLikelihood with an epoch model, which only updates the eigen
+ * decompositions and transition matrices that have changed, agrees with one that is made dirty
+ * before every evaluation over a run of accepted and rejected changes.
+ */
+public class EpochLikelihoodTest extends TestCase {
+
+    private static final int SITE_COUNT = 200;
+    private static final int STEP_COUNT = 400;
+
+    public EpochLikelihoodTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        NewickImporter importer = new NewickImporter(
+                "((((A:0.1,B:0.2):0.15,C:0.3):0.2,(D:0.05,E:0.1):0.45):0.1,((F:0.3,G:0.2):0.1,H:0.25):0.35);");
+        treeModel = new TreeModel("treeModel", importer.importTree(null));
+
+        Random random = new Random(666);
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int k = 0; k < SITE_COUNT; k++) {
+                sb.append(random.nextDouble() < 0.6 ? "ACGT".charAt(k % 4) : "ACGT".charAt(random.nextInt(4)));
+            }
+            Sequence sequence = new Sequence(sb.toString());
+            sequence.setTaxon(new Taxon(treeModel.getTaxonId(i)));
+            alignment.addSequence(sequence);
+        }
+        SitePatterns patterns = new SitePatterns(alignment, null, 0, -1, 1, true);
+
+        FrequencyModel frequencies = new FrequencyModel(Nucleotides.INSTANCE, new double[]{0.1, 0.3, 0.2, 0.4});
+        kappas = new ArrayList<Parameter>();
+        List<SubstitutionModel> substitutionModels = new ArrayList<SubstitutionModel>();
+        for (int i = 0; i < 3; i++) {
+            Parameter kappa = new Parameter.Default(1.0 + i * 2.0);
+            kappas.add(kappa);
+            substitutionModels.add(new HKY(kappa, frequencies));
+        }
+        epochTimes = new Parameter.Default(new double[]{0.12, 0.3});
+        EpochBranchModel branchModel = new EpochBranchModel(treeModel, substitutionModels, epochTimes);
+
+        siteRateModel = new GammaSiteRateModel("siteModel", 0.5, 4);
+        rate = new Parameter.Default(1.5);
+        StrictClockBranchRates branchRateModel = new StrictClockBranchRates(rate);
+
+        BeagleDataLikelihoodDelegate delegate = new BeagleDataLikelihoodDelegate(treeModel, patterns,
+                branchModel, siteRateModel, false, PartialsRescalingScheme.NONE, false);
+        treeDataLikelihood = new TreeDataLikelihood(delegate, treeModel, branchRateModel);
+
+        // the reference has its own delegate and is made dirty before every evaluation
+        BeagleDataLikelihoodDelegate referenceDelegate = new BeagleDataLikelihoodDelegate(treeModel, patterns,
+                branchModel, siteRateModel, false, PartialsRescalingScheme.NONE, false);
+        referenceLikelihood = new TreeDataLikelihood(referenceDelegate, treeModel, branchRateModel);
+    }
+
+    public void testChanges() {
+        checkLikelihoods();
+
+        for (int i = 0; i < STEP_COUNT; i++) {
+            treeDataLikelihood.storeModelState();
+            referenceLikelihood.storeModelState();
+
+            switch (MathUtils.nextInt(5)) {
+                case 0:
+                    Parameter kappa = kappas.get(MathUtils.nextInt(kappas.size()));
+                    kappa.setParameterValue(0, kappa.getParameterValue(0) * Math.exp(MathUtils.nextDouble() - 0.5));
+                    break;
+                case 1:
+                    moveNode();
+                    break;
+                case 2:
+                    int epoch = MathUtils.nextInt(epochTimes.getDimension());
+                    double lower = (epoch == 0 ? 0.0 : epochTimes.getParameterValue(epoch - 1));
+                    double upper = (epoch == epochTimes.getDimension() - 1 ? 0.8 : epochTimes.getParameterValue(epoch + 1));
+                    epochTimes.setParameterValue(epoch, lower + MathUtils.nextDouble() * (upper - lower));
+                    break;
+                case 3:
+                    Parameter alpha = siteRateModel.getAlphaParameter();
+                    alpha.setParameterValue(0, alpha.getParameterValue(0) * Math.exp(MathUtils.nextDouble() - 0.5));
+                    break;
+                case 4:
+                    rate.setParameterValue(0, rate.getParameterValue(0) * Math.exp(MathUtils.nextDouble() - 0.5));
+                    break;
+            }
+
+            checkLikelihoods();
+
+            if (MathUtils.nextBoolean()) {
+                treeDataLikelihood.acceptModelState();
+                referenceLikelihood.acceptModelState();
+            } else {
+                treeDataLikelihood.restoreModelState();
+                referenceLikelihood.restoreModelState();
+            }
+        }
+
+        // finally check nothing stale has been left in the buffers
+        double logL = treeDataLikelihood.getLogLikelihood();
+        treeDataLikelihood.makeDirty();
+        assertEquals(treeDataLikelihood.getLogLikelihood(), logL, 1E-10);
+        checkLikelihoods();
+    }
+
+    private void moveNode() {
+        NodeRef node;
+        do {
+            node = treeModel.getInternalNode(MathUtils.nextInt(treeModel.getInternalNodeCount()));
+        } while (treeModel.isRoot(node));
+
+        double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        double upper = treeModel.getNodeHeight(treeModel.getParent(node));
+        treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+    }
+
+    private void checkLikelihoods() {
+        // the reference is always computed from scratch
+        referenceLikelihood.makeDirty();
+        assertEquals(referenceLikelihood.getLogLikelihood(), treeDataLikelihood.getLogLikelihood(), 1E-8);
+    }
+
+    public static Test suite() {
+        return new TestSuite(EpochLikelihoodTest.class);
+    }
+
+    private TreeModel treeModel;
+    private List<Parameter> kappas;
+    private Parameter epochTimes;
+    private GammaSiteRateModel siteRateModel;
+    private Parameter rate;
+    private TreeDataLikelihood treeDataLikelihood;
+    private TreeDataLikelihood referenceLikelihood;
+}
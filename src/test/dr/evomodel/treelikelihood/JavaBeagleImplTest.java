@@ -0,0 +1,257 @@
+package test.dr.evomodel.treelikelihood;
+
+import beagle.Beagle;
+import dr.evolution.datatype.AminoAcids;
+import dr.evolution.datatype.DataType;
+import dr.evolution.datatype.Nucleotides;
+import dr.evomodel.substmodel.ComplexSubstitutionModel;
+import dr.evomodel.substmodel.EigenDecomposition;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.SubstitutionModel;
+import dr.evomodel.substmodel.aminoacid.EmpiricalAminoAcidModel;
+import dr.evomodel.substmodel.aminoacid.WAG;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.treedatalikelihood.JavaBeagleImpl;
+import dr.inference.model.Parameter;
+import junit.framework.TestCase;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+/**
+ * Compares the multithreaded Java BEAGLE implementation against straightforward
+ * pruning on a balanced tree, which has tip-tip, tip-partials and partials-partials
+ * operations when the number of tips is odd.
+ */
+public class JavaBeagleImplTest extends TestCase {
+
+    private static final double TOLERANCE = 1E-8;
+
+    private static final int PATTERN_COUNT = 600;
+    private static final int CATEGORY_COUNT = 4;
+
+    public JavaBeagleImplTest(String name) {
+        super(name);
+    }
+
+    public void testNucleotides() {
+        double[] frequencies = new double[]{0.1, 0.3, 0.2, 0.4};
+        HKY hky = new HKY(2.0, new FrequencyModel(Nucleotides.INSTANCE, frequencies));
+        compare(hky, Nucleotides.INSTANCE, 9, false);
+    }
+
+    public void testAminoAcids() {
+        EmpiricalAminoAcidModel wag = new EmpiricalAminoAcidModel(WAG.INSTANCE,
+                new FrequencyModel(AminoAcids.INSTANCE, WAG.INSTANCE.getEmpiricalFrequencies()));
+        compare(wag, AminoAcids.INSTANCE, 9, false);
+    }
+
+    public void testRescaling() {
+        EmpiricalAminoAcidModel wag = new EmpiricalAminoAcidModel(WAG.INSTANCE,
+                new FrequencyModel(AminoAcids.INSTANCE, WAG.INSTANCE.getEmpiricalFrequencies()));
+        compare(wag, AminoAcids.INSTANCE, 121, true);
+    }
+
+    public void testComplexDerivatives() {
+        // a strong cycle A -> C -> G -> T -> A gives complex conjugate eigenvalues
+        Parameter rates = new Parameter.Default(new double[]{
+                5.0, 0.1, 0.1, 5.0, 0.1, 5.0,
+                0.1, 0.1, 5.0, 0.1, 0.1, 0.1});
+        ComplexSubstitutionModel model = new ComplexSubstitutionModel("complex", Nucleotides.INSTANCE,
+                new FrequencyModel(Nucleotides.INSTANCE, new double[]{0.25, 0.25, 0.25, 0.25}), rates);
+        EigenDecomposition ed = model.getEigenDecomposition();
+
+        double[] eigenValues = ed.getEigenValues();
+        boolean complex = false;
+        for (int i = 4; i < eigenValues.length; i++) {
+            complex |= (eigenValues[i] != 0.0);
+        }
+        assertTrue(complex);
+
+        final int categoryCount = 2;
+        final double edgeLength = 0.3;
+        final double h = 1E-5;
+
+        Beagle beagle = new JavaBeagleImpl(2, 3, 2, 4, 1, 1, 5, categoryCount, 0, 1);
+        beagle.setEigenDecomposition(0, ed.getEigenVectors(), ed.getInverseEigenVectors(), eigenValues);
+        beagle.setCategoryRates(new double[]{0.5, 1.5});
+
+        beagle.updateTransitionMatrices(0, new int[]{0}, new int[]{1}, new int[]{2}, new double[]{edgeLength}, 1);
+        beagle.updateTransitionMatrices(0, new int[]{3, 4}, null, null, new double[]{edgeLength - h, edgeLength + h}, 2);
+
+        double[] matrix = new double[categoryCount * 16];
+        double[] first = new double[categoryCount * 16];
+        double[] second = new double[categoryCount * 16];
+        double[] below = new double[categoryCount * 16];
+        double[] above = new double[categoryCount * 16];
+        beagle.getTransitionMatrix(0, matrix);
+        beagle.getTransitionMatrix(1, first);
+        beagle.getTransitionMatrix(2, second);
+        beagle.getTransitionMatrix(3, below);
+        beagle.getTransitionMatrix(4, above);
+
+        double[] reference = new double[16];
+        model.getTransitionProbabilities(edgeLength * 0.5, reference);
+        for (int i = 0; i < 16; i++) {
+            assertEquals(reference[i], matrix[i], 1E-10);
+        }
+
+        for (int i = 0; i < matrix.length; i++) {
+            assertEquals((above[i] - below[i]) / (2.0 * h), first[i], 1E-6);
+            assertEquals((above[i] - 2.0 * matrix[i] + below[i]) / (h * h), second[i], 1E-3);
+        }
+    }
+
+    private void compare(SubstitutionModel model, DataType dataType, int tipCount, boolean rescale) {
+        final int stateCount = dataType.getStateCount();
+        final int nodeCount = 2 * tipCount - 1;
+        final int internalNodeCount = tipCount - 1;
+
+        Random random = new Random(666);
+
+        int[][] states = new int[tipCount][PATTERN_COUNT];
+        for (int i = 0; i < tipCount; i++) {
+            for (int k = 0; k < PATTERN_COUNT; k++) {
+                // include some gaps
+                states[i][k] = random.nextInt(stateCount + 1);
+            }
+        }
+
+        double[] branchLengths = new double[nodeCount];
+        int[] branchIndices = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            branchLengths[i] = 0.01 + random.nextDouble() * 0.2;
+            branchIndices[i] = i;
+        }
+
+        double[] patternWeights = new double[PATTERN_COUNT];
+        for (int k = 0; k < PATTERN_COUNT; k++) {
+            patternWeights[k] = 1 + random.nextInt(3);
+        }
+
+        // balanced: the first two nodes waiting are joined and the new node waits behind the rest
+        int[] children1 = new int[nodeCount];
+        int[] children2 = new int[nodeCount];
+        int[] operations = new int[internalNodeCount * Beagle.OPERATION_TUPLE_SIZE];
+        int[] scaleIndices = new int[internalNodeCount];
+        Deque<Integer> waiting = new ArrayDeque<Integer>();
+        for (int i = 0; i < tipCount; i++) {
+            waiting.add(i);
+        }
+        for (int i = 0; i < internalNodeCount; i++) {
+            int node = tipCount + i;
+            children1[node] = waiting.removeFirst();
+            children2[node] = waiting.removeFirst();
+            waiting.add(node);
+
+            int x = i * Beagle.OPERATION_TUPLE_SIZE;
+            operations[x] = node;
+            operations[x + 1] = (rescale ? i : Beagle.NONE);
+            operations[x + 2] = Beagle.NONE;
+            operations[x + 3] = children1[node];
+            operations[x + 4] = children1[node];
+            operations[x + 5] = children2[node];
+            operations[x + 6] = children2[node];
+            scaleIndices[i] = i;
+        }
+        int root = nodeCount - 1;
+
+        double[] rates = new double[]{0.2, 0.7, 1.3, 1.8};
+        double[] weights = new double[]{0.1, 0.4, 0.3, 0.2};
+
+        // straightforward pruning on the same tree as the reference
+        double[][] referenceSiteLogL = new double[CATEGORY_COUNT][PATTERN_COUNT];
+        double[] matrix = new double[stateCount * stateCount];
+        double[] frequencies = model.getFrequencyModel().getFrequencies();
+        for (int l = 0; l < CATEGORY_COUNT; l++) {
+            double[][] transitionMatrices = new double[nodeCount][];
+            for (int i = 0; i < nodeCount - 1; i++) {
+                model.getTransitionProbabilities(branchLengths[i] * rates[l], matrix);
+                transitionMatrices[i] = matrix.clone();
+            }
+            for (int k = 0; k < PATTERN_COUNT; k++) {
+                double[][] nodePartials = new double[nodeCount][];
+                for (int node = tipCount; node < nodeCount; node++) {
+                    double[] left = prune(nodePartials[children1[node]], transitionMatrices[children1[node]],
+                            (children1[node] < tipCount ? states[children1[node]][k] : 0), stateCount);
+                    double[] right = prune(nodePartials[children2[node]], transitionMatrices[children2[node]],
+                            (children2[node] < tipCount ? states[children2[node]][k] : 0), stateCount);
+                    nodePartials[node] = new double[stateCount];
+                    for (int j = 0; j < stateCount; j++) {
+                        nodePartials[node][j] = left[j] * right[j];
+                    }
+                }
+                double sum = 0.0;
+                for (int j = 0; j < stateCount; j++) {
+                    sum += frequencies[j] * nodePartials[root][j];
+                }
+                referenceSiteLogL[l][k] = Math.log(sum);
+            }
+        }
+
+        double expectedLogL = 0.0;
+        for (int k = 0; k < PATTERN_COUNT; k++) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int l = 0; l < CATEGORY_COUNT; l++) {
+                max = Math.max(max, referenceSiteLogL[l][k]);
+            }
+            double sum = 0.0;
+            for (int l = 0; l < CATEGORY_COUNT; l++) {
+                sum += weights[l] * Math.exp(referenceSiteLogL[l][k] - max);
+            }
+            expectedLogL += patternWeights[k] * (max + Math.log(sum));
+        }
+
+        Beagle beagle = new JavaBeagleImpl(tipCount, nodeCount, tipCount, stateCount,
+                PATTERN_COUNT, 1, nodeCount, CATEGORY_COUNT, internalNodeCount + 1, 2);
+        setup(beagle, model, states, patternWeights, rates, weights);
+        beagle.updateTransitionMatrices(0, branchIndices, null, null, branchLengths, nodeCount - 1);
+        beagle.updatePartials(operations, internalNodeCount, Beagle.NONE);
+
+        int cumulativeScaleIndex = Beagle.NONE;
+        if (rescale) {
+            cumulativeScaleIndex = internalNodeCount;
+            beagle.resetScaleFactors(cumulativeScaleIndex);
+            beagle.accumulateScaleFactors(scaleIndices, internalNodeCount, cumulativeScaleIndex);
+        }
+
+        double[] sumLogLikelihoods = new double[1];
+        beagle.calculateRootLogLikelihoods(new int[]{root}, new int[]{0}, new int[]{0},
+                new int[]{cumulativeScaleIndex}, 1, sumLogLikelihoods);
+        double logL = sumLogLikelihoods[0];
+
+        assertFalse(Double.isNaN(logL) || Double.isInfinite(logL));
+        assertEquals(expectedLogL, logL, Math.abs(expectedLogL) * TOLERANCE);
+    }
+
+    private void setup(Beagle beagle, SubstitutionModel model, int[][] states, double[] patternWeights,
+                       double[] rates, double[] weights) {
+        for (int i = 0; i < states.length; i++) {
+            beagle.setTipStates(i, states[i]);
+        }
+        beagle.setPatternWeights(patternWeights);
+
+        EigenDecomposition ed = model.getEigenDecomposition();
+        beagle.setEigenDecomposition(0, ed.getEigenVectors(), ed.getInverseEigenVectors(), ed.getEigenValues());
+        beagle.setCategoryRates(rates);
+        beagle.setCategoryWeights(0, weights);
+        beagle.setStateFrequencies(0, model.getFrequencyModel().getFrequencies());
+    }
+
+    /**
+     * Returns the partials at the top of a branch given the partials (or, if null, the state) at its bottom.
+     */
+    private double[] prune(double[] childPartials, double[] matrix, int state, int stateCount) {
+        double[] partials = new double[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < stateCount; j++) {
+                double p = (childPartials != null ? childPartials[j] : (state >= stateCount || state == j ? 1.0 : 0.0));
+                sum += matrix[i * stateCount + j] * p;
+            }
+            partials[i] = sum;
+        }
+        return partials;
+    }
+}
@@ -0,0 +1,161 @@
+package test.dr.inference.distribution;
+
+import dr.inference.distribution.CachedQuantiles;
+import dr.inference.distribution.ExponentialDistributionModel;
+import dr.inference.distribution.GammaDistributionModel;
+import dr.inference.distribution.LogNormalDistributionModel;
+import dr.inference.distribution.ParametricDistributionModel;
+import dr.inference.model.Parameter;
+import dr.math.distributions.GammaDistribution;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.commons.math.special.Gamma;
+
+import java.util.Arrays;
+
+/**
+ * Checks the quantiles of the discretized rate categories: the log normal and exponential ones are
+ * exactly those of quantile(), the gamma ones invert the cdf to within rounding error whatever they
+ * start from and storing and restoring the state undoes a rejected change.
+ */
+public class CachedQuantilesTest extends TestCase {
+
+    private static final int CATEGORY_COUNT = 10;
+
+    private static final double[] SHAPES = {0.05, 0.3, 1.0, 2.5, 10.0, 100.0};
+
+    public CachedQuantilesTest(String name) {
+        super(name);
+    }
+
+    public void testLogNormal() {
+        Parameter mean = new Parameter.Default(-1.0);
+        Parameter stdev = new Parameter.Default(0.5);
+        LogNormalDistributionModel model = new LogNormalDistributionModel(mean, stdev, 0.1, false, false);
+        CachedQuantiles quantiles = new CachedQuantiles(model, getProbabilities());
+
+        for (double m : new double[]{-3.0, -0.25, 0.0, 1.7}) {
+            for (double s : new double[]{0.01, 0.33, 1.0, 2.5}) {
+                mean.setParameterValue(0, m);
+                stdev.setParameterValue(0, s);
+                checkIdentical(model, quantiles);
+            }
+        }
+    }
+
+    public void testExponential() {
+        Parameter mean = new Parameter.Default(1.0);
+        ExponentialDistributionModel model = new ExponentialDistributionModel(mean, 0.5);
+        CachedQuantiles quantiles = new CachedQuantiles(model, getProbabilities());
+
+        for (double m : new double[]{0.001, 0.3, 1.0, 7.5, 1000.0}) {
+            mean.setParameterValue(0, m);
+            checkIdentical(model, quantiles);
+        }
+    }
+
+    public void testGammaInversion() throws Exception {
+        double[] probabilities = getProbabilities();
+        Parameter shape = new Parameter.Default(1.0);
+        Parameter scale = new Parameter.Default(1.0);
+        GammaDistributionModel model = new GammaDistributionModel(shape, scale);
+
+        double[] values = new double[CATEGORY_COUNT];
+        for (double a : SHAPES) {
+            for (double b : new double[]{0.5, 2.0}) {
+                shape.setParameterValue(0, a);
+                scale.setParameterValue(0, b);
+                new CachedQuantiles(model, probabilities).getQuantiles(values);
+
+                for (int i = 0; i < CATEGORY_COUNT; i++) {
+                    double expected = GammaDistribution.quantile(probabilities[i], a, b);
+                    assertEquals("shape " + a + ", p " + probabilities[i], expected, values[i], 1E-6 * expected);
+                    // at least as accurate as the bracketing inversion
+                    assertEquals(probabilities[i], Gamma.regularizedGammaP(a, values[i] / b), 1E-12);
+                }
+            }
+        }
+    }
+
+    public void testGammaStartIndependent() {
+        double[] probabilities = getProbabilities();
+        Parameter shape = new Parameter.Default(1.0);
+        GammaDistributionModel model = new GammaDistributionModel(shape, new Parameter.Default(1.5));
+
+        double[] cold = new double[CATEGORY_COUNT];
+        double[] warm = new double[CATEGORY_COUNT];
+        for (double a : SHAPES) {
+            shape.setParameterValue(0, a);
+            new CachedQuantiles(model, probabilities).getQuantiles(cold);
+
+            // the same shape reached from each of the others
+            for (double previous : SHAPES) {
+                CachedQuantiles quantiles = new CachedQuantiles(model, probabilities);
+                shape.setParameterValue(0, previous);
+                quantiles.getQuantiles(warm);
+                shape.setParameterValue(0, a);
+                quantiles.getQuantiles(warm);
+
+                for (int i = 0; i < CATEGORY_COUNT; i++) {
+                    assertEquals("shape " + a + " from " + previous, cold[i], warm[i], 1E-13 * cold[i]);
+                }
+            }
+        }
+    }
+
+    public void testGammaStoreRestore() {
+        double[] probabilities = getProbabilities();
+        Parameter shape = new Parameter.Default(2.0);
+        GammaDistributionModel model = new GammaDistributionModel(shape, new Parameter.Default(0.5));
+
+        // accept 2.0 then move to 2.1 without a rejected move in between
+        CachedQuantiles direct = new CachedQuantiles(model, probabilities);
+        double[] expected = new double[CATEGORY_COUNT];
+        shape.setParameterValue(0, 2.0);
+        direct.getQuantiles(expected);
+        shape.setParameterValue(0, 2.1);
+        direct.getQuantiles(expected);
+
+        // the same with a move to 0.7 that is rejected
+        CachedQuantiles restored = new CachedQuantiles(model, probabilities);
+        double[] values = new double[CATEGORY_COUNT];
+        shape.setParameterValue(0, 2.0);
+        restored.getQuantiles(values);
+        restored.storeState();
+        shape.setParameterValue(0, 0.7);
+        restored.getQuantiles(values);
+        restored.restoreState();
+        shape.setParameterValue(0, 2.1);
+        restored.getQuantiles(values);
+
+        assertTrue(Arrays.equals(expected, values));
+    }
+
+    private void checkIdentical(ParametricDistributionModel model, CachedQuantiles quantiles) {
+        double[] probabilities = getProbabilities();
+        double[] values = new double[CATEGORY_COUNT];
+        quantiles.getQuantiles(values);
+        for (int i = 0; i < CATEGORY_COUNT; i++) {
+            assertEquals(model.quantile(probabilities[i]), values[i], 0.0);
+        }
+    }
+
+    /**
+     * @return the probabilities at the middle of each category, as DiscretizedBranchRates uses
+     */
+    private double[] getProbabilities() {
+        double step = 1.0 / CATEGORY_COUNT;
+        double[] probabilities = new double[CATEGORY_COUNT];
+        double z = step / 2.0;
+        for (int i = 0; i < CATEGORY_COUNT; i++) {
+            probabilities[i] = z;
+            z += step;
+        }
+        return probabilities;
+    }
+
+    public static Test suite() {
+        return new TestSuite(CachedQuantilesTest.class);
+    }
+}
@@ -0,0 +1,140 @@
+package test.dr.inference.loggers;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.TreeTraitProvider;
+import dr.evomodel.branchratemodel.StrictClockBranchRates;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.tree.TreeHeightStatistic;
+import dr.evomodel.tree.TreeLogger;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.loggers.AsynchronousLogWriter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.TabDelimitedFormatter;
+import dr.inference.model.Parameter;
+import dr.inference.operators.CoercionMode;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that file loggers writing on a background thread produce exactly the output of the
+ * synchronous loggers, for parameter logs and for trees written with TreeUtils.newick.
+ */
+public class AsynchronousLogWriterTest extends TestCase {
+
+    private static final int STATE_COUNT = 500;
+
+    public AsynchronousLogWriterTest(String name) {
+        super(name);
+    }
+
+    public void testAsynchronousOutput() throws Exception {
+        MathUtils.setSeed(666);
+
+        NewickImporter importer = new NewickImporter(
+                "((((A:1.0,B:1.0):1.0,C:2.0):1.0,(D:1.5,E:1.5):1.5):1.0,((F:0.5,'G 1':0.5):2.5,H:3.0):1.0);");
+        TreeModel treeModel = new TreeModel("treeModel", importer.importTree(null));
+        Parameter rate = new Parameter.Default("clock.rate", 0.01, 0.0, Double.MAX_VALUE);
+        StrictClockBranchRates branchRates = new StrictClockBranchRates(rate);
+        SubtreeSlideOperator operator = new SubtreeSlideOperator(treeModel, 1.0, 1.0, true, false, false, false,
+                CoercionMode.COERCION_OFF);
+
+        StringWriter[] outputs = new StringWriter[6];
+        MCLogger[] loggers = new MCLogger[outputs.length];
+        for (int i = 0; i < outputs.length; i += 2) {
+            for (int k = 0; k < 2; k++) {
+                outputs[i + k] = new StringWriter();
+                TabDelimitedFormatter formatter = new TabDelimitedFormatter(new PrintWriter(outputs[i + k]));
+                MCLogger logger;
+                if (i == 0) {
+                    logger = new MCLogger(formatter, 1, false);
+                    logger.add(rate);
+                    logger.add(new TreeHeightStatistic("rootHeight", treeModel));
+                } else if (i == 2) {
+                    // a nexus time tree with the taxa mapped to numbers
+                    logger = new TreeLogger(treeModel, formatter, 1, true, true, true);
+                } else {
+                    // a substitutions tree with labels and the rate as a branch trait
+                    logger = new TreeLogger(treeModel, branchRates, null, new TreeTraitProvider[]{branchRates},
+                            formatter, 1, false, false, false, null, null);
+                }
+                logger.setAsynchronous(k == 1);
+                loggers[i + k] = logger;
+            }
+        }
+
+        for (MCLogger logger : loggers) {
+            logger.startLogging();
+        }
+        for (long state = 0; state < STATE_COUNT; state++) {
+            try {
+                operator.operate();
+            } catch (Exception e) {
+                // a failed move leaves the tree as it was
+            }
+            treeModel.acceptModelState();
+            rate.setParameterValue(0, rate.getParameterValue(0) * Math.exp(MathUtils.nextGaussian() * 0.1));
+
+            for (MCLogger logger : loggers) {
+                logger.log(state);
+            }
+        }
+        for (MCLogger logger : loggers) {
+            logger.stopLogging();
+        }
+
+        for (int i = 0; i < outputs.length; i += 2) {
+            String expected = outputs[i].toString();
+            assertTrue(expected.split("\n").length >= STATE_COUNT);
+            assertEquals(expected, outputs[i + 1].toString());
+        }
+    }
+
+    public void testFailedTask() {
+        AsynchronousLogWriter writer = new AsynchronousLogWriter("test writer", 4);
+        final List<Integer> written = new ArrayList<Integer>();
+        int queued = 0;
+        int reported = 0;
+
+        writer.submit(new Runnable() {
+            public void run() {
+                throw new RuntimeException("disk full");
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            final int line = i;
+            try {
+                writer.submit(new Runnable() {
+                    public void run() {
+                        written.add(line);
+                    }
+                });
+                queued++;
+            } catch (RuntimeException re) {
+                // the error is reported by the first submission after the failed task has run
+                assertTrue(re.getMessage().contains("disk full"));
+                reported++;
+            }
+        }
+        try {
+            writer.close();
+        } catch (RuntimeException re) {
+            assertTrue(re.getMessage().contains("disk full"));
+            reported++;
+        }
+
+        // the failure is reported once and every line queued after it is still written
+        assertEquals(1, reported);
+        assertEquals(queued, written.size());
+    }
+
+    public static Test suite() {
+        return new TestSuite(AsynchronousLogWriterTest.class);
+    }
+}
@@ -0,0 +1,203 @@
+package test.dr.inference.mcmc;
+
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.mcmc.MCMCCriterion;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.inference.operators.CoercionMode;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import dr.math.distributions.GammaDistribution;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that delayed acceptance with a first stage density equal to the full density accepts
+ * exactly the proposals the first stage accepts and gives the same acceptance rate and posterior
+ * as the single stage chain, and that with a different first stage density, which caches its
+ * value, the second stage corrects for it so the chain still samples the full density.
+ */
+public class DelayedAcceptanceTest extends TestCase {
+
+    private static final int SAMPLE_COUNT = 50000;
+    private static final int STEPS_PER_SAMPLE = 10;
+
+    public DelayedAcceptanceTest(String name) {
+        super(name);
+    }
+
+    public void testSurrogateEqualToFullLikelihood() {
+        MathUtils.setSeed(666);
+
+        double[] exact = runChain(false);
+        double[] delayed = runChain(true);
+
+        // acceptance rate, posterior mean and variance (gamma with shape 3 and scale 1)
+        assertEquals(exact[0], delayed[0], 0.01);
+        assertEquals(3.0, exact[1], 0.1);
+        assertEquals(exact[1], delayed[1], 0.1);
+        assertEquals(exact[2], delayed[2], 0.3);
+    }
+
+    public void testDifferentSurrogate() {
+        MathUtils.setSeed(666);
+
+        // the first stage density only depends on x so it is not changed by the moves on y
+        // and would keep a stale value after a rejected move on x if it were not restored
+        Parameter x = new Parameter.Default("x", 1.0, 0.0, Double.POSITIVE_INFINITY);
+        Parameter y = new Parameter.Default("y", 1.0, 0.0, Double.POSITIVE_INFINITY);
+        List<Likelihood> components = new ArrayList<Likelihood>();
+        components.add(new GammaLikelihood("full.x", x, 3.0, 1.0));
+        components.add(new GammaLikelihood("full.y", y, 2.0, 1.0));
+        Likelihood likelihood = new CompoundLikelihood(components);
+        Likelihood firstStage = new GammaLikelihood("surrogate", x, 2.0, 2.0);
+
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        MCMCOperator operatorX = new ScaleOperator(x, 0.5, CoercionMode.COERCION_OFF, 1.0);
+        MCMCOperator operatorY = new ScaleOperator(y, 0.5, CoercionMode.COERCION_OFF, 1.0);
+        schedule.addOperator(operatorX);
+        schedule.addOperator(operatorY);
+
+        MarkovChain markovChain = new MarkovChain(likelihood, firstStage, schedule, new MCMCCriterion(),
+                0, 0, 0.0, false);
+
+        double[] sums = new double[2];
+        double[] sumSquares = new double[2];
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            markovChain.runChain(STEPS_PER_SAMPLE, true);
+            double[] values = new double[]{x.getParameterValue(0), y.getParameterValue(0)};
+            // the cached first stage density is that of the current state
+            assertEquals(GammaDistribution.logPdf(values[0], 2.0, 2.0), firstStage.getLogLikelihood(), 1E-12);
+            for (int j = 0; j < 2; j++) {
+                sums[j] += values[j];
+                sumSquares[j] += values[j] * values[j];
+            }
+        }
+
+        // both stages rejected some of the moves on x
+        long firstStageRejects = markovChain.getFirstStageRejectCounts()[0];
+        assertTrue(firstStageRejects > 0);
+        assertTrue(operatorX.getRejectCount() > firstStageRejects);
+
+        // gammas with shapes 3 and 2 and scale 1
+        double[] shapes = new double[]{3.0, 2.0};
+        for (int j = 0; j < 2; j++) {
+            double mean = sums[j] / SAMPLE_COUNT;
+            assertEquals(shapes[j], mean, 0.1);
+            assertEquals(shapes[j], sumSquares[j] / SAMPLE_COUNT - mean * mean, 0.3);
+        }
+    }
+
+    private double[] runChain(boolean delayedAcceptance) {
+        Parameter x = new Parameter.Default("x", 1.0, 0.0, Double.POSITIVE_INFINITY);
+        Likelihood likelihood = new GammaLikelihood("full", x, 3.0, 1.0);
+        Likelihood firstStage = (delayedAcceptance ? new GammaLikelihood("surrogate", x, 3.0, 1.0) : null);
+
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        MCMCOperator operator = new ScaleOperator(x, 0.5, CoercionMode.COERCION_OFF, 1.0);
+        schedule.addOperator(operator);
+
+        MarkovChain markovChain = new MarkovChain(likelihood, firstStage, schedule, new MCMCCriterion(),
+                0, 0, 0.0, false);
+
+        double sum = 0.0;
+        double sumSquares = 0.0;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            markovChain.runChain(STEPS_PER_SAMPLE, true);
+            double value = x.getParameterValue(0);
+            sum += value;
+            sumSquares += value * value;
+        }
+
+        long proposals = operator.getAcceptCount() + operator.getRejectCount();
+        assertEquals((long) SAMPLE_COUNT * STEPS_PER_SAMPLE, proposals);
+        if (delayedAcceptance) {
+            // the second stage has nothing to correct, so every rejection happened at the first stage
+            assertTrue(markovChain.getFirstStageRejectCounts()[0] > 0);
+            assertEquals(operator.getRejectCount(), markovChain.getFirstStageRejectCounts()[0]);
+        }
+
+        double mean = sum / SAMPLE_COUNT;
+        return new double[]{
+                (double) operator.getAcceptCount() / proposals,
+                mean,
+                sumSquares / SAMPLE_COUNT - mean * mean
+        };
+    }
+
+    /**
+     * A gamma density on a parameter which is held by the model so it is stored and restored.
+     * The density is cached until the parameter changes, so a stale value would be returned if
+     * the model were not restored after a rejected move.
+     */
+    private static class GammaLikelihood extends AbstractModelLikelihood {
+
+        GammaLikelihood(String name, Parameter x, double shape, double scale) {
+            super(name);
+            this.x = x;
+            this.shape = shape;
+            this.scale = scale;
+            addVariable(x);
+        }
+
+        protected void handleModelChangedEvent(Model model, Object object, int index) {
+        }
+
+        protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+            likelihoodKnown = false;
+        }
+
+        protected void storeState() {
+            storedLogLikelihood = logLikelihood;
+            storedLikelihoodKnown = likelihoodKnown;
+        }
+
+        protected void restoreState() {
+            logLikelihood = storedLogLikelihood;
+            likelihoodKnown = storedLikelihoodKnown;
+        }
+
+        protected void acceptState() {
+        }
+
+        public Model getModel() {
+            return this;
+        }
+
+        public double getLogLikelihood() {
+            if (!likelihoodKnown) {
+                logLikelihood = GammaDistribution.logPdf(x.getParameterValue(0), shape, scale);
+                likelihoodKnown = true;
+            }
+            return logLikelihood;
+        }
+
+        public void makeDirty() {
+            likelihoodKnown = false;
+        }
+
+        private final Parameter x;
+        private final double shape;
+        private final double scale;
+
+        private double logLikelihood;
+        private double storedLogLikelihood;
+        private boolean likelihoodKnown = false;
+        private boolean storedLikelihoodKnown = false;
+    }
+
+    public static Test suite() {
+        return new TestSuite(DelayedAcceptanceTest.class);
+    }
+}
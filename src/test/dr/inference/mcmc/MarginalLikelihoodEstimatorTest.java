@@ -0,0 +1,228 @@
+package test.dr.inference.mcmc;
+
+import dr.inference.mcmc.MarginalLikelihoodEstimator;
+import dr.inference.model.ParameterParser;
+import dr.inference.model.PathLikelihood;
+import dr.inferencexml.MCMCParser;
+import dr.inferencexml.distribution.DistributionLikelihoodParser;
+import dr.inferencexml.distribution.NormalDistributionModelParser;
+import dr.inferencexml.distribution.PriorParsers;
+import dr.inferencexml.loggers.LoggerParser;
+import dr.inferencexml.model.CompoundLikelihoodParser;
+import dr.inferencexml.operators.RandomWalkOperatorParser;
+import dr.inferencexml.operators.SimpleOperatorScheduleParser;
+import dr.math.MathUtils;
+import dr.xml.XMLObjectParser;
+import dr.xml.XMLParser;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that running segments of the path in parallel, in copies of the model made by parsing the
+ * file again, writes a log with the same layout as the serial path and that the copies write their
+ * log files to their own directory rather than over those of the analysis. Two parallel runs with
+ * the same seed should give the same samples.
+ */
+public class MarginalLikelihoodEstimatorTest extends TestCase {
+
+    private static final int PATH_STEPS = 7;
+    private static final int CHAIN_LENGTH = 200;
+    private static final int LOG_EVERY = 10;
+
+    public MarginalLikelihoodEstimatorTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = createDirectory("mle");
+        replicaDirectories = new ArrayList<File>();
+    }
+
+    public void tearDown() throws Exception {
+        for (File replicaDirectory : replicaDirectories) {
+            delete(replicaDirectory);
+        }
+        delete(directory);
+        super.tearDown();
+    }
+
+    public void testParallelSegments() throws Exception {
+        final String userDir = System.getProperty("user.dir");
+
+        List<String[]> serial = runAnalysis("serial", 1);
+        List<String[]> parallel = runAnalysis("parallel", 3);
+
+        assertEquals(userDir, System.getProperty("user.dir"));
+        assertEquals(2, replicaDirectories.size());
+
+        // the same samples of each step of the path, in the same order
+        assertEquals((PATH_STEPS + 1) * CHAIN_LENGTH / LOG_EVERY, serial.size() - 1);
+        assertEquals(serial.size(), parallel.size());
+        String[] labels = serial.get(0);
+        assertEquals("pathLikelihood.theta", labels[4]);
+        for (int i = 0; i < serial.size(); i++) {
+            assertEquals(serial.get(i)[0], parallel.get(i)[0]);
+            assertEquals(serial.get(i)[4], parallel.get(i)[4]);
+        }
+
+        // the copies of the model wrote their logs to their own directories
+        for (File replicaDirectory : replicaDirectories) {
+            assertTrue(new File(replicaDirectory, "parallel.mcmc.log").exists());
+            assertTrue(new File(replicaDirectory, "parallel.mle.log").exists());
+        }
+        // so the log of the sampler is as it was written
+        assertEquals(1 + 1000 / 100 + 1, readLog(new File(directory, "parallel.mcmc.log")).size());
+    }
+
+    public void testReproducibleParallelSegments() throws Exception {
+        List<String[]> first = runAnalysis("first", 3);
+        List<String[]> second = runAnalysis("second", 3);
+
+        // every segment draws from a stream derived from the seed so, however the threads were
+        // scheduled, the samples and hence the estimates are the same
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertTrue(Arrays.equals(first.get(i), second.get(i)));
+        }
+    }
+
+    private List<String[]> runAnalysis(String name, int threadCount) throws Exception {
+        MathUtils.setSeed(666);
+
+        final String xml = createXML(name, threadCount);
+        final MarginalLikelihoodEstimator.ReplicaFactory factory = new MarginalLikelihoodEstimator.ReplicaFactory() {
+            public MarginalLikelihoodEstimator createReplica() throws Exception {
+                File replicaDirectory = createDirectory("replica");
+                replicaDirectories.add(replicaDirectory);
+
+                XMLParser parser = new XMLParser(false, false);
+                addParsers(parser);
+                parser.setLogDirectory(replicaDirectory);
+                return (MarginalLikelihoodEstimator) parser.parse(new StringReader(xml), MarginalLikelihoodEstimator.class);
+            }
+        };
+
+        // as BeastMain gives the estimator a factory just before it is run
+        XMLParser parser = new XMLParser(false, false) {
+            protected void executingRunnable(Object runnable) {
+                super.executingRunnable(runnable);
+                if (runnable instanceof MarginalLikelihoodEstimator) {
+                    ((MarginalLikelihoodEstimator) runnable).setReplicaFactory(factory);
+                }
+            }
+        };
+        addParsers(parser);
+        parser.parse(new StringReader(xml), true);
+
+        return readLog(new File(directory, name + ".mle.log"));
+    }
+
+    /**
+     * Adds the parsers for the elements of the file (from the classes or their static members as
+     * BeastParser does).
+     */
+    private static void addParsers(XMLParser parser) throws Exception {
+        Class<?>[] classes = new Class<?>[]{
+                ParameterParser.class, NormalDistributionModelParser.class, DistributionLikelihoodParser.class,
+                PriorParsers.class, CompoundLikelihoodParser.class, RandomWalkOperatorParser.class,
+                SimpleOperatorScheduleParser.class, MCMCParser.class, LoggerParser.class,
+                MarginalLikelihoodEstimator.class, PathLikelihood.class
+        };
+        for (Class<?> c : classes) {
+            if (XMLObjectParser.class.isAssignableFrom(c)) {
+                parser.addXMLObjectParser((XMLObjectParser) c.getDeclaredConstructor().newInstance());
+            } else {
+                for (Field field : c.getDeclaredFields()) {
+                    if (XMLObjectParser.class.isAssignableFrom(field.getType()) && Modifier.isStatic(field.getModifiers())) {
+                        parser.addXMLObjectParser((XMLObjectParser) field.get(null));
+                    }
+                }
+            }
+        }
+    }
+
+    private String createXML(String name, int threadCount) {
+        String mcmcLog = new File(directory, name + ".mcmc.log").getAbsolutePath();
+        String mleLog = new File(directory, name + ".mle.log").getAbsolutePath();
+        return "<beast>\n" +
+                "  <normalDistributionModel id=\"model\">\n" +
+                "    <mean><parameter id=\"mu\" value=\"0.5\"/></mean>\n" +
+                "    <stdev><parameter id=\"sigma\" value=\"1.0\" lower=\"0.0\"/></stdev>\n" +
+                "  </normalDistributionModel>\n" +
+                "  <distributionLikelihood id=\"data\">\n" +
+                "    <distribution><normalDistributionModel idref=\"model\"/></distribution>\n" +
+                "    <data><parameter value=\"1.0 2.0 0.5\"/></data>\n" +
+                "  </distributionLikelihood>\n" +
+                "  <prior id=\"prior\"><normalPrior mean=\"0.0\" stdev=\"2.0\"><parameter idref=\"mu\"/></normalPrior></prior>\n" +
+                "  <likelihood id=\"likelihood\"><distributionLikelihood idref=\"data\"/></likelihood>\n" +
+                "  <posterior id=\"posterior\"><prior idref=\"prior\"/><likelihood idref=\"likelihood\"/></posterior>\n" +
+                "  <operators id=\"operators\">\n" +
+                "    <randomWalkOperator windowSize=\"1.0\" weight=\"1\"><parameter idref=\"mu\"/></randomWalkOperator>\n" +
+                "  </operators>\n" +
+                "  <mcmc id=\"mcmc\" chainLength=\"1000\">\n" +
+                "    <posterior idref=\"posterior\"/>\n" +
+                "    <operators idref=\"operators\"/>\n" +
+                "    <log logEvery=\"100\" fileName=\"" + mcmcLog + "\"><parameter idref=\"mu\"/></log>\n" +
+                "  </mcmc>\n" +
+                "  <marginalLikelihoodEstimator chainLength=\"" + CHAIN_LENGTH + "\" burnin=\"100\" pathSteps=\"" + PATH_STEPS +
+                "\" pathScheme=\"betaquantile\" alpha=\"0.3\" prerun=\"100\" threads=\"" + threadCount + "\">\n" +
+                "    <samplers><mcmc idref=\"mcmc\"/></samplers>\n" +
+                "    <pathLikelihood id=\"pathLikelihood\">\n" +
+                "      <source><posterior idref=\"posterior\"/></source>\n" +
+                "      <destination><prior idref=\"prior\"/></destination>\n" +
+                "    </pathLikelihood>\n" +
+                "    <log logEvery=\"" + LOG_EVERY + "\" fileName=\"" + mleLog + "\"><pathLikelihood idref=\"pathLikelihood\"/></log>\n" +
+                "  </marginalLikelihoodEstimator>\n" +
+                "</beast>\n";
+    }
+
+    /**
+     * @return the labels and the values of each sample (without the comments)
+     */
+    private static List<String[]> readLog(File file) throws IOException {
+        List<String[]> rows = new ArrayList<String[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("#") && line.trim().length() > 0) {
+                rows.add(line.split("\t"));
+            }
+        }
+        reader.close();
+        return rows;
+    }
+
+    private static File createDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create a temporary directory");
+        }
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public static Test suite() {
+        return new TestSuite(MarginalLikelihoodEstimatorTest.class);
+    }
+
+    private File directory;
+    private List<File> replicaDirectories;
+}
@@ -0,0 +1,124 @@
+package test.dr.inference.mcmcmc;
+
+import dr.inference.mcmcmc.ColdChainLogMerger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the log and tree files of replicas that were each cold for some of the states are
+ * merged back into the samples of the cold chain.
+ */
+public class ColdChainLogMergerTest extends TestCase {
+
+    private static final int RANK_COUNT = 3;
+    private static final int SAMPLE_COUNT = 50;
+    private static final long LOG_EVERY = 10;
+
+    public ColdChainLogMergerTest(String name) {
+        super(name);
+    }
+
+    public void testMergeLogs() throws IOException {
+        File[] rankFiles = new File[RANK_COUNT];
+        PrintWriter[] writers = createWriters(rankFiles, ".log");
+        for (PrintWriter writer : writers) {
+            writer.println("# BEAST");
+            writer.println("state\tposterior");
+        }
+        for (int k = 0; k < SAMPLE_COUNT; k++) {
+            writers[getColdRank(k)].println((k * LOG_EVERY) + "\t" + (-k));
+        }
+        closeAll(writers);
+
+        List<String> lines = merge(rankFiles, false);
+        assertEquals(2 + SAMPLE_COUNT, lines.size());
+        assertEquals("# BEAST", lines.get(0));
+        assertEquals("state\tposterior", lines.get(1));
+        for (int k = 0; k < SAMPLE_COUNT; k++) {
+            assertEquals((k * LOG_EVERY) + "\t" + (-k), lines.get(2 + k));
+        }
+    }
+
+    public void testMergeTrees() throws IOException {
+        File[] rankFiles = new File[RANK_COUNT];
+        PrintWriter[] writers = createWriters(rankFiles, ".trees");
+        for (PrintWriter writer : writers) {
+            writer.println("#NEXUS");
+            writer.println("Begin trees;");
+            writer.println("\tTranslate");
+            writer.println("\t\t1 A,");
+            writer.println("\t\t2 B");
+            writer.println("\t\t;");
+        }
+        for (int k = 0; k < SAMPLE_COUNT; k++) {
+            writers[getColdRank(k)].println("tree STATE_" + (k * LOG_EVERY) + " = [&R] (1:" + k + ",2:" + k + ");");
+        }
+        for (PrintWriter writer : writers) {
+            writer.println("End;");
+        }
+        closeAll(writers);
+
+        List<String> lines = merge(rankFiles, true);
+        assertEquals(6 + SAMPLE_COUNT + 1, lines.size());
+        assertEquals("#NEXUS", lines.get(0));
+        assertEquals("\t\t;", lines.get(5));
+        for (int k = 0; k < SAMPLE_COUNT; k++) {
+            assertEquals("tree STATE_" + (k * LOG_EVERY) + " = [&R] (1:" + k + ",2:" + k + ");", lines.get(6 + k));
+        }
+        assertEquals("End;", lines.get(lines.size() - 1));
+    }
+
+    /**
+     * The cold chain moves between the replicas in runs of various lengths (and one replica is
+     * cold at the start and end).
+     */
+    private static int getColdRank(int sample) {
+        return (sample / 7 + sample / 11) % RANK_COUNT;
+    }
+
+    private static PrintWriter[] createWriters(File[] files, String extension) throws IOException {
+        PrintWriter[] writers = new PrintWriter[files.length];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = File.createTempFile("chain" + i, extension);
+            files[i].deleteOnExit();
+            writers[i] = new PrintWriter(new FileWriter(files[i]));
+        }
+        return writers;
+    }
+
+    private static void closeAll(PrintWriter[] writers) {
+        for (PrintWriter writer : writers) {
+            writer.close();
+        }
+    }
+
+    private static List<String> merge(File[] rankFiles, boolean isTreeFile) throws IOException {
+        File mergedFile = File.createTempFile("merged", isTreeFile ? ".trees" : ".log");
+        try {
+            assertEquals(SAMPLE_COUNT, ColdChainLogMerger.merge(rankFiles, mergedFile, isTreeFile));
+
+            List<String> lines = new ArrayList<String>();
+            BufferedReader reader = new BufferedReader(new FileReader(mergedFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            reader.close();
+            return lines;
+        } finally {
+            mergedFile.delete();
+            for (File file : rankFiles) {
+                file.delete();
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(ColdChainLogMergerTest.class);
+    }
+}
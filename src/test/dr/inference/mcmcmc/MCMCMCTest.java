@@ -0,0 +1,150 @@
+package test.dr.inference.mcmcmc;
+
+import dr.inference.loggers.Logger;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.mcmcmc.MCMCMC;
+import dr.inference.mcmcmc.MCMCMCOptions;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.inference.operators.CoercionMode;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import dr.math.distributions.GammaDistribution;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that the chains of an MCMCMC analysis run to the end and that the failure of one chain
+ * stops the others and is thrown by run rather than leaving them waiting for it.
+ */
+public class MCMCMCTest extends TestCase {
+
+    private static final long CHAIN_LENGTH = 20000;
+
+    public MCMCMCTest(String name) {
+        super(name);
+    }
+
+    public void testRun() throws Throwable {
+        MathUtils.setSeed(666);
+        GammaLikelihood[] likelihoods = createLikelihoods(-1);
+
+        assertNull(runInThread(createMCMCMC(likelihoods)));
+        for (GammaLikelihood likelihood : likelihoods) {
+            assertTrue(likelihood.evaluationCount >= CHAIN_LENGTH);
+        }
+    }
+
+    public void testFailingChain() throws Throwable {
+        MathUtils.setSeed(666);
+        // the second chain fails part way through a block
+        GammaLikelihood[] likelihoods = createLikelihoods(1);
+
+        Throwable failure = runInThread(createMCMCMC(likelihoods));
+        assertTrue(failure instanceof IllegalStateException);
+        assertEquals("failed", failure.getMessage());
+        for (GammaLikelihood likelihood : likelihoods) {
+            assertTrue(likelihood.evaluationCount < CHAIN_LENGTH);
+        }
+    }
+
+    /**
+     * @return what the analysis threw (or null) having checked that it finished
+     */
+    private static Throwable runInThread(final MCMCMC mc3) throws InterruptedException {
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    mc3.run();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(60000);
+        assertFalse("the chains didn't finish", thread.isAlive());
+        return failure[0];
+    }
+
+    private static GammaLikelihood[] createLikelihoods(int failingChain) {
+        GammaLikelihood[] likelihoods = new GammaLikelihood[3];
+        for (int i = 0; i < likelihoods.length; i++) {
+            likelihoods[i] = new GammaLikelihood("chain" + i, i == failingChain ? 1234 : -1);
+        }
+        return likelihoods;
+    }
+
+    private static MCMCMC createMCMCMC(GammaLikelihood[] likelihoods) {
+        MCMC[] mcmcs = new MCMC[likelihoods.length];
+        for (int i = 0; i < mcmcs.length; i++) {
+            OperatorSchedule schedule = new SimpleOperatorSchedule();
+            schedule.addOperator(new ScaleOperator(likelihoods[i].x, 0.5, CoercionMode.COERCION_OFF, 1.0));
+
+            mcmcs[i] = new MCMC("mcmc" + i);
+            mcmcs[i].init(new MCMCOptions(CHAIN_LENGTH), likelihoods[i], schedule, new Logger[0]);
+        }
+        MCMCMC mc3 = new MCMCMC(mcmcs, new MCMCMCOptions(new double[]{1.0, 0.8, 0.6}, 100));
+        mc3.setShowOperatorAnalysis(false);
+        return mc3;
+    }
+
+    /**
+     * A gamma density that throws once it has been evaluated a given number of times.
+     */
+    private static class GammaLikelihood extends AbstractModelLikelihood {
+
+        GammaLikelihood(String name, int failAfter) {
+            super(name);
+            this.failAfter = failAfter;
+            x = new Parameter.Default(name + ".x", 1.0, 0.0, Double.POSITIVE_INFINITY);
+            addVariable(x);
+        }
+
+        protected void handleModelChangedEvent(Model model, Object object, int index) {
+        }
+
+        protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        }
+
+        protected void storeState() {
+        }
+
+        protected void restoreState() {
+        }
+
+        protected void acceptState() {
+        }
+
+        public Model getModel() {
+            return this;
+        }
+
+        public double getLogLikelihood() {
+            evaluationCount++;
+            if (evaluationCount == failAfter) {
+                throw new IllegalStateException("failed");
+            }
+            return GammaDistribution.logPdf(x.getParameterValue(0), 3.0, 1.0);
+        }
+
+        public void makeDirty() {
+        }
+
+        final Parameter x;
+        private final int failAfter;
+        volatile int evaluationCount = 0;
+    }
+
+    public static Test suite() {
+        return new TestSuite(MCMCMCTest.class);
+    }
+}
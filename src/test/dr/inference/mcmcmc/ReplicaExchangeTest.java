@@ -0,0 +1,169 @@
+package test.dr.inference.mcmcmc;
+
+import dr.inference.mcmcmc.MCMCMCOptions;
+import dr.inference.mcmcmc.ReplicaExchange;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+
+/**
+ * Checks which replicas the temperature exchange pairs up, that the temperatures move with the
+ * swaps and that swaps are accepted with the Metropolis probability.
+ */
+public class ReplicaExchangeTest extends TestCase {
+
+    public ReplicaExchangeTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+    }
+
+    public void testCertainSwap() {
+        ReplicaExchange exchange = createExchange(new double[]{1.0, 0.5}, MCMCMCOptions.SwapScheme.RANDOM, 0.0);
+        assertEquals(0, exchange.getColdReplica());
+
+        // the hot replica has found the better state so moving it to the cold rung is always accepted
+        int[] partners = exchange.exchange(new double[]{-20.0, -10.0}, 0);
+        assertTrue(Arrays.equals(new int[]{1, 0}, partners));
+        assertEquals(0.5, exchange.getTemperature(0), 0.0);
+        assertEquals(1.0, exchange.getTemperature(1), 0.0);
+        assertEquals(1, exchange.getColdReplica());
+    }
+
+    public void testRejectedSwap() {
+        ReplicaExchange exchange = createExchange(new double[]{1.0, 0.5}, MCMCMCOptions.SwapScheme.RANDOM, 0.0);
+
+        // a log acceptance ratio of -1000 is never accepted
+        for (int i = 0; i < 100; i++) {
+            int[] partners = exchange.exchange(new double[]{-10.0, -2010.0}, 0);
+            assertTrue(Arrays.equals(new int[]{-1, -1}, partners));
+        }
+        assertEquals(1.0, exchange.getTemperature(0), 0.0);
+        assertEquals(0.5, exchange.getTemperature(1), 0.0);
+        assertEquals(0, exchange.getColdReplica());
+    }
+
+    public void testAcceptanceProbability() {
+        final double probability = 0.3;
+        final int rounds = 20000;
+        ReplicaExchange exchange = createExchange(new double[]{1.0, 0.5}, MCMCMCOptions.SwapScheme.RANDOM, 0.0);
+
+        int swaps = 0;
+        for (int i = 0; i < rounds; i++) {
+            // scores that give a log ratio of log(probability) whichever replica is cold:
+            // (hot - cold) * (1.0 - 0.5) = log(probability)
+            double[] scores = new double[2];
+            int cold = exchange.getColdReplica();
+            scores[cold] = 0.0;
+            scores[1 - cold] = 2.0 * Math.log(probability);
+
+            int[] partners = exchange.exchange(scores, 0);
+            if (partners[0] >= 0) {
+                assertEquals(1, partners[0]);
+                assertEquals(0, partners[1]);
+                assertEquals(1 - cold, exchange.getColdReplica());
+                swaps++;
+            } else {
+                assertEquals(cold, exchange.getColdReplica());
+            }
+        }
+        assertEquals(probability, (double) swaps / rounds, 0.015);
+    }
+
+    public void testEvenOddPairs() {
+        ReplicaExchange exchange = createExchange(new double[]{1.0, 0.4, 0.8, 0.6},
+                MCMCMCOptions.SwapScheme.EVEN_ODD, 0.0);
+
+        // with equal scores every attempted swap is accepted. The ladder is 0, 2, 3, 1 (coldest first)
+        // so the even rungs pair 0 with 2 and 3 with 1
+        double[] scores = new double[]{-5.0, -5.0, -5.0, -5.0};
+        int[] partners = exchange.exchange(scores, 0);
+        assertTrue(Arrays.equals(new int[]{2, 3, 0, 1}, partners));
+        assertEquals(2, exchange.getColdReplica());
+        assertEquals(0.8, exchange.getTemperature(0), 0.0);
+        assertEquals(0.4, exchange.getTemperature(3), 0.0);
+
+        // the ladder is now 2, 0, 1, 3 and the odd rungs pair 0 with 1
+        partners = exchange.exchange(scores, 0);
+        assertTrue(Arrays.equals(new int[]{1, 0, -1, -1}, partners));
+        assertEquals(0.6, exchange.getTemperature(0), 0.0);
+        assertEquals(0.8, exchange.getTemperature(1), 0.0);
+        assertEquals(1.0, exchange.getTemperature(2), 0.0);
+    }
+
+    public void testAdaptedLadder() {
+        final double target = 0.4;
+        ReplicaExchange exchange = createExchange(new double[]{1.0, 0.9, 0.8, 0.7},
+                MCMCMCOptions.SwapScheme.EVEN_ODD, target);
+
+        for (int i = 0; i < 5000; i++) {
+            // the score of a replica falls as it gets hotter so the hotter chains have to move
+            // away for the swap rate to fall to the target
+            double[] scores = new double[4];
+            for (int j = 0; j < scores.length; j++) {
+                scores[j] = -100.0 / exchange.getTemperature(j) + MathUtils.nextGaussian();
+            }
+            exchange.exchange(scores, i * 100L);
+
+            // the cold chain stays at temperature 1 and the ladder stays in order
+            assertEquals(1.0, exchange.getTemperature(exchange.getColdReplica()), 0.0);
+            double[] temperatures = new double[4];
+            for (int j = 0; j < temperatures.length; j++) {
+                temperatures[j] = exchange.getTemperature(j);
+            }
+            Arrays.sort(temperatures);
+            for (int j = 1; j < temperatures.length; j++) {
+                assertTrue(temperatures[j] > temperatures[j - 1]);
+            }
+        }
+    }
+
+    public void testLadderFixedAfterBurnin() {
+        final long burnin = 2000;
+        ReplicaExchange exchange = new ReplicaExchange(new MCMCMCOptions(new double[]{1.0, 0.9, 0.8, 0.7}, 100,
+                MCMCMCOptions.SwapScheme.EVEN_ODD, 0.4, burnin));
+
+        double[] initial = sortedTemperatures(exchange);
+        double[] adapted = null;
+        for (long state = 0; state <= 10 * burnin; state += 100) {
+            double[] scores = new double[4];
+            for (int j = 0; j < scores.length; j++) {
+                scores[j] = -100.0 / exchange.getTemperature(j) + MathUtils.nextGaussian();
+            }
+            exchange.exchange(scores, state);
+
+            if (state == burnin - 100) {
+                // the last exchange during the burn-in
+                adapted = sortedTemperatures(exchange);
+                assertFalse(Arrays.equals(initial, adapted));
+            } else if (state >= burnin) {
+                // the replicas still swap but the rungs of the ladder stay where they were
+                assertTrue(Arrays.equals(adapted, sortedTemperatures(exchange)));
+            }
+        }
+    }
+
+    private static double[] sortedTemperatures(ReplicaExchange exchange) {
+        double[] temperatures = new double[exchange.getReplicaCount()];
+        for (int j = 0; j < temperatures.length; j++) {
+            temperatures[j] = exchange.getTemperature(j);
+        }
+        Arrays.sort(temperatures);
+        return temperatures;
+    }
+
+    private static ReplicaExchange createExchange(double[] temperatures, MCMCMCOptions.SwapScheme scheme,
+                                                  double targetSwapRate) {
+        return new ReplicaExchange(new MCMCMCOptions(temperatures, 100, scheme, targetSwapRate));
+    }
+
+    public static Test suite() {
+        return new TestSuite(ReplicaExchangeTest.class);
+    }
+}
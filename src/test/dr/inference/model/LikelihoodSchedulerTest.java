@@ -0,0 +1,297 @@
+package test.dr.inference.model;
+
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.LikelihoodScheduler;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Checks that compound likelihoods evaluated on the shared pool give the same values as serial
+ * evaluation through store, restore and accept cycles, that only changed components are
+ * evaluated, that the slowest tasks are started first and that nested compound likelihoods fork
+ * into the same pool.
+ */
+public class LikelihoodSchedulerTest extends TestCase {
+
+    private static final int COMPONENT_COUNT = 6;
+    private static final int ROUNDS = 500;
+
+    static {
+        // a single worker so that a nested compound likelihood blocking a worker would deadlock
+        System.setProperty(LikelihoodScheduler.POOL_SIZE, "1");
+    }
+
+    public LikelihoodSchedulerTest(String name) {
+        super(name);
+    }
+
+    public void testParallelMatchesSerial() throws Exception {
+        MathUtils.setSeed(666);
+
+        final List<Component> serialComponents = createComponents("serial");
+        final List<Component> parallelComponents = createComponents("parallel");
+
+        final CompoundLikelihood serial = createCompound(0, serialComponents);
+        final CompoundLikelihood parallel = createCompound(-1, parallelComponents);
+
+        // run off the main thread so a deadlock fails the test rather than hanging it
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    runCycles(serial, serialComponents, parallel, parallelComponents);
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(60000);
+        assertFalse("evaluation deadlocked", thread.isAlive());
+        if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        } else if (failure[0] != null) {
+            throw new RuntimeException(failure[0]);
+        }
+
+        // the components, nested or not, were evaluated by the pool's worker (a single changed
+        // component is evaluated on the calling thread)
+        for (int i = 0; i < COMPONENT_COUNT; i++) {
+            assertTrue(parallelComponents.get(i).evaluationsInPool > 0);
+            assertEquals(0, serialComponents.get(i).evaluationsInPool);
+        }
+    }
+
+    private void runCycles(CompoundLikelihood serial, List<Component> serialComponents,
+                           CompoundLikelihood parallel, List<Component> parallelComponents) {
+
+        assertEquals(serial.getLogLikelihood(), parallel.getLogLikelihood(), 0.0);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            serial.getModel().storeModelState();
+            parallel.getModel().storeModelState();
+
+            int[] before = getEvaluationCounts(parallelComponents);
+            int[] callsBefore = getCallsInPool(parallelComponents);
+
+            // change only some of the components
+            boolean[] changed = new boolean[COMPONENT_COUNT];
+            for (int i = 0; i < COMPONENT_COUNT; i++) {
+                if (MathUtils.nextDouble() < 0.3) {
+                    double value = MathUtils.nextGaussian();
+                    serialComponents.get(i).x.setParameterValue(0, value);
+                    parallelComponents.get(i).x.setParameterValue(0, value);
+                    changed[i] = true;
+                }
+            }
+
+            assertEquals(serial.getLogLikelihood(), parallel.getLogLikelihood(), 0.0);
+
+            int[] after = getEvaluationCounts(parallelComponents);
+            int[] callsAfter = getCallsInPool(parallelComponents);
+            for (int i = 0; i < COMPONENT_COUNT; i++) {
+                assertEquals("component " + i + " in round " + round, changed[i] ? 1 : 0, after[i] - before[i]);
+                if (!changed[i]) {
+                    // unchanged components are not sent to the pool
+                    assertEquals("component " + i + " in round " + round, callsBefore[i], callsAfter[i]);
+                }
+            }
+
+            if (MathUtils.nextBoolean()) {
+                serial.getModel().restoreModelState();
+                parallel.getModel().restoreModelState();
+            } else {
+                serial.getModel().acceptModelState();
+                parallel.getModel().acceptModelState();
+            }
+
+            assertEquals(serial.getLogLikelihood(), parallel.getLogLikelihood(), 0.0);
+        }
+    }
+
+    public void testCallersOnlyWhenParallel() {
+        List<Component> serialComponents = createComponents("serial");
+        CompoundLikelihood serial = new CompoundLikelihood(0, new ArrayList<Likelihood>(serialComponents));
+        assertTrue(serial.getLikelihoodCallers().isEmpty());
+        for (Component component : serialComponents) {
+            // nothing is listening to the components of a serial compound likelihood
+            assertFalse(component.isUsed());
+        }
+
+        List<Component> parallelComponents = createComponents("parallel");
+        List<Likelihood> nestedComponents = new ArrayList<Likelihood>(parallelComponents.subList(COMPONENT_COUNT / 2, COMPONENT_COUNT));
+        CompoundLikelihood nested = new CompoundLikelihood(-1, nestedComponents);
+        assertEquals(nestedComponents.size(), nested.getLikelihoodCallers().size());
+
+        List<Likelihood> top = new ArrayList<Likelihood>(parallelComponents.subList(0, COMPONENT_COUNT / 2));
+        top.add(nested);
+        CompoundLikelihood parallel = new CompoundLikelihood(-1, top);
+        assertEquals(COMPONENT_COUNT, parallel.getLikelihoodCallers().size());
+
+        // the nested compound likelihood has been unrolled so its own callers are released
+        assertTrue(nested.getLikelihoodCallers().isEmpty());
+        assertEquals(parallel.getLogLikelihood(), nested.getLogLikelihood() + sum(parallelComponents.subList(0, COMPONENT_COUNT / 2)), 1E-12);
+    }
+
+    private double sum(List<Component> components) {
+        double sum = 0.0;
+        for (Component component : components) {
+            sum += component.getLogLikelihood();
+        }
+        return sum;
+    }
+
+    public void testLongestFirst() {
+        final List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+        final int[] sleeps = new int[]{2, 20, 10};
+
+        List<LikelihoodScheduler.Task> tasks = new ArrayList<LikelihoodScheduler.Task>();
+        for (int i = 0; i < sleeps.length; i++) {
+            final int index = i;
+            tasks.add(new LikelihoodScheduler.Task() {
+                protected double evaluate() {
+                    started.add(index);
+                    try {
+                        Thread.sleep(sleeps[index]);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return index;
+                }
+            });
+        }
+
+        // untimed tasks keep their order and the sum is in the order given
+        assertEquals(3.0, LikelihoodScheduler.evaluate(tasks), 0.0);
+        assertEquals(Arrays.asList(0, 1, 2), started);
+
+        started.clear();
+        assertEquals(3.0, LikelihoodScheduler.evaluate(tasks), 0.0);
+        assertEquals(Arrays.asList(1, 2, 0), started);
+    }
+
+    private List<Component> createComponents(String prefix) {
+        List<Component> components = new ArrayList<Component>();
+        for (int i = 0; i < COMPONENT_COUNT; i++) {
+            components.add(new Component(prefix + i, 0.1 * i, 1000 * (i + 1)));
+        }
+        return components;
+    }
+
+    /**
+     * Half of the components directly and the rest in a nested compound likelihood.
+     */
+    private CompoundLikelihood createCompound(int threads, List<Component> components) {
+        List<Likelihood> nested = new ArrayList<Likelihood>(components.subList(COMPONENT_COUNT / 2, COMPONENT_COUNT));
+        List<Likelihood> top = new ArrayList<Likelihood>(components.subList(0, COMPONENT_COUNT / 2));
+        top.add(new CompoundLikelihood(threads, nested));
+        return new CompoundLikelihood(threads, top);
+    }
+
+    private int[] getEvaluationCounts(List<Component> components) {
+        int[] counts = new int[components.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = components.get(i).evaluationCount;
+        }
+        return counts;
+    }
+
+    private int[] getCallsInPool(List<Component> components) {
+        int[] counts = new int[components.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = components.get(i).callsInPool;
+        }
+        return counts;
+    }
+
+    /**
+     * A component that counts its evaluations and takes time in proportion to its size.
+     */
+    private static class Component extends AbstractModelLikelihood {
+
+        Component(String name, double value, int size) {
+            super(name);
+            this.size = size;
+            x = new Parameter.Default(name + ".x", value);
+            addVariable(x);
+        }
+
+        protected void handleModelChangedEvent(Model model, Object object, int index) {
+        }
+
+        protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+            likelihoodKnown = false;
+        }
+
+        protected void storeState() {
+            storedLogLikelihood = logLikelihood;
+            storedLikelihoodKnown = likelihoodKnown;
+        }
+
+        protected void restoreState() {
+            logLikelihood = storedLogLikelihood;
+            likelihoodKnown = storedLikelihoodKnown;
+        }
+
+        protected void acceptState() {
+        }
+
+        public Model getModel() {
+            return this;
+        }
+
+        public double getLogLikelihood() {
+            if (ForkJoinTask.inForkJoinPool()) {
+                callsInPool++;
+            }
+            if (!likelihoodKnown) {
+                double value = x.getParameterValue(0);
+                double sum = 0.0;
+                for (int i = 1; i <= size; i++) {
+                    sum += Math.log(i + value * value);
+                }
+                logLikelihood = -sum / size;
+                likelihoodKnown = true;
+                evaluationCount++;
+                if (ForkJoinTask.inForkJoinPool()) {
+                    evaluationsInPool++;
+                }
+            }
+            return logLikelihood;
+        }
+
+        public void makeDirty() {
+            likelihoodKnown = false;
+        }
+
+        final Parameter x;
+        private final int size;
+
+        private double logLikelihood;
+        private double storedLogLikelihood;
+        private boolean likelihoodKnown = false;
+        private boolean storedLikelihoodKnown = false;
+
+        volatile int evaluationCount = 0;
+        volatile int evaluationsInPool = 0;
+        volatile int callsInPool = 0;
+    }
+
+    public static Test suite() {
+        return new TestSuite(LikelihoodSchedulerTest.class);
+    }
+}
@@ -0,0 +1,122 @@
+package test.dr.inference.model;
+
+import dr.inference.model.Parameter;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that store, restore and accept give back the right values whether the changes since the
+ * store are journaled or the whole parameter is copied.
+ */
+public class ParameterStoreTest extends TestCase {
+
+    private static final int DIMENSION = 100;
+
+    public ParameterStoreTest(String name) {
+        super(name);
+    }
+
+    public void testFewChanges() {
+        Parameter parameter = createParameter();
+        parameter.storeParameterValues();
+
+        parameter.setParameterValue(3, -1.0);
+        parameter.setParameterValueQuietly(7, -2.0);
+        parameter.setParameterValue(3, -3.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0);
+
+        // accepted changes must be kept by the next store
+        parameter.storeParameterValues();
+        parameter.setParameterValue(5, 50.0);
+        parameter.acceptParameterValues();
+        parameter.storeParameterValues();
+        parameter.setParameterValue(6, 60.0);
+        parameter.restoreParameterValues();
+        assertEquals(50.0, parameter.getParameterValue(5));
+        assertEquals(6.0, parameter.getParameterValue(6));
+    }
+
+    public void testManyChanges() {
+        Parameter parameter = createParameter();
+        for (int round = 1; round <= 3; round++) {
+            parameter.storeParameterValues();
+            for (int i = 0; i < DIMENSION; i += 2) {
+                parameter.setParameterValue(i, -i * round);
+            }
+            parameter.restoreParameterValues();
+            assertValues(parameter, 0.0);
+        }
+
+        parameter.storeParameterValues();
+        for (int i = 0; i < DIMENSION; i++) {
+            parameter.setParameterValueQuietly(i, i + 0.5);
+        }
+        parameter.acceptParameterValues();
+        parameter.storeParameterValues();
+        parameter.setParameterValue(1, -1.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.5);
+    }
+
+    public void testAllValuesQuietly() {
+        Parameter.Default parameter = createParameter();
+        parameter.storeParameterValues();
+        double[] values = new double[DIMENSION + 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = -i;
+        }
+        parameter.setAllParameterValuesQuietly(values, 1);
+        assertEquals(-1.0, parameter.getParameterValue(0));
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0);
+    }
+
+    public void testAddDimension() {
+        Parameter parameter = createParameter();
+        parameter.storeParameterValues();
+        parameter.addDimension(DIMENSION, -1.0);
+        parameter.setParameterValue(0, -2.0);
+        assertEquals(DIMENSION + 1, parameter.getDimension());
+        parameter.restoreParameterValues();
+        assertEquals(DIMENSION, parameter.getDimension());
+        assertValues(parameter, 0.0);
+
+        parameter.storeParameterValues();
+        parameter.setParameterValue(2, -2.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0);
+    }
+
+    public void testSetDimension() {
+        Parameter.Default parameter = new Parameter.Default(DIMENSION / 2);
+        parameter.setDimension(DIMENSION);
+        for (int i = 0; i < DIMENSION; i++) {
+            parameter.setParameterValue(i, i);
+        }
+        parameter.storeParameterValues();
+        parameter.setParameterValue(DIMENSION - 1, -1.0);
+        parameter.restoreParameterValues();
+        assertValues(parameter, 0.0);
+    }
+
+    private Parameter.Default createParameter() {
+        Parameter.Default parameter = new Parameter.Default(DIMENSION);
+        for (int i = 0; i < DIMENSION; i++) {
+            parameter.setParameterValue(i, i);
+        }
+        return parameter;
+    }
+
+    private void assertValues(Parameter parameter, double offset) {
+        assertEquals(DIMENSION, parameter.getDimension());
+        for (int i = 0; i < DIMENSION; i++) {
+            assertEquals(i + offset, parameter.getParameterValue(i));
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(ParameterStoreTest.class);
+    }
+}
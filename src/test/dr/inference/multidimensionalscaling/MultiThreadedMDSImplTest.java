@@ -0,0 +1,199 @@
+/*
+ * MultiThreadedMDSImplTest.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.inference.multidimensionalscaling;
+
+import dr.inference.multidimensionalscaling.MultiDimensionalScalingCore;
+import dr.inference.multidimensionalscaling.MultiDimensionalScalingCoreImpl;
+import dr.inference.multidimensionalscaling.MultiThreadedMDSImpl;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Random;
+
+/**
+ * Checks the multithreaded MDS core against the single threaded one through a run of
+ * location and precision changes that are accepted or rejected.
+ */
+public class MultiThreadedMDSImplTest extends TestCase {
+
+    private static final int LOCATION_COUNT = 300;
+    private static final int DIMENSION = 2;
+    private static final int STEP_COUNT = 200;
+
+    public MultiThreadedMDSImplTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        random = new Random(666);
+
+        locations = new double[LOCATION_COUNT * DIMENSION];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = random.nextGaussian() * 3.0;
+        }
+
+        observations = new double[LOCATION_COUNT * LOCATION_COUNT];
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            for (int j = i + 1; j < LOCATION_COUNT; j++) {
+                double distance = 0.0;
+                for (int k = 0; k < DIMENSION; k++) {
+                    double difference = locations[i * DIMENSION + k] - locations[j * DIMENSION + k];
+                    distance += difference * difference;
+                }
+                observations[i * LOCATION_COUNT + j] = observations[j * LOCATION_COUNT + i] =
+                        Math.abs(Math.sqrt(distance) + random.nextGaussian() * 0.5);
+            }
+        }
+    }
+
+    public void testAgainstSingleThreaded() {
+        checkAgainstSingleThreaded(0);
+    }
+
+    public void testAgainstSingleThreadedTruncated() {
+        checkAgainstSingleThreaded(MultiDimensionalScalingCore.LEFT_TRUNCATION);
+    }
+
+    private void checkAgainstSingleThreaded(long flags) {
+        MultiDimensionalScalingCore expected = createCore(new MultiDimensionalScalingCoreImpl(), flags);
+        MultiDimensionalScalingCore core = createCore(new MultiThreadedMDSImpl(3), flags);
+
+        assertEquals(expected.calculateLogLikelihood(), core.calculateLogLikelihood(), 1E-8);
+
+        for (int step = 0; step < STEP_COUNT; step++) {
+            expected.storeState();
+            core.storeState();
+
+            int type = random.nextInt(10);
+            if (type < 7) {
+                // move one location, sometimes several times or evaluating in between
+                int count = (type == 6 ? 2 : 1);
+                for (int c = 0; c < count; c++) {
+                    double[] location = moveLocation(random.nextInt(LOCATION_COUNT));
+                    expected.updateLocation(lastMoved, location);
+                    core.updateLocation(lastMoved, location);
+                    assertEquals(expected.calculateLogLikelihood(), core.calculateLogLikelihood(), 1E-8);
+                }
+            } else if (type < 9) {
+                // move many locations at once so the row updates are shared between threads
+                for (int c = 0; c < 40; c++) {
+                    double[] location = moveLocation(random.nextInt(LOCATION_COUNT));
+                    expected.updateLocation(lastMoved, location);
+                    core.updateLocation(lastMoved, location);
+                }
+            } else {
+                double[] parameters = new double[]{Math.exp(random.nextGaussian())};
+                expected.setParameters(parameters);
+                core.setParameters(parameters);
+            }
+
+            assertEquals(expected.calculateLogLikelihood(), core.calculateLogLikelihood(), 1E-8);
+
+            if (random.nextBoolean()) {
+                expected.acceptState();
+                core.acceptState();
+            } else {
+                expected.restoreState();
+                core.restoreState();
+                System.arraycopy(storedLocations, 0, locations, 0, locations.length);
+            }
+            System.arraycopy(locations, 0, storedLocations, 0, locations.length);
+
+            assertEquals(expected.calculateLogLikelihood(), core.calculateLogLikelihood(), 1E-8);
+        }
+
+        // nothing stale is left in the increments
+        double logLikelihood = core.calculateLogLikelihood();
+        core.makeDirty();
+        assertEquals(logLikelihood, core.calculateLogLikelihood(), 1E-8);
+    }
+
+    public void testGradient() {
+        checkGradient(0);
+        checkGradient(MultiDimensionalScalingCore.LEFT_TRUNCATION);
+    }
+
+    private void checkGradient(long flags) {
+        MultiDimensionalScalingCore core = createCore(new MultiThreadedMDSImpl(3), flags);
+
+        double[] gradient = new double[LOCATION_COUNT * DIMENSION];
+        core.getGradient(gradient);
+
+        final double delta = 1E-6;
+        for (int i = 0; i < LOCATION_COUNT; i += 37) {
+            for (int k = 0; k < DIMENSION; k++) {
+                double[] location = new double[DIMENSION];
+                System.arraycopy(locations, i * DIMENSION, location, 0, DIMENSION);
+
+                location[k] += delta;
+                core.updateLocation(i, location);
+                double upper = core.calculateLogLikelihood();
+                location[k] -= 2 * delta;
+                core.updateLocation(i, location);
+                double lower = core.calculateLogLikelihood();
+                location[k] += delta;
+                core.updateLocation(i, location);
+
+                double expected = (upper - lower) / (2 * delta);
+                assertEquals(expected, gradient[i * DIMENSION + k], 1E-4 * Math.max(1.0, Math.abs(expected)));
+            }
+        }
+    }
+
+    private MultiDimensionalScalingCore createCore(MultiDimensionalScalingCore core, long flags) {
+        core.initialize(DIMENSION, LOCATION_COUNT, flags);
+        core.setParameters(new double[]{2.0});
+        core.setPairwiseData(observations);
+        core.updateLocation(-1, locations);
+        core.makeDirty();
+        storedLocations = new double[locations.length];
+        System.arraycopy(locations, 0, storedLocations, 0, locations.length);
+        return core;
+    }
+
+    private double[] moveLocation(int index) {
+        double[] location = new double[DIMENSION];
+        for (int k = 0; k < DIMENSION; k++) {
+            locations[index * DIMENSION + k] += random.nextGaussian() * 0.2;
+            location[k] = locations[index * DIMENSION + k];
+        }
+        lastMoved = index;
+        return location;
+    }
+
+    public static Test suite() {
+        return new TestSuite(MultiThreadedMDSImplTest.class);
+    }
+
+    private Random random;
+    private double[] locations;
+    private double[] storedLocations;
+    private double[] observations;
+    private int lastMoved;
+}
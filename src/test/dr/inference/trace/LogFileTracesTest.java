@@ -0,0 +1,123 @@
+/*
+ * LogFileTracesTest.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.inference.trace;
+
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.TraceType;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Checks that log files are read the same way whether they are parsed in one
+ * or several threads or memory mapped from a binary copy.
+ */
+public class LogFileTracesTest extends TestCase {
+
+    private static final int STATE_COUNT = 5001;
+
+    public LogFileTracesTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        logFile = File.createTempFile("traces", ".log");
+        logFile.deleteOnExit();
+        new File(logFile.getPath() + LogFileTraces.BINARY_CACHE_SUFFIX).deleteOnExit();
+
+        PrintWriter writer = new PrintWriter(new FileWriter(logFile));
+        writer.println("# a test log");
+        writer.println("state\tposterior\tcount\tcategory");
+        for (int i = 0; i < STATE_COUNT; i++) {
+            writer.println((i * 100) + "\t" + (-100.0 - (i % 17) * 0.25) + "\t" + (i % 7) + "\t" + (i % 3 == 0 ? "red" : "blue"));
+        }
+        writer.close();
+    }
+
+    public void tearDown() throws Exception {
+        System.clearProperty(LogFileTraces.THREADS);
+        System.clearProperty(LogFileTraces.BINARY_CACHE);
+        new File(logFile.getPath() + LogFileTraces.BINARY_CACHE_SUFFIX).delete();
+        logFile.delete();
+        super.tearDown();
+    }
+
+    public void testSingleThread() throws Exception {
+        System.setProperty(LogFileTraces.THREADS, "1");
+        checkTraces(load());
+    }
+
+    public void testThreads() throws Exception {
+        System.setProperty(LogFileTraces.THREADS, "3");
+        checkTraces(load());
+    }
+
+    public void testBinaryCache() throws Exception {
+        System.setProperty(LogFileTraces.BINARY_CACHE, "true");
+
+        // the first load writes the binary copy and the second maps it
+        checkTraces(load());
+        assertTrue(new File(logFile.getPath() + LogFileTraces.BINARY_CACHE_SUFFIX).exists());
+        checkTraces(load());
+    }
+
+    private LogFileTraces load() throws Exception {
+        LogFileTraces traces = new LogFileTraces(logFile.getName(), logFile);
+        traces.loadTraces();
+        return traces;
+    }
+
+    private void checkTraces(LogFileTraces traces) {
+        assertEquals(3, traces.getTraceCount());
+        assertEquals((STATE_COUNT - 1) * 100, traces.getMaxState());
+        assertEquals(100, traces.getStepSize());
+        assertEquals(TraceType.INTEGER, traces.getTrace(1).getTraceType());
+        assertEquals(TraceType.CATEGORICAL, traces.getTrace(2).getTraceType());
+
+        traces.setBurnIn(0);
+        List posterior = traces.getValues(0);
+        List category = traces.getValues(2);
+        assertEquals(STATE_COUNT, posterior.size());
+        for (int i = 0; i < STATE_COUNT; i++) {
+            assertEquals(-100.0 - (i % 17) * 0.25, (Double) posterior.get(i), 0.0);
+            assertEquals((double) (i % 7), traces.getStateValue(1, i), 0.0);
+            assertEquals(i % 3 == 0 ? "red" : "blue", category.get(i));
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(LogFileTracesTest.class);
+    }
+
+    private File logFile;
+}
@@ -0,0 +1,201 @@
+/*
+ * ReplicateLogCombinerTest.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.inference.trace;
+
+import dr.inference.trace.ReplicateLogCombiner;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that replicate logs are combined correctly while they are still being written.
+ */
+public class ReplicateLogCombinerTest extends TestCase {
+
+    private static final int CHAIN_COUNT = 3;
+    private static final int STATE_COUNT = 100;
+    private static final long LOG_EVERY = 10;
+    private static final long BURNIN = 200;
+
+    public ReplicateLogCombinerTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        chainFiles = new File[CHAIN_COUNT];
+        writers = new PrintWriter[CHAIN_COUNT];
+        for (int i = 0; i < CHAIN_COUNT; i++) {
+            chainFiles[i] = File.createTempFile("replicate" + i, ".log");
+            chainFiles[i].deleteOnExit();
+            writers[i] = new PrintWriter(new FileWriter(chainFiles[i]));
+            writers[i].println("# replicate " + i);
+            writers[i].println("state\tposterior\tconstant");
+        }
+        combinedFile = File.createTempFile("combined", ".log");
+        combinedFile.deleteOnExit();
+    }
+
+    public void tearDown() throws Exception {
+        for (File file : chainFiles) {
+            file.delete();
+        }
+        combinedFile.delete();
+        super.tearDown();
+    }
+
+    public void testStreamingCombine() throws Exception {
+        ReplicateLogCombiner combiner = new ReplicateLogCombiner(chainFiles, combinedFile, false, BURNIN, LOG_EVERY);
+
+        for (int k = 0; k < STATE_COUNT; k++) {
+            for (int i = 0; i < CHAIN_COUNT; i++) {
+                writers[i].println((k * LOG_EVERY) + "\t" + getValue(i, k) + "\t1.0");
+                writers[i].flush();
+            }
+            if (k % 37 == 0) {
+                combiner.update();
+            }
+        }
+        // a line that hasn't been finished yet must be left for later
+        writers[0].print((STATE_COUNT * LOG_EVERY) + "\t-1");
+        writers[0].flush();
+
+        combiner.update();
+        int samples = (int) (STATE_COUNT - BURNIN / LOG_EVERY);
+        assertEquals(CHAIN_COUNT * samples, combiner.getSampleCount());
+        for (int i = 0; i < CHAIN_COUNT; i++) {
+            assertEquals(samples, combiner.getSampleCount(i));
+        }
+
+        writers[0].println("0.5\t1.0");
+        for (PrintWriter writer : writers) {
+            writer.close();
+        }
+        combiner.finish();
+        assertEquals(CHAIN_COUNT * samples + 1, combiner.getSampleCount());
+
+        assertEquals(2, combiner.getColumnCount());
+        assertEquals("posterior", combiner.getColumnName(0));
+        assertTrue(combiner.isVarying(0));
+        assertFalse(combiner.isVarying(1));
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(combinedFile));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        reader.close();
+
+        assertEquals("# replicate 0", lines.get(0));
+        assertEquals("state\tposterior\tconstant", lines.get(1));
+        assertEquals(2 + CHAIN_COUNT * samples + 1, lines.size());
+        for (int k = 2; k < lines.size(); k++) {
+            assertTrue(lines.get(k).startsWith(((k - 2) * LOG_EVERY) + "\t"));
+        }
+        assertEquals((CHAIN_COUNT * samples * LOG_EVERY) + "\t-10.5\t1.0", lines.get(lines.size() - 1));
+    }
+
+    public void testLongChains() throws Exception {
+        final int stateCount = 25000;
+        ReplicateLogCombiner combiner = new ReplicateLogCombiner(chainFiles, combinedFile, false, 0, LOG_EVERY);
+
+        double sum = 0.0;
+        double[][] values = new double[CHAIN_COUNT][stateCount];
+        for (int k = 0; k < stateCount; k++) {
+            for (int i = 0; i < CHAIN_COUNT; i++) {
+                values[i][k] = getValue(i, k) + Math.sin(k * 0.01);
+                sum += values[i][k];
+                writers[i].println((k * LOG_EVERY) + "\t" + values[i][k] + "\t1.0");
+            }
+            if (k % 5000 == 0) {
+                for (PrintWriter writer : writers) {
+                    writer.flush();
+                }
+                combiner.update();
+            }
+        }
+        for (PrintWriter writer : writers) {
+            writer.close();
+        }
+        combiner.finish();
+
+        // only a bounded, evenly spaced subsample is kept
+        for (int i = 0; i < CHAIN_COUNT; i++) {
+            assertEquals(stateCount, combiner.getSampleCount(i));
+            assertTrue(combiner.getRetainedSampleCount(i) <= 10000);
+            assertTrue(combiner.getRetainedSampleCount(i) >= 5000);
+        }
+
+        // the mean is of every sample
+        assertEquals(sum / (CHAIN_COUNT * stateCount), combiner.getMean(0), 1E-10);
+        assertEquals(1.0, combiner.getMean(1), 0.0);
+        assertTrue(combiner.isVarying(0));
+        assertFalse(combiner.isVarying(1));
+
+        // and the diagnostics of the subsample are close to those of every sample
+        assertEquals(ReplicateLogCombiner.getRHat(values), combiner.getRHat(0, false), 0.01);
+        assertEquals(ReplicateLogCombiner.getRHat(values), combiner.getRHat(0, true), 0.01);
+        assertTrue(combiner.getESS(0, false) > 0.0);
+        assertTrue(combiner.getESS(0, true) > 0.0);
+    }
+
+    public void testRHat() {
+        // chains with the same distribution
+        double[][] values = new double[CHAIN_COUNT][STATE_COUNT];
+        for (int i = 0; i < CHAIN_COUNT; i++) {
+            for (int k = 0; k < STATE_COUNT; k++) {
+                values[i][k] = getValue(i, k);
+            }
+        }
+        assertEquals(1.0, ReplicateLogCombiner.getRHat(values), 0.05);
+
+        // and shifted apart
+        for (int i = 0; i < CHAIN_COUNT; i++) {
+            for (int k = 0; k < STATE_COUNT; k++) {
+                values[i][k] += 10.0 * i;
+            }
+        }
+        assertTrue(ReplicateLogCombiner.getRHat(values) > 2.0);
+    }
+
+    private static double getValue(int chain, int state) {
+        return -100.0 + ((state * 7 + chain * 3) % 11) * 0.5;
+    }
+
+    public static Test suite() {
+        return new TestSuite(ReplicateLogCombinerTest.class);
+    }
+
+    private File[] chainFiles;
+    private PrintWriter[] writers;
+    private File combinedFile;
+}
@@ -0,0 +1,159 @@
+/*
+ * LowRankCovarianceTest.java
+ *
+ * Copyright (c) 2002-2017 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.math;
+
+import dr.math.MathUtils;
+import dr.math.matrixAlgebra.LowRankCovariance;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Compares the streaming low rank covariance estimate with the sample covariance.
+ */
+public class LowRankCovarianceTest extends TestCase {
+
+    private static final int DIM = 40;
+    private static final int RANK = 3;
+    private static final int SAMPLE_COUNT = 1000;
+
+    public LowRankCovarianceTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+
+        loadings = new double[DIM][RANK];
+        for (int i = 0; i < DIM; i++) {
+            for (int r = 0; r < RANK; r++) {
+                loadings[i][r] = MathUtils.nextGaussian();
+            }
+        }
+    }
+
+    public void testExactForLowRank() {
+        // the sketch loses nothing when the samples span no more than rank dimensions
+        checkAgainstSampleCovariance(0.0, 1E-8);
+    }
+
+    public void testWithNoise() {
+        // the error is bounded by the variance outside the leading directions
+        checkAgainstSampleCovariance(0.1, 0.05);
+    }
+
+    public void testDeviates() {
+        double[][] samples = simulate(0.1);
+        LowRankCovariance covariance = new LowRankCovariance(DIM, RANK);
+        for (double[] sample : samples) {
+            covariance.addSample(sample);
+        }
+
+        final int count = 20000;
+        double[] sum = new double[DIM];
+        double[] sumOfSquares = new double[DIM];
+        double sumOfProducts = 0.0;
+        double[] x = new double[DIM];
+        for (int k = 0; k < count; k++) {
+            for (int i = 0; i < DIM; i++) {
+                x[i] = 0.0;
+            }
+            covariance.addDeviate(x, 2.0);
+            for (int i = 0; i < DIM; i++) {
+                sum[i] += x[i];
+                sumOfSquares[i] += x[i] * x[i];
+            }
+            sumOfProducts += x[0] * x[1];
+        }
+
+        for (int i = 0; i < DIM; i++) {
+            double variance = sumOfSquares[i] / count - (sum[i] / count) * (sum[i] / count);
+            assertEquals(4.0 * covariance.getVariance(i), variance, 0.05 * 4.0 * covariance.getVariance(i));
+        }
+        assertEquals(4.0 * covariance.getCovariance(0, 1), sumOfProducts / count,
+                0.05 * 4.0 * Math.sqrt(covariance.getVariance(0) * covariance.getVariance(1)));
+    }
+
+    private void checkAgainstSampleCovariance(double noise, double tolerance) {
+        double[][] samples = simulate(noise);
+
+        LowRankCovariance covariance = new LowRankCovariance(DIM, RANK);
+        for (double[] sample : samples) {
+            covariance.addSample(sample);
+        }
+        assertEquals(SAMPLE_COUNT, covariance.getSampleCount());
+
+        double[] mean = new double[DIM];
+        for (double[] sample : samples) {
+            for (int i = 0; i < DIM; i++) {
+                mean[i] += sample[i] / SAMPLE_COUNT;
+            }
+        }
+
+        for (int i = 0; i < DIM; i++) {
+            assertEquals(mean[i], covariance.getMean(i), 1E-10);
+            for (int j = 0; j <= i; j++) {
+                double expected = 0.0;
+                for (double[] sample : samples) {
+                    expected += (sample[i] - mean[i]) * (sample[j] - mean[j]);
+                }
+                expected /= (SAMPLE_COUNT - 1);
+
+                if (i == j) {
+                    // the variances are always exact
+                    assertEquals(expected, covariance.getVariance(i), 1E-8);
+                } else {
+                    assertEquals(expected, covariance.getCovariance(i, j), tolerance);
+                }
+            }
+        }
+    }
+
+    private double[][] simulate(double noise) {
+        double[][] samples = new double[SAMPLE_COUNT][DIM];
+        double[] z = new double[RANK];
+        for (int k = 0; k < SAMPLE_COUNT; k++) {
+            for (int r = 0; r < RANK; r++) {
+                z[r] = MathUtils.nextGaussian();
+            }
+            for (int i = 0; i < DIM; i++) {
+                double x = 1.0 + noise * MathUtils.nextGaussian();
+                for (int r = 0; r < RANK; r++) {
+                    x += loadings[i][r] * z[r];
+                }
+                samples[k][i] = x;
+            }
+        }
+        return samples;
+    }
+
+    public static Test suite() {
+        return new TestSuite(LowRankCovarianceTest.class);
+    }
+
+    private double[][] loadings;
+}
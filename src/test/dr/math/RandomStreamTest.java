@@ -0,0 +1,86 @@
+package test.dr.math;
+
+import dr.math.MathUtils;
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Checks that random streams bound to threads are reproducible from the seed and leave the shared
+ * generator alone.
+ */
+public class RandomStreamTest extends MathTestCase {
+
+    private static final int DRAWS = 1000;
+
+    public RandomStreamTest(String name) {
+        super(name);
+    }
+
+    public void testBoundStreams() throws Exception {
+        MathUtils.setSeed(666);
+        double[] expected = draw(null);
+
+        final double[][] streamDraws = new double[4][];
+        Thread[] threads = new Thread[streamDraws.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    streamDraws[index] = draw(MathUtils.createRandomStream(123, index));
+                }
+            };
+            threads[i].start();
+        }
+
+        MathUtils.setSeed(666);
+        // draws from the shared generator while the streams are in use
+        assertEquals(expected, draw(null), 0.0);
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < streamDraws.length; i++) {
+            assertEquals(streamDraws[i], draw(MathUtils.createRandomStream(123, i)), 0.0);
+            if (i > 0) {
+                assertFalse(streamDraws[i][0] == streamDraws[i - 1][0]);
+            }
+        }
+        assertFalse(streamDraws[0][0] == draw(MathUtils.createRandomStream(124, 0))[0]);
+    }
+
+    public void testRebinding() {
+        MathUtils.RandomStream stream1 = MathUtils.createRandomStream(1, 0);
+        MathUtils.RandomStream stream2 = MathUtils.createRandomStream(1, 1);
+
+        assertNull(MathUtils.bindRandomStream(stream1));
+        double value1 = MathUtils.nextDouble();
+        assertSame(stream1, MathUtils.bindRandomStream(stream2));
+        double value2 = MathUtils.nextDouble();
+        assertSame(stream2, MathUtils.bindRandomStream(null));
+
+        assertEquals(value1, draw(MathUtils.createRandomStream(1, 0))[0], 0.0);
+        assertEquals(value2, draw(MathUtils.createRandomStream(1, 1))[0], 0.0);
+    }
+
+    private static double[] draw(MathUtils.RandomStream stream) {
+        MathUtils.RandomStream previous = null;
+        if (stream != null) {
+            previous = MathUtils.bindRandomStream(stream);
+        }
+        try {
+            double[] values = new double[DRAWS];
+            for (int i = 0; i < DRAWS; i++) {
+                values[i] = (i % 2 == 0 ? MathUtils.nextDouble() : MathUtils.nextGaussian());
+            }
+            return values;
+        } finally {
+            if (stream != null) {
+                MathUtils.bindRandomStream(previous);
+            }
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(RandomStreamTest.class);
+    }
+}